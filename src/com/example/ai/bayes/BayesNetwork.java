@@ -2,13 +2,13 @@ package com.example.ai.bayes;
 
 import com.example.ai.bayes.Event.AndClause;
 import com.example.ai.bayes.Event.Condition;
+import com.example.ai.bayes.RelevanceReducer.Reduction;
 import com.google.auto.value.AutoValue;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Predicates;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
@@ -29,79 +29,281 @@ public abstract class BayesNetwork {
   public abstract ImmutableList<ConditionalDistribution>
       getConditionalDistributions();
 
+  /**
+   * The structure of this network, computed once by {@link Builder#build}.
+   */
+  abstract Topology getTopology();
+
+  /**
+   * The exact engine used where no {@link QueryPlanner} is consulted, such
+   * as for {@link #queryLogProbability} without an explicit engine.
+   */
+  static final InferenceEngine ELIMINATION_ENGINE =
+      VariableEliminationEngine.withOrder(EliminationOrder.MIN_FILL)
+          .withNumerics(Numerics.LOG_SPACE);
+
+  /** The planner for queries without an explicit engine, made lazily. */
+  private volatile QueryPlanner planner;
+
+  /** The reducer for queries without an explicit engine, made lazily. */
+  private volatile RelevanceReducer reducer;
+
   /**
    * Computes the probability of an {@link Event}, conditioned on evidence
-   * from another event.
+   * from another event, with whichever exact strategy a {@link QueryPlanner}
+   * expects to be cheapest (see {@link #explain}).
    */
   public double queryProbabilityWithEvidence(Event queryEvent, Event evidence) {
-    return queryProbability(Event.and(queryEvent, evidence))
-        / queryProbability(evidence);
+    QueryRecorder recorder =
+        QueryRecorder.start("queryProbabilityWithEvidence", null);
+    try {
+      return getPlanner().queryProbabilityWithEvidence(queryEvent, evidence);
+    } finally {
+      if (recorder != null) {
+        recorder.finish();
+      }
+    }
+  }
+
+  /**
+   * Computes the probability of an {@link Event}, conditioned on evidence
+   * from another event, using the given {@link InferenceEngine}.
+   *
+   * <p> The ratio is taken between logarithms of probabilities (see
+   * {@link #queryLogProbability}), so the result stays accurate for evidence
+   * too unlikely to be represented as a double, provided the engine supports
+   * it.
+   */
+  public double queryProbabilityWithEvidence(
+      Event queryEvent, Event evidence, InferenceEngine engine) {
+    QueryRecorder recorder =
+        QueryRecorder.start("queryProbabilityWithEvidence", engine);
+    try {
+      // Simplify both events before combining them, as the combined event
+      // has one clause per pair of clauses.
+      Event simplifiedQuery = simplify(queryEvent).getEvent();
+      Event simplifiedEvidence = simplify(evidence).getEvent();
+      return Math.exp(queryLogProbability(
+              Event.and(simplifiedQuery, simplifiedEvidence), engine)
+          - queryLogProbability(simplifiedEvidence, engine));
+    } finally {
+      if (recorder != null) {
+        recorder.finish();
+      }
+    }
+  }
+
+  /**
+   * Computes the probability of each of the given {@link Event}s, conditioned
+   * on the same evidence, returning the results in the same order.
+   *
+   * <p> The batch goes to the same {@link QueryPlanner} as
+   * {@link #queryProbabilityWithEvidence}, which shares the work on the
+   * evidence between the queries on one variable by calibrating a junction
+   * tree that it compiles at most once (see
+   * {@link QueryPlanner#queryPosteriors}).
+   */
+  public ImmutableList<Double> queryPosteriors(
+      Collection<? extends Event> queryEvents, Event evidence) {
+    return getPlanner().queryPosteriors(queryEvents, evidence);
+  }
+
+  /**
+   * Computes the posterior distribution of every variable given the evidence,
+   * as a map from each variable to a map from each of its values to its
+   * probability.  See {@link QueryPlanner#posteriorMarginals}.
+   */
+  public ImmutableMap<String, ImmutableMap<String, Double>> posteriorMarginals(
+      Event evidence) {
+    return getPlanner().posteriorMarginals(evidence);
   }
 
   /**
    * Computes the probability of a given {@link Event}, without conditioning
-   * on any evidence.
+   * on any evidence, with whichever exact strategy a {@link QueryPlanner}
+   * expects to be cheapest (see {@link #explain}).
    */
   public double queryProbability(Event queryEvent) {
-    if (queryEvent.getAndClauses().isEmpty()) {
-      return 0d;
+    QueryRecorder recorder = QueryRecorder.start("queryProbability", null);
+    try {
+      return getPlanner().queryProbability(queryEvent);
+    } finally {
+      if (recorder != null) {
+        recorder.finish();
+      }
+    }
+  }
+
+  /**
+   * Shows how {@link #queryProbabilityWithEvidence} without an explicit
+   * engine would answer the given query, and what each exact strategy is
+   * expected to cost.  Pass {@link Event#alwaysTrue} as the evidence to
+   * explain {@link #queryProbability}.
+   */
+  public QueryPlan explain(Event queryEvent, Event evidence) {
+    return getPlanner().explain(queryEvent, evidence);
+  }
+
+  /**
+   * Gets the planner of the queries that specify no engine, creating it the
+   * first time.  It uses exact strategies only.
+   */
+  QueryPlanner getPlanner() {
+    QueryPlanner result = planner;
+    if (result == null) {
+      synchronized (this) {
+        result = planner;
+        if (result == null) {
+          result = QueryPlanner.create(this);
+          planner = result;
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Gets the reducer that the queries which specify no engine, and the
+   * planners of this network, run each query through before inference,
+   * creating it the first time.  Its cache of reduced networks is therefore
+   * shared by all of them.
+   */
+  RelevanceReducer getReducer() {
+    RelevanceReducer result = reducer;
+    if (result == null) {
+      synchronized (this) {
+        result = reducer;
+        if (result == null) {
+          result = RelevanceReducer.create(this);
+          reducer = result;
+        }
+      }
     }
-    if (queryEvent.getAndClauses().size() == 1) {
-      return getProbabilityForSingleAndClause(queryEvent.getAndClauses().get(0));
+    return result;
+  }
+
+  /**
+   * Computes the probability of a given {@link Event}, without conditioning
+   * on any evidence, using the given {@link InferenceEngine}.
+   *
+   * <p> The event is first simplified (see {@link #simplify}), and its clauses
+   * are then rewritten as disjoint clauses (see {@link ClauseMask#disjoin}),
+   * so the probability of the event is a plain sum of clause probabilities.
+   */
+  public double queryProbability(Event queryEvent, InferenceEngine engine) {
+    QueryRecorder recorder = QueryRecorder.start("queryProbability", engine);
+    try {
+      ImmutableList<ClauseMask> clauses = ClauseMask.disjoin(
+          ClauseMask.simplify(ClauseMask.of(this, queryEvent)));
+      if (recorder != null) {
+        recorder.addClauses(clauses.size());
+      }
+      CompensatedSum result = new CompensatedSum();
+      for (ClauseMask clause : clauses) {
+        result.add(engine.getProbability(this, clause.toAndClause()));
+      }
+      return result.getSum();
+    } finally {
+      if (recorder != null) {
+        recorder.finish();
+      }
     }
+  }
 
-    AndClause firstClause = queryEvent.getAndClauses().get(0);
-    ImmutableList<? extends AndClause> remainingClauses =
-        queryEvent.getAndClauses().subList(
-            1, queryEvent.getAndClauses().size());
-
-    Event firstClauseEvent = Event.fromAndClauses(firstClause);
-    Event remainingOrEvent = Event.fromAndClauses(remainingClauses);
-
-    return queryProbability(firstClauseEvent)
-        + queryProbability(remainingOrEvent)
-        - queryProbability(Event.and(firstClauseEvent, remainingOrEvent));
-  }
-
-  /**
-   * Computes the probability of a single {@link AndClause}.
-   */
-  private double getProbabilityForSingleAndClause(AndClause andClause) {
-    ImmutableMap.Builder<String, String> partialAssignment =
-        ImmutableMap.builder();
-    ImmutableMultimap.Builder<String, String> remainingCombinations =
-        ImmutableMultimap.builder();
-    for (String variable : andClause.getConditions().keySet()) {
-      Collection<? extends Condition> conditions =
-          andClause.getConditions().get(variable);
-      Set<String> allowedValues = getAllowedValues(variable, conditions);
-      if (allowedValues.isEmpty()) {
-        // There's no way to satisfy the given conditions, so the probability
-        // is zero.
-        return 0;
-      } else if (allowedValues.size() == 1) {
-        partialAssignment.put(
-            variable, Iterables.getOnlyElement(allowedValues));
-      } else {
-        remainingCombinations.putAll(variable, allowedValues);
+  /**
+   * Computes the natural logarithm of the probability of a given
+   * {@link Event}, without conditioning on any evidence, by variable
+   * elimination on the part of the network relevant to it (see
+   * {@link RelevanceReducer}).
+   */
+  public double queryLogProbability(Event queryEvent) {
+    Reduction reduction = getReducer().reduce(queryEvent, Event.alwaysTrue());
+    return reduction.getNetwork().queryLogProbability(
+        reduction.getQuery(), ELIMINATION_ENGINE);
+  }
+
+  /**
+   * Computes the natural logarithm of the probability of a given
+   * {@link Event}, without conditioning on any evidence, using the given
+   * {@link InferenceEngine}.
+   *
+   * <p> The clauses are handled as in {@link #queryProbability}, and their
+   * logarithms are combined by a log-sum-exp around the largest one, so that
+   * the result stays accurate even if every clause probability would
+   * underflow.
+   */
+  public double queryLogProbability(Event queryEvent, InferenceEngine engine) {
+    QueryRecorder recorder =
+        QueryRecorder.start("queryLogProbability", engine);
+    try {
+      ImmutableList<ClauseMask> clauses = ClauseMask.disjoin(
+          ClauseMask.simplify(ClauseMask.of(this, queryEvent)));
+      if (recorder != null) {
+        recorder.addClauses(clauses.size());
+      }
+      double[] logProbabilities = new double[clauses.size()];
+      double max = Double.NEGATIVE_INFINITY;
+      for (int i = 0; i < clauses.size(); i++) {
+        logProbabilities[i] =
+            engine.getLogProbability(this, clauses.get(i).toAndClause());
+        max = Math.max(max, logProbabilities[i]);
+      }
+      if (max == Double.NEGATIVE_INFINITY) {
+        return max;
+      }
+      CompensatedSum sum = new CompensatedSum();
+      for (double logProbability : logProbabilities) {
+        sum.add(Math.exp(logProbability - max));
+      }
+      return max + Math.log(sum.getSum());
+    } finally {
+      if (recorder != null) {
+        recorder.finish();
       }
     }
+  }
 
-    // Handle all nuisance variables (the variables that don't appear directly
-    // in this clause).
-    for (String nuisanceVar : getNuisanceVariables(andClause)) {
-      remainingCombinations.putAll(nuisanceVar, getValues(nuisanceVar));
+  /**
+   * Simplifies an {@link Event} using the value domains of this network.
+   *
+   * <p> Each clause is reduced to the set of values allowed for each
+   * variable, so that conditions which rule out every value make the clause
+   * unsatisfiable, and conditions which allow every value disappear.
+   * Unsatisfiable, duplicate and subsumed clauses are then dropped, and
+   * clauses that differ only in the values allowed for one variable are
+   * merged.  Queries apply this automatically.
+   */
+  public EventSimplification simplify(Event event) {
+    ImmutableList.Builder<AndClause> clauses = ImmutableList.builder();
+    for (ClauseMask clause
+        : ClauseMask.simplify(ClauseMask.of(this, event))) {
+      clauses.add(clause.toAndClause());
     }
+    return EventSimplification.of(Event.fromAndClauses(clauses.build()),
+        event.getAndClauses().size());
+  }
 
-    return getProbabilityRecursive(
-        partialAssignment.build(), remainingCombinations.build());
+  /**
+   * Compiles this network into a junction tree, for answering many queries
+   * against it.
+   */
+  public CompiledNetwork compile() {
+    return compile(EliminationOrder.MIN_FILL);
+  }
+
+  /**
+   * Compiles this network into a junction tree, triangulating it in the order
+   * chosen by the given heuristic.
+   */
+  public CompiledNetwork compile(EliminationOrder eliminationOrder) {
+    return CompiledNetwork.compile(this, eliminationOrder);
   }
 
   /**
    * Given a variable and its conditions, return the values that the variable
    * is allowed to take on.
    */
-  private ImmutableSet<String> getAllowedValues(String variable,
+  ImmutableSet<String> getAllowedValues(String variable,
       Collection<? extends Condition> conditions) {
     Set<String> result = getValues(variable);
     for (Condition condition : conditions) {
@@ -123,108 +325,64 @@ public abstract class BayesNetwork {
   }
 
   /**
-   * Compute a probability by recursively enumerating all possible ways to
-   * assign values to the involved variables. This method relies on
-   * {@link #getJointProbability} to compute the contributions from each
-   * assigment.
-   *
-   * @param partialAssignment
-   *          a (possibly incomplete) assignment of values to variables
-   * @param remainingCombinations
-   *          a multimap containing the allowed values for any unassigned
-   *          variables
-   */
-  private double getProbabilityRecursive(
-      ImmutableMap<String, String> partialAssignment,
-      ImmutableMultimap<String, String> remainingCombinations) {
-    if (remainingCombinations.isEmpty()) {
-      // If we've assigned all variables, compute the probability from the
-      // joint probability distribution.
-      return getJointProbability(partialAssignment);
-    }
-
-    String firstVar = remainingCombinations.keySet().iterator().next();
-    ImmutableMultimap.Builder<String, String> newRemainingCombinations =
-        ImmutableMultimap.builder();
-    for (String var : remainingCombinations.keySet()) {
-      if (!var.equals(firstVar)) {
-        newRemainingCombinations.putAll(var, remainingCombinations.get(var));
-      }
-    }
-
-    double result = 0;
-    for (String valueForFirstVar : remainingCombinations.get(firstVar)) {
-      ImmutableMap<String, String> newPartialAssignment =
-          ImmutableMap.<String, String>builder()
-              .putAll(partialAssignment)
-              .put(firstVar, valueForFirstVar)
-              .build();
-      result += getProbabilityRecursive(
-          newPartialAssignment, newRemainingCombinations.build());
-    }
-    return result;
-  }
-
-  /**
-   * Computes the joint probability of the given assignment by multiplying
-   * entries from the conditional distribution tables.
+   * Look up a given distribution by variable name.
    */
-  private double getJointProbability(ImmutableMap<String, String> assignment) {
-    double result = 1.0;
-    for (String var : getVariables()) {
-      ImmutableList.Builder<String> key = ImmutableList.<String>builder()
-          .add(assignment.get(var));
-      ImmutableList<String> parentVariables =
-          getDistribution(var).getParentVariableNames();
-      for (String parentVar : parentVariables) {
-        key.add(assignment.get(parentVar));
-      }
-      double conditionalProbability =
-          getDistribution(var).getProbabilities().get(key.build());
-      result *= conditionalProbability;
-    }
-    return result;
+  ConditionalDistribution getDistribution(String variableName) {
+    return getConditionalDistributions().get(
+        getTopology().indexOf(variableName));
   }
 
   /**
-   * Look up a given distribution by variable name.
+   * Returns a network with the same structure and the given distributions,
+   * which must be in the same order as this network's and have the same
+   * variables, parents and domains.  Unlike {@link Builder#build}, this
+   * reuses the {@link Topology} and the tables as they are.
+   *
+   * @throws IllegalArgumentException if a distribution does not match
    */
-  private ConditionalDistribution getDistribution(String variableName) {
-    for (ConditionalDistribution distribution : getConditionalDistributions()) {
-      if (distribution.getVariableName().equals(variableName)) {
-        return distribution;
-      }
+  BayesNetwork withDistributions(
+      ImmutableList<ConditionalDistribution> distributions) {
+    ImmutableList<ConditionalDistribution> current =
+        getConditionalDistributions();
+    Preconditions.checkArgument(distributions.size() == current.size(),
+        "Expected %s distributions but got %s", current.size(),
+        distributions.size());
+    for (int i = 0; i < distributions.size(); i++) {
+      ConditionalDistribution distribution = distributions.get(i);
+      Preconditions.checkArgument(
+          distribution.getVariableName().equals(
+              current.get(i).getVariableName())
+          && distribution.getParentVariableNames().equals(
+              current.get(i).getParentVariableNames())
+          && distribution.getTable().hasDomains(
+              current.get(i).getTable().getDomains()),
+          "Distribution %s does not match the structure",
+          distribution.getVariableName());
     }
-    throw new IllegalArgumentException(
-        "Could not find distribution for variable named " + variableName);
+    return new AutoValue_BayesNetwork(distributions, getTopology());
   }
 
   /**
    * Gets all values associated with a given variable.
    */
-  private ImmutableSet<String> getValues(String variableName) {
-    return getDistribution(variableName).getValues();
+  ImmutableSet<String> getValues(String variableName) {
+    return getTopology().getDomain(getTopology().indexOf(variableName));
   }
 
   /**
    * Gets the list of all variables in this network.
    */
   public ImmutableList<String> getVariables() {
-    ImmutableList.Builder<String> result = ImmutableList.builder();
-    for (ConditionalDistribution distribution : getConditionalDistributions()) {
-      result.add(distribution.getVariableName());
-    }
-    return result.build();
+    return getTopology().getVariables();
   }
 
   /**
-   * Gets all variables that are included in this {@link BayesNetwork} but
-   * not in the given {@link AndClause}.
+   * Installs an {@link Instrumentation} to receive the metrics of every
+   * query made from now on, in any network, or removes it if null.  No
+   * metrics are collected while none is installed.
    */
-  private ImmutableSet<String> getNuisanceVariables(AndClause andClause) {
-    return ImmutableSet.copyOf(Sets.difference(
-        ImmutableSet.copyOf(getVariables()),
-        andClause.getConditions().keySet()));
+  public static void setInstrumentation(Instrumentation instrumentation) {
+    QueryRecorder.install(instrumentation);
   }
 
   /**
@@ -246,8 +404,27 @@ public abstract class BayesNetwork {
       return this;
     }
 
+    /**
+     * Builds the network, precomputing its {@link Topology} and laying out
+     * every distribution's table so that the values of each parent share
+     * ordinals with the parent's own distribution.
+     *
+     * @throws IllegalArgumentException if a variable has more than one
+     *         distribution, if a parent has no distribution, or if the
+     *         distributions form a cycle
+     */
     public BayesNetwork build() {
-      return new AutoValue_BayesNetwork(ImmutableList.copyOf(distributions));
+      Topology topology = Topology.of(distributions);
+      ImmutableList.Builder<ConditionalDistribution> result =
+          ImmutableList.builder();
+      for (int i = 0; i < distributions.size(); i++) {
+        List<ImmutableSet<String>> parentDomains = Lists.newArrayList();
+        for (int parent : topology.getParents(i)) {
+          parentDomains.add(topology.getDomain(parent));
+        }
+        result.add(distributions.get(i).withParentDomains(parentDomains));
+      }
+      return new AutoValue_BayesNetwork(result.build(), topology);
     }
   }
 }
@@ -0,0 +1,483 @@
+package com.example.ai.bayes;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads and writes {@link BayesNetwork}s in the Bayesian Interchange Format
+ * (BIF), as used by many network repositories.
+ *
+ * <p> Only discrete variables are supported.  Conditional tables may be given
+ * row by row, as in {@code (a, b) 0.1, 0.9;}, or all at once after
+ * {@code table}, in which case the variable's values change fastest and the
+ * parents follow with the last parent changing fastest.  Rows not listed
+ * take the entries after {@code default}, if there is one.  Properties are
+ * ignored.
+ *
+ * <p> The reader streams through its input, so memory use is bounded by the
+ * network being built rather than by the size of the text, and variable and
+ * value names are interned so each distinct name is held once.
+ */
+public final class BifFormat {
+  private static final String PUNCTUATION = "{}()[];,|";
+
+  private BifFormat() {}
+
+  /**
+   * Reads a network.  Every variable must be declared before the
+   * probabilities that mention it.
+   *
+   * @throws IOException if the input cannot be read or is not valid BIF
+   * @throws IllegalArgumentException if the input describes an invalid
+   *         network, such as one with a cycle
+   */
+  public static BayesNetwork read(Reader reader) throws IOException {
+    Lexer lexer = new Lexer(reader);
+    Map<String, ImmutableSet<String>> domains = Maps.newLinkedHashMap();
+    Map<String, ConditionalDistribution> distributions = Maps.newHashMap();
+    for (String token = lexer.next(); token != null; token = lexer.next()) {
+      if (token.equals("network")) {
+        while (!lexer.nextRequired().equals("{")) {}
+        lexer.skipBlock();
+      } else if (token.equals("variable")) {
+        readVariable(lexer, domains);
+      } else if (token.equals("probability")) {
+        ConditionalDistribution distribution =
+            readProbability(lexer, domains);
+        if (distributions.put(distribution.getVariableName(), distribution)
+            != null) {
+          throw lexer.error("Duplicate probabilities for "
+              + distribution.getVariableName());
+        }
+      } else {
+        throw lexer.error("Unexpected " + token);
+      }
+    }
+
+    BayesNetwork.Builder builder = BayesNetwork.builder();
+    for (String variable : domains.keySet()) {
+      ConditionalDistribution distribution = distributions.get(variable);
+      if (distribution == null) {
+        throw new IOException("No probabilities for variable " + variable);
+      }
+      builder.add(distribution);
+    }
+    return builder.build();
+  }
+
+  private static void readVariable(
+      Lexer lexer, Map<String, ImmutableSet<String>> domains)
+      throws IOException {
+    String name = lexer.nextName();
+    lexer.expect("{");
+    ImmutableSet<String> domain = null;
+    for (String token = lexer.nextRequired(); !token.equals("}");
+        token = lexer.nextRequired()) {
+      if (token.equals("type")) {
+        lexer.expect("discrete");
+        lexer.expect("[");
+        int count = lexer.nextInt();
+        lexer.expect("]");
+        lexer.expect("{");
+        ImmutableSet.Builder<String> values = ImmutableSet.builder();
+        for (String value : lexer.nextNames("}")) {
+          values.add(value);
+        }
+        domain = values.build();
+        if (domain.size() != count) {
+          throw lexer.error(
+              "Expected " + count + " distinct values for " + name);
+        }
+        lexer.expect(";");
+      } else if (token.equals("property")) {
+        lexer.skipStatement();
+      } else {
+        throw lexer.error("Unexpected " + token);
+      }
+    }
+    if (domain == null) {
+      throw lexer.error("No type for variable " + name);
+    }
+    if (domains.put(name, domain) != null) {
+      throw lexer.error("Duplicate variable " + name);
+    }
+  }
+
+  private static ConditionalDistribution readProbability(
+      Lexer lexer, Map<String, ImmutableSet<String>> domains)
+      throws IOException {
+    lexer.expect("(");
+    String name = lexer.nextName();
+    List<String> parents = Lists.newArrayList();
+    String token = lexer.nextRequired();
+    if (token.equals("|")) {
+      parents = lexer.nextNames(")");
+    } else if (!token.equals(")")) {
+      throw lexer.error("Expected ) but found " + token);
+    }
+
+    ImmutableList.Builder<ImmutableSet<String>> tableDomains =
+        ImmutableList.builder();
+    tableDomains.add(getDomain(lexer, domains, name));
+    for (String parent : parents) {
+      tableDomains.add(getDomain(lexer, domains, parent));
+    }
+    ImmutableList<ImmutableSet<String>> builtDomains = tableDomains.build();
+    int size = 1;
+    for (ImmutableSet<String> domain : builtDomains) {
+      size = Math.multiplyExact(size, domain.size());
+    }
+    double[] values = new double[size];
+    Arrays.fill(values, Double.NaN);
+    ProbabilityTable table = ProbabilityTable.fromArray(builtDomains, values);
+    int cardinality = table.getCardinality(0);
+    double[] defaultRow = null;
+
+    lexer.expect("{");
+    for (token = lexer.nextRequired(); !token.equals("}");
+        token = lexer.nextRequired()) {
+      if (token.equals("(")) {
+        List<String> parentValues = lexer.nextNames(")");
+        if (parentValues.size() != parents.size()) {
+          throw lexer.error("Expected values for " + parents);
+        }
+        int[] parentOrdinals = new int[parents.size()];
+        for (int i = 0; i < parentOrdinals.length; i++) {
+          parentOrdinals[i] = builtDomains.get(i + 1).asList()
+              .indexOf(parentValues.get(i));
+          if (parentOrdinals[i] < 0) {
+            throw lexer.error("Unknown value " + parentValues.get(i)
+                + " for " + parents.get(i));
+          }
+        }
+        lexer.readNumbers(values, table.getRowOffset(parentOrdinals),
+            cardinality);
+      } else if (token.equals("table")) {
+        double[] rows = new double[size];
+        lexer.readNumbers(rows, 0, size);
+        System.arraycopy(ProbabilityTable.fromRows(builtDomains, rows)
+            .getArray(), 0, values, 0, size);
+      } else if (token.equals("default")) {
+        defaultRow = new double[cardinality];
+        lexer.readNumbers(defaultRow, 0, cardinality);
+      } else if (token.equals("property")) {
+        lexer.skipStatement();
+      } else {
+        throw lexer.error("Unexpected " + token);
+      }
+    }
+
+    if (defaultRow != null) {
+      for (int offset = 0; offset < size; offset += cardinality) {
+        if (Double.isNaN(values[offset])) {
+          System.arraycopy(defaultRow, 0, values, offset, cardinality);
+        }
+      }
+    }
+    return ConditionalDistribution.of(name, ImmutableList.copyOf(parents),
+        table);
+  }
+
+  private static ImmutableSet<String> getDomain(Lexer lexer,
+      Map<String, ImmutableSet<String>> domains, String variable)
+      throws IOException {
+    ImmutableSet<String> domain = domains.get(variable);
+    if (domain == null) {
+      throw lexer.error("Undeclared variable " + variable);
+    }
+    return domain;
+  }
+
+  /**
+   * Writes a network.  Rows whose entries were never set are left out.
+   */
+  public static void write(BayesNetwork network, Writer writer)
+      throws IOException {
+    writer.write("network unknown {\n}\n");
+    for (String variable : network.getVariables()) {
+      StringBuilder line = new StringBuilder("variable ")
+          .append(quote(variable))
+          .append(" {\n  type discrete [ ")
+          .append(network.getValues(variable).size())
+          .append(" ] { ");
+      appendNames(line, network.getValues(variable));
+      line.append(" };\n}\n");
+      writer.write(line.toString());
+    }
+    for (ConditionalDistribution distribution
+        : network.getConditionalDistributions()) {
+      StringBuilder line = new StringBuilder("probability ( ")
+          .append(quote(distribution.getVariableName()));
+      if (!distribution.getParentVariableNames().isEmpty()) {
+        line.append(" | ");
+        appendNames(line, distribution.getParentVariableNames());
+      }
+      line.append(" ) {\n");
+      writer.write(line.toString());
+
+      ProbabilityTable table = distribution.getTable();
+      int cardinality = table.getCardinality(0);
+      int[] parentOrdinals = new int[table.getDomains().size() - 1];
+      do {
+        int offset = table.getRowOffset(parentOrdinals);
+        if (isUnset(table, offset, cardinality)) {
+          continue;
+        }
+        line.setLength(0);
+        if (parentOrdinals.length == 0) {
+          line.append("  table ");
+        } else {
+          line.append("  (");
+          for (int i = 0; i < parentOrdinals.length; i++) {
+            if (i > 0) {
+              line.append(", ");
+            }
+            line.append(quote(table.getDomains().get(i + 1).asList()
+                .get(parentOrdinals[i])));
+          }
+          line.append(") ");
+        }
+        for (int value = 0; value < cardinality; value++) {
+          if (value > 0) {
+            line.append(", ");
+          }
+          line.append(table.get(offset + value));
+        }
+        line.append(";\n");
+        writer.write(line.toString());
+      } while (table.nextRow(parentOrdinals));
+      writer.write("}\n");
+    }
+    writer.flush();
+  }
+
+  private static boolean isUnset(
+      ProbabilityTable table, int offset, int cardinality) {
+    for (int value = 0; value < cardinality; value++) {
+      if (!Double.isNaN(table.get(offset + value))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void appendNames(
+      StringBuilder builder, Iterable<String> names) {
+    boolean first = true;
+    for (String name : names) {
+      if (!first) {
+        builder.append(", ");
+      }
+      builder.append(quote(name));
+      first = false;
+    }
+  }
+
+  /**
+   * Quotes a name if it would not otherwise be read back as a single token.
+   */
+  private static String quote(String name) {
+    boolean plain = !name.isEmpty() && !name.startsWith("//")
+        && !name.startsWith("/*");
+    for (int i = 0; i < name.length() && plain; i++) {
+      char c = name.charAt(i);
+      plain = !Character.isWhitespace(c) && c != '"'
+          && PUNCTUATION.indexOf(c) < 0;
+    }
+    return plain ? name : "\"" + name + "\"";
+  }
+
+  /**
+   * Splits BIF text into tokens: punctuation, quoted strings and words,
+   * skipping whitespace and comments.
+   */
+  private static final class Lexer {
+    private final Reader reader;
+    private final Interner<String> names = Interners.newStrongInterner();
+    private final StringBuilder token = new StringBuilder();
+    private int line = 1;
+    /** The next character, or -2 if it has not been read yet. */
+    private int peeked = -2;
+
+    Lexer(Reader reader) {
+      this.reader = reader instanceof BufferedReader
+          ? reader : new BufferedReader(reader);
+    }
+
+    /**
+     * Gets the next token, or null at the end of the input.
+     */
+    String next() throws IOException {
+      int c = readTokenStart();
+      if (c < 0) {
+        return null;
+      }
+      if (PUNCTUATION.indexOf(c) >= 0) {
+        return String.valueOf((char) c);
+      }
+      token.setLength(0);
+      if (c == '"') {
+        for (c = read(); c != '"'; c = read()) {
+          if (c < 0) {
+            throw error("Unterminated string");
+          }
+          token.append((char) c);
+        }
+        return token.toString();
+      }
+      token.append((char) c);
+      for (c = peek(); c >= 0 && !Character.isWhitespace(c)
+          && PUNCTUATION.indexOf(c) < 0; c = peek()) {
+        token.append((char) read());
+      }
+      return token.toString();
+    }
+
+    String nextRequired() throws IOException {
+      String result = next();
+      if (result == null) {
+        throw error("Unexpected end of input");
+      }
+      return result;
+    }
+
+    String nextName() throws IOException {
+      String result = nextRequired();
+      if (result.length() == 1 && PUNCTUATION.indexOf(result.charAt(0)) >= 0) {
+        throw error("Expected a name but found " + result);
+      }
+      return names.intern(result);
+    }
+
+    /**
+     * Reads a comma-separated list of names up to the given closing token.
+     */
+    List<String> nextNames(String end) throws IOException {
+      List<String> result = Lists.newArrayList();
+      while (true) {
+        result.add(nextName());
+        String separator = nextRequired();
+        if (separator.equals(end)) {
+          return result;
+        } else if (!separator.equals(",")) {
+          throw error("Expected , or " + end + " but found " + separator);
+        }
+      }
+    }
+
+    int nextInt() throws IOException {
+      String result = nextRequired();
+      try {
+        return Integer.parseInt(result);
+      } catch (NumberFormatException e) {
+        throw error("Expected an integer but found " + result);
+      }
+    }
+
+    /**
+     * Reads exactly the given number of comma-separated numbers into an
+     * array, followed by a semicolon.
+     */
+    void readNumbers(double[] target, int offset, int count)
+        throws IOException {
+      for (int i = 0; i < count; i++) {
+        String number = nextRequired();
+        if (i > 0 && number.equals(",")) {
+          number = nextRequired();
+        }
+        try {
+          target[offset + i] = Double.parseDouble(number);
+        } catch (NumberFormatException e) {
+          throw error("Expected a number but found " + number);
+        }
+      }
+      expect(";");
+    }
+
+    void expect(String expected) throws IOException {
+      String actual = nextRequired();
+      if (!actual.equals(expected)) {
+        throw error("Expected " + expected + " but found " + actual);
+      }
+    }
+
+    void skipStatement() throws IOException {
+      while (!nextRequired().equals(";")) {}
+    }
+
+    /**
+     * Skips to the end of a block whose opening brace has been read.
+     */
+    void skipBlock() throws IOException {
+      int depth = 1;
+      while (depth > 0) {
+        String skipped = nextRequired();
+        if (skipped.equals("{")) {
+          depth++;
+        } else if (skipped.equals("}")) {
+          depth--;
+        }
+      }
+    }
+
+    IOException error(String message) {
+      return new IOException("Line " + line + ": " + message);
+    }
+
+    /**
+     * Skips whitespace and comments and reads the first character of the
+     * next token, or returns -1 at the end of the input.
+     */
+    private int readTokenStart() throws IOException {
+      while (true) {
+        int c = read();
+        if (c != '/') {
+          if (c < 0 || !Character.isWhitespace(c)) {
+            return c;
+          }
+        } else if (peek() == '/') {
+          for (c = read(); c >= 0 && c != '\n'; c = read()) {}
+        } else if (peek() == '*') {
+          read();
+          int previous = 0;
+          for (c = read(); !(previous == '*' && c == '/'); c = read()) {
+            if (c < 0) {
+              throw error("Unterminated comment");
+            }
+            previous = c;
+          }
+        } else {
+          return c;
+        }
+      }
+    }
+
+    private int peek() throws IOException {
+      if (peeked == -2) {
+        peeked = reader.read();
+      }
+      return peeked;
+    }
+
+    private int read() throws IOException {
+      int c = peek();
+      peeked = -2;
+      if (c == '\n') {
+        line++;
+      }
+      return c;
+    }
+  }
+}
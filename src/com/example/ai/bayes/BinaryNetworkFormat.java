@@ -0,0 +1,269 @@
+package com.example.ai.bayes;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Reads and writes {@link BayesNetwork}s in a compact binary format that can
+ * be loaded without parsing.
+ *
+ * <p> All numbers are little-endian.  A file holds:
+ * <ol>
+ * <li> the magic number {@code 0x5345594142} ("BAYES") as a long, and the
+ *      format version as an int;
+ * <li> the number of variables as an int, and for each variable in the order
+ *      of {@link BayesNetwork#getVariables}: its name, the number of its
+ *      values followed by each value, and the number of its parents followed
+ *      by the index of each parent, where strings are written as the length
+ *      of their UTF-8 encoding followed by the encoding;
+ * <li> zero padding up to a multiple of eight bytes;
+ * <li> the table of each variable, in the same order, as a contiguous block
+ *      of doubles laid out like a {@link ProbabilityTable}, with missing
+ *      entries as NaN.
+ * </ol>
+ *
+ * <p> {@link #load} maps the file into memory, and the tables of the loaded
+ * network read straight from the mapping.  Their entries therefore stay
+ * outside the heap and are shared with other processes mapping the same file;
+ * the samplers and enumeration read them entry by entry.  Variable
+ * elimination and {@link CompiledNetwork} build factors from the tables they
+ * need, which belong to the query or the compiled network, not to the table.
+ */
+public final class BinaryNetworkFormat {
+  private static final long MAGIC = 0x5345594142L;
+  private static final int VERSION = 1;
+  /** The size of the buffer used to write tables. */
+  private static final int WRITE_BUFFER_DOUBLES = 8192;
+
+  private BinaryNetworkFormat() {}
+
+  /**
+   * Writes a network to the given file, replacing any existing contents.
+   */
+  public static void write(BayesNetwork network, Path path)
+      throws IOException {
+    Topology topology = network.getTopology();
+    ByteArrayBuilder header = new ByteArrayBuilder();
+    header.putLong(MAGIC);
+    header.putInt(VERSION);
+    header.putInt(topology.size());
+    for (int i = 0; i < topology.size(); i++) {
+      header.putString(topology.getVariable(i));
+      header.putInt(topology.getCardinality(i));
+      for (String value : topology.getDomain(i)) {
+        header.putString(value);
+      }
+      header.putInt(topology.getParents(i).length);
+      for (int parent : topology.getParents(i)) {
+        header.putInt(parent);
+      }
+    }
+    while (header.size() % 8 != 0) {
+      header.put((byte) 0);
+    }
+
+    try (FileChannel channel = FileChannel.open(path,
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      writeFully(channel, header.toByteBuffer());
+      ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_DOUBLES * 8)
+          .order(ByteOrder.LITTLE_ENDIAN);
+      for (ConditionalDistribution distribution
+          : network.getConditionalDistributions()) {
+        ProbabilityTable table = distribution.getTable();
+        for (int index = 0; index < table.size(); index++) {
+          if (!buffer.hasRemaining()) {
+            buffer.flip();
+            writeFully(channel, buffer);
+            buffer.clear();
+          }
+          buffer.putDouble(table.get(index));
+        }
+      }
+      buffer.flip();
+      writeFully(channel, buffer);
+    }
+  }
+
+  /**
+   * Loads a network by mapping the given file into memory.
+   *
+   * @throws IOException if the file cannot be read or is not a valid network
+   *         file
+   * @throws IllegalArgumentException if the file describes an invalid
+   *         network, such as one with a cycle
+   */
+  public static BayesNetwork load(Path path) throws IOException {
+    try (FileChannel channel =
+        FileChannel.open(path, StandardOpenOption.READ)) {
+      long fileSize = channel.size();
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+          Math.min(fileSize, Integer.MAX_VALUE)).order(ByteOrder.LITTLE_ENDIAN);
+      try {
+        if (header.getLong() != MAGIC) {
+          throw new IOException("Not a network file: " + path);
+        }
+        int version = header.getInt();
+        if (version != VERSION) {
+          throw new IOException("Unsupported network file version " + version);
+        }
+
+        int variableCount = header.getInt();
+        checkCount(variableCount);
+        String[] names = new String[variableCount];
+        List<ImmutableSet<String>> domains = Lists.newArrayList();
+        int[][] parents = new int[variableCount][];
+        for (int i = 0; i < variableCount; i++) {
+          names[i] = getString(header);
+          int valueCount = header.getInt();
+          checkCount(valueCount);
+          ImmutableSet.Builder<String> domain = ImmutableSet.builder();
+          for (int j = 0; j < valueCount; j++) {
+            domain.add(getString(header));
+          }
+          domains.add(domain.build());
+          if (domains.get(i).size() != valueCount) {
+            throw new IOException("Duplicate values for variable " + names[i]);
+          }
+          int parentCount = header.getInt();
+          checkCount(parentCount);
+          parents[i] = new int[parentCount];
+          for (int j = 0; j < parentCount; j++) {
+            parents[i][j] = header.getInt();
+            if (parents[i][j] < 0 || parents[i][j] >= variableCount) {
+              throw new IOException("Invalid parent index " + parents[i][j]);
+            }
+          }
+        }
+
+        long offset = (header.position() + 7) / 8 * 8;
+        BayesNetwork.Builder builder = BayesNetwork.builder();
+        for (int i = 0; i < variableCount; i++) {
+          ImmutableList.Builder<ImmutableSet<String>> tableDomains =
+              ImmutableList.builder();
+          ImmutableList.Builder<String> parentNames = ImmutableList.builder();
+          tableDomains.add(domains.get(i));
+          long size = domains.get(i).size();
+          for (int parent : parents[i]) {
+            tableDomains.add(domains.get(parent));
+            parentNames.add(names[parent]);
+            size *= domains.get(parent).size();
+          }
+          if (size > Integer.MAX_VALUE || offset + size * 8 > fileSize) {
+            throw new IOException("Truncated table for variable " + names[i]);
+          }
+          builder.add(ConditionalDistribution.of(names[i], parentNames.build(),
+              ProbabilityTable.fromBuffer(tableDomains.build(),
+                  mapTable(channel, header, offset, (int) size))));
+          offset += size * 8;
+        }
+        return builder.build();
+      } catch (BufferUnderflowException e) {
+        throw new IOException("Truncated network file: " + path, e);
+      }
+    }
+  }
+
+  /**
+   * Maps the doubles of one table, slicing them out of the header mapping if
+   * it covers them and mapping them separately otherwise.
+   */
+  private static DoubleBuffer mapTable(FileChannel channel, ByteBuffer header,
+      long offset, int size) throws IOException {
+    ByteBuffer bytes;
+    if (offset + size * 8L <= header.capacity()) {
+      ByteBuffer duplicate = header.duplicate();
+      duplicate.limit((int) offset + size * 8).position((int) offset);
+      bytes = duplicate.slice();
+    } else {
+      bytes = channel.map(FileChannel.MapMode.READ_ONLY, offset, size * 8L);
+    }
+    return bytes.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+  }
+
+  private static String getString(ByteBuffer buffer) throws IOException {
+    int length = buffer.getInt();
+    if (length < 0 || length > buffer.remaining()) {
+      throw new IOException("Invalid string length " + length);
+    }
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void checkCount(int count) throws IOException {
+    if (count < 0) {
+      throw new IOException("Invalid count " + count);
+    }
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  /**
+   * A growable little-endian byte array, for writing the header.
+   */
+  private static final class ByteArrayBuilder {
+    private ByteBuffer buffer =
+        ByteBuffer.allocate(256).order(ByteOrder.LITTLE_ENDIAN);
+
+    void put(byte value) {
+      ensureRemaining(1);
+      buffer.put(value);
+    }
+
+    void putInt(int value) {
+      ensureRemaining(4);
+      buffer.putInt(value);
+    }
+
+    void putLong(long value) {
+      ensureRemaining(8);
+      buffer.putLong(value);
+    }
+
+    void putString(String value) {
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      putInt(bytes.length);
+      ensureRemaining(bytes.length);
+      buffer.put(bytes);
+    }
+
+    int size() {
+      return buffer.position();
+    }
+
+    ByteBuffer toByteBuffer() {
+      ByteBuffer result = buffer.duplicate();
+      result.flip();
+      return result;
+    }
+
+    private void ensureRemaining(int length) {
+      if (buffer.remaining() < length) {
+        ByteBuffer larger = ByteBuffer.allocate(
+            Math.max(buffer.capacity() * 2, buffer.position() + length))
+            .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.flip();
+        larger.put(buffer);
+        buffer = larger;
+      }
+    }
+  }
+}
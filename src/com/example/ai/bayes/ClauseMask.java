@@ -0,0 +1,358 @@
+package com.example.ai.bayes;
+
+import com.example.ai.bayes.Event.AndClause;
+import com.example.ai.bayes.Event.Condition;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+
+/**
+ * An {@link AndClause} resolved against the value domains of a
+ * {@link BayesNetwork}: each constrained variable is mapped to the set of
+ * value ordinals it is allowed to take on.
+ *
+ * <p> Seen this way, a clause is a box in the space of assignments, which
+ * makes it cheap to intersect clauses and to subtract one clause from
+ * another.  Variables that are not constrained may take on any value.
+ */
+final class ClauseMask {
+  private final Topology topology;
+  /** The allowed values of each constrained variable, by variable index. */
+  private final SortedMap<Integer, BitSet> allowedValues;
+
+  private ClauseMask(
+      Topology topology, SortedMap<Integer, BitSet> allowedValues) {
+    this.topology = topology;
+    this.allowedValues = allowedValues;
+  }
+
+  /**
+   * Resolves an {@link AndClause} against the given network.
+   */
+  static ClauseMask of(BayesNetwork network, AndClause andClause) {
+    Topology topology = network.getTopology();
+    SortedMap<Integer, BitSet> allowedValues = Maps.newTreeMap();
+    for (String variable : andClause.getConditions().keySet()) {
+      int index = topology.indexOf(variable);
+      BitSet allowed = getAllValues(topology, index);
+      for (Condition condition : andClause.getConditions().get(variable)) {
+        int ordinal =
+            topology.getDomain(index).asList().indexOf(condition.getValue());
+        switch (condition.getType()) {
+          case EQUAL:
+            boolean wasAllowed = ordinal >= 0 && allowed.get(ordinal);
+            allowed.clear();
+            if (wasAllowed) {
+              allowed.set(ordinal);
+            }
+            break;
+          case NOT_EQUAL:
+            if (ordinal >= 0) {
+              allowed.clear(ordinal);
+            }
+            break;
+          default:
+            throw new AssertionError(
+                "Unhandled condition type " + condition.getType());
+        }
+      }
+      // A variable that may take on any value is not constrained at all.
+      if (allowed.cardinality() < topology.getCardinality(index)) {
+        allowedValues.put(index, allowed);
+      }
+    }
+    return new ClauseMask(topology, allowedValues);
+  }
+
+  /**
+   * Resolves every clause of an {@link Event} against the given network.
+   */
+  static ImmutableList<ClauseMask> of(BayesNetwork network, Event event) {
+    ImmutableList.Builder<ClauseMask> result = ImmutableList.builder();
+    for (AndClause andClause : event.getAndClauses()) {
+      result.add(of(network, andClause));
+    }
+    return result.build();
+  }
+
+  /**
+   * Simplifies a disjunction of clauses without changing the assignments it
+   * covers: unsatisfiable, duplicate and subsumed clauses are dropped, and
+   * clauses that differ in the allowed values of a single variable are
+   * merged, until no rule applies.
+   */
+  static ImmutableList<ClauseMask> simplify(List<ClauseMask> clauses) {
+    List<ClauseMask> result = Lists.newArrayList();
+    for (ClauseMask clause : clauses) {
+      if (!clause.isUnsatisfiable()) {
+        result.add(clause);
+      }
+    }
+
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (int i = 0; i < result.size() && !changed; i++) {
+        for (int j = 0; j < result.size() && !changed; j++) {
+          if (i == j) {
+            continue;
+          }
+          ClauseMask first = result.get(i);
+          ClauseMask second = result.get(j);
+          if (first.covers(second)) {
+            result.remove(j);
+            changed = true;
+          } else if (i < j) {
+            ClauseMask merged = first.mergeWith(second);
+            if (merged != null) {
+              result.set(i, merged);
+              result.remove(j);
+              changed = true;
+            }
+          }
+        }
+      }
+    }
+    return ImmutableList.copyOf(result);
+  }
+
+  /**
+   * Rewrites a disjunction of clauses as pairwise disjoint clauses
+   * covering the same assignments, dropping unsatisfiable clauses.  The
+   * probability of the event is then the plain sum of the probabilities of
+   * the returned clauses.
+   *
+   * <p> Each clause is split only where it overlaps the clauses before it,
+   * so clauses on separate variables (the common case for disjunctive
+   * events) each yield a single clause.
+   */
+  static ImmutableList<ClauseMask> disjoin(List<ClauseMask> clauses) {
+    List<ClauseMask> result = Lists.newArrayList();
+    for (ClauseMask mask : clauses) {
+      List<ClauseMask> pieces = Lists.newArrayList();
+      if (!mask.isUnsatisfiable()) {
+        pieces.add(mask);
+      }
+      for (ClauseMask previous : result) {
+        List<ClauseMask> remaining = Lists.newArrayList();
+        for (ClauseMask piece : pieces) {
+          remaining.addAll(piece.subtract(previous));
+        }
+        pieces = remaining;
+      }
+      result.addAll(pieces);
+    }
+    return ImmutableList.copyOf(result);
+  }
+
+  /**
+   * Checks whether no assignment satisfies this clause.
+   */
+  boolean isUnsatisfiable() {
+    for (BitSet allowed : allowedValues.values()) {
+      if (allowed.isEmpty()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Checks whether some assignment satisfies both this clause and the other.
+   */
+  boolean intersects(ClauseMask other) {
+    for (Map.Entry<Integer, BitSet> entry : other.allowedValues.entrySet()) {
+      BitSet allowed = allowedValues.get(entry.getKey());
+      if (allowed != null && !allowed.intersects(entry.getValue())) {
+        return false;
+      }
+    }
+    return !isUnsatisfiable() && !other.isUnsatisfiable();
+  }
+
+  /**
+   * Checks whether every assignment that satisfies the other clause also
+   * satisfies this one.
+   */
+  boolean covers(ClauseMask other) {
+    if (other.isUnsatisfiable()) {
+      return true;
+    }
+    for (Map.Entry<Integer, BitSet> entry : allowedValues.entrySet()) {
+      BitSet otherAllowed = other.allowedValues.get(entry.getKey());
+      if (otherAllowed == null) {
+        return false;
+      }
+      BitSet outside = (BitSet) otherAllowed.clone();
+      outside.andNot(entry.getValue());
+      if (!outside.isEmpty()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Merges this clause with another clause that constrains the same
+   * variables in the same way, except for the allowed values of one
+   * variable.
+   *
+   * @return the merged clause, or null if the clauses cannot be merged
+   */
+  ClauseMask mergeWith(ClauseMask other) {
+    if (!allowedValues.keySet().equals(other.allowedValues.keySet())) {
+      return null;
+    }
+    Integer differing = null;
+    for (Map.Entry<Integer, BitSet> entry : allowedValues.entrySet()) {
+      if (!entry.getValue().equals(other.allowedValues.get(entry.getKey()))) {
+        if (differing != null) {
+          return null;
+        }
+        differing = entry.getKey();
+      }
+    }
+    if (differing == null) {
+      return this;
+    }
+    SortedMap<Integer, BitSet> merged = copyMap(allowedValues);
+    merged.get(differing).or(other.allowedValues.get(differing));
+    if (merged.get(differing).cardinality()
+        == topology.getCardinality(differing)) {
+      merged.remove(differing);
+    }
+    return new ClauseMask(topology, merged);
+  }
+
+  /**
+   * Computes the assignments that satisfy this clause but not the other, as
+   * a list of pairwise disjoint clauses.
+   */
+  List<ClauseMask> subtract(ClauseMask other) {
+    if (!intersects(other)) {
+      return ImmutableList.of(this);
+    }
+    List<ClauseMask> result = Lists.newArrayList();
+    SortedMap<Integer, BitSet> inside = copyMap(allowedValues);
+    for (Map.Entry<Integer, BitSet> entry : other.allowedValues.entrySet()) {
+      int variable = entry.getKey();
+      BitSet current = inside.containsKey(variable)
+          ? inside.get(variable)
+          : getAllValues(topology, variable);
+
+      // Split off the assignments in which this variable falls outside the
+      // other clause; the rest stays inside it for the next variable.
+      BitSet outside = (BitSet) current.clone();
+      outside.andNot(entry.getValue());
+      if (!outside.isEmpty()) {
+        SortedMap<Integer, BitSet> piece = copyMap(inside);
+        piece.put(variable, outside);
+        result.add(new ClauseMask(topology, piece));
+      }
+      BitSet within = (BitSet) current.clone();
+      within.and(entry.getValue());
+      inside.put(variable, within);
+    }
+    return result;
+  }
+
+  /**
+   * Checks whether the given assignment of value ordinals, indexed by
+   * variable, satisfies this clause.
+   */
+  boolean matches(int[] assignment) {
+    return matches(assignment, 0);
+  }
+
+  /**
+   * Checks whether the assignment stored in the given array from the given
+   * offset satisfies this clause.
+   */
+  boolean matches(int[] assignments, int offset) {
+    for (Map.Entry<Integer, BitSet> entry : allowedValues.entrySet()) {
+      if (!entry.getValue().get(assignments[offset + entry.getKey()])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Gets the allowed value ordinals of a variable, or null if the variable
+   * may take on any value.  The result must not be modified.
+   */
+  BitSet getAllowedValues(int variable) {
+    return allowedValues.get(variable);
+  }
+
+  /**
+   * Gets the indices of the variables that this clause constrains, in
+   * increasing order.
+   */
+  Set<Integer> getConstrainedVariables() {
+    return Collections.unmodifiableSet(allowedValues.keySet());
+  }
+
+  /**
+   * Converts this clause back into an {@link AndClause}, using an equality
+   * condition for variables with one allowed value and inequality conditions
+   * otherwise.
+   */
+  AndClause toAndClause() {
+    ImmutableSetMultimap.Builder<String, Condition> conditions =
+        ImmutableSetMultimap.builder();
+    for (Map.Entry<Integer, BitSet> entry : allowedValues.entrySet()) {
+      int variable = entry.getKey();
+      BitSet allowed = entry.getValue();
+      ImmutableList<String> domain = topology.getDomain(variable).asList();
+      String name = topology.getVariable(variable);
+      if (allowed.cardinality() == domain.size()) {
+        continue;
+      } else if (allowed.cardinality() == 1) {
+        conditions.put(name,
+            Condition.equal(domain.get(allowed.nextSetBit(0))));
+      } else {
+        for (int i = 0; i < domain.size(); i++) {
+          if (!allowed.get(i)) {
+            conditions.put(name, Condition.notEqual(domain.get(i)));
+          }
+        }
+      }
+    }
+    return AndClause.of(conditions.build());
+  }
+
+  @Override
+  public boolean equals(Object object) {
+    return object instanceof ClauseMask
+        && allowedValues.equals(((ClauseMask) object).allowedValues);
+  }
+
+  @Override
+  public int hashCode() {
+    return allowedValues.hashCode();
+  }
+
+  private static SortedMap<Integer, BitSet> copyMap(
+      SortedMap<Integer, BitSet> map) {
+    SortedMap<Integer, BitSet> result = Maps.newTreeMap();
+    for (Map.Entry<Integer, BitSet> entry : map.entrySet()) {
+      result.put(entry.getKey(), (BitSet) entry.getValue().clone());
+    }
+    return result;
+  }
+
+  private static BitSet getAllValues(Topology topology, int variable) {
+    BitSet result = new BitSet();
+    result.set(0, topology.getCardinality(variable));
+    return result;
+  }
+}
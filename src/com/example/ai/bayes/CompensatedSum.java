@@ -0,0 +1,30 @@
+package com.example.ai.bayes;
+
+/**
+ * A running sum that keeps track of the rounding error of each addition
+ * (Neumaier's variant of Kahan summation), so that adding many terms of
+ * different magnitudes loses almost no precision.
+ */
+final class CompensatedSum {
+  private double sum;
+  private double compensation;
+
+  void add(double value) {
+    double total = sum + value;
+    if (Math.abs(sum) >= Math.abs(value)) {
+      compensation += (sum - total) + value;
+    } else {
+      compensation += (value - total) + sum;
+    }
+    sum = total;
+  }
+
+  double getSum() {
+    return sum + compensation;
+  }
+
+  void reset() {
+    sum = 0d;
+    compensation = 0d;
+  }
+}
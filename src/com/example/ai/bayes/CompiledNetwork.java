@@ -0,0 +1,653 @@
+package com.example.ai.bayes;
+
+import com.example.ai.bayes.Event.AndClause;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Ints;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A {@link BayesNetwork} compiled into a junction tree (also called a clique
+ * tree), for answering many queries against the same network.
+ *
+ * <p> Compilation moralizes and triangulates the network, then connects the
+ * resulting cliques into a tree.  Each call to {@link #calibrate} enters a
+ * piece of evidence and runs one collect pass and one distribute pass over the
+ * tree, after which the posterior of every single variable can be read off
+ * without further inference.
+ *
+ * <p> When evidence arrives one observation at a time, an
+ * {@link EvidenceSession} (see {@link #newSession}) keeps the messages
+ * between cliques and only recomputes those that an observation affects.
+ *
+ * <p> Instances are immutable, so a single compiled network may be shared
+ * between threads.
+ */
+public final class CompiledNetwork {
+  private final BayesNetwork network;
+  private final ImmutableList<ImmutableSet<String>> cliques;
+  private final ImmutableList<Factor> potentials;
+  /** The parent of each clique in the tree, or -1 for the root. */
+  private final int[] parents;
+  /** All cliques, ordered so that every clique comes after its parent. */
+  private final int[] preorder;
+  /** The smallest clique containing each variable. */
+  private final ImmutableMap<String, Integer> homeCliques;
+
+  private CompiledNetwork(BayesNetwork network,
+      ImmutableList<ImmutableSet<String>> cliques,
+      ImmutableList<Factor> potentials, int[] parents, int[] preorder,
+      ImmutableMap<String, Integer> homeCliques) {
+    this.network = network;
+    this.cliques = cliques;
+    this.potentials = potentials;
+    this.parents = parents;
+    this.preorder = preorder;
+    this.homeCliques = homeCliques;
+  }
+
+  /**
+   * Compiles the given network, triangulating its moral graph in the order
+   * chosen by the given heuristic.
+   */
+  static CompiledNetwork compile(
+      BayesNetwork network, EliminationOrder eliminationOrder) {
+    ImmutableList<ImmutableSet<String>> cliques =
+        triangulate(network, eliminationOrder);
+
+    // Connect the cliques with a maximum spanning tree, weighing each edge by
+    // the size of the separator.  Cliques that share no variables end up
+    // connected through empty separators.
+    int[] parents = new int[cliques.size()];
+    int[] preorder = new int[cliques.size()];
+    int[] bestWeight = new int[cliques.size()];
+    boolean[] inTree = new boolean[cliques.size()];
+    Arrays.fill(parents, -1);
+    Arrays.fill(bestWeight, -1);
+    for (int step = 0; step < cliques.size(); step++) {
+      int next = -1;
+      for (int i = 0; i < cliques.size(); i++) {
+        if (!inTree[i] && (next < 0 || bestWeight[i] > bestWeight[next])) {
+          next = i;
+        }
+      }
+      inTree[next] = true;
+      preorder[step] = next;
+      for (int i = 0; i < cliques.size(); i++) {
+        int weight =
+            Sets.intersection(cliques.get(next), cliques.get(i)).size();
+        if (!inTree[i] && weight > bestWeight[i]) {
+          bestWeight[i] = weight;
+          parents[i] = next;
+        }
+      }
+    }
+
+    ImmutableMap.Builder<String, Integer> homeCliques = ImmutableMap.builder();
+    for (String variable : network.getVariables()) {
+      homeCliques.put(variable, getSmallestClique(cliques, variable));
+    }
+
+    // Start every clique from a table of ones over its variables, and then
+    // multiply each distribution into the smallest clique holding its family.
+    List<Factor> potentials = Lists.newArrayList();
+    for (ImmutableSet<String> clique : cliques) {
+      Factor potential = Factor.scalar(1d);
+      for (String variable : clique) {
+        boolean[] allowed = new boolean[network.getValues(variable).size()];
+        Arrays.fill(allowed, true);
+        potential = potential.product(Factor.indicator(variable, allowed));
+      }
+      potentials.add(potential);
+    }
+    for (ConditionalDistribution distribution
+        : network.getConditionalDistributions()) {
+      Set<String> family = ImmutableSet.<String>builder()
+          .add(distribution.getVariableName())
+          .addAll(distribution.getParentVariableNames())
+          .build();
+      int clique = getSmallestClique(cliques, family);
+      potentials.set(clique, potentials.get(clique).product(
+          Factor.fromDistribution(distribution)));
+    }
+
+    return new CompiledNetwork(network, cliques,
+        ImmutableList.copyOf(potentials), parents, preorder,
+        homeCliques.build());
+  }
+
+  /**
+   * Triangulates the moral graph of the network by simulating variable
+   * elimination, returning the maximal cliques of the triangulated graph.
+   */
+  private static ImmutableList<ImmutableSet<String>> triangulate(
+      BayesNetwork network, EliminationOrder eliminationOrder) {
+    Map<String, Set<String>> graph = Maps.newHashMap();
+    Map<String, Integer> cardinalities = Maps.newHashMap();
+    for (String variable : network.getVariables()) {
+      graph.put(variable, Sets.<String>newHashSet());
+      cardinalities.put(variable, network.getValues(variable).size());
+    }
+    // Moralize: connect each variable to its parents, and the parents of each
+    // variable to each other.
+    for (ConditionalDistribution distribution
+        : network.getConditionalDistributions()) {
+      List<String> family = Lists.newArrayList(
+          distribution.getParentVariableNames());
+      family.add(distribution.getVariableName());
+      for (String first : family) {
+        for (String second : family) {
+          if (!first.equals(second)) {
+            graph.get(first).add(second);
+          }
+        }
+      }
+    }
+
+    List<ImmutableSet<String>> cliques = Lists.newArrayList();
+    while (!graph.isEmpty()) {
+      String next = eliminationOrder.chooseNext(graph, cardinalities);
+      Set<String> neighbours = graph.remove(next);
+      ImmutableSet<String> clique = ImmutableSet.<String>builder()
+          .add(next)
+          .addAll(neighbours)
+          .build();
+      boolean isMaximal = true;
+      for (ImmutableSet<String> existing : cliques) {
+        isMaximal &= !existing.containsAll(clique);
+      }
+      if (isMaximal) {
+        cliques.add(clique);
+      }
+      for (String neighbour : neighbours) {
+        graph.get(neighbour).remove(next);
+        graph.get(neighbour).addAll(neighbours);
+        graph.get(neighbour).remove(neighbour);
+      }
+    }
+    return ImmutableList.copyOf(cliques);
+  }
+
+  private static int getSmallestClique(
+      List<ImmutableSet<String>> cliques, String variable) {
+    return getSmallestClique(cliques, ImmutableSet.of(variable));
+  }
+
+  private static int getSmallestClique(
+      List<ImmutableSet<String>> cliques, Set<String> variables) {
+    int result = -1;
+    for (int i = 0; i < cliques.size(); i++) {
+      if (cliques.get(i).containsAll(variables) && (result < 0
+          || cliques.get(i).size() < cliques.get(result).size())) {
+        result = i;
+      }
+    }
+    Preconditions.checkState(result >= 0,
+        "No clique contains all of %s", variables);
+    return result;
+  }
+
+  /**
+   * Gets the network that was compiled.
+   */
+  public BayesNetwork getNetwork() {
+    return network;
+  }
+
+  /**
+   * Gets the cliques of the junction tree.
+   */
+  ImmutableList<ImmutableSet<String>> getCliques() {
+    return cliques;
+  }
+
+  /**
+   * Enters the given evidence and calibrates the junction tree, making the
+   * posterior of every variable available.
+   *
+   * @param evidence
+   *          an {@link Event} consisting of a single {@link AndClause}
+   */
+  public Calibration calibrate(Event evidence) {
+    Preconditions.checkArgument(evidence.getAndClauses().size() == 1,
+        "Evidence must consist of a single AND-clause: %s", evidence);
+    AndClause andClause = evidence.getAndClauses().get(0);
+
+    Factor[] beliefs = potentials.toArray(new Factor[potentials.size()]);
+    for (String variable : andClause.getConditions().keySet()) {
+      ImmutableList<String> domain = network.getValues(variable).asList();
+      ImmutableSet<String> allowed = network.getAllowedValues(
+          variable, andClause.getConditions().get(variable));
+      boolean[] mask = new boolean[domain.size()];
+      for (int i = 0; i < mask.length; i++) {
+        mask[i] = allowed.contains(domain.get(i));
+      }
+      int clique = homeCliques.get(variable);
+      beliefs[clique] =
+          beliefs[clique].product(Factor.indicator(variable, mask));
+    }
+
+    // Collect: pass messages from the leaves towards the root.
+    Factor[] upwardMessages = new Factor[beliefs.length];
+    for (int step = preorder.length - 1; step > 0; step--) {
+      int clique = preorder[step];
+      int parent = parents[clique];
+      upwardMessages[clique] = beliefs[clique].marginalize(
+          Sets.intersection(cliques.get(clique), cliques.get(parent)));
+      beliefs[parent] = beliefs[parent].product(upwardMessages[clique]);
+    }
+
+    // Distribute: pass messages from the root back towards the leaves,
+    // dividing out what each clique already sent upwards.
+    for (int step = 1; step < preorder.length; step++) {
+      int clique = preorder[step];
+      int parent = parents[clique];
+      Factor downwardMessage = beliefs[parent].marginalize(
+          Sets.intersection(cliques.get(clique), cliques.get(parent)));
+      beliefs[clique] = beliefs[clique].product(
+          downwardMessage.divide(upwardMessages[clique]));
+    }
+
+    return new Calibration(ImmutableList.copyOf(beliefs));
+  }
+
+  /**
+   * Starts a session in which evidence is observed and retracted one
+   * variable at a time.
+   */
+  public EvidenceSession newSession() {
+    return new EvidenceSession();
+  }
+
+  /**
+   * Computes the probability of an {@link Event}, conditioned on evidence
+   * from another event.  See {@link #queryPosteriors}.
+   */
+  public double queryProbabilityWithEvidence(Event queryEvent, Event evidence) {
+    return queryPosteriors(ImmutableList.of(queryEvent), evidence).get(0);
+  }
+
+  /**
+   * Computes the posterior distribution of every variable given the evidence,
+   * as a map from each variable to a map from each of its values to its
+   * probability.
+   *
+   * <p> Evidence with more than one clause is split into disjoint clauses,
+   * and the tree is calibrated once per clause.
+   */
+  public ImmutableMap<String, ImmutableMap<String, Double>> posteriorMarginals(
+      Event evidence) {
+    return computeMarginals(evidence).getPosteriors();
+  }
+
+  /**
+   * Computes the probability of each of the given {@link Event}s, conditioned
+   * on the same evidence, returning the results in the same order.
+   *
+   * <p> The evidence is entered once, and its probability is only computed
+   * once.  Queries that constrain a single variable are then read off the
+   * calibrated tree; any other query costs one more query against the
+   * network, for the probability of the query together with the evidence.
+   */
+  public ImmutableList<Double> queryPosteriors(
+      Collection<? extends Event> queryEvents, Event evidence) {
+    Event simplifiedEvidence = network.simplify(evidence).getEvent();
+    Marginals marginals = computeMarginals(simplifiedEvidence);
+    ImmutableList.Builder<Double> result = ImmutableList.builder();
+    for (Event queryEvent : queryEvents) {
+      Event simplifiedQuery = network.simplify(queryEvent).getEvent();
+      Set<String> queryVariables = Sets.newHashSet();
+      for (AndClause andClause : simplifiedQuery.getAndClauses()) {
+        queryVariables.addAll(andClause.getConditions().keySet());
+      }
+
+      if (queryVariables.size() == 1) {
+        String variable = Iterables.getOnlyElement(queryVariables);
+        Set<String> satisfyingValues = Sets.newHashSet();
+        for (AndClause andClause : simplifiedQuery.getAndClauses()) {
+          satisfyingValues.addAll(network.getAllowedValues(
+              variable, andClause.getConditions().get(variable)));
+        }
+        ImmutableMap<String, Double> posterior =
+            marginals.getPosteriors().get(variable);
+        double probability = 0d;
+        for (String value : satisfyingValues) {
+          probability += posterior.get(value);
+        }
+        result.add(probability);
+      } else if (queryVariables.isEmpty()) {
+        // The query is either always true or always false.
+        result.add(simplifiedQuery.getAndClauses().isEmpty() ? 0d : 1d);
+      } else {
+        result.add(network.queryProbability(
+                Event.and(simplifiedQuery, simplifiedEvidence),
+                BayesNetwork.ELIMINATION_ENGINE)
+            / marginals.evidenceProbability);
+      }
+    }
+    return result.build();
+  }
+
+  /**
+   * Sums the unnormalized marginals of every variable over the disjoint
+   * clauses of the evidence.
+   */
+  private Marginals computeMarginals(Event evidence) {
+    ImmutableList<ClauseMask> clauses = ClauseMask.disjoin(
+        ClauseMask.simplify(ClauseMask.of(network, evidence)));
+    ImmutableList<String> variables = network.getVariables();
+    double[][] sums = new double[variables.size()][];
+    for (int i = 0; i < sums.length; i++) {
+      sums[i] = new double[network.getValues(variables.get(i)).size()];
+    }
+    double evidenceProbability = 0d;
+    for (ClauseMask clause : clauses) {
+      Calibration calibration =
+          calibrate(Event.fromAndClauses(clause.toAndClause()));
+      evidenceProbability += calibration.getEvidenceProbability();
+      for (int i = 0; i < sums.length; i++) {
+        Factor marginal = calibration.getMarginal(variables.get(i));
+        for (int value = 0; value < sums[i].length; value++) {
+          sums[i][value] += marginal.getValue(value);
+        }
+      }
+    }
+    return new Marginals(sums, evidenceProbability);
+  }
+
+  /**
+   * Unnormalized marginals of every variable, together with the probability
+   * of the evidence that they were computed under.
+   */
+  private final class Marginals {
+    private final double[][] sums;
+    private final double evidenceProbability;
+
+    private Marginals(double[][] sums, double evidenceProbability) {
+      this.sums = sums;
+      this.evidenceProbability = evidenceProbability;
+    }
+
+    ImmutableMap<String, ImmutableMap<String, Double>> getPosteriors() {
+      ImmutableMap.Builder<String, ImmutableMap<String, Double>> result =
+          ImmutableMap.builder();
+      ImmutableList<String> variables = network.getVariables();
+      for (int i = 0; i < sums.length; i++) {
+        ImmutableList<String> domain =
+            network.getValues(variables.get(i)).asList();
+        ImmutableMap.Builder<String, Double> posterior = ImmutableMap.builder();
+        for (int value = 0; value < sums[i].length; value++) {
+          posterior.put(domain.get(value),
+              sums[i][value] / evidenceProbability);
+        }
+        result.put(variables.get(i), posterior.build());
+      }
+      return result.build();
+    }
+  }
+
+  /**
+   * The state of a junction tree after evidence has been entered and
+   * propagated.
+   */
+  public final class Calibration {
+    private final ImmutableList<Factor> beliefs;
+
+    private Calibration(ImmutableList<Factor> beliefs) {
+      this.beliefs = beliefs;
+    }
+
+    /**
+     * Gets the probability of the evidence that was entered.
+     */
+    public double getEvidenceProbability() {
+      return beliefs.get(preorder[0]).sum();
+    }
+
+    /**
+     * Gets the posterior distribution of a single variable, given the
+     * evidence, as a map from each value to its probability.
+     */
+    public ImmutableMap<String, Double> getPosterior(String variable) {
+      Factor marginal = getMarginal(variable);
+      double total = marginal.sum();
+      ImmutableMap.Builder<String, Double> result = ImmutableMap.builder();
+      ImmutableList<String> domain = network.getValues(variable).asList();
+      for (int i = 0; i < domain.size(); i++) {
+        result.put(domain.get(i), marginal.getValue(i) / total);
+      }
+      return result.build();
+    }
+
+    /**
+     * Gets the joint probability of each value of a variable together with
+     * the evidence.
+     */
+    Factor getMarginal(String variable) {
+      Preconditions.checkArgument(homeCliques.containsKey(variable),
+          "Could not find distribution for variable named %s", variable);
+      return beliefs.get(homeCliques.get(variable))
+          .marginalize(ImmutableSet.of(variable));
+    }
+
+    /**
+     * Gets the posterior probability that a variable takes on the given value.
+     */
+    public double getPosterior(String variable, String value) {
+      Double probability = getPosterior(variable).get(value);
+      Preconditions.checkArgument(probability != null,
+          "Variable %s has no value %s", variable, value);
+      return probability;
+    }
+  }
+
+  /**
+   * Evidence that changes one variable at a time, with the posteriors it
+   * implies.
+   *
+   * <p> Messages between neighbouring cliques are computed on demand, as in
+   * Shafer-Shenoy propagation, and kept until evidence that they depend on
+   * changes.  Observing or retracting a variable only discards the messages
+   * leading away from the variable's clique, and reading a posterior only
+   * recomputes the discarded messages leading towards the variable's
+   * clique.  The cost of an update followed by a query therefore depends on
+   * the part of the tree between the two variables rather than on the size
+   * of the network.
+   *
+   * <p> Sessions are not thread-safe.
+   */
+  public final class EvidenceSession {
+    private final Map<String, String> evidence = Maps.newLinkedHashMap();
+    /** The neighbours of each clique in the tree. */
+    private final int[][] neighbours;
+    /** Each clique's potential, with the evidence homed in it entered. */
+    private final Factor[] evidencePotentials;
+    /**
+     * The message from each clique to each of its neighbours, in the order
+     * of {@link #neighbours}, or null if it must be recomputed.
+     */
+    private final Factor[][] messages;
+    private long computedMessages;
+
+    private EvidenceSession() {
+      List<List<Integer>> neighbourLists = Lists.newArrayList();
+      for (int i = 0; i < cliques.size(); i++) {
+        neighbourLists.add(Lists.<Integer>newArrayList());
+      }
+      for (int i = 0; i < cliques.size(); i++) {
+        if (parents[i] >= 0) {
+          neighbourLists.get(i).add(parents[i]);
+          neighbourLists.get(parents[i]).add(i);
+        }
+      }
+      neighbours = new int[cliques.size()][];
+      messages = new Factor[cliques.size()][];
+      for (int i = 0; i < cliques.size(); i++) {
+        neighbours[i] = new int[neighbourLists.get(i).size()];
+        for (int k = 0; k < neighbours[i].length; k++) {
+          neighbours[i][k] = neighbourLists.get(i).get(k);
+        }
+        messages[i] = new Factor[neighbours[i].length];
+      }
+      evidencePotentials = potentials.toArray(new Factor[potentials.size()]);
+    }
+
+    /**
+     * Observes that a variable takes on the given value, replacing any
+     * earlier observation of the same variable.
+     */
+    public EvidenceSession observe(String variable, String value) {
+      Preconditions.checkArgument(homeCliques.containsKey(variable),
+          "Could not find distribution for variable named %s", variable);
+      Preconditions.checkArgument(
+          network.getValues(variable).contains(value),
+          "Variable %s has no value %s", variable, value);
+      if (!value.equals(evidence.put(variable, value))) {
+        update(homeCliques.get(variable));
+      }
+      return this;
+    }
+
+    /**
+     * Retracts the observation of a variable, if there is one.
+     */
+    public EvidenceSession retract(String variable) {
+      Preconditions.checkArgument(homeCliques.containsKey(variable),
+          "Could not find distribution for variable named %s", variable);
+      if (evidence.remove(variable) != null) {
+        update(homeCliques.get(variable));
+      }
+      return this;
+    }
+
+    /**
+     * Gets the current observations, as a map from each observed variable to
+     * its value.
+     */
+    public ImmutableMap<String, String> getEvidence() {
+      return ImmutableMap.copyOf(evidence);
+    }
+
+    /**
+     * Gets the probability of the current observations.
+     */
+    public double getEvidenceProbability() {
+      return getBelief(preorder[0]).sum();
+    }
+
+    /**
+     * Gets the posterior distribution of a variable given the current
+     * observations, as a map from each value to its probability.
+     */
+    public ImmutableMap<String, Double> posterior(String variable) {
+      Preconditions.checkArgument(homeCliques.containsKey(variable),
+          "Could not find distribution for variable named %s", variable);
+      Factor marginal = getBelief(homeCliques.get(variable))
+          .marginalize(ImmutableSet.of(variable));
+      double total = marginal.sum();
+      ImmutableMap.Builder<String, Double> result = ImmutableMap.builder();
+      ImmutableList<String> domain = network.getValues(variable).asList();
+      for (int i = 0; i < domain.size(); i++) {
+        result.put(domain.get(i), marginal.getValue(i) / total);
+      }
+      return result.build();
+    }
+
+    /**
+     * Gets the posterior probability that a variable takes on the given
+     * value, given the current observations.
+     */
+    public double posterior(String variable, String value) {
+      Double probability = posterior(variable).get(value);
+      Preconditions.checkArgument(probability != null,
+          "Variable %s has no value %s", variable, value);
+      return probability;
+    }
+
+    /**
+     * Gets the number of messages computed so far, for checking that updates
+     * stay local.
+     */
+    long getComputedMessageCount() {
+      return computedMessages;
+    }
+
+    /**
+     * Re-enters the evidence homed in a clique, and discards every message
+     * that depends on it.
+     */
+    private void update(int clique) {
+      Factor potential = potentials.get(clique);
+      for (Map.Entry<String, String> entry : evidence.entrySet()) {
+        if (homeCliques.get(entry.getKey()) == clique) {
+          ImmutableList<String> domain =
+              network.getValues(entry.getKey()).asList();
+          boolean[] mask = new boolean[domain.size()];
+          mask[domain.indexOf(entry.getValue())] = true;
+          potential =
+              potential.product(Factor.indicator(entry.getKey(), mask));
+        }
+      }
+      evidencePotentials[clique] = potential;
+      invalidateFrom(clique, -1);
+    }
+
+    /**
+     * Discards the messages leading away from a clique, other than towards
+     * the given neighbour.  A message is only ever kept while the messages
+     * it was computed from are kept, so the search stops at messages that
+     * are already discarded.
+     */
+    private void invalidateFrom(int clique, int excluded) {
+      for (int k = 0; k < neighbours[clique].length; k++) {
+        int neighbour = neighbours[clique][k];
+        if (neighbour != excluded && messages[clique][k] != null) {
+          messages[clique][k] = null;
+          invalidateFrom(neighbour, clique);
+        }
+      }
+    }
+
+    /**
+     * Gets the joint distribution of a clique's variables and the evidence.
+     */
+    private Factor getBelief(int clique) {
+      Factor result = evidencePotentials[clique];
+      for (int neighbour : neighbours[clique]) {
+        result = result.product(getMessage(neighbour, clique));
+      }
+      return result;
+    }
+
+    /**
+     * Gets the message from one clique to a neighbouring clique, computing it
+     * and the messages it depends on if they were discarded.
+     */
+    private Factor getMessage(int from, int to) {
+      int position = Ints.indexOf(neighbours[from], to);
+      if (messages[from][position] == null) {
+        Factor product = evidencePotentials[from];
+        for (int neighbour : neighbours[from]) {
+          if (neighbour != to) {
+            product = product.product(getMessage(neighbour, from));
+          }
+        }
+        messages[from][position] = product.marginalize(
+            Sets.intersection(cliques.get(from), cliques.get(to)));
+        computedMessages++;
+      }
+      return messages[from][position];
+    }
+  }
+}
@@ -7,31 +7,83 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
 
+import java.util.List;
 import java.util.Map;
 
 /**
  * Represents a conditional probability table, to be used in a
  * {@link BayesNetwork}.
+ *
+ * <p> The probabilities are held in a dense {@link ProbabilityTable}, in which
+ * values are identified by their ordinals; {@link #getProbabilities} is a
+ * String-keyed view of that table.
  */
 @AutoValue
 public abstract class ConditionalDistribution {
   public abstract String getVariableName();
   public abstract ImmutableList<String> getParentVariableNames();
-  public abstract ImmutableMap<ImmutableList<String>, Double>
-      getProbabilities();
+  abstract ProbabilityTable getTable();
+
+  /**
+   * Gets the probabilities, keyed by the value of the current variable
+   * followed by the values of its parents.  The map is built from the dense
+   * table on every call.
+   */
+  public ImmutableMap<ImmutableList<String>, Double> getProbabilities() {
+    return getTable().toMap();
+  }
 
   /**
    * Gets the values that the current variable can take on.
    */
   public ImmutableSet<String> getValues() {
-    ImmutableSet.Builder<String> values = ImmutableSet.builder();
-    for (ImmutableList<String> key : getProbabilities().keySet()) {
-      // The first value of the key corresponds to the value of the variable.
-      // (The remaining values in the key correspond to values of the parent
-      // variables, which can be ignored here.)
-      values.add(key.get(0));
+    // The first domain of the table belongs to the variable itself.  (The
+    // remaining domains belong to the parent variables.)
+    return getTable().getDomains().get(0);
+  }
+
+  /**
+   * Checks that every probability has been set, as inference requires.  The
+   * table is only scanned the first time.
+   *
+   * @throws IllegalArgumentException if a probability is missing
+   */
+  void checkComplete() {
+    Preconditions.checkArgument(getTable().isComplete(),
+        "Missing probability in the distribution for %s", getVariableName());
+  }
+
+  /**
+   * Returns an equivalent distribution whose table is laid out over the given
+   * parent domains, so that parent values share ordinals with the parents'
+   * own distributions.
+   */
+  ConditionalDistribution withParentDomains(
+      List<ImmutableSet<String>> parentDomains) {
+    ProbabilityTable table = getTable().withDomains(
+        ImmutableList.<ImmutableSet<String>>builder()
+            .add(getValues())
+            .addAll(parentDomains)
+            .build());
+    if (table == getTable()) {
+      return this;
     }
-    return values.build();
+    return new AutoValue_ConditionalDistribution(
+        getVariableName(), getParentVariableNames(), table);
+  }
+
+  /**
+   * Creates a distribution from a table laid out over the variable's values
+   * followed by the values of each parent.
+   */
+  static ConditionalDistribution of(String variableName,
+      ImmutableList<String> parentVariableNames, ProbabilityTable table) {
+    Preconditions.checkArgument(
+        table.getDomains().size() == parentVariableNames.size() + 1,
+        "Expected a table over %s and its parents %s", variableName,
+        parentVariableNames);
+    return new AutoValue_ConditionalDistribution(
+        variableName, parentVariableNames, table);
   }
 
   /**
@@ -82,7 +134,7 @@ public abstract class ConditionalDistribution {
       return new AutoValue_ConditionalDistribution(
           variableName,
           parentVariableNames,
-          ImmutableMap.copyOf(probabilities));
+          ProbabilityTable.fromMap(parentVariableNames.size(), probabilities));
     }
   }
 }
@@ -0,0 +1,99 @@
+package com.example.ai.bayes;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Heuristics for choosing the order in which a
+ * {@link VariableEliminationEngine} sums out variables, or in which
+ * {@link CompiledNetwork} triangulates the moral graph of a network.
+ *
+ * <p> Each heuristic assigns a cost to eliminating a variable from the current
+ * interaction graph, in which two variables are adjacent if they appear in a
+ * common factor.  The variable with the lowest cost is eliminated next.
+ */
+public enum EliminationOrder {
+  /**
+   * Prefers the variable with the fewest neighbours.
+   */
+  MIN_DEGREE {
+    @Override
+    long getCost(String variable, Map<String, ? extends Set<String>> graph,
+        Map<String, Integer> cardinalities) {
+      return graph.get(variable).size();
+    }
+  },
+
+  /**
+   * Prefers the variable whose elimination adds the fewest edges between its
+   * neighbours.
+   */
+  MIN_FILL {
+    @Override
+    long getCost(String variable, Map<String, ? extends Set<String>> graph,
+        Map<String, Integer> cardinalities) {
+      long fillEdges = 0;
+      for (String first : graph.get(variable)) {
+        for (String second : graph.get(variable)) {
+          if (first.compareTo(second) < 0
+              && !graph.get(first).contains(second)) {
+            fillEdges++;
+          }
+        }
+      }
+      return fillEdges;
+    }
+  },
+
+  /**
+   * Like {@link #MIN_FILL}, but weighs each added edge by the product of the
+   * domain sizes of its endpoints.
+   */
+  WEIGHTED_MIN_FILL {
+    @Override
+    long getCost(String variable, Map<String, ? extends Set<String>> graph,
+        Map<String, Integer> cardinalities) {
+      long weight = 0;
+      for (String first : graph.get(variable)) {
+        for (String second : graph.get(variable)) {
+          if (first.compareTo(second) < 0
+              && !graph.get(first).contains(second)) {
+            weight += (long) cardinalities.get(first)
+                * cardinalities.get(second);
+          }
+        }
+      }
+      return weight;
+    }
+  };
+
+  /**
+   * Chooses the variable with the lowest cost as the next one to eliminate.
+   */
+  String chooseNext(Map<String, ? extends Set<String>> graph,
+      Map<String, Integer> cardinalities) {
+    String best = null;
+    long bestCost = Long.MAX_VALUE;
+    for (String variable : graph.keySet()) {
+      long cost = getCost(variable, graph, cardinalities);
+      if (cost < bestCost) {
+        best = variable;
+        bestCost = cost;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Computes the cost of eliminating the given variable next.
+   *
+   * @param graph
+   *          the interaction graph, mapping each remaining variable to its
+   *          neighbours
+   * @param cardinalities
+   *          the domain size of each remaining variable
+   */
+  abstract long getCost(String variable,
+      Map<String, ? extends Set<String>> graph,
+      Map<String, Integer> cardinalities);
+}
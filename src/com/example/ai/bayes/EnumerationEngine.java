@@ -0,0 +1,183 @@
+package com.example.ai.bayes;
+
+import com.example.ai.bayes.Event.AndClause;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.math.LongMath;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * An {@link InferenceEngine} that sums the full joint distribution over every
+ * variable that is not fixed by the query.
+ *
+ * <p> The cost of each query grows with the product of all domain sizes in the
+ * network, so this engine is only suitable for small networks.  It is mainly
+ * useful as a reference implementation for the other engines.
+ *
+ * <p> Configurations are walked in place by a {@link JointEnumerator}, so the
+ * only allocations made by a query are for setting it up; nothing is
+ * allocated per enumerated configuration.
+ *
+ * <p> A parallel engine splits the configurations on the values of the first
+ * few free variables, sums each part as a separate task, and combines the
+ * partial sums with compensated summation.
+ */
+public class EnumerationEngine implements InferenceEngine {
+  /**
+   * The number of tasks to create per worker thread, so that uneven tasks
+   * still keep every worker busy.
+   */
+  private static final int TASKS_PER_THREAD = 4;
+
+  /** The pool to run tasks in, or null to run sequentially. */
+  private final ForkJoinPool pool;
+
+  private EnumerationEngine(ForkJoinPool pool) {
+    this.pool = pool;
+  }
+
+  /**
+   * Creates a new enumeration engine.
+   */
+  public static EnumerationEngine create() {
+    return new EnumerationEngine(null);
+  }
+
+  /**
+   * Creates a new enumeration engine that splits each query into tasks run in
+   * the given pool.
+   */
+  public static EnumerationEngine create(ForkJoinPool pool) {
+    return new EnumerationEngine(Preconditions.checkNotNull(pool));
+  }
+
+  @Override
+  public double getProbability(BayesNetwork network, AndClause andClause) {
+    Map<String, int[]> allowedValues = getAllowedValues(network, andClause);
+    if (allowedValues == null) {
+      // There's no way to satisfy the given conditions, so the probability
+      // is zero.
+      return 0;
+    }
+    QueryRecorder recorder = QueryRecorder.current();
+    if (recorder != null) {
+      record(recorder, network, allowedValues);
+    }
+    if (pool == null) {
+      return JointEnumerator.create(network, allowedValues).sum();
+    }
+    return getProbabilityInParallel(network, allowedValues);
+  }
+
+  /**
+   * Computes the logarithm of the probability of the given clause.  The
+   * joint probability of each configuration is a plain product, so this
+   * underflows for very unlikely clauses.
+   */
+  @Override
+  public double getLogProbability(BayesNetwork network, AndClause andClause) {
+    return Math.log(getProbability(network, andClause));
+  }
+
+  private double getProbabilityInParallel(
+      final BayesNetwork network, Map<String, int[]> allowedValues) {
+    // Split on one free variable at a time until there are enough parts.
+    List<Map<String, int[]>> parts = Lists.newArrayList();
+    parts.add(allowedValues);
+    int targetParts = pool.getParallelism() * TASKS_PER_THREAD;
+    for (String variable : network.getVariables()) {
+      if (parts.size() >= targetParts) {
+        break;
+      }
+      int[] allowed = allowedValues.get(variable);
+      if (allowed == null) {
+        allowed = getAllValues(network.getValues(variable).size());
+      }
+      if (allowed.length < 2) {
+        continue;
+      }
+      List<Map<String, int[]>> newParts = Lists.newArrayList();
+      for (Map<String, int[]> part : parts) {
+        for (int value : allowed) {
+          Map<String, int[]> newPart = Maps.newHashMap(part);
+          newPart.put(variable, new int[] { value });
+          newParts.add(newPart);
+        }
+      }
+      parts = newParts;
+    }
+
+    List<ForkJoinTask<Double>> tasks = Lists.newArrayList();
+    for (final Map<String, int[]> part : parts) {
+      tasks.add(pool.submit(new Callable<Double>() {
+        @Override
+        public Double call() {
+          return JointEnumerator.create(network, part).sum();
+        }
+      }));
+    }
+    CompensatedSum result = new CompensatedSum();
+    for (ForkJoinTask<Double> task : tasks) {
+      result.add(task.join());
+    }
+    return result.getSum();
+  }
+
+  /**
+   * Records the number of configurations a query will enumerate, each of
+   * which reads one entry of every table.
+   */
+  private static void record(QueryRecorder recorder, BayesNetwork network,
+      Map<String, int[]> allowedValues) {
+    Topology topology = network.getTopology();
+    long configurations = 1;
+    for (int i = 0; i < topology.size(); i++) {
+      int[] allowed = allowedValues.get(topology.getVariable(i));
+      configurations = LongMath.saturatedMultiply(configurations,
+          allowed == null ? topology.getCardinality(i) : allowed.length);
+    }
+    recorder.addConfigurations(configurations);
+    recorder.addTableLookups(
+        LongMath.saturatedMultiply(configurations, topology.size()));
+  }
+
+  /**
+   * Gets the allowed value ordinals of each variable in the given
+   * {@link AndClause}, or returns null if no assignment satisfies it.
+   */
+  private static Map<String, int[]> getAllowedValues(
+      BayesNetwork network, AndClause andClause) {
+    Map<String, int[]> allowedValues = Maps.newHashMap();
+    for (String variable : andClause.getConditions().keySet()) {
+      Set<String> allowed = network.getAllowedValues(
+          variable, andClause.getConditions().get(variable));
+      if (allowed.isEmpty()) {
+        return null;
+      }
+      ImmutableList<String> domain = network.getValues(variable).asList();
+      int[] ordinals = new int[allowed.size()];
+      int i = 0;
+      for (String value : allowed) {
+        ordinals[i++] = domain.indexOf(value);
+      }
+      allowedValues.put(variable, ordinals);
+    }
+    return allowedValues;
+  }
+
+  private static int[] getAllValues(int cardinality) {
+    int[] result = new int[cardinality];
+    for (int i = 0; i < cardinality; i++) {
+      result[i] = i;
+    }
+    return result;
+  }
+}
@@ -0,0 +1,71 @@
+package com.example.ai.bayes;
+
+import com.google.auto.value.AutoValue;
+
+/**
+ * A probability estimated by sampling, together with a measure of its
+ * accuracy.
+ */
+@AutoValue
+public abstract class Estimate {
+  /**
+   * The estimated probability, or NaN if no sample was consistent with the
+   * evidence.
+   */
+  public abstract double getValue();
+
+  /**
+   * Half the width of the confidence interval around the estimate, before
+   * it is clamped to the range of probabilities.
+   */
+  public abstract double getHalfWidth();
+
+  /**
+   * The probability that the confidence interval covers the true value.
+   */
+  public abstract double getConfidenceLevel();
+
+  /**
+   * The number of samples drawn.
+   */
+  public abstract long getSampleCount();
+
+  /**
+   * The number of independent, unweighted samples that would give an
+   * estimate of the same accuracy.
+   */
+  public abstract double getEffectiveSampleSize();
+
+  /**
+   * Gets the lower end of the confidence interval, which is never below 0.
+   */
+  public double getLowerBound() {
+    return Math.max(0d, getValue() - getHalfWidth());
+  }
+
+  /**
+   * Gets the upper end of the confidence interval, which is never above 1.
+   */
+  public double getUpperBound() {
+    return Math.min(1d, getValue() + getHalfWidth());
+  }
+
+  /**
+   * Gets the number of standard deviations on either side of the estimate
+   * that a confidence interval at the given level spans, using the rational
+   * approximation of Abramowitz and Stegun (26.2.23), which is accurate to
+   * within 0.00045.
+   */
+  static double getCriticalValue(double confidenceLevel) {
+    double tail = (1 - confidenceLevel) / 2;
+    double t = Math.sqrt(-2 * Math.log(tail));
+    return t - (2.515517 + 0.802853 * t + 0.010328 * t * t)
+        / (1 + 1.432788 * t + 0.189269 * t * t + 0.001308 * t * t * t);
+  }
+
+  static Estimate of(double value, double halfWidth, double confidenceLevel,
+      long sampleCount, double effectiveSampleSize) {
+    return new AutoValue_Estimate(value, halfWidth, confidenceLevel,
+        sampleCount, effectiveSampleSize);
+  }
+}
@@ -0,0 +1,32 @@
+package com.example.ai.bayes;
+
+import com.google.auto.value.AutoValue;
+
+/**
+ * The result of simplifying an {@link Event} against the value domains of a
+ * {@link BayesNetwork}.  See {@link BayesNetwork#simplify}.
+ */
+@AutoValue
+public abstract class EventSimplification {
+  /**
+   * The simplified event, which holds for exactly the same assignments as the
+   * original event.
+   */
+  public abstract Event getEvent();
+
+  /**
+   * The number of AND-clauses in the original event.
+   */
+  public abstract int getOriginalClauseCount();
+
+  /**
+   * Gets the number of AND-clauses that simplification removed.
+   */
+  public int getRemovedClauseCount() {
+    return getOriginalClauseCount() - getEvent().getAndClauses().size();
+  }
+
+  static EventSimplification of(Event event, int originalClauseCount) {
+    return new AutoValue_EventSimplification(event, originalClauseCount);
+  }
+}
@@ -0,0 +1,485 @@
+package com.example.ai.bayes;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * A table of non-negative numbers indexed by assignments to a list of
+ * variables, as used by {@link VariableEliminationEngine} and
+ * {@link CompiledNetwork}.
+ *
+ * <p> Values of each variable are identified by their position in the
+ * variable's domain, and the table is stored as a flat array in which the
+ * first variable changes fastest.
+ *
+ * <p> Each entry is stored multiplied by a power of two, whose exponent is
+ * kept with the factor (see {@link #rescale}), so that products of many
+ * small probabilities do not underflow.  The exponent is zero unless a
+ * factor has been rescaled, and accessors return entries with it applied.
+ */
+final class Factor {
+  /**
+   * The smallest number of entries worth handing to a separate task when an
+   * operation runs in parallel.
+   */
+  private static final int PARALLEL_THRESHOLD = 1 << 14;
+
+  /**
+   * The number of tasks to create per worker thread, so that uneven tasks
+   * still keep every worker busy.
+   */
+  private static final int TASKS_PER_THREAD = 4;
+
+  private static final double LN_2 = Math.log(2);
+
+  private final ImmutableList<String> variables;
+  private final int[] cardinalities;
+  private final double[] values;
+  /** The base-two exponent by which the stored entries are scaled down. */
+  private final long exponent;
+
+  private Factor(
+      ImmutableList<String> variables, int[] cardinalities, double[] values) {
+    this(variables, cardinalities, values, 0);
+  }
+
+  private Factor(ImmutableList<String> variables, int[] cardinalities,
+      double[] values, long exponent) {
+    this.variables = variables;
+    this.cardinalities = cardinalities;
+    this.values = values;
+    this.exponent = exponent;
+  }
+
+  /**
+   * Creates a factor holding the entries of a conditional distribution.  The
+   * factor shares the array of the distribution's {@link ProbabilityTable},
+   * whose layout matches that of a factor over the variable followed by its
+   * parents.  The entries of a table read from a buffer are copied into an
+   * array that only the factor holds, so the table stays off the heap.
+   */
+  static Factor fromDistribution(ConditionalDistribution distribution) {
+    distribution.checkComplete();
+    ImmutableList<String> variables = ImmutableList.<String>builder()
+        .add(distribution.getVariableName())
+        .addAll(distribution.getParentVariableNames())
+        .build();
+    ProbabilityTable table = distribution.getTable();
+    int[] cardinalities = new int[variables.size()];
+    for (int i = 0; i < cardinalities.length; i++) {
+      cardinalities[i] = table.getCardinality(i);
+    }
+    double[] values;
+    if (table.isBuffered()) {
+      values = new double[table.size()];
+      for (int index = 0; index < values.length; index++) {
+        values[index] = table.get(index);
+      }
+    } else {
+      values = table.getArray();
+    }
+    return new Factor(variables, cardinalities, values);
+  }
+
+  /**
+   * Creates a factor with no variables, holding a single value.
+   */
+  static Factor scalar(double value) {
+    return new Factor(ImmutableList.<String>of(), new int[0],
+        new double[] { value });
+  }
+
+  /**
+   * Creates a factor over a single variable that is one for allowed values
+   * and zero otherwise.
+   */
+  static Factor indicator(String variable, boolean[] allowed) {
+    double[] values = new double[allowed.length];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = allowed[i] ? 1d : 0d;
+    }
+    return new Factor(ImmutableList.of(variable),
+        new int[] { allowed.length }, values);
+  }
+
+  ImmutableList<String> getVariables() {
+    return variables;
+  }
+
+  /**
+   * Gets the number of values that the given variable can take on.
+   */
+  int getCardinality(String variable) {
+    return cardinalities[indexOf(variable)];
+  }
+
+  /**
+   * Gets the number of entries in this factor.
+   */
+  int size() {
+    return values.length;
+  }
+
+  /**
+   * Gets the entry at the given position of the flat table.
+   */
+  double getValue(int index) {
+    return scale(values[index], exponent);
+  }
+
+  /**
+   * Gets the sum of all entries in this factor, compensated as in
+   * {@link CompensatedSum}.
+   */
+  double sum() {
+    CompensatedSum result = new CompensatedSum();
+    for (double value : values) {
+      result.add(value);
+    }
+    return scale(result.getSum(), exponent);
+  }
+
+  /**
+   * Gets the only entry of a factor with no variables.
+   */
+  double getScalarValue() {
+    Preconditions.checkState(variables.isEmpty(),
+        "Factor still contains variables %s", variables);
+    return scale(values[0], exponent);
+  }
+
+  /**
+   * Gets the natural logarithm of the only entry of a factor with no
+   * variables.  This stays accurate when the entry itself would underflow.
+   */
+  double getLogScalarValue() {
+    Preconditions.checkState(variables.isEmpty(),
+        "Factor still contains variables %s", variables);
+    return Math.log(values[0]) + exponent * LN_2;
+  }
+
+  /**
+   * Scales the entries so that the largest is between one half and one,
+   * moving the difference into the exponent.  Scaling by a power of two is
+   * exact, so this only loses entries that are too small next to the
+   * largest to be represented at all.
+   */
+  Factor rescale() {
+    double max = 0d;
+    for (double value : values) {
+      max = Math.max(max, value);
+    }
+    if (max == 0d || Double.isInfinite(max) || Double.isNaN(max)) {
+      return this;
+    }
+    int shift = Math.getExponent(max) + 1;
+    if (shift == 0) {
+      return this;
+    }
+    double[] newValues = new double[values.length];
+    for (int index = 0; index < values.length; index++) {
+      newValues[index] = Math.scalb(values[index], -shift);
+    }
+    return new Factor(variables, cardinalities, newValues, exponent + shift);
+  }
+
+  /**
+   * Restricts a variable to the given allowed values.  If exactly one value
+   * is allowed, the variable is removed from the result; otherwise entries
+   * for disallowed values are set to zero.
+   */
+  Factor restrict(String variable, boolean[] allowed) {
+    int position = indexOf(variable);
+    Preconditions.checkArgument(allowed.length == cardinalities[position]);
+    int allowedCount = 0;
+    int onlyAllowed = -1;
+    for (int i = 0; i < allowed.length; i++) {
+      if (allowed[i]) {
+        allowedCount++;
+        onlyAllowed = i;
+      }
+    }
+    if (allowedCount == 1) {
+      return slice(position, onlyAllowed);
+    }
+
+    double[] newValues = values.clone();
+    int stride = getStride(position);
+    for (int index = 0; index < newValues.length; index++) {
+      if (!allowed[(index / stride) % cardinalities[position]]) {
+        newValues[index] = 0d;
+      }
+    }
+    return new Factor(variables, cardinalities, newValues, exponent);
+  }
+
+  /**
+   * Fixes the variable at the given position to a single value, removing it
+   * from the result.
+   */
+  private Factor slice(int position, int value) {
+    ImmutableList.Builder<String> newVariables = ImmutableList.builder();
+    int[] newCardinalities = new int[cardinalities.length - 1];
+    for (int i = 0, j = 0; i < cardinalities.length; i++) {
+      if (i != position) {
+        newVariables.add(variables.get(i));
+        newCardinalities[j++] = cardinalities[i];
+      }
+    }
+
+    int stride = getStride(position);
+    int blockSize = stride * cardinalities[position];
+    double[] newValues = new double[values.length / cardinalities[position]];
+    for (int index = 0; index < newValues.length; index++) {
+      int low = index % stride;
+      int high = index / stride;
+      newValues[index] = values[high * blockSize + value * stride + low];
+    }
+    return new Factor(
+        newVariables.build(), newCardinalities, newValues, exponent);
+  }
+
+  /**
+   * Multiplies this factor with another factor.  The result is defined over
+   * the union of the variables of both factors.
+   */
+  Factor product(Factor other) {
+    return product(other, null);
+  }
+
+  /**
+   * Multiplies this factor with another factor, splitting the work on large
+   * factors into tasks run in the given pool.
+   *
+   * @param pool
+   *          the pool to run tasks in, or null to run sequentially
+   */
+  Factor product(Factor other, ForkJoinPool pool) {
+    return combine(other, false, pool);
+  }
+
+  /**
+   * Divides this factor by another factor whose variables are a subset of
+   * this factor's variables.  Dividing zero by zero gives zero.
+   */
+  Factor divide(Factor other) {
+    Preconditions.checkArgument(variables.containsAll(other.variables),
+        "Cannot divide factor %s by factor %s", variables, other.variables);
+    return combine(other, true, null);
+  }
+
+  private Factor combine(
+      final Factor other, final boolean divide, ForkJoinPool pool) {
+    ImmutableList.Builder<String> newVariablesBuilder =
+        ImmutableList.<String>builder().addAll(variables);
+    for (String variable : other.variables) {
+      if (!variables.contains(variable)) {
+        newVariablesBuilder.add(variable);
+      }
+    }
+    ImmutableList<String> newVariables = newVariablesBuilder.build();
+
+    final int[] newCardinalities = new int[newVariables.size()];
+    final int[] thisStrides = new int[newVariables.size()];
+    final int[] otherStrides = new int[newVariables.size()];
+    for (int i = 0; i < newVariables.size(); i++) {
+      String variable = newVariables.get(i);
+      int thisPosition = variables.indexOf(variable);
+      int otherPosition = other.variables.indexOf(variable);
+      newCardinalities[i] = thisPosition >= 0
+          ? cardinalities[thisPosition]
+          : other.cardinalities[otherPosition];
+      thisStrides[i] = thisPosition >= 0 ? getStride(thisPosition) : 0;
+      otherStrides[i] = otherPosition >= 0
+          ? other.getStride(otherPosition) : 0;
+    }
+
+    final double[] newValues = new double[getSize(newCardinalities)];
+    forEachRange(pool, newValues.length, new RangeAction() {
+      @Override
+      public void run(int start, int end) {
+        // Decompose the first index of the range into an assignment, and
+        // find the matching source indices.
+        int[] assignment = new int[newCardinalities.length];
+        int thisIndex = 0;
+        int otherIndex = 0;
+        for (int i = 0, rest = start; i < assignment.length; i++) {
+          assignment[i] = rest % newCardinalities[i];
+          rest /= newCardinalities[i];
+          thisIndex += assignment[i] * thisStrides[i];
+          otherIndex += assignment[i] * otherStrides[i];
+        }
+
+        for (int index = start; index < end; index++) {
+          if (!divide) {
+            newValues[index] = values[thisIndex] * other.values[otherIndex];
+          } else if (other.values[otherIndex] != 0d) {
+            newValues[index] = values[thisIndex] / other.values[otherIndex];
+          }
+          // Advance the assignment like an odometer, keeping both source
+          // indices in sync with it.
+          for (int i = 0; i < assignment.length; i++) {
+            assignment[i]++;
+            thisIndex += thisStrides[i];
+            otherIndex += otherStrides[i];
+            if (assignment[i] < newCardinalities[i]) {
+              break;
+            }
+            thisIndex -= thisStrides[i] * newCardinalities[i];
+            otherIndex -= otherStrides[i] * newCardinalities[i];
+            assignment[i] = 0;
+          }
+        }
+      }
+    });
+    return new Factor(newVariables, newCardinalities, newValues,
+        divide ? exponent - other.exponent : exponent + other.exponent);
+  }
+
+  /**
+   * Sums out the given variable, producing a factor over the remaining
+   * variables.
+   */
+  Factor sumOut(String variable) {
+    return sumOut(variable, null);
+  }
+
+  /**
+   * Sums out the given variable, splitting the work on large factors into
+   * tasks run in the given pool.
+   *
+   * @param pool
+   *          the pool to run tasks in, or null to run sequentially
+   */
+  Factor sumOut(String variable, ForkJoinPool pool) {
+    final int position = indexOf(variable);
+    ImmutableList.Builder<String> newVariables = ImmutableList.builder();
+    int[] newCardinalities = new int[cardinalities.length - 1];
+    for (int i = 0, j = 0; i < cardinalities.length; i++) {
+      if (i != position) {
+        newVariables.add(variables.get(i));
+        newCardinalities[j++] = cardinalities[i];
+      }
+    }
+
+    final int stride = getStride(position);
+    final int blockSize = stride * cardinalities[position];
+    final double[] newValues =
+        new double[values.length / cardinalities[position]];
+    forEachRange(pool, newValues.length, new RangeAction() {
+      @Override
+      public void run(int start, int end) {
+        for (int index = start; index < end; index++) {
+          int first = (index / stride) * blockSize + index % stride;
+          // Compensated as in CompensatedSum, inlined so that nothing is
+          // allocated per entry.
+          double sum = 0d;
+          double compensation = 0d;
+          for (int value = 0; value < cardinalities[position]; value++) {
+            double term = values[first + value * stride];
+            double total = sum + term;
+            if (Math.abs(sum) >= Math.abs(term)) {
+              compensation += (sum - total) + term;
+            } else {
+              compensation += (term - total) + sum;
+            }
+            sum = total;
+          }
+          newValues[index] = sum + compensation;
+        }
+      }
+    });
+    return new Factor(
+        newVariables.build(), newCardinalities, newValues, exponent);
+  }
+
+  /**
+   * Sums out every variable that is not in the given collection.
+   */
+  Factor marginalize(Collection<String> keep) {
+    Factor result = this;
+    for (String variable : variables) {
+      if (!keep.contains(variable)) {
+        result = result.sumOut(variable);
+      }
+    }
+    return result;
+  }
+
+  private int indexOf(String variable) {
+    int position = variables.indexOf(variable);
+    Preconditions.checkArgument(position >= 0,
+        "Variable %s is not in factor %s", variable, variables);
+    return position;
+  }
+
+  private int getStride(int position) {
+    int stride = 1;
+    for (int i = 0; i < position; i++) {
+      stride *= cardinalities[i];
+    }
+    return stride;
+  }
+
+  /**
+   * Work on a contiguous range of entries of a factor.
+   */
+  private interface RangeAction {
+    void run(int start, int end);
+  }
+
+  /**
+   * Runs an action over the entries {@code [0, size)}, split into ranges of
+   * at least {@link #PARALLEL_THRESHOLD} entries that run as separate tasks
+   * in the given pool.  Runs the whole range directly if the pool is null or
+   * the range is small.
+   */
+  private static void forEachRange(
+      ForkJoinPool pool, int size, final RangeAction action) {
+    if (pool == null || size < 2 * PARALLEL_THRESHOLD) {
+      action.run(0, size);
+      return;
+    }
+    int ranges = Math.min(size / PARALLEL_THRESHOLD,
+        pool.getParallelism() * TASKS_PER_THREAD);
+    List<ForkJoinTask<?>> tasks = Lists.newArrayList();
+    for (int i = 0; i < ranges; i++) {
+      final int start = (int) ((long) size * i / ranges);
+      final int end = (int) ((long) size * (i + 1) / ranges);
+      tasks.add(pool.submit(new Runnable() {
+        @Override
+        public void run() {
+          action.run(start, end);
+        }
+      }));
+    }
+    for (ForkJoinTask<?> task : tasks) {
+      task.join();
+    }
+  }
+
+  /**
+   * Multiplies a value by two to the power of the given exponent.
+   */
+  private static double scale(double value, long exponent) {
+    if (exponent == 0) {
+      return value;
+    }
+    return Math.scalb(value, (int) Math.max(Integer.MIN_VALUE,
+        Math.min(Integer.MAX_VALUE, exponent)));
+  }
+
+  private static int getSize(int[] cardinalities) {
+    int size = 1;
+    for (int cardinality : cardinalities) {
+      size = Math.multiplyExact(size, cardinality);
+    }
+    return size;
+  }
+}
@@ -0,0 +1,265 @@
+package com.example.ai.bayes;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Draws joint samples from a {@link BayesNetwork} by ancestral sampling, in
+ * bulk.
+ *
+ * <p> Samples are written as value ordinals (indices into
+ * {@link BayesNetwork#getValues}) into caller-provided buffers, either one
+ * row per sample or one column per variable, with variables in the order of
+ * {@link BayesNetwork#getVariables}.  Every row of every distribution gets an
+ * alias table when the sampler is created, so each draw takes one random
+ * number and constant time.
+ *
+ * <p> The samples are split into fixed blocks, each drawn from its own
+ * {@link SplittableRandom} stream split off the seed in block order, so the
+ * output for a given seed is the same whether it is drawn sequentially or in
+ * a pool of any size.  A sampler is immutable and may be shared.
+ */
+public final class ForwardSampler {
+  /** The number of samples drawn from each random stream. */
+  static final int BLOCK_SIZE = 4096;
+
+  private final BayesNetwork network;
+  private final int[] order;
+  private final int[][] parents;
+  /** The stride of each parent in each table. */
+  private final int[][] parentStrides;
+  private final int[] cardinalities;
+  /**
+   * The alias tables of each variable, laid out like its
+   * {@link ProbabilityTable}: each row of the table holds the chance of
+   * keeping each value and the value to take instead.
+   */
+  private final double[][] thresholds;
+  private final int[][] aliases;
+
+  private ForwardSampler(BayesNetwork network, int[][] parentStrides,
+      double[][] thresholds, int[][] aliases) {
+    Topology topology = network.getTopology();
+    this.network = network;
+    this.order = topology.getTopologicalOrder();
+    this.parents = new int[topology.size()][];
+    this.cardinalities = new int[topology.size()];
+    for (int i = 0; i < topology.size(); i++) {
+      parents[i] = topology.getParents(i);
+      cardinalities[i] = topology.getCardinality(i);
+    }
+    this.parentStrides = parentStrides;
+    this.thresholds = thresholds;
+    this.aliases = aliases;
+  }
+
+  /**
+   * Creates a sampler for the given network, building its alias tables.
+   *
+   * @throws IllegalArgumentException if a distribution is missing a
+   *         probability
+   */
+  public static ForwardSampler create(BayesNetwork network) {
+    ImmutableList<ConditionalDistribution> distributions =
+        network.getConditionalDistributions();
+    int size = distributions.size();
+    int[][] parentStrides = new int[size][];
+    double[][] thresholds = new double[size][];
+    int[][] aliases = new int[size][];
+    for (int i = 0; i < size; i++) {
+      ProbabilityTable table = distributions.get(i).getTable();
+      parentStrides[i] = new int[table.getDomains().size() - 1];
+      for (int j = 0; j < parentStrides[i].length; j++) {
+        parentStrides[i][j] = table.getStride(j + 1);
+      }
+      thresholds[i] = new double[table.size()];
+      aliases[i] = new int[table.size()];
+      int cardinality = table.getCardinality(0);
+      distributions.get(i).checkComplete();
+      for (int row = 0; row < table.size(); row += cardinality) {
+        buildAliasTable(table, row, cardinality, thresholds[i], aliases[i]);
+      }
+    }
+    return new ForwardSampler(network, parentStrides, thresholds, aliases);
+  }
+
+  /**
+   * Builds the alias table of one row with Vose's method, normalizing the
+   * row so that rounding in the distribution does not bias the draws.
+   */
+  private static void buildAliasTable(ProbabilityTable table, int start,
+      int cardinality, double[] thresholds, int[] aliases) {
+    double total = 0d;
+    for (int value = 0; value < cardinality; value++) {
+      total += table.get(start + value);
+    }
+    double[] scaled = new double[cardinality];
+    Deque<Integer> small = new ArrayDeque<Integer>();
+    Deque<Integer> large = new ArrayDeque<Integer>();
+    for (int value = 0; value < cardinality; value++) {
+      scaled[value] = table.get(start + value) * cardinality / total;
+      if (scaled[value] < 1d) {
+        small.push(value);
+      } else {
+        large.push(value);
+      }
+    }
+    while (!small.isEmpty() && !large.isEmpty()) {
+      int less = small.pop();
+      int more = large.pop();
+      thresholds[start + less] = scaled[less];
+      aliases[start + less] = more;
+      scaled[more] = (scaled[more] + scaled[less]) - 1d;
+      if (scaled[more] < 1d) {
+        small.push(more);
+      } else {
+        large.push(more);
+      }
+    }
+    // Whatever is left is full, up to rounding.
+    while (!large.isEmpty()) {
+      int value = large.pop();
+      thresholds[start + value] = 1d;
+      aliases[start + value] = value;
+    }
+    while (!small.isEmpty()) {
+      int value = small.pop();
+      thresholds[start + value] = 1d;
+      aliases[start + value] = value;
+    }
+  }
+
+  public BayesNetwork getNetwork() {
+    return network;
+  }
+
+  /**
+   * Fills every row of the given buffer with a sample, where each row has
+   * one entry per variable.
+   */
+  public void sample(long seed, int[][] samples) {
+    sample(seed, samples, null);
+  }
+
+  /**
+   * Fills every row of the given buffer with a sample, where each row has
+   * one entry per variable, splitting the work into tasks run in the given
+   * pool.
+   */
+  public void sample(long seed, final int[][] samples, ForkJoinPool pool) {
+    for (int[] row : samples) {
+      Preconditions.checkArgument(row.length == order.length,
+          "Each row must have one entry per variable");
+    }
+    forEachBlock(seed, samples.length, pool, new BlockAction() {
+      @Override
+      public void run(SplittableRandom random, int start, int end) {
+        for (int i = start; i < end; i++) {
+          draw(random, samples[i]);
+        }
+      }
+    });
+  }
+
+  /**
+   * Fills the given columns with samples, where there is one column per
+   * variable and every column has the same length.
+   */
+  public void sampleColumns(long seed, int[][] columns) {
+    sampleColumns(seed, columns, null);
+  }
+
+  /**
+   * Fills the given columns with samples, where there is one column per
+   * variable and every column has the same length, splitting the work into
+   * tasks run in the given pool.
+   *
+   * <p> Column {@code j} holds the same values as entry {@code j} of each
+   * row would for {@link #sample} with the same seed.
+   */
+  public void sampleColumns(
+      long seed, final int[][] columns, ForkJoinPool pool) {
+    Preconditions.checkArgument(columns.length == order.length,
+        "There must be one column per variable");
+    int count = columns.length == 0 ? 0 : columns[0].length;
+    for (int[] column : columns) {
+      Preconditions.checkArgument(column.length == count,
+          "Every column must have the same length");
+    }
+    forEachBlock(seed, count, pool, new BlockAction() {
+      @Override
+      public void run(SplittableRandom random, int start, int end) {
+        int[] assignment = new int[columns.length];
+        for (int i = start; i < end; i++) {
+          draw(random, assignment);
+          for (int j = 0; j < columns.length; j++) {
+            columns[j][i] = assignment[j];
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Draws one sample into the given array, indexed by variable.
+   */
+  void draw(SplittableRandom random, int[] assignment) {
+    for (int variable : order) {
+      int[] variableParents = parents[variable];
+      int[] strides = parentStrides[variable];
+      int row = 0;
+      for (int j = 0; j < variableParents.length; j++) {
+        row += assignment[variableParents[j]] * strides[j];
+      }
+      // One draw picks both a column of the alias table and a point within
+      // it.
+      double u = random.nextDouble() * cardinalities[variable];
+      int value = (int) u;
+      int index = row + value;
+      assignment[variable] = u - value < thresholds[variable][index]
+          ? value : aliases[variable][index];
+    }
+  }
+
+  /**
+   * Splits the samples {@code [0, count)} into blocks, each with its own
+   * random stream, and runs the action over each block.
+   */
+  private static void forEachBlock(long seed, int count, ForkJoinPool pool,
+      final BlockAction action) {
+    SplittableRandom root = new SplittableRandom(seed);
+    List<ForkJoinTask<?>> tasks = Lists.newArrayList();
+    int blocks = (int) (((long) count + BLOCK_SIZE - 1) / BLOCK_SIZE);
+    for (int block = 0; block < blocks; block++) {
+      final SplittableRandom random = root.split();
+      final int blockStart = block * BLOCK_SIZE;
+      final int blockEnd =
+          blockStart + Math.min(BLOCK_SIZE, count - blockStart);
+      if (pool == null) {
+        action.run(random, blockStart, blockEnd);
+      } else {
+        tasks.add(pool.submit(new Runnable() {
+          @Override
+          public void run() {
+            action.run(random, blockStart, blockEnd);
+          }
+        }));
+      }
+    }
+    for (ForkJoinTask<?> task : tasks) {
+      task.join();
+    }
+  }
+
+  private interface BlockAction {
+    void run(SplittableRandom random, int start, int end);
+  }
+}
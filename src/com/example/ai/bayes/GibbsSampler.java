@@ -0,0 +1,634 @@
+package com.example.ai.bayes;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Estimates posterior probabilities by Gibbs sampling.
+ *
+ * <p> Each chain starts from a forward sample consistent with the evidence,
+ * and then repeatedly sweeps over the variables that the evidence does not
+ * fix, redrawing each from its distribution given its Markov blanket (its
+ * parents, its children, and their other parents).  Unlike
+ * {@link LikelihoodWeightingEngine}, the evidence steers every draw, so
+ * accuracy does not collapse when the evidence is unlikely.  On the other
+ * hand, successive samples are correlated, and a chain can get stuck when
+ * zero probabilities split the assignments consistent with the evidence
+ * into parts it cannot move between.  Running several chains and checking
+ * {@link Run#getPotentialScaleReduction} guards against both.
+ *
+ * <p> Sampling happens in a {@link Run}, which can be read at any point,
+ * including while the chains are still running in another thread.  A run
+ * does not keep every retained sample, so its memory stays bounded however
+ * long the chains run.  Each chain keeps a count of every value of every
+ * variable over all of its retained samples, from which events on a single
+ * variable are estimated.  Each chain also keeps its most recent retained
+ * samples, up to the window size of the {@link Builder}, from which any
+ * other {@link Event} is estimated.
+ */
+public final class GibbsSampler {
+  private final int chains;
+  private final long burnIn;
+  private final int thinning;
+  private final int windowSize;
+  private final double confidenceLevel;
+  private final Long seed;
+  /** The pool to run chains in, or null to run them sequentially. */
+  private final ForkJoinPool pool;
+
+  private GibbsSampler(Builder builder) {
+    this.chains = builder.chains;
+    this.burnIn = builder.burnIn;
+    this.thinning = builder.thinning;
+    this.windowSize = builder.windowSize;
+    this.confidenceLevel = builder.confidenceLevel;
+    this.seed = builder.seed;
+    this.pool = builder.pool;
+  }
+
+  /**
+   * Starts sampling the given network conditioned on the given evidence.  No
+   * sweeps are made until {@link Run#run} is called.
+   *
+   * @throws IllegalArgumentException if the evidence does not simplify to a
+   *         single AND-clause, or if no starting assignment consistent with
+   *         the evidence could be found
+   */
+  public Run start(BayesNetwork network, Event evidence) {
+    ImmutableList<ClauseMask> evidenceClauses =
+        ClauseMask.simplify(ClauseMask.of(network, evidence));
+    Preconditions.checkArgument(evidenceClauses.size() == 1,
+        "Evidence must be a single satisfiable AND-clause: %s", evidence);
+    return new Run(network, evidenceClauses.get(0));
+  }
+
+  /**
+   * The state of a set of chains sampling one network under one piece of
+   * evidence.
+   *
+   * <p> Only one thread may call {@link #run} at a time, but any number of
+   * threads may read estimates meanwhile.
+   */
+  public final class Run {
+    private final BayesNetwork network;
+    private final Blanket blanket;
+    private final ImmutableList<Chain> chainList;
+
+    private Run(BayesNetwork network, ClauseMask evidence) {
+      this.network = network;
+      this.blanket = new Blanket(network, evidence);
+      WeightedSampler initializer = WeightedSampler.create(network, evidence);
+      SplittableRandom root =
+          seed == null ? new SplittableRandom() : new SplittableRandom(seed);
+      ImmutableList.Builder<Chain> builder = ImmutableList.builder();
+      for (int i = 0; i < chains; i++) {
+        builder.add(new Chain(blanket, initializer, root.split()));
+      }
+      this.chainList = builder.build();
+    }
+
+    public BayesNetwork getNetwork() {
+      return network;
+    }
+
+    /**
+     * Advances every chain by the given number of sweeps, the first of which
+     * are discarded as burn-in.
+     */
+    public synchronized void run(final long sweeps) {
+      Preconditions.checkArgument(sweeps >= 0,
+          "The number of sweeps must not be negative");
+      if (pool == null) {
+        for (Chain chain : chainList) {
+          chain.run(sweeps);
+        }
+        return;
+      }
+      List<ForkJoinTask<?>> tasks = Lists.newArrayList();
+      for (final Chain chain : chainList) {
+        tasks.add(pool.submit(new Runnable() {
+          @Override
+          public void run() {
+            chain.run(sweeps);
+          }
+        }));
+      }
+      for (ForkJoinTask<?> task : tasks) {
+        task.join();
+      }
+    }
+
+    /**
+     * Gets the number of samples retained so far, over all chains.
+     */
+    public long getSampleCount() {
+      long result = 0;
+      for (Chain chain : chainList) {
+        result += chain.getCount();
+      }
+      return result;
+    }
+
+    /**
+     * Estimates the probability of an {@link Event} given the evidence.  An
+     * event on a single variable is estimated from every sample retained so
+     * far, and any other event from the samples in the window of each chain.
+     *
+     * <p> The confidence interval and effective sample size are derived from
+     * the spread between the means of the chains, which accounts for
+     * correlation between successive samples.  With a single chain there is
+     * no such spread, and the samples are treated as independent.
+     */
+    public Estimate estimate(Event queryEvent) {
+      long[][] counts = getChainCounts(queryEvent);
+      if (counts == null) {
+        return Estimate.of(Double.NaN, Double.NaN, confidenceLevel, 0, 0);
+      }
+      long sampleCount = 0;
+      long matchCount = 0;
+      double[] means = new double[chainList.size()];
+      for (int i = 0; i < means.length; i++) {
+        sampleCount += counts[0][i];
+        matchCount += counts[1][i];
+        means[i] = counts[1][i] / (double) counts[0][i];
+      }
+      double value = matchCount / (double) sampleCount;
+      double varianceOfMean = means.length > 1
+          ? sampleVariance(means, mean(means)) / means.length
+          : value * (1 - value) / sampleCount;
+      double effectiveSampleSize = varianceOfMean == 0d
+          ? sampleCount
+          : Math.min(sampleCount, value * (1 - value) / varianceOfMean);
+      double halfWidth = Estimate.getCriticalValue(confidenceLevel)
+          * Math.sqrt(varianceOfMean);
+      return Estimate.of(value, halfWidth, confidenceLevel, sampleCount,
+          effectiveSampleSize);
+    }
+
+    /**
+     * Computes the potential scale reduction factor (R-hat) of the indicator
+     * of an {@link Event}, which compares the variance between the chains to
+     * the variance within them, over the same samples that
+     * {@link #estimate} uses.  Values close to one suggest that the chains
+     * have mixed; a common threshold is 1.01.
+     *
+     * @return the factor, or NaN if there is a single chain or too few
+     *         samples
+     */
+    public double getPotentialScaleReduction(Event queryEvent) {
+      long[][] counts = getChainCounts(queryEvent);
+      if (counts == null || chainList.size() < 2) {
+        return Double.NaN;
+      }
+      long length = Long.MAX_VALUE;
+      double[] means = new double[chainList.size()];
+      double[] variances = new double[means.length];
+      for (int i = 0; i < means.length; i++) {
+        long count = counts[0][i];
+        length = Math.min(length, count);
+        means[i] = counts[1][i] / (double) count;
+        // The sample variance of a run of zeros and ones.
+        variances[i] = means[i] * (1 - means[i]) * count / (count - 1);
+      }
+      double within = mean(variances);
+      double between = length * sampleVariance(means, mean(means));
+      if (within == 0d) {
+        return between == 0d ? 1d : Double.POSITIVE_INFINITY;
+      }
+      double pooled = (length - 1) * within / length + between / length;
+      return Math.sqrt(pooled / within);
+    }
+
+    /**
+     * Counts, for each chain, the samples that an estimate of the given
+     * event uses and the samples among them that match it.
+     *
+     * @return the numbers of samples and the numbers of matches, or null if
+     *         a chain has fewer than two samples
+     */
+    private long[][] getChainCounts(Event queryEvent) {
+      ImmutableList<ClauseMask> query =
+          ClauseMask.simplify(ClauseMask.of(network, queryEvent));
+      // Find the values of the only variable the query constrains, if any.
+      int variable = -1;
+      BitSet values = new BitSet();
+      boolean always = false;
+      boolean marginal = true;
+      for (ClauseMask clause : query) {
+        Set<Integer> constrained = clause.getConstrainedVariables();
+        if (constrained.isEmpty()) {
+          always = true;
+        } else if (constrained.size() > 1
+            || (variable >= 0 && !constrained.contains(variable))) {
+          marginal = false;
+        } else {
+          variable = constrained.iterator().next();
+          values.or(clause.getAllowedValues(variable));
+        }
+      }
+
+      long[][] result = new long[2][chainList.size()];
+      for (int i = 0; i < chainList.size(); i++) {
+        Chain chain = chainList.get(i);
+        synchronized (chain) {
+          if (marginal) {
+            result[0][i] = chain.count;
+            result[1][i] = always
+                ? chain.count : chain.countValues(variable, values);
+          } else {
+            result[0][i] = chain.windowCount;
+            result[1][i] = chain.countWindowMatches(query);
+          }
+        }
+        if (result[0][i] < 2) {
+          return null;
+        }
+      }
+      return result;
+    }
+  }
+
+  private static double mean(double[] values) {
+    double sum = 0d;
+    for (double value : values) {
+      sum += value;
+    }
+    return sum / values.length;
+  }
+
+  private static double sampleVariance(double[] values, double mean) {
+    if (values.length < 2) {
+      return 0d;
+    }
+    double sum = 0d;
+    for (double value : values) {
+      sum += (value - mean) * (value - mean);
+    }
+    return sum / (values.length - 1);
+  }
+
+  /**
+   * A single chain, with its current assignment and statistics of the
+   * samples it has retained.
+   *
+   * <p> Retaining a sample and reading the statistics both hold the lock of
+   * the chain, so readers see the statistics of a whole number of samples.
+   */
+  private final class Chain {
+    private final Blanket blanket;
+    private final SplittableRandom random;
+    private final int[] state;
+    private final double[] weights;
+    private long sweeps;
+    /** The position of the counts of each variable in the value counts. */
+    private final int[] valueOffsets;
+    /** The number of retained samples with each value of each variable. */
+    private final long[] valueCounts;
+    private long count;
+    /**
+     * The most recent retained samples, one after another, which grows up
+     * to the window size and is then overwritten in a cycle.
+     */
+    private int[] window = new int[0];
+    private int windowCount;
+    /** The position in the window at which the next sample is written. */
+    private int windowPosition;
+
+    Chain(Blanket blanket, WeightedSampler initializer,
+        SplittableRandom random) {
+      this.blanket = blanket;
+      this.random = random;
+      this.state = new int[blanket.size()];
+      this.weights = new double[blanket.getMaxCardinality()];
+      this.valueOffsets = new int[blanket.size()];
+      int offset = 0;
+      for (int i = 0; i < valueOffsets.length; i++) {
+        valueOffsets[i] = offset;
+        offset += blanket.getCardinality(i);
+      }
+      this.valueCounts = new long[offset];
+      for (int attempt = 0; initializer.sample(random, state) == 0d;
+          attempt++) {
+        Preconditions.checkArgument(attempt < 1000,
+            "Could not find an assignment consistent with the evidence");
+      }
+    }
+
+    void run(long newSweeps) {
+      for (long i = 0; i < newSweeps; i++) {
+        blanket.sweep(random, state, weights);
+        sweeps++;
+        if (sweeps > burnIn && (sweeps - burnIn) % thinning == 0) {
+          retain();
+        }
+      }
+    }
+
+    synchronized long getCount() {
+      return count;
+    }
+
+    private synchronized void retain() {
+      for (int i = 0; i < state.length; i++) {
+        valueCounts[valueOffsets[i] + state[i]]++;
+      }
+      count++;
+
+      if (windowCount < windowSize) {
+        int needed = (windowCount + 1) * state.length;
+        if (window.length < needed) {
+          window = Arrays.copyOf(window, Math.max(needed,
+              Math.min(2 * window.length, windowSize * state.length)));
+        }
+        windowCount++;
+      }
+      System.arraycopy(state, 0, window, windowPosition * state.length,
+          state.length);
+      windowPosition = (windowPosition + 1) % windowSize;
+    }
+
+    /**
+     * Counts the retained samples in which the given variable has one of the
+     * given values.  The caller must hold the lock of the chain.
+     */
+    long countValues(int variable, BitSet values) {
+      long result = 0;
+      for (int value = values.nextSetBit(0); value >= 0;
+          value = values.nextSetBit(value + 1)) {
+        result += valueCounts[valueOffsets[variable] + value];
+      }
+      return result;
+    }
+
+    /**
+     * Counts the samples in the window that match any of the given clauses.
+     * The caller must hold the lock of the chain.
+     */
+    long countWindowMatches(List<ClauseMask> query) {
+      long result = 0;
+      for (int i = 0; i < windowCount; i++) {
+        for (ClauseMask clause : query) {
+          if (clause.matches(window, i * state.length)) {
+            result++;
+            break;
+          }
+        }
+      }
+      return result;
+    }
+  }
+
+  /**
+   * The Markov blankets of the variables of a network, as the tables each
+   * variable appears in, precomputed for fast resampling.
+   */
+  private static final class Blanket {
+    /** The variables that the evidence does not fix. */
+    private final int[] free;
+    private final int[] cardinalities;
+    /** The allowed values of each variable, or null if unconstrained. */
+    private final boolean[][] allowedValues;
+    private final ProbabilityTable[] tables;
+    /** The variable of each table, followed by its parents. */
+    private final int[][] members;
+    /** The stride of each member in each table. */
+    private final int[][] memberStrides;
+    /** The tables each variable appears in. */
+    private final int[][] blanketTables;
+    /** The stride of each variable in each table it appears in. */
+    private final int[][] blanketStrides;
+    private final int maxCardinality;
+
+    Blanket(BayesNetwork network, ClauseMask evidence) {
+      Topology topology = network.getTopology();
+      ImmutableList<ConditionalDistribution> distributions =
+          network.getConditionalDistributions();
+      int size = topology.size();
+      cardinalities = new int[size];
+      allowedValues = new boolean[size][];
+      tables = new ProbabilityTable[size];
+      members = new int[size][];
+      memberStrides = new int[size][];
+      blanketTables = new int[size][];
+      blanketStrides = new int[size][];
+      List<Integer> freeList = Lists.newArrayList();
+      int max = 1;
+      for (int i = 0; i < size; i++) {
+        cardinalities[i] = topology.getCardinality(i);
+        max = Math.max(max, cardinalities[i]);
+        BitSet allowed = evidence.getAllowedValues(i);
+        if (allowed != null) {
+          allowedValues[i] = new boolean[cardinalities[i]];
+          for (int value = allowed.nextSetBit(0); value >= 0;
+              value = allowed.nextSetBit(value + 1)) {
+            allowedValues[i][value] = true;
+          }
+        }
+        if (allowed == null || allowed.cardinality() > 1) {
+          freeList.add(i);
+        }
+
+        ProbabilityTable table = distributions.get(i).getTable();
+        tables[i] = table;
+        int[] parents = topology.getParents(i);
+        members[i] = new int[parents.length + 1];
+        memberStrides[i] = new int[parents.length + 1];
+        members[i][0] = i;
+        System.arraycopy(parents, 0, members[i], 1, parents.length);
+        for (int j = 0; j < members[i].length; j++) {
+          memberStrides[i][j] = table.getStride(j);
+        }
+      }
+      maxCardinality = max;
+      free = new int[freeList.size()];
+      for (int i = 0; i < free.length; i++) {
+        free[i] = freeList.get(i);
+      }
+
+      // A variable's blanket is its own table and those of its children.
+      for (int i = 0; i < size; i++) {
+        int[] children = topology.getChildren(i);
+        blanketTables[i] = new int[children.length + 1];
+        blanketStrides[i] = new int[children.length + 1];
+        blanketTables[i][0] = i;
+        blanketStrides[i][0] = memberStrides[i][0];
+        for (int k = 0; k < children.length; k++) {
+          int child = children[k];
+          blanketTables[i][k + 1] = child;
+          for (int j = 1; j < members[child].length; j++) {
+            if (members[child][j] == i) {
+              blanketStrides[i][k + 1] = memberStrides[child][j];
+            }
+          }
+        }
+      }
+    }
+
+    int size() {
+      return cardinalities.length;
+    }
+
+    int getCardinality(int variable) {
+      return cardinalities[variable];
+    }
+
+    int getMaxCardinality() {
+      return maxCardinality;
+    }
+
+    /**
+     * Redraws every free variable in turn from its distribution given the
+     * rest of the assignment.
+     */
+    void sweep(SplittableRandom random, int[] state, double[] weights) {
+      for (int variable : free) {
+        int[] tableIndices = blanketTables[variable];
+        int[] strides = blanketStrides[variable];
+        int cardinality = cardinalities[variable];
+        boolean[] allowed = allowedValues[variable];
+        Arrays.fill(weights, 0, cardinality, 1d);
+        for (int k = 0; k < tableIndices.length; k++) {
+          int tableIndex = tableIndices[k];
+          ProbabilityTable table = tables[tableIndex];
+          int[] tableMembers = members[tableIndex];
+          int[] tableStrides = memberStrides[tableIndex];
+          int offset = 0;
+          for (int j = 0; j < tableMembers.length; j++) {
+            offset += state[tableMembers[j]] * tableStrides[j];
+          }
+          offset -= state[variable] * strides[k];
+          for (int value = 0; value < cardinality; value++) {
+            weights[value] *= table.get(offset + value * strides[k]);
+          }
+        }
+        double total = 0d;
+        for (int value = 0; value < cardinality; value++) {
+          if (allowed != null && !allowed[value]) {
+            weights[value] = 0d;
+          }
+          total += weights[value];
+        }
+
+        // The current value has a positive weight, so the total does too.
+        double remaining = random.nextDouble() * total;
+        int chosen = state[variable];
+        for (int value = 0; value < cardinality; value++) {
+          if (weights[value] > 0d) {
+            chosen = value;
+            remaining -= weights[value];
+            if (remaining < 0d) {
+              break;
+            }
+          }
+        }
+        state[variable] = chosen;
+      }
+    }
+  }
+
+  /**
+   * Return a mutable builder for constructing instances of this class.
+   */
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * A mutable builder for constructing instances of {@link GibbsSampler}.
+   */
+  public static class Builder {
+    private int chains = 4;
+    private long burnIn = 1000;
+    private int thinning = 1;
+    private int windowSize = 10000;
+    private double confidenceLevel = 0.95;
+    private Long seed;
+    private ForkJoinPool pool;
+
+    /**
+     * Sets the number of independent chains.  Defaults to four.
+     */
+    public Builder setChains(int chains) {
+      Preconditions.checkArgument(chains > 0,
+          "The number of chains must be positive");
+      this.chains = chains;
+      return this;
+    }
+
+    /**
+     * Sets the number of sweeps at the start of each chain whose samples are
+     * discarded.  Defaults to one thousand.
+     */
+    public Builder setBurnIn(long burnIn) {
+      Preconditions.checkArgument(burnIn >= 0,
+          "The burn-in must not be negative");
+      this.burnIn = burnIn;
+      return this;
+    }
+
+    /**
+     * Retains only every given number of samples after burn-in, so that the
+     * window covers a longer stretch of each chain when successive samples
+     * are strongly correlated.  Defaults to one, which retains every sample.
+     */
+    public Builder setThinning(int thinning) {
+      Preconditions.checkArgument(thinning > 0,
+          "The thinning interval must be positive");
+      this.thinning = thinning;
+      return this;
+    }
+
+    /**
+     * Sets the number of most recent retained samples that each chain keeps
+     * for estimating events on more than one variable.  A run holds up to
+     * this many assignments per chain.  Defaults to ten thousand.
+     */
+    public Builder setWindowSize(int windowSize) {
+      Preconditions.checkArgument(windowSize > 0,
+          "The window size must be positive");
+      this.windowSize = windowSize;
+      return this;
+    }
+
+    /**
+     * Sets the confidence level of reported intervals.  Defaults to 0.95.
+     */
+    public Builder setConfidenceLevel(double confidenceLevel) {
+      Preconditions.checkArgument(confidenceLevel > 0 && confidenceLevel < 1,
+          "The confidence level must be between 0 and 1");
+      this.confidenceLevel = confidenceLevel;
+      return this;
+    }
+
+    /**
+     * Seeds the random numbers of every run, so that results can be
+     * reproduced.
+     */
+    public Builder setSeed(long seed) {
+      this.seed = seed;
+      return this;
+    }
+
+    /**
+     * Runs the chains as separate tasks in the given pool.  By default, they
+     * run one after another in the calling thread.
+     */
+    public Builder setPool(ForkJoinPool pool) {
+      this.pool = Preconditions.checkNotNull(pool);
+      return this;
+    }
+
+    public GibbsSampler build() {
+      return new GibbsSampler(this);
+    }
+  }
+}
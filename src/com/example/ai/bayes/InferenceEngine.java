@@ -0,0 +1,26 @@
+package com.example.ai.bayes;
+
+import com.example.ai.bayes.Event.AndClause;
+
+/**
+ * A strategy for computing probabilities in a {@link BayesNetwork}.
+ *
+ * <p> Engines only need to handle a single {@link AndClause}; disjunctions and
+ * evidence are handled by {@link BayesNetwork} in terms of these clause
+ * probabilities, by splitting disjunctions into disjoint clauses.
+ */
+public interface InferenceEngine {
+  /**
+   * Computes the probability of a single {@link AndClause} in the given
+   * network.
+   */
+  double getProbability(BayesNetwork network, AndClause andClause);
+
+  /**
+   * Computes the natural logarithm of the probability of a single
+   * {@link AndClause} in the given network.  Engines that can represent
+   * probabilities below the range of a double should return accurate results
+   * for them here, rather than the logarithm of zero.
+   */
+  double getLogProbability(BayesNetwork network, AndClause andClause);
+}
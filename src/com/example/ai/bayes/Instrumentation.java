@@ -0,0 +1,14 @@
+package com.example.ai.bayes;
+
+/**
+ * Receives the {@link QueryMetrics} of every query, once it completes.
+ *
+ * <p> Install an implementation with
+ * {@link BayesNetwork#setInstrumentation}; {@link MetricsInstrumentation}
+ * aggregates the metrics for export.  Implementations are called on the
+ * thread that made the query, so they must be thread-safe, and should be
+ * quick.  While nothing is installed, queries collect no metrics at all.
+ */
+public interface Instrumentation {
+  void queryCompleted(QueryMetrics metrics);
+}
@@ -0,0 +1,180 @@
+package com.example.ai.bayes;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Walks every assignment of allowed values to the variables of a
+ * {@link BayesNetwork} in place, summing their joint probabilities.
+ *
+ * <p> The current assignment is held as an array of value ordinals and
+ * advanced like an odometer.  For every distribution, the position of the
+ * entry selected by the current assignment in its {@link ProbabilityTable} is
+ * kept up to date as variables change, so evaluating a configuration is only a
+ * handful of table reads.  Once created, an enumerator allocates nothing.
+ */
+final class JointEnumerator {
+  private final ProbabilityTable[] tables;
+  /** The entry of each table selected by the current assignment. */
+  private final int[] offsets;
+  /** The allowed value ordinals of each variable that is not fixed. */
+  private final int[][] allowedValues;
+  /** The current position of each variable in its allowed values. */
+  private final int[] positions;
+  /** The tables in which each variable appears. */
+  private final int[][] affectedTables;
+  /** The stride of each variable in each table in which it appears. */
+  private final int[][] affectedStrides;
+  private final int[] initialOffsets;
+
+  private JointEnumerator(ProbabilityTable[] tables, int[] initialOffsets,
+      int[][] allowedValues, int[][] affectedTables, int[][] affectedStrides) {
+    this.tables = tables;
+    this.initialOffsets = initialOffsets;
+    this.offsets = initialOffsets.clone();
+    this.allowedValues = allowedValues;
+    this.positions = new int[allowedValues.length];
+    this.affectedTables = affectedTables;
+    this.affectedStrides = affectedStrides;
+  }
+
+  /**
+   * Creates an enumerator over the given network.
+   *
+   * @param allowedValues
+   *          the allowed value ordinals of each variable; variables that are
+   *          not included may take on any value
+   */
+  static JointEnumerator create(
+      BayesNetwork network, Map<String, int[]> allowedValues) {
+    ImmutableList<ConditionalDistribution> distributions =
+        network.getConditionalDistributions();
+    Topology topology = network.getTopology();
+
+    // Collect the (table, stride) pairs through which each variable affects
+    // the offsets.
+    List<List<int[]>> uses = Lists.newArrayList();
+    for (int i = 0; i < distributions.size(); i++) {
+      uses.add(Lists.<int[]>newArrayList());
+    }
+    ProbabilityTable[] tables = new ProbabilityTable[distributions.size()];
+    for (int i = 0; i < distributions.size(); i++) {
+      ProbabilityTable table = distributions.get(i).getTable();
+      tables[i] = table;
+      uses.get(i).add(new int[] { i, table.getStride(0) });
+      int[] parents = topology.getParents(i);
+      for (int j = 0; j < parents.length; j++) {
+        uses.get(parents[j]).add(new int[] { i, table.getStride(j + 1) });
+      }
+    }
+
+    // Fixed variables contribute a constant to the offsets; the others are
+    // walked by the odometer.
+    int[] initialOffsets = new int[distributions.size()];
+    List<int[]> free = Lists.newArrayList();
+    List<List<int[]>> freeUses = Lists.newArrayList();
+    for (int i = 0; i < distributions.size(); i++) {
+      int[] allowed = allowedValues.get(topology.getVariable(i));
+      if (allowed == null) {
+        allowed = new int[topology.getCardinality(i)];
+        for (int value = 0; value < allowed.length; value++) {
+          allowed[value] = value;
+        }
+      }
+      for (int[] use : uses.get(i)) {
+        initialOffsets[use[0]] += allowed[0] * use[1];
+      }
+      if (allowed.length > 1) {
+        free.add(allowed);
+        freeUses.add(uses.get(i));
+      }
+    }
+
+    int[][] affectedTables = new int[free.size()][];
+    int[][] affectedStrides = new int[free.size()][];
+    for (int i = 0; i < free.size(); i++) {
+      affectedTables[i] = new int[freeUses.get(i).size()];
+      affectedStrides[i] = new int[freeUses.get(i).size()];
+      for (int j = 0; j < freeUses.get(i).size(); j++) {
+        affectedTables[i][j] = freeUses.get(i).get(j)[0];
+        affectedStrides[i][j] = freeUses.get(i).get(j)[1];
+      }
+    }
+    return new JointEnumerator(tables, initialOffsets,
+        free.toArray(new int[free.size()][]), affectedTables, affectedStrides);
+  }
+
+  /**
+   * Sums the joint probabilities of all allowed assignments.  The sum is
+   * compensated as in {@link CompensatedSum}, inlined here so that nothing is
+   * allocated.
+   */
+  double sum() {
+    reset();
+    double sum = 0d;
+    double compensation = 0d;
+    do {
+      double value = getJointProbability();
+      double total = sum + value;
+      if (Math.abs(sum) >= Math.abs(value)) {
+        compensation += (sum - total) + value;
+      } else {
+        compensation += (value - total) + sum;
+      }
+      sum = total;
+    } while (increment());
+    return sum + compensation;
+  }
+
+  /**
+   * Computes the joint probability of the current assignment by multiplying
+   * the selected entries of every table.
+   */
+  double getJointProbability() {
+    double result = 1d;
+    for (int i = 0; i < tables.length; i++) {
+      result *= tables[i].get(offsets[i]);
+    }
+    return result;
+  }
+
+  /**
+   * Returns to the first allowed assignment.
+   */
+  void reset() {
+    System.arraycopy(initialOffsets, 0, offsets, 0, offsets.length);
+    for (int i = 0; i < positions.length; i++) {
+      positions[i] = 0;
+    }
+  }
+
+  /**
+   * Advances to the next allowed assignment, with the first free variable
+   * changing fastest.
+   *
+   * @return false if every assignment has been visited, in which case the
+   *         enumerator is back at the first assignment
+   */
+  boolean increment() {
+    for (int i = 0; i < positions.length; i++) {
+      int[] allowed = allowedValues[i];
+      int oldValue = allowed[positions[i]];
+      positions[i]++;
+      boolean carry = positions[i] == allowed.length;
+      if (carry) {
+        positions[i] = 0;
+      }
+      int delta = allowed[positions[i]] - oldValue;
+      for (int j = 0; j < affectedTables[i].length; j++) {
+        offsets[affectedTables[i][j]] += delta * affectedStrides[i][j];
+      }
+      if (!carry) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
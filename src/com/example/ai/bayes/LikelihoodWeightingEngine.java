@@ -0,0 +1,263 @@
+package com.example.ai.bayes;
+
+import com.example.ai.bayes.Event.AndClause;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.math.LongMath;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An {@link InferenceEngine} that estimates probabilities by likelihood
+ * weighting.
+ *
+ * <p> Each sample draws the variables in topological order from their
+ * {@link ConditionalDistribution}s, with the variables fixed by the evidence
+ * restricted to their allowed values, and is weighted by the likelihood of
+ * the evidence.  The cost of a sample grows with the size of the network
+ * rather than its treewidth, so this engine can answer queries that are out
+ * of reach of exact methods, at the price of an error in the result.
+ * {@link #estimate} reports that error as a confidence interval.
+ *
+ * <p> Sampling stops at the first of: the maximum number of samples, the
+ * confidence interval narrowing to the target half-width, or the time budget
+ * running out.  Without a seed, every query draws different samples.
+ */
+public class LikelihoodWeightingEngine implements InferenceEngine {
+  /** The number of samples between checks of the stopping rules. */
+  private static final int BATCH_SIZE = 256;
+
+  private final long maxSamples;
+  private final long minSamples;
+  private final double targetHalfWidth;
+  private final long timeBudgetNanos;
+  private final double confidenceLevel;
+  private final double criticalValue;
+  private final Long seed;
+
+  private LikelihoodWeightingEngine(Builder builder) {
+    this.maxSamples = builder.maxSamples;
+    this.minSamples = builder.minSamples;
+    this.targetHalfWidth = builder.targetHalfWidth;
+    this.timeBudgetNanos = builder.timeBudgetNanos;
+    this.confidenceLevel = builder.confidenceLevel;
+    this.criticalValue = Estimate.getCriticalValue(builder.confidenceLevel);
+    this.seed = builder.seed;
+  }
+
+  /**
+   * Gets the number of samples after which a query stops.
+   */
+  long getMaxSamples() {
+    return maxSamples;
+  }
+
+  /**
+   * Estimates the probability of the given clause, which is the mean weight
+   * of samples weighted by the clause.
+   */
+  @Override
+  public double getProbability(BayesNetwork network, AndClause andClause) {
+    ClauseMask evidence = ClauseMask.of(network, andClause);
+    if (evidence.isUnsatisfiable()) {
+      return 0;
+    }
+    Estimate estimate = sample(network, evidence, null);
+    QueryRecorder recorder = QueryRecorder.current();
+    if (recorder != null) {
+      // Each sample reads one entry of every table.
+      recorder.addConfigurations(estimate.getSampleCount());
+      recorder.addTableLookups(LongMath.saturatedMultiply(
+          estimate.getSampleCount(), network.getTopology().size()));
+    }
+    return estimate.getValue();
+  }
+
+  @Override
+  public double getLogProbability(BayesNetwork network, AndClause andClause) {
+    return Math.log(getProbability(network, andClause));
+  }
+
+  /**
+   * Estimates the probability of an {@link Event}, conditioned on evidence
+   * from another event.
+   *
+   * @throws IllegalArgumentException if the evidence does not simplify to a
+   *         single AND-clause
+   */
+  public Estimate estimate(BayesNetwork network, Event queryEvent,
+      Event evidence) {
+    ImmutableList<ClauseMask> evidenceClauses =
+        ClauseMask.simplify(ClauseMask.of(network, evidence));
+    Preconditions.checkArgument(evidenceClauses.size() <= 1,
+        "Evidence must be a single AND-clause: %s", evidence);
+    if (evidenceClauses.isEmpty()) {
+      // The evidence is impossible, so no sample can be weighted by it.
+      return Estimate.of(Double.NaN, Double.NaN, confidenceLevel, 0, 0);
+    }
+    return sample(network, evidenceClauses.get(0),
+        ClauseMask.simplify(ClauseMask.of(network, queryEvent)));
+  }
+
+  /**
+   * Draws weighted samples until a stopping rule applies.
+   *
+   * @param query the clauses of the query, or null to estimate the
+   *        probability of the evidence itself
+   */
+  private Estimate sample(BayesNetwork network, ClauseMask evidence,
+      ImmutableList<ClauseMask> query) {
+    WeightedSampler sampler = WeightedSampler.create(network, evidence);
+    SplittableRandom random =
+        seed == null ? new SplittableRandom() : new SplittableRandom(seed);
+    int[] assignment = new int[network.getTopology().size()];
+    long deadline = System.nanoTime() + timeBudgetNanos;
+
+    // For a query, the estimate is the weighted fraction of samples matching
+    // it; otherwise it is the mean weight.
+    double weightSum = 0d;
+    double squaredWeightSum = 0d;
+    double matchingWeightSum = 0d;
+    double matchingSquaredWeightSum = 0d;
+    long count = 0;
+    Estimate result;
+    while (true) {
+      for (int i = 0; i < BATCH_SIZE && count < maxSamples; i++, count++) {
+        double weight = sampler.sample(random, assignment);
+        if (weight == 0d) {
+          continue;
+        }
+        weightSum += weight;
+        squaredWeightSum += weight * weight;
+        if (query != null && matches(query, assignment)) {
+          matchingWeightSum += weight;
+          matchingSquaredWeightSum += weight * weight;
+        }
+      }
+
+      double value;
+      double variance;
+      if (query == null) {
+        value = weightSum / count;
+        variance = Math.max(0d, squaredWeightSum / count - value * value)
+            / count;
+      } else {
+        // The variance of a ratio estimator, by the delta method.
+        value = matchingWeightSum / weightSum;
+        variance = ((1 - 2 * value) * matchingSquaredWeightSum
+            + value * value * squaredWeightSum) / (weightSum * weightSum);
+      }
+      double halfWidth = criticalValue * Math.sqrt(Math.max(0d, variance));
+      double effectiveSampleSize = squaredWeightSum == 0d
+          ? 0d : weightSum * weightSum / squaredWeightSum;
+      result = Estimate.of(value, halfWidth, confidenceLevel, count,
+          effectiveSampleSize);
+
+      if (count >= maxSamples
+          || (count >= minSamples && effectiveSampleSize > 1
+              && halfWidth <= targetHalfWidth)
+          || System.nanoTime() - deadline >= 0) {
+        return result;
+      }
+    }
+  }
+
+  private static boolean matches(
+      ImmutableList<ClauseMask> clauses, int[] assignment) {
+    for (ClauseMask clause : clauses) {
+      if (clause.matches(assignment)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Return a mutable builder for constructing instances of this class.
+   */
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * A mutable builder for constructing instances of
+   * {@link LikelihoodWeightingEngine}.
+   */
+  public static class Builder {
+    private long maxSamples = 1000000;
+    private long minSamples = 1000;
+    private double targetHalfWidth = 0d;
+    private long timeBudgetNanos = Long.MAX_VALUE;
+    private double confidenceLevel = 0.95;
+    private Long seed;
+
+    /**
+     * Sets the number of samples after which to stop.  Defaults to one
+     * million.
+     */
+    public Builder setMaxSamples(long maxSamples) {
+      Preconditions.checkArgument(maxSamples > 0,
+          "The maximum number of samples must be positive");
+      this.maxSamples = maxSamples;
+      return this;
+    }
+
+    /**
+     * Sets the number of samples to draw before stopping for precision, so
+     * that the interval is not trusted before the weights settle.  Defaults
+     * to one thousand.
+     */
+    public Builder setMinSamples(long minSamples) {
+      Preconditions.checkArgument(minSamples >= 0,
+          "The minimum number of samples must not be negative");
+      this.minSamples = minSamples;
+      return this;
+    }
+
+    /**
+     * Stops sampling once half the width of the confidence interval is at
+     * most the given value.  By default, sampling never stops for precision.
+     */
+    public Builder setTargetHalfWidth(double targetHalfWidth) {
+      Preconditions.checkArgument(targetHalfWidth >= 0,
+          "The target half-width must not be negative");
+      this.targetHalfWidth = targetHalfWidth;
+      return this;
+    }
+
+    /**
+     * Stops sampling once the given time has passed.  By default, sampling
+     * has no time limit.
+     */
+    public Builder setTimeBudget(long duration, TimeUnit unit) {
+      Preconditions.checkArgument(duration >= 0,
+          "The time budget must not be negative");
+      this.timeBudgetNanos = unit.toNanos(duration);
+      return this;
+    }
+
+    /**
+     * Sets the confidence level of reported intervals.  Defaults to 0.95.
+     */
+    public Builder setConfidenceLevel(double confidenceLevel) {
+      Preconditions.checkArgument(confidenceLevel > 0 && confidenceLevel < 1,
+          "The confidence level must be between 0 and 1");
+      this.confidenceLevel = confidenceLevel;
+      return this;
+    }
+
+    /**
+     * Seeds the random numbers of every query, so that results can be
+     * reproduced.
+     */
+    public Builder setSeed(long seed) {
+      this.seed = seed;
+      return this;
+    }
+
+    public LikelihoodWeightingEngine build() {
+      return new LikelihoodWeightingEngine(this);
+    }
+  }
+}
@@ -0,0 +1,181 @@
+package com.example.ai.bayes;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * An {@link Instrumentation} that adds up the metrics of all queries, for
+ * export to a monitoring system.
+ *
+ * <p> Counters are striped {@link LongAdder}s, so threads querying in
+ * parallel do not contend on them.  Latencies go into a histogram with
+ * sixteen buckets per power of two, so percentiles are reported to within
+ * about 6% (the upper end of a bucket is reported) over the whole range of
+ * nanosecond durations, in constant memory.
+ */
+public final class MetricsInstrumentation implements Instrumentation {
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+  private final LongAdder queries = new LongAdder();
+  private final LongAdder clauses = new LongAdder();
+  private final LongAdder configurations = new LongAdder();
+  private final LongAdder tableLookups = new LongAdder();
+  private final LongAdder cacheHits = new LongAdder();
+  private final LongAdder elapsedNanos = new LongAdder();
+  private final LongAccumulator largestFactorSize =
+      new LongAccumulator(new LongBinaryOperator() {
+        @Override
+        public long applyAsLong(long left, long right) {
+          return Math.max(left, right);
+        }
+      }, 0);
+  private final ConcurrentMap<String, LongAdder> queriesByEngine =
+      new ConcurrentHashMap<String, LongAdder>();
+  private final AtomicLongArray latencyBuckets = new AtomicLongArray(BUCKETS);
+
+  @Override
+  public void queryCompleted(QueryMetrics metrics) {
+    queries.increment();
+    clauses.add(metrics.getClauseCount());
+    configurations.add(metrics.getConfigurationCount());
+    tableLookups.add(metrics.getTableLookupCount());
+    cacheHits.add(metrics.getCacheHitCount());
+    elapsedNanos.add(metrics.getElapsedNanos());
+    largestFactorSize.accumulate(metrics.getLargestFactorSize());
+    LongAdder engineQueries = queriesByEngine.get(metrics.getEngine());
+    if (engineQueries == null) {
+      queriesByEngine.putIfAbsent(metrics.getEngine(), new LongAdder());
+      engineQueries = queriesByEngine.get(metrics.getEngine());
+    }
+    engineQueries.increment();
+    latencyBuckets.incrementAndGet(
+        getBucket(Math.max(0, metrics.getElapsedNanos())));
+  }
+
+  public long getQueryCount() {
+    return queries.sum();
+  }
+
+  public long getClauseCount() {
+    return clauses.sum();
+  }
+
+  public long getConfigurationCount() {
+    return configurations.sum();
+  }
+
+  public long getTableLookupCount() {
+    return tableLookups.sum();
+  }
+
+  public long getCacheHitCount() {
+    return cacheHits.sum();
+  }
+
+  /**
+   * Gets the size of the largest factor built by any query.
+   */
+  public long getLargestFactorSize() {
+    return largestFactorSize.get();
+  }
+
+  /**
+   * Gets the number of queries answered by each engine, keyed by its simple
+   * class name.
+   */
+  public ImmutableSortedMap<String, Long> getQueryCountsByEngine() {
+    ImmutableSortedMap.Builder<String, Long> result =
+        ImmutableSortedMap.naturalOrder();
+    for (Map.Entry<String, LongAdder> entry : queriesByEngine.entrySet()) {
+      result.put(entry.getKey(), entry.getValue().sum());
+    }
+    return result.build();
+  }
+
+  /**
+   * Gets the latency, in nanoseconds, below which the given fraction of
+   * queries completed, or zero if there were no queries.
+   */
+  public long getLatencyPercentile(double fraction) {
+    Preconditions.checkArgument(fraction >= 0 && fraction <= 1,
+        "The fraction must be between 0 and 1: %s", fraction);
+    long[] counts = new long[BUCKETS];
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      counts[i] = latencyBuckets.get(i);
+      total += counts[i];
+    }
+    long rank = Math.max(1, (long) Math.ceil(fraction * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= rank && counts[i] > 0) {
+        return getUpperBound(i);
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Gets every metric as a flat map from name to value, for export.
+   * Latency percentiles are in nanoseconds.
+   */
+  public ImmutableMap<String, Long> getCounters() {
+    ImmutableMap.Builder<String, Long> result = ImmutableMap.builder();
+    result.put("queries", getQueryCount())
+        .put("clauses", getClauseCount())
+        .put("configurations", getConfigurationCount())
+        .put("tableLookups", getTableLookupCount())
+        .put("cacheHits", getCacheHitCount())
+        .put("largestFactorSize", getLargestFactorSize())
+        .put("elapsedNanos", elapsedNanos.sum())
+        .put("latency.p50", getLatencyPercentile(0.5))
+        .put("latency.p90", getLatencyPercentile(0.9))
+        .put("latency.p99", getLatencyPercentile(0.99))
+        .put("latency.p999", getLatencyPercentile(0.999))
+        .put("latency.max", getLatencyPercentile(1));
+    for (Map.Entry<String, Long> entry
+        : getQueryCountsByEngine().entrySet()) {
+      result.put("engine." + entry.getKey(), entry.getValue());
+    }
+    return result.build();
+  }
+
+  /**
+   * Gets the histogram bucket of a non-negative value.  Values below
+   * {@code SUB_BUCKETS} get a bucket each; above that, each power of two is
+   * split into {@code SUB_BUCKETS} equal buckets.
+   */
+  static int getBucket(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int shift = exponent - SUB_BUCKET_BITS;
+    int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+    return (shift + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  /**
+   * Gets the largest value in a histogram bucket.
+   */
+  static long getUpperBound(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = bucket / SUB_BUCKETS - 1;
+    long lowerBound = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    return lowerBound + (1L << shift) - 1;
+  }
+}
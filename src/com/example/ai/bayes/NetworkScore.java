@@ -0,0 +1,108 @@
+package com.example.ai.bayes;
+
+/**
+ * Scores by which a {@link StructureLearner} compares network structures.
+ *
+ * <p> Both scores are decomposable: the score of a structure is the sum of
+ * a local score for each variable, which depends only on the counts of the
+ * variable's values under each configuration of its parents.  Higher is
+ * better.
+ */
+public enum NetworkScore {
+  /**
+   * The Bayesian information criterion: the log-likelihood of the data under
+   * the maximum likelihood parameters, minus half the logarithm of the
+   * number of records for each free parameter.
+   */
+  BIC {
+    @Override
+    double getLocalScore(long[] counts, int cardinality, long records,
+        double equivalentSampleSize) {
+      double result = 0;
+      for (int offset = 0; offset < counts.length; offset += cardinality) {
+        long rowTotal = 0;
+        for (int value = 0; value < cardinality; value++) {
+          rowTotal += counts[offset + value];
+        }
+        for (int value = 0; value < cardinality; value++) {
+          long count = counts[offset + value];
+          if (count > 0) {
+            result += count * Math.log((double) count / rowTotal);
+          }
+        }
+      }
+      long parameters =
+          (long) (cardinality - 1) * (counts.length / cardinality);
+      return result - 0.5 * Math.log(records) * parameters;
+    }
+  },
+
+  /**
+   * The Bayesian Dirichlet equivalent uniform score: the log marginal
+   * likelihood of the data under a Dirichlet prior that spreads the
+   * equivalent sample size evenly over every table entry.
+   */
+  BDEU {
+    @Override
+    double getLocalScore(long[] counts, int cardinality, long records,
+        double equivalentSampleSize) {
+      double rowPrior = equivalentSampleSize / (counts.length / cardinality);
+      double entryPrior = equivalentSampleSize / counts.length;
+      double logGammaRowPrior = logGamma(rowPrior);
+      double logGammaEntryPrior = logGamma(entryPrior);
+      double result = 0;
+      for (int offset = 0; offset < counts.length; offset += cardinality) {
+        long rowTotal = 0;
+        for (int value = 0; value < cardinality; value++) {
+          long count = counts[offset + value];
+          if (count > 0) {
+            rowTotal += count;
+            result += logGamma(entryPrior + count) - logGammaEntryPrior;
+          }
+        }
+        if (rowTotal > 0) {
+          result += logGammaRowPrior - logGamma(rowPrior + rowTotal);
+        }
+      }
+      return result;
+    }
+  };
+
+  /** The coefficients of the Lanczos approximation with g = 7. */
+  private static final double[] LANCZOS = {
+    0.99999999999980993, 676.5203681218851, -1259.1392167224028,
+    771.32342877765313, -176.61502916214059, 12.507343278686905,
+    -0.13857109526572012, 9.9843695780195716e-6, 1.5056327351493116e-7
+  };
+
+  /**
+   * Computes the local score of a variable.
+   *
+   * @param counts the counts laid out like a {@link ProbabilityTable}, with
+   *        the variable's values changing fastest
+   * @param cardinality the number of values of the variable
+   * @param records the total number of records
+   * @param equivalentSampleSize the weight of the prior, for scores that
+   *        have one
+   */
+  abstract double getLocalScore(long[] counts, int cardinality, long records,
+      double equivalentSampleSize);
+
+  /**
+   * Computes the logarithm of the gamma function of a positive number.
+   */
+  static double logGamma(double x) {
+    if (x < 0.5) {
+      // Shift the argument up, where the approximation is accurate.
+      return logGamma(x + 1) - Math.log(x);
+    }
+    x -= 1;
+    double sum = LANCZOS[0];
+    for (int i = 1; i < LANCZOS.length; i++) {
+      sum += LANCZOS[i] / (x + i);
+    }
+    double t = x + 7.5;
+    return 0.5 * Math.log(2 * Math.PI) + (x + 0.5) * Math.log(t) - t
+        + Math.log(sum);
+  }
+}
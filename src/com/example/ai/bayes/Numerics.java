@@ -0,0 +1,24 @@
+package com.example.ai.bayes;
+
+/**
+ * How a {@link VariableEliminationEngine} represents the intermediate
+ * results of a query.
+ */
+public enum Numerics {
+  /**
+   * Plain doubles.  This is fastest, but products of many small
+   * probabilities underflow to zero, at around 1e-308.
+   */
+  PLAIN,
+
+  /**
+   * Doubles sharing a power-of-two exponent per factor, which is the
+   * logarithm of the factor's scale.  Every factor is rescaled after each
+   * elimination, so that its largest entry is close to one; sums within a
+   * factor then behave like log-sum-exp reductions around the largest term.
+   * Results can be read as logarithms (see
+   * {@link InferenceEngine#getLogProbability}) far below the smallest
+   * double, at the cost of one extra pass over each eliminated factor.
+   */
+  LOG_SPACE
+}
@@ -0,0 +1,198 @@
+package com.example.ai.bayes;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import java.util.List;
+
+/**
+ * A {@link BayesNetwork} whose probabilities follow a stream of records,
+ * with older records gradually forgotten.
+ *
+ * <p> The structure, the record format and the pseudocount come from a
+ * {@link ParameterLearner}.  Each call to {@link #update} folds a batch of
+ * records into weighted counts kept per row of every table, after first
+ * multiplying the weight of all earlier records by the decay factor, and
+ * then publishes a new {@link Snapshot}.  With a decay factor of one,
+ * nothing is forgotten and the estimates match learning from all of the
+ * records at once.
+ *
+ * <p> Decay is applied lazily: instead of scaling every count down, each
+ * batch adds records with a larger weight, and the counts are only
+ * renormalized when the weights grow too large.  A batch therefore costs
+ * time in proportion to its records plus the tables it touches; only the
+ * distributions of variables that the batch observed are rebuilt, and the
+ * new network shares everything else, including its topology, with the
+ * previous snapshot.  (With a positive pseudocount and decay, the prior
+ * gains weight relative to the data in every row, so every distribution is
+ * rebuilt.)
+ *
+ * <p> Updates are serialized, but {@link #getSnapshot} never blocks, and a
+ * snapshot is immutable, so readers can query it while updates proceed.
+ */
+public final class OnlineNetwork {
+  /**
+   * The record weight above which the counts are renormalized, well below
+   * the point at which adding a count of one would be lost to rounding.
+   */
+  private static final double MAX_WEIGHT = 1e100;
+
+  private final ParameterLearner learner;
+  private final double decay;
+  /** The weighted counts, laid out like the tables. */
+  private final double[][] counts;
+  /** The distributions of the current snapshot, in the learner's order. */
+  private final ConditionalDistribution[] distributions;
+  /** The weight given to each record of the next batch. */
+  private double weight = 1;
+  /** The total weight of all records so far. */
+  private double totalWeight;
+  private volatile Snapshot snapshot;
+
+  private OnlineNetwork(ParameterLearner learner, double decay) {
+    this.learner = learner;
+    this.decay = decay;
+    int size = learner.getVariables().size();
+    this.counts = new double[size][];
+    for (int i = 0; i < size; i++) {
+      counts[i] = new double[learner.getTableSize(i)];
+    }
+    BayesNetwork network = learner.estimate(learner.newCounts());
+    this.distributions = network.getConditionalDistributions().toArray(
+        new ConditionalDistribution[size]);
+    this.snapshot = Snapshot.of(network, 0, 0);
+  }
+
+  /**
+   * Creates a network with the structure of the given learner and no
+   * records yet.
+   *
+   * @param decay the factor by which the weight of earlier records is
+   *        multiplied before each batch, greater than zero and at most one
+   * @throws IllegalArgumentException if the decay factor is out of range or
+   *         the structure has a cycle
+   */
+  public static OnlineNetwork create(ParameterLearner learner, double decay) {
+    Preconditions.checkArgument(decay > 0 && decay <= 1,
+        "The decay factor must be in (0, 1]: %s", decay);
+    return new OnlineNetwork(learner, decay);
+  }
+
+  /**
+   * Gets the latest snapshot, without waiting for updates in progress.
+   */
+  public Snapshot getSnapshot() {
+    return snapshot;
+  }
+
+  /**
+   * Decays the earlier records, folds in a batch of records in the format
+   * of {@link ParameterLearner}, and publishes a new snapshot.
+   *
+   * @return the new snapshot
+   * @throws IllegalArgumentException if a record is invalid, in which case
+   *         nothing of the batch is counted and the earlier records are not
+   *         decayed
+   */
+  public synchronized Snapshot update(Iterable<int[]> batch) {
+    // Check every record before changing anything, so that a batch is
+    // counted either whole or not at all.
+    List<int[]> records = Lists.newArrayList(batch);
+    for (int[] record : records) {
+      learner.checkRecord(record);
+    }
+
+    double oldWeight = weight;
+    weight /= decay;
+    if (weight > MAX_WEIGHT) {
+      for (double[] variableCounts : counts) {
+        for (int i = 0; i < variableCounts.length; i++) {
+          variableCounts[i] /= weight;
+        }
+      }
+      totalWeight /= weight;
+      oldWeight /= weight;
+      weight = 1;
+    }
+
+    boolean[] changed = new boolean[counts.length];
+    for (int[] record : records) {
+      for (int i = 0; i < counts.length; i++) {
+        int offset = learner.getOffset(i, record);
+        if (offset >= 0) {
+          counts[i][offset] += weight;
+          changed[i] = true;
+        }
+      }
+      totalWeight += weight;
+    }
+
+    // The prior is weighted like a record of the current batch, so its share
+    // of every row changes whenever the weight does.
+    boolean priorChanged =
+        learner.getPseudocount() > 0 && weight != oldWeight;
+    for (int i = 0; i < counts.length; i++) {
+      if (changed[i] || priorChanged) {
+        distributions[i] = learner.newDistribution(i, getProbabilities(i));
+      }
+    }
+    Snapshot previous = snapshot;
+    snapshot = Snapshot.of(
+        previous.getNetwork().withDistributions(
+            ImmutableList.copyOf(distributions)),
+        previous.getVersion() + 1,
+        totalWeight / weight);
+    return snapshot;
+  }
+
+  /**
+   * Normalizes each row of the counts of the given variable, after adding
+   * the pseudocount scaled to the current record weight.  A row without
+   * records or pseudocounts is uniform, as in {@link ParameterLearner}.
+   */
+  private double[] getProbabilities(int variable) {
+    double[] variableCounts = counts[variable];
+    int cardinality = learner.getCardinality(variable);
+    double prior = learner.getPseudocount() * weight;
+    double[] result = new double[variableCounts.length];
+    for (int offset = 0; offset < result.length; offset += cardinality) {
+      double total = prior * cardinality;
+      for (int value = 0; value < cardinality; value++) {
+        total += variableCounts[offset + value];
+      }
+      for (int value = 0; value < cardinality; value++) {
+        result[offset + value] = total == 0
+            ? 1d / cardinality
+            : (variableCounts[offset + value] + prior) / total;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * The state of an {@link OnlineNetwork} after some number of updates.
+   */
+  @AutoValue
+  public abstract static class Snapshot {
+    public abstract BayesNetwork getNetwork();
+
+    /**
+     * Gets the number of updates reflected in this snapshot.
+     */
+    public abstract long getVersion();
+
+    /**
+     * Gets the total weight of the records so far, relative to a record of
+     * the latest batch.  Without decay, this is the number of records.
+     */
+    public abstract double getEffectiveRecordCount();
+
+    static Snapshot of(
+        BayesNetwork network, long version, double effectiveRecordCount) {
+      return new AutoValue_OnlineNetwork_Snapshot(
+          network, version, effectiveRecordCount);
+    }
+  }
+}
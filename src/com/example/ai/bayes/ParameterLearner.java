@@ -0,0 +1,409 @@
+package com.example.ai.bayes;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Estimates the probabilities of a {@link BayesNetwork} with a known
+ * structure from data.
+ *
+ * <p> Records are arrays of value ordinals, one per variable in the order
+ * the variables were added, with -1 for a value that was not observed.  A
+ * single pass over the records fills {@link Counts}: one array of counts per
+ * variable, laid out like its {@link ProbabilityTable}.  A record that is
+ * missing a value only counts towards the distributions that do not involve
+ * that variable.  Nothing else about the records is kept, so the data may be
+ * streamed from anywhere and may be far larger than memory.
+ *
+ * <p> With a pseudocount of zero (the default) the estimates are maximum
+ * likelihood, and the rows of parent values that never occur are uniform,
+ * so that the learned network can answer every query.  A positive
+ * pseudocount gives the posterior mean under a symmetric Dirichlet prior on
+ * every row.
+ *
+ * <p> Counts from separate parts of the data can be merged, so the records
+ * may be split across threads, processes or machines.  A learner is
+ * immutable and may be shared.
+ */
+public final class ParameterLearner {
+  private final ImmutableList<String> variables;
+  private final ImmutableList<ImmutableSet<String>> domains;
+  /** The index of each parent of each variable. */
+  private final int[][] parents;
+  /** The stride of each parent in the counts of each variable. */
+  private final int[][] parentStrides;
+  private final int[] cardinalities;
+  private final int[] sizes;
+  private final double pseudocount;
+  /** The pool to count partitions in, or null to count them sequentially. */
+  private final ForkJoinPool pool;
+
+  private ParameterLearner(Builder builder) {
+    this.variables = ImmutableList.copyOf(builder.domains.keySet());
+    this.domains = ImmutableList.copyOf(builder.domains.values());
+    int size = variables.size();
+    this.parents = new int[size][];
+    this.parentStrides = new int[size][];
+    this.cardinalities = new int[size];
+    this.sizes = new int[size];
+    for (int i = 0; i < size; i++) {
+      cardinalities[i] = domains.get(i).size();
+    }
+    for (int i = 0; i < size; i++) {
+      List<String> parentNames = builder.parents.get(variables.get(i));
+      parents[i] = new int[parentNames.size()];
+      parentStrides[i] = new int[parentNames.size()];
+      int stride = cardinalities[i];
+      for (int j = 0; j < parents[i].length; j++) {
+        int parent = variables.indexOf(parentNames.get(j));
+        Preconditions.checkArgument(parent >= 0,
+            "Parent %s of %s was not added", parentNames.get(j),
+            variables.get(i));
+        parents[i][j] = parent;
+        parentStrides[i][j] = stride;
+        stride = Math.multiplyExact(stride, cardinalities[parent]);
+      }
+      sizes[i] = stride;
+    }
+    this.pseudocount = builder.pseudocount;
+    this.pool = builder.pool;
+  }
+
+  /**
+   * Gets the variables, in the order in which records list their values.
+   */
+  public ImmutableList<String> getVariables() {
+    return variables;
+  }
+
+  /**
+   * Converts a record from variable names and values to ordinals.  Variables
+   * that are not included are treated as unobserved.
+   *
+   * @throws IllegalArgumentException if a variable or value is unknown
+   */
+  public int[] toRecord(Map<String, String> values) {
+    int[] record = new int[variables.size()];
+    Arrays.fill(record, -1);
+    for (Map.Entry<String, String> entry : values.entrySet()) {
+      int variable = variables.indexOf(entry.getKey());
+      Preconditions.checkArgument(variable >= 0,
+          "Unknown variable %s", entry.getKey());
+      record[variable] =
+          domains.get(variable).asList().indexOf(entry.getValue());
+      Preconditions.checkArgument(record[variable] >= 0,
+          "Unknown value %s for %s", entry.getValue(), entry.getKey());
+    }
+    return record;
+  }
+
+  /**
+   * Creates empty counts to add records to.
+   */
+  public Counts newCounts() {
+    return new Counts();
+  }
+
+  /**
+   * Counts the given records in one pass and estimates a network from them.
+   */
+  public BayesNetwork learn(Iterable<int[]> records) {
+    Counts counts = newCounts();
+    counts.addAll(records);
+    return estimate(counts);
+  }
+
+  /**
+   * Counts each of the given partitions of the records separately, in the
+   * pool if there is one, and estimates a network from their merged counts.
+   * Each partition is read once, by one thread.
+   */
+  public BayesNetwork learnPartitions(
+      List<? extends Iterable<int[]>> partitions) {
+    Counts counts = newCounts();
+    if (pool == null) {
+      for (Iterable<int[]> partition : partitions) {
+        counts.addAll(partition);
+      }
+      return estimate(counts);
+    }
+    List<ForkJoinTask<Counts>> tasks = Lists.newArrayList();
+    for (final Iterable<int[]> partition : partitions) {
+      tasks.add(pool.submit(new Callable<Counts>() {
+        @Override
+        public Counts call() {
+          Counts partial = newCounts();
+          partial.addAll(partition);
+          return partial;
+        }
+      }));
+    }
+    for (ForkJoinTask<Counts> task : tasks) {
+      counts.merge(task.join());
+    }
+    return estimate(counts);
+  }
+
+  /**
+   * Estimates a network from the given counts.
+   *
+   * @throws IllegalArgumentException if the structure has a cycle
+   */
+  public BayesNetwork estimate(Counts counts) {
+    Preconditions.checkArgument(counts.getLearner() == this,
+        "The counts belong to another learner");
+    BayesNetwork.Builder builder = BayesNetwork.builder();
+    for (int i = 0; i < variables.size(); i++) {
+      builder.add(newDistribution(
+          i, getProbabilities(counts.counts[i], cardinalities[i])));
+    }
+    return builder.build();
+  }
+
+  /**
+   * Normalizes each row of the given counts, after adding the pseudocount to
+   * every entry.  A row without data or pseudocounts is uniform.
+   */
+  private double[] getProbabilities(long[] counts, int cardinality) {
+    double[] result = new double[counts.length];
+    for (int offset = 0; offset < counts.length; offset += cardinality) {
+      double total = 0;
+      for (int value = 0; value < cardinality; value++) {
+        total += counts[offset + value];
+      }
+      total += pseudocount * cardinality;
+      for (int value = 0; value < cardinality; value++) {
+        result[offset + value] = total == 0
+            ? 1d / cardinality
+            : (counts[offset + value] + pseudocount) / total;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Creates the distribution of the given variable with the given
+   * probabilities, laid out like its counts.
+   */
+  ConditionalDistribution newDistribution(
+      int variable, double[] probabilities) {
+    ImmutableList.Builder<String> parentNames = ImmutableList.builder();
+    ImmutableList.Builder<ImmutableSet<String>> tableDomains =
+        ImmutableList.builder();
+    tableDomains.add(domains.get(variable));
+    for (int parent : parents[variable]) {
+      parentNames.add(variables.get(parent));
+      tableDomains.add(domains.get(parent));
+    }
+    return ConditionalDistribution.of(variables.get(variable),
+        parentNames.build(),
+        ProbabilityTable.fromArray(tableDomains.build(), probabilities));
+  }
+
+  /**
+   * Checks that a record has one ordinal in range, or -1, per variable.
+   *
+   * @throws IllegalArgumentException if the record has the wrong length or
+   *         an ordinal is out of range
+   */
+  void checkRecord(int[] record) {
+    Preconditions.checkArgument(record.length == cardinalities.length,
+        "Expected %s values but got %s", cardinalities.length, record.length);
+    for (int i = 0; i < record.length; i++) {
+      Preconditions.checkArgument(
+          record[i] >= -1 && record[i] < cardinalities[i],
+          "Value %s is out of range for %s", record[i], variables.get(i));
+    }
+  }
+
+  /**
+   * Gets the position of a checked record in the counts of the given
+   * variable, or -1 if the record is missing the value of the variable or
+   * of one of its parents.
+   */
+  int getOffset(int variable, int[] record) {
+    int offset = record[variable];
+    if (offset < 0) {
+      return -1;
+    }
+    int[] variableParents = parents[variable];
+    for (int j = 0; j < variableParents.length; j++) {
+      int value = record[variableParents[j]];
+      if (value < 0) {
+        return -1;
+      }
+      offset += value * parentStrides[variable][j];
+    }
+    return offset;
+  }
+
+  int getCardinality(int variable) {
+    return cardinalities[variable];
+  }
+
+  int getTableSize(int variable) {
+    return sizes[variable];
+  }
+
+  double getPseudocount() {
+    return pseudocount;
+  }
+
+  /**
+   * The counts of each combination of a variable's value and its parents'
+   * values, over the records added so far.
+   *
+   * <p> Counts are not thread-safe; threads counting in parallel should each
+   * fill their own and {@link #merge} them at the end.
+   */
+  public final class Counts {
+    private final long[][] counts;
+    private long recordCount;
+
+    private Counts() {
+      this.counts = new long[sizes.length][];
+      for (int i = 0; i < sizes.length; i++) {
+        counts[i] = new long[sizes[i]];
+      }
+    }
+
+    private ParameterLearner getLearner() {
+      return ParameterLearner.this;
+    }
+
+    /**
+     * Gets the number of records added so far.
+     */
+    public long getRecordCount() {
+      return recordCount;
+    }
+
+    /**
+     * Adds one record.
+     *
+     * @throws IllegalArgumentException if the record has the wrong length or
+     *         an ordinal is out of range
+     */
+    public Counts add(int[] record) {
+      checkRecord(record);
+      recordCount++;
+      for (int i = 0; i < record.length; i++) {
+        int offset = getOffset(i, record);
+        if (offset >= 0) {
+          counts[i][offset]++;
+        }
+      }
+      return this;
+    }
+
+    /**
+     * Adds every record from the given source.
+     */
+    public Counts addAll(Iterable<int[]> records) {
+      for (int[] record : records) {
+        add(record);
+      }
+      return this;
+    }
+
+    /**
+     * Adds the records counted by other counts from the same learner.
+     */
+    public Counts merge(Counts other) {
+      Preconditions.checkArgument(other.getLearner() == getLearner(),
+          "The counts belong to another learner");
+      for (int i = 0; i < counts.length; i++) {
+        for (int j = 0; j < counts[i].length; j++) {
+          counts[i][j] += other.counts[i][j];
+        }
+      }
+      recordCount += other.recordCount;
+      return this;
+    }
+
+    /**
+     * Gets the counts of the given variable, laid out like its
+     * {@link ProbabilityTable}.  The array must not be modified.
+     */
+    long[] getCounts(int variable) {
+      return counts[variable];
+    }
+  }
+
+  /**
+   * Creates a builder for a learner.
+   */
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * A mutable builder for constructing instances of
+   * {@link ParameterLearner}.
+   */
+  public static final class Builder {
+    private final Map<String, ImmutableSet<String>> domains =
+        Maps.newLinkedHashMap();
+    private final Map<String, ImmutableList<String>> parents =
+        Maps.newHashMap();
+    private double pseudocount = 0;
+    private ForkJoinPool pool;
+
+    private Builder() {}
+
+    /**
+     * Adds a variable with the given values and parents.  Parents may be
+     * added before or after their children.
+     */
+    public Builder addVariable(
+        String name, Iterable<String> values, String... parentNames) {
+      ImmutableSet<String> domain = ImmutableSet.copyOf(values);
+      Preconditions.checkArgument(!domain.isEmpty(),
+          "%s must have at least one value", name);
+      Preconditions.checkArgument(!domains.containsKey(name),
+          "%s was already added", name);
+      domains.put(name, domain);
+      parents.put(name, ImmutableList.copyOf(parentNames));
+      return this;
+    }
+
+    /**
+     * Sets the pseudocount added to every count, which is the parameter of a
+     * symmetric Dirichlet prior.  Zero gives maximum likelihood estimates, and
+     * one gives Laplace smoothing.
+     */
+    public Builder setPseudocount(double pseudocount) {
+      Preconditions.checkArgument(pseudocount >= 0,
+          "The pseudocount must not be negative");
+      this.pseudocount = pseudocount;
+      return this;
+    }
+
+    /**
+     * Sets the pool in which partitions of the records are counted.
+     */
+    public Builder setPool(ForkJoinPool pool) {
+      this.pool = Preconditions.checkNotNull(pool);
+      return this;
+    }
+
+    /**
+     * Builds the learner.
+     *
+     * @throws IllegalArgumentException if a parent was not added
+     */
+    public ParameterLearner build() {
+      return new ParameterLearner(this);
+    }
+  }
+}
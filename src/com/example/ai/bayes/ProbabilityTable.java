@@ -0,0 +1,377 @@
+package com.example.ai.bayes;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The dense representation of a {@link ConditionalDistribution}.
+ *
+ * <p> Values of the variable and of each parent are identified by their
+ * position (ordinal) in the corresponding domain.  The probabilities are stored
+ * in a flat array indexed like a {@link Factor} over the variable followed by
+ * its parents, with the variable changing fastest; each run of
+ * {@code getCardinality(0)} consecutive entries is therefore the row for one
+ * configuration of the parents.  Entries that were never set are
+ * {@link Double#NaN}.
+ *
+ * <p> The entries may also live outside the heap, in a buffer such as a
+ * memory-mapped file (see {@link BinaryNetworkFormat}).  Such a table reads
+ * every entry straight from the buffer through {@link #get}, and never
+ * copies the entries onto the heap, so they stay shared with the page cache.
+ */
+final class ProbabilityTable {
+  private final ImmutableList<ImmutableSet<String>> domains;
+  private final int[] strides;
+  private final int size;
+  /** The entries outside the heap, or null if they are in an array. */
+  private final DoubleBuffer buffer;
+  /** The entries in an array, or null if they are in a buffer. */
+  private final double[] probabilities;
+  /** Whether every entry has been set, or null until first checked. */
+  private volatile Boolean complete;
+
+  private ProbabilityTable(ImmutableList<ImmutableSet<String>> domains,
+      double[] probabilities, DoubleBuffer buffer) {
+    this.domains = domains;
+    this.strides = new int[domains.size()];
+    int stride = 1;
+    for (int i = 0; i < strides.length; i++) {
+      strides[i] = stride;
+      stride = Math.multiplyExact(stride, domains.get(i).size());
+    }
+    this.size = stride;
+    int actualSize =
+        probabilities != null ? probabilities.length : buffer.capacity();
+    Preconditions.checkArgument(size == actualSize,
+        "Expected %s probabilities but got %s", size, actualSize);
+    this.probabilities = probabilities;
+    this.buffer = buffer;
+  }
+
+  /**
+   * Creates a table over the given domains backed by the given array, which
+   * must not be modified afterwards.
+   */
+  static ProbabilityTable fromArray(
+      ImmutableList<ImmutableSet<String>> domains, double[] probabilities) {
+    return new ProbabilityTable(domains, probabilities, null);
+  }
+
+  /**
+   * Creates a table over the given domains from entries listed row by row,
+   * with the rows in the order of {@link #nextRow}.
+   */
+  static ProbabilityTable fromRows(
+      ImmutableList<ImmutableSet<String>> domains, double[] rows) {
+    double[] values = new double[rows.length];
+    ProbabilityTable table = new ProbabilityTable(domains, values, null);
+    int cardinality = table.getCardinality(0);
+    int[] parentOrdinals = new int[domains.size() - 1];
+    int index = 0;
+    do {
+      System.arraycopy(rows, index, values,
+          table.getRowOffset(parentOrdinals), cardinality);
+      index += cardinality;
+    } while (table.nextRow(parentOrdinals));
+    return table;
+  }
+
+  /**
+   * Creates a table over the given domains whose entries are read from the
+   * given buffer, which must not change afterwards.
+   */
+  static ProbabilityTable fromBuffer(
+      ImmutableList<ImmutableSet<String>> domains, DoubleBuffer buffer) {
+    return new ProbabilityTable(domains, null, buffer);
+  }
+
+  /**
+   * Creates a table from a map whose keys hold the value of the variable
+   * followed by the values of its parents.  The domains are taken from the
+   * keys, in order of first appearance.
+   */
+  static ProbabilityTable fromMap(
+      int parentCount, Map<? extends List<String>, Double> probabilities) {
+    ImmutableList.Builder<ImmutableSet<String>> domains =
+        ImmutableList.builder();
+    for (int i = 0; i <= parentCount; i++) {
+      ImmutableSet.Builder<String> domain = ImmutableSet.builder();
+      for (List<String> key : probabilities.keySet()) {
+        domain.add(key.get(i));
+      }
+      domains.add(domain.build());
+    }
+    return fromMap(domains.build(), probabilities);
+  }
+
+  /**
+   * Creates a table over the given domains from a map whose keys hold the
+   * value of the variable followed by the values of its parents.
+   */
+  static ProbabilityTable fromMap(
+      ImmutableList<ImmutableSet<String>> domains,
+      Map<? extends List<String>, Double> probabilities) {
+    int size = 1;
+    for (ImmutableSet<String> domain : domains) {
+      size = Math.multiplyExact(size, domain.size());
+    }
+    double[] values = new double[size];
+    Arrays.fill(values, Double.NaN);
+    ProbabilityTable table = new ProbabilityTable(domains, values, null);
+    for (Map.Entry<? extends List<String>, Double> entry
+        : probabilities.entrySet()) {
+      values[table.getIndex(entry.getKey())] = entry.getValue();
+    }
+    return table;
+  }
+
+  /**
+   * Re-indexes this table over the given domains, which must contain every
+   * value that appears in this table.
+   */
+  ProbabilityTable withDomains(ImmutableList<ImmutableSet<String>> newDomains) {
+    Preconditions.checkArgument(newDomains.size() == domains.size());
+    if (hasDomains(newDomains)) {
+      return this;
+    }
+    return fromMap(newDomains, toMap());
+  }
+
+  /**
+   * Checks whether this table is laid out over the given domains.  Unlike
+   * {@link ImmutableSet#equals}, this compares the order of the values, as the
+   * order determines the layout of the flat array.
+   */
+  boolean hasDomains(List<ImmutableSet<String>> otherDomains) {
+    if (domains.size() != otherDomains.size()) {
+      return false;
+    }
+    for (int i = 0; i < domains.size(); i++) {
+      if (!domains.get(i).asList().equals(otherDomains.get(i).asList())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  ImmutableList<ImmutableSet<String>> getDomains() {
+    return domains;
+  }
+
+  /**
+   * Gets the number of values of the variable (at position 0) or of one of
+   * its parents (at positions 1 and up).
+   */
+  int getCardinality(int position) {
+    return domains.get(position).size();
+  }
+
+  /**
+   * Gets the distance in the flat array between consecutive values of the
+   * variable (at position 0) or of one of its parents.
+   */
+  int getStride(int position) {
+    return strides[position];
+  }
+
+  int size() {
+    return size;
+  }
+
+  double get(int index) {
+    return probabilities != null ? probabilities[index] : buffer.get(index);
+  }
+
+  /**
+   * Checks whether every entry has been set.  The entries are only scanned
+   * the first time.
+   */
+  boolean isComplete() {
+    Boolean result = complete;
+    if (result == null) {
+      result = true;
+      for (int index = 0; index < size; index++) {
+        if (Double.isNaN(get(index))) {
+          result = false;
+          break;
+        }
+      }
+      complete = result;
+    }
+    return result;
+  }
+
+  /**
+   * Gets the flat array backing this table.  The array is shared, and must
+   * not be modified.
+   *
+   * @throws IllegalStateException if the entries are read from a buffer
+   */
+  double[] getArray() {
+    Preconditions.checkState(probabilities != null,
+        "The entries are read from a buffer");
+    return probabilities;
+  }
+
+  /**
+   * Gets the position in the flat array of the first entry of the row for
+   * the given parent value ordinals.
+   */
+  int getRowOffset(int[] parentOrdinals) {
+    int offset = 0;
+    for (int i = 0; i < parentOrdinals.length; i++) {
+      offset += parentOrdinals[i] * strides[i + 1];
+    }
+    return offset;
+  }
+
+  /**
+   * Advances the given parent value ordinals to the next configuration of
+   * the parents, with the last parent changing fastest.  This is the order in
+   * which text formats such as BIF list the rows of a table.
+   *
+   * @return false if every configuration has been visited, in which case the
+   *         ordinals are back at the first configuration
+   */
+  boolean nextRow(int[] parentOrdinals) {
+    for (int i = parentOrdinals.length - 1; i >= 0; i--) {
+      parentOrdinals[i]++;
+      if (parentOrdinals[i] < getCardinality(i + 1)) {
+        return true;
+      }
+      parentOrdinals[i] = 0;
+    }
+    return false;
+  }
+
+  /**
+   * Lists the entries row by row, with the rows in the order of
+   * {@link #nextRow}.
+   */
+  double[] toRows() {
+    double[] result = new double[size];
+    int cardinality = getCardinality(0);
+    int[] parentOrdinals = new int[domains.size() - 1];
+    int index = 0;
+    do {
+      int offset = getRowOffset(parentOrdinals);
+      for (int value = 0; value < cardinality; value++) {
+        result[index++] = get(offset + value);
+      }
+    } while (nextRow(parentOrdinals));
+    return result;
+  }
+
+  /**
+   * Gets the table in which the value at the given position is fixed to the
+   * given ordinal, and which is no longer indexed by that position.
+   */
+  ProbabilityTable restrict(int position, int ordinal) {
+    ImmutableList.Builder<ImmutableSet<String>> newDomains =
+        ImmutableList.builder();
+    for (int i = 0; i < domains.size(); i++) {
+      if (i != position) {
+        newDomains.add(domains.get(i));
+      }
+    }
+    int stride = strides[position];
+    int blockSize = stride * getCardinality(position);
+    double[] result = new double[size / getCardinality(position)];
+    int index = 0;
+    for (int block = 0; block < size; block += blockSize) {
+      int offset = block + ordinal * stride;
+      for (int i = 0; i < stride; i++) {
+        result[index++] = get(offset + i);
+      }
+    }
+    return fromArray(newDomains.build(), result);
+  }
+
+  /**
+   * Checks whether the entries are read from a buffer outside the heap.
+   */
+  boolean isBuffered() {
+    return buffer != null;
+  }
+
+  /**
+   * Gets the position in the flat array of the entry for the given key,
+   * holding the value of the variable followed by the values of its parents.
+   */
+  private int getIndex(List<String> key) {
+    Preconditions.checkArgument(key.size() == domains.size());
+    int index = 0;
+    for (int i = 0; i < strides.length; i++) {
+      int ordinal = domains.get(i).asList().indexOf(key.get(i));
+      Preconditions.checkArgument(ordinal >= 0,
+          "Value %s is not in the domain %s", key.get(i), domains.get(i));
+      index += ordinal * strides[i];
+    }
+    return index;
+  }
+
+  /**
+   * Gets a String-keyed view of the entries that have been set.
+   */
+  ImmutableMap<ImmutableList<String>, Double> toMap() {
+    ImmutableMap.Builder<ImmutableList<String>, Double> result =
+        ImmutableMap.builder();
+    String[] key = new String[domains.size()];
+    for (int index = 0; index < size; index++) {
+      double probability = get(index);
+      if (Double.isNaN(probability)) {
+        continue;
+      }
+      for (int i = 0; i < key.length; i++) {
+        key[i] = domains.get(i).asList().get(
+            (index / strides[i]) % domains.get(i).size());
+      }
+      result.put(ImmutableList.copyOf(key), probability);
+    }
+    return result.build();
+  }
+
+  @Override
+  public boolean equals(Object object) {
+    if (!(object instanceof ProbabilityTable)) {
+      return false;
+    }
+    ProbabilityTable other = (ProbabilityTable) object;
+    if (!hasDomains(other.domains)) {
+      return false;
+    }
+    // Compared like Arrays.equals, entry by entry so that neither table is
+    // copied out of its buffer.
+    for (int index = 0; index < size; index++) {
+      if (Double.doubleToLongBits(get(index))
+          != Double.doubleToLongBits(other.get(index))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public int hashCode() {
+    // Hashed like Arrays.hashCode, entry by entry.
+    int result = 1;
+    for (int index = 0; index < size; index++) {
+      long bits = Double.doubleToLongBits(get(index));
+      result = 31 * result + (int) (bits ^ (bits >>> 32));
+    }
+    return Objects.hash(domains, result);
+  }
+
+  @Override
+  public String toString() {
+    return toMap().toString();
+  }
+}
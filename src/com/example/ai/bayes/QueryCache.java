@@ -0,0 +1,135 @@
+package com.example.ai.bayes;
+
+import com.example.ai.bayes.Event.AndClause;
+import com.google.auto.value.AutoValue;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * A bounded cache of query results for a single {@link BayesNetwork}.
+ *
+ * <p> Since networks are immutable, cached results never go stale.  Queries
+ * are keyed on their simplified form (see {@link BayesNetwork#simplify}),
+ * with clause order ignored, so equivalent queries that are written
+ * differently share an entry.  The cache may be used from many threads at
+ * once; concurrent requests for the same missing entry compute it only once.
+ */
+public final class QueryCache {
+  private final BayesNetwork network;
+  private final LoadingCache<Key, Double> cache;
+
+  private QueryCache(
+      BayesNetwork network, CacheBuilder<Object, Object> builder) {
+    this.network = network;
+    this.cache = builder.recordStats().build(new CacheLoader<Key, Double>() {
+      @Override
+      public Double load(Key key) {
+        QueryRecorder recorder = QueryRecorder.current();
+        if (recorder != null) {
+          recorder.markCacheMiss();
+        }
+        return QueryCache.this.network.queryProbabilityWithEvidence(
+            Event.fromAndClauses(key.getQuery()),
+            Event.fromAndClauses(key.getEvidence()));
+      }
+    });
+  }
+
+  /**
+   * Creates a cache holding at most the given number of results, evicting the
+   * least recently used results first.
+   */
+  public static QueryCache withMaximumSize(
+      BayesNetwork network, long maximumSize) {
+    return new QueryCache(network,
+        CacheBuilder.newBuilder().maximumSize(maximumSize));
+  }
+
+  /**
+   * Creates a cache whose results weigh at most the given total, where each
+   * result weighs the number of clauses in its query and evidence.  Least
+   * recently used results are evicted first.
+   */
+  public static QueryCache withMaximumWeight(
+      BayesNetwork network, long maximumWeight) {
+    return new QueryCache(network, CacheBuilder.newBuilder()
+        .maximumWeight(maximumWeight)
+        .weigher(new Weigher<Object, Object>() {
+          @Override
+          public int weigh(Object key, Object value) {
+            return ((Key) key).getWeight();
+          }
+        }));
+  }
+
+  public BayesNetwork getNetwork() {
+    return network;
+  }
+
+  /**
+   * Computes the probability of an {@link Event}, or returns the cached
+   * result.
+   */
+  public double queryProbability(Event queryEvent) {
+    return queryProbabilityWithEvidence(queryEvent, Event.alwaysTrue());
+  }
+
+  /**
+   * Computes the probability of an {@link Event}, conditioned on evidence
+   * from another event, or returns the cached result.
+   */
+  public double queryProbabilityWithEvidence(Event queryEvent, Event evidence) {
+    QueryRecorder recorder =
+        QueryRecorder.start("QueryCache.queryProbabilityWithEvidence", null);
+    try {
+      double result = cache.getUnchecked(Key.of(
+          network.simplify(queryEvent).getEvent(),
+          network.simplify(evidence).getEvent()));
+      if (recorder != null) {
+        recorder.endCacheLookup();
+      }
+      return result;
+    } finally {
+      if (recorder != null) {
+        recorder.finish();
+      }
+    }
+  }
+
+  /**
+   * Gets the hit, miss and eviction counts of this cache.
+   */
+  public CacheStats getStats() {
+    return cache.stats();
+  }
+
+  /**
+   * Gets the approximate number of cached results.
+   */
+  public long size() {
+    return cache.size();
+  }
+
+  /**
+   * A canonical (query, evidence) pair.
+   */
+  @AutoValue
+  abstract static class Key {
+    abstract ImmutableSet<AndClause> getQuery();
+    abstract ImmutableSet<AndClause> getEvidence();
+
+    int getWeight() {
+      return Math.max(1, getQuery().size() + getEvidence().size());
+    }
+
+    static Key of(Event query, Event evidence) {
+      return new AutoValue_QueryCache_Key(
+          ImmutableSet.<AndClause>copyOf(query.getAndClauses()),
+          ImmutableSet.<AndClause>copyOf(evidence.getAndClauses()));
+    }
+  }
+}
@@ -0,0 +1,67 @@
+package com.example.ai.bayes;
+
+import com.google.auto.value.AutoValue;
+
+/**
+ * What one query cost, as reported to an {@link Instrumentation}.
+ *
+ * <p> A query that runs other queries, such as
+ * {@link BayesNetwork#queryProbabilityWithEvidence} or a
+ * {@link QueryCache} miss, is reported once, with the costs of the queries
+ * it ran added together.
+ */
+@AutoValue
+public abstract class QueryMetrics {
+  /**
+   * The method that was called, such as {@code "queryProbability"}.
+   */
+  public abstract String getOperation();
+
+  /**
+   * The simple class name of the {@link InferenceEngine} that answered the
+   * query, {@code "CompiledNetwork"} if a {@link QueryPlanner} read it off a
+   * junction tree, or {@code "none"} if no engine was needed.
+   */
+  public abstract String getEngine();
+
+  /**
+   * The number of disjoint AND-clauses the engine was asked for.
+   */
+  public abstract long getClauseCount();
+
+  /**
+   * The number of configurations the engine evaluated: joint assignments
+   * for enumeration, samples for sampling engines, and entries of product
+   * factors for variable elimination.
+   */
+  public abstract long getConfigurationCount();
+
+  /**
+   * The number of entries read from the networks' probability tables.
+   */
+  public abstract long getTableLookupCount();
+
+  /**
+   * The number of entries in the largest factor built, or zero for engines
+   * that do not build factors.
+   */
+  public abstract long getLargestFactorSize();
+
+  /**
+   * The number of results served from a {@link QueryCache}.
+   */
+  public abstract long getCacheHitCount();
+
+  /**
+   * The wall-clock time the query took, in nanoseconds.
+   */
+  public abstract long getElapsedNanos();
+
+  static QueryMetrics of(String operation, String engine, long clauseCount,
+      long configurationCount, long tableLookupCount, long largestFactorSize,
+      long cacheHitCount, long elapsedNanos) {
+    return new AutoValue_QueryMetrics(operation, engine, clauseCount,
+        configurationCount, tableLookupCount, largestFactorSize,
+        cacheHitCount, elapsedNanos);
+  }
+}
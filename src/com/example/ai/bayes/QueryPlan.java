@@ -0,0 +1,72 @@
+package com.example.ai.bayes;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * How a {@link QueryPlanner} would answer a query, and what it expects each
+ * strategy to cost.
+ *
+ * <p> Costs are in rough units of one probability table entry read or
+ * multiplied.  They are meant for comparing strategies with each other, not
+ * for predicting running times.
+ */
+@AutoValue
+public abstract class QueryPlan {
+  /**
+   * The ways in which a {@link QueryPlanner} can answer a query.
+   */
+  public enum Strategy {
+    /** Sums the joint distribution with an {@link EnumerationEngine}. */
+    ENUMERATION,
+    /** Runs a {@link VariableEliminationEngine} once per clause. */
+    VARIABLE_ELIMINATION,
+    /** Calibrates a {@link CompiledNetwork}, compiling it the first time. */
+    JUNCTION_TREE,
+    /** Estimates the answer with a {@link LikelihoodWeightingEngine}. */
+    SAMPLING
+  }
+
+  /**
+   * The strategy with the lowest estimated cost.
+   */
+  public abstract Strategy getStrategy();
+
+  /**
+   * The estimated cost of every strategy that can answer the query.
+   */
+  public abstract ImmutableMap<Strategy, Double> getEstimatedCosts();
+
+  /**
+   * The number of disjoint AND-clauses of the query combined with the
+   * evidence.
+   */
+  public abstract int getClauseCount();
+
+  /**
+   * The number of disjoint AND-clauses of the evidence.
+   */
+  public abstract int getEvidenceClauseCount();
+
+  /**
+   * An upper bound on the treewidth of the network reduced for the query
+   * (see {@link RelevanceReducer}): one less than the most variables in a
+   * factor built by eliminating it in {@link EliminationOrder#MIN_FILL}
+   * order.
+   */
+  public abstract int getTreewidthBound();
+
+  /**
+   * The estimated cost of the chosen strategy.
+   */
+  public double getEstimatedCost() {
+    return getEstimatedCosts().get(getStrategy());
+  }
+
+  static QueryPlan of(Strategy strategy,
+      ImmutableMap<Strategy, Double> estimatedCosts, int clauseCount,
+      int evidenceClauseCount, int treewidthBound) {
+    return new AutoValue_QueryPlan(strategy, estimatedCosts, clauseCount,
+        evidenceClauseCount, treewidthBound);
+  }
+}
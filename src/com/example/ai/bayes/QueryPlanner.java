@@ -0,0 +1,489 @@
+package com.example.ai.bayes;
+
+import com.example.ai.bayes.QueryPlan.Strategy;
+import com.example.ai.bayes.RelevanceReducer.Reduction;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Answers queries against a {@link BayesNetwork} with whichever inference
+ * strategy it expects to be cheapest (see {@link QueryPlan.Strategy}).
+ *
+ * <p> Enumeration, variable elimination and sampling run on the network
+ * reduced for the query and its evidence (see {@link RelevanceReducer}).
+ * Costs are estimated from the shape of the query and the structure of the
+ * network, without running any inference:
+ *
+ * <ul>
+ * <li> Enumeration costs the number of joint configurations of the reduced
+ *      network allowed by each disjoint clause, times its number of
+ *      variables.
+ * <li> Variable elimination costs, per clause, the total size of the factors
+ *      built by eliminating the reduced network in
+ *      {@link EliminationOrder#MIN_FILL} order, which grows exponentially
+ *      with its treewidth.
+ * <li> The junction tree costs a collect and a distribute pass over cliques
+ *      as large as those of eliminating the whole network, per clause of the
+ *      evidence, plus compiling the tree the first time.  The planner keeps
+ *      the marginals of the most recent evidence it calibrated (see
+ *      {@link #queryPosteriors}), so further queries on one variable with the
+ *      same evidence cost only a lookup.  Queries on more than one variable
+ *      also cost one variable elimination per clause.
+ * <li> Sampling, if a {@link LikelihoodWeightingEngine} was given, costs its
+ *      maximum number of samples times the number of variables of the
+ *      reduced network.  It is only used for evidence that simplifies to a
+ *      single clause.
+ * </ul>
+ *
+ * <p> So a tiny network is enumerated, a large disjunction goes to variable
+ * elimination, marginals that share evidence are read off the junction
+ * tree, and a dense network may fall back to sampling.  {@link #explain}
+ * shows the plan without running it.
+ *
+ * <p> A planner compiles its network at most once, and may be shared between
+ * threads.  Every query on a {@link BayesNetwork} that names no engine,
+ * including its batches, goes to one planner kept by the network.
+ */
+public final class QueryPlanner {
+  private static final InferenceEngine ENUMERATION_ENGINE =
+      EnumerationEngine.create();
+  private static final InferenceEngine ELIMINATION_ENGINE =
+      BayesNetwork.ELIMINATION_ENGINE;
+
+  private final BayesNetwork network;
+  /** The engine for approximate answers, or null to only answer exactly. */
+  private final LikelihoodWeightingEngine sampler;
+  private final RelevanceReducer reducer;
+  /** The cost of eliminating every variable, which sizes the junction tree. */
+  private final double treeSize;
+  private volatile CompiledNetwork compiled;
+  /** The marginals given the evidence most recently calibrated, if any. */
+  private volatile Calibrated calibrated;
+
+  private QueryPlanner(BayesNetwork network,
+      LikelihoodWeightingEngine sampler) {
+    this.network = network;
+    this.sampler = sampler;
+    this.reducer = network.getReducer();
+    this.treeSize = new Elimination(network, network.getVariables()).cost;
+  }
+
+  /**
+   * Creates a planner that only uses exact strategies.
+   */
+  public static QueryPlanner create(BayesNetwork network) {
+    return new QueryPlanner(network, null);
+  }
+
+  /**
+   * Creates a planner that may also answer queries approximately with the
+   * given engine, when exact strategies are expected to cost more.
+   */
+  public static QueryPlanner create(
+      BayesNetwork network, LikelihoodWeightingEngine sampler) {
+    return new QueryPlanner(network, Preconditions.checkNotNull(sampler));
+  }
+
+  public BayesNetwork getNetwork() {
+    return network;
+  }
+
+  /** Gets the reducer, which is shared with the network's default queries. */
+  RelevanceReducer getReducer() {
+    return reducer;
+  }
+
+  /**
+   * Computes the probability of an {@link Event}, without conditioning on
+   * any evidence, with the cheapest strategy.
+   */
+  public double queryProbability(Event queryEvent) {
+    return queryProbabilityWithEvidence(queryEvent, Event.alwaysTrue());
+  }
+
+  /**
+   * Computes the probability of an {@link Event}, conditioned on evidence
+   * from another event, with the cheapest strategy.
+   */
+  public double queryProbabilityWithEvidence(Event queryEvent, Event evidence) {
+    return answer(new QueryShape(queryEvent, evidence));
+  }
+
+  private double answer(QueryShape shape) {
+    Strategy strategy = plan(shape).getStrategy();
+    QueryRecorder recorder = QueryRecorder.current();
+    if (recorder != null) {
+      recorder.setEngine(getEngineName(strategy));
+    }
+    Reduction reduction = shape.reduction;
+    BayesNetwork reduced = reduction.getNetwork();
+    switch (strategy) {
+      case ENUMERATION:
+        return shape.hasEvidence()
+            ? reduced.queryProbabilityWithEvidence(reduction.getQuery(),
+                reduction.getEvidence(), ENUMERATION_ENGINE)
+            : reduced.queryProbability(
+                reduction.getQuery(), ENUMERATION_ENGINE);
+      case VARIABLE_ELIMINATION:
+        return shape.hasEvidence()
+            ? reduced.queryProbabilityWithEvidence(reduction.getQuery(),
+                reduction.getEvidence(), ELIMINATION_ENGINE)
+            : reduced.queryProbability(
+                reduction.getQuery(), ELIMINATION_ENGINE);
+      case JUNCTION_TREE:
+        return shape.queryVariableCount == 1
+            ? getMarginal(shape)
+            : getCompiled().queryProbabilityWithEvidence(
+                shape.query, shape.evidence);
+      case SAMPLING:
+        return sampler.estimate(
+                reduced, reduction.getQuery(), reduction.getEvidence())
+            .getValue();
+      default:
+        throw new AssertionError("Unhandled strategy " + strategy);
+    }
+  }
+
+  /**
+   * Gets the name that {@link QueryMetrics#getEngine} reports for a query
+   * answered with the given strategy.
+   */
+  static String getEngineName(Strategy strategy) {
+    switch (strategy) {
+      case ENUMERATION:
+        return ENUMERATION_ENGINE.getClass().getSimpleName();
+      case VARIABLE_ELIMINATION:
+        return ELIMINATION_ENGINE.getClass().getSimpleName();
+      case JUNCTION_TREE:
+        return CompiledNetwork.class.getSimpleName();
+      case SAMPLING:
+        return LikelihoodWeightingEngine.class.getSimpleName();
+      default:
+        throw new AssertionError("Unhandled strategy " + strategy);
+    }
+  }
+
+  /**
+   * Computes the probability of each of the given {@link Event}s, conditioned
+   * on the same evidence, returning the results in the same order.
+   *
+   * <p> If calibrating the junction tree once and reading every query on one
+   * variable off it is expected to cost less than planning each of those
+   * queries on its own, the tree is calibrated, and later queries with the
+   * same evidence may be read off it too.  Other queries are planned one by
+   * one.
+   */
+  public ImmutableList<Double> queryPosteriors(
+      Collection<? extends Event> queryEvents, Event evidence) {
+    List<QueryShape> shapes = Lists.newArrayList();
+    double separateCost = 0;
+    for (Event queryEvent : queryEvents) {
+      QueryShape shape = new QueryShape(queryEvent, evidence);
+      shapes.add(shape);
+      if (shape.queryVariableCount == 1) {
+        separateCost += plan(shape).getEstimatedCost();
+      }
+    }
+    boolean calibrate = !shapes.isEmpty()
+        && getCalibrationCost(shapes.get(0)) + shapes.size() < separateCost;
+    ImmutableList.Builder<Double> result = ImmutableList.builder();
+    for (QueryShape shape : shapes) {
+      result.add(calibrate && shape.queryVariableCount == 1
+          ? getMarginal(shape)
+          : answer(shape));
+    }
+    return result.build();
+  }
+
+  /**
+   * Computes the posterior distribution of every variable given the
+   * evidence, as a map from each variable to a map from each of its values to
+   * its probability.  The junction tree is calibrated unless the marginals
+   * given the same evidence are at hand, and queries on one variable with
+   * that evidence may be read off them later.  See
+   * {@link CompiledNetwork#posteriorMarginals}.
+   */
+  public ImmutableMap<String, ImmutableMap<String, Double>> posteriorMarginals(
+      Event evidence) {
+    return getCalibrated(toEvent(
+        ClauseMask.simplify(ClauseMask.of(network, evidence)))).marginals;
+  }
+
+  /**
+   * Shows how {@link #queryProbabilityWithEvidence} would answer the given
+   * query, and what each strategy is expected to cost.
+   */
+  public QueryPlan explain(Event queryEvent, Event evidence) {
+    return plan(new QueryShape(queryEvent, evidence));
+  }
+
+  private QueryPlan plan(QueryShape shape) {
+    BayesNetwork reduced = shape.reduction.getNetwork();
+    Elimination elimination =
+        new Elimination(reduced, reduced.getVariables());
+    Map<Strategy, Double> costs = new EnumMap<Strategy, Double>(Strategy.class);
+    costs.put(Strategy.ENUMERATION, shape.getEnumerationCost());
+
+    // Evidence that is always true costs nothing to eliminate, as it has no
+    // ancestors.
+    int eliminations = shape.reducedClauses.size()
+        + (shape.hasEvidence() ? shape.reducedEvidenceClauses.size() : 0);
+    costs.put(Strategy.VARIABLE_ELIMINATION, eliminations * elimination.cost);
+
+    // Calibration visits every clique twice, unless the marginals given the
+    // same evidence are at hand, and queries that cannot be read off the tree
+    // fall back to variable elimination.
+    double treeCost = 1;
+    Calibrated current = calibrated;
+    if (shape.queryVariableCount != 1 || current == null
+        || !current.evidence.equals(shape.evidence)) {
+      treeCost += getCalibrationCost(shape);
+    }
+    if (shape.queryVariableCount > 1) {
+      treeCost += shape.clauses.size() * elimination.cost;
+    }
+    costs.put(Strategy.JUNCTION_TREE, treeCost);
+
+    if (sampler != null && shape.simplifiedEvidenceClauseCount <= 1) {
+      costs.put(Strategy.SAMPLING, (double) sampler.getMaxSamples()
+          * (reduced.getVariables().size() + shape.queryClauses.size()));
+    }
+
+    Strategy best = null;
+    for (Map.Entry<Strategy, Double> entry : costs.entrySet()) {
+      if (best == null || entry.getValue() < costs.get(best)) {
+        best = entry.getKey();
+      }
+    }
+    return QueryPlan.of(best, ImmutableMap.copyOf(costs), shape.clauses.size(),
+        shape.evidenceClauses.size(), Math.max(elimination.width - 1, 0));
+  }
+
+  /**
+   * Estimates the cost of calibrating the junction tree on the evidence of the
+   * given query, including compiling it if it has not been compiled yet.
+   */
+  private double getCalibrationCost(QueryShape shape) {
+    double result = 2 * treeSize * Math.max(shape.evidenceClauses.size(), 1);
+    return compiled == null ? result + treeSize : result;
+  }
+
+  /**
+   * Reads the probability of a query on one variable off the marginals given
+   * the evidence, calibrating the tree unless they are already known.
+   */
+  private double getMarginal(QueryShape shape) {
+    Calibrated current = getCalibrated(shape.evidence);
+    // The simplified query has merged its clauses into a single one.
+    ClauseMask clause = shape.queryClauses.get(0);
+    int variable = Iterables.getOnlyElement(clause.getConstrainedVariables());
+    Topology topology = network.getTopology();
+    ImmutableList<String> domain = topology.getDomain(variable).asList();
+    Map<String, Double> posterior =
+        current.marginals.get(topology.getVariable(variable));
+    BitSet allowed = clause.getAllowedValues(variable);
+    double result = 0;
+    for (int value = allowed.nextSetBit(0); value >= 0;
+        value = allowed.nextSetBit(value + 1)) {
+      result += posterior.get(domain.get(value));
+    }
+    return result;
+  }
+
+  /**
+   * Gets the marginals given the given simplified evidence, calibrating the
+   * tree unless they are already known.
+   */
+  private Calibrated getCalibrated(Event evidence) {
+    Calibrated current = calibrated;
+    if (current == null || !current.evidence.equals(evidence)) {
+      current = new Calibrated(evidence,
+          getCompiled().posteriorMarginals(evidence));
+      calibrated = current;
+    }
+    return current;
+  }
+
+  /**
+   * Gets the junction tree of the network, compiling it the first time.
+   */
+  CompiledNetwork getCompiled() {
+    CompiledNetwork result = compiled;
+    if (result == null) {
+      synchronized (this) {
+        result = compiled;
+        if (result == null) {
+          result = network.compile();
+          compiled = result;
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * The clauses of a query and its evidence, simplified as
+   * {@link BayesNetwork} would before answering it, both against the whole
+   * network and against the network reduced for them.
+   */
+  private final class QueryShape {
+    private final Event query;
+    private final Event evidence;
+    /** The disjoint clauses of the query together with the evidence. */
+    private final ImmutableList<ClauseMask> clauses;
+    /** The disjoint clauses of the evidence. */
+    private final ImmutableList<ClauseMask> evidenceClauses;
+    /** The simplified clauses of the query alone. */
+    private final ImmutableList<ClauseMask> queryClauses;
+    private final int simplifiedEvidenceClauseCount;
+    /** The number of variables constrained by the query alone. */
+    private final int queryVariableCount;
+    private final Reduction reduction;
+    /** The disjoint clauses of the reduced query and evidence. */
+    private final ImmutableList<ClauseMask> reducedClauses;
+    /** The disjoint clauses of the reduced evidence. */
+    private final ImmutableList<ClauseMask> reducedEvidenceClauses;
+
+    QueryShape(Event queryEvent, Event evidenceEvent) {
+      ImmutableList<ClauseMask> queryMasks =
+          ClauseMask.simplify(ClauseMask.of(network, queryEvent));
+      ImmutableList<ClauseMask> evidenceMasks =
+          ClauseMask.simplify(ClauseMask.of(network, evidenceEvent));
+      this.query = toEvent(queryMasks);
+      this.evidence = toEvent(evidenceMasks);
+      this.clauses = ClauseMask.disjoin(ClauseMask.simplify(
+          ClauseMask.of(network, Event.and(query, evidence))));
+      this.evidenceClauses = ClauseMask.disjoin(evidenceMasks);
+      this.queryClauses = queryMasks;
+      this.simplifiedEvidenceClauseCount = evidenceMasks.size();
+      Set<Integer> queryVariables = Sets.newHashSet();
+      for (ClauseMask clause : queryMasks) {
+        queryVariables.addAll(clause.getConstrainedVariables());
+      }
+      this.queryVariableCount = queryVariables.size();
+
+      this.reduction = reducer.reduce(query, evidence);
+      BayesNetwork reduced = reduction.getNetwork();
+      this.reducedClauses = ClauseMask.disjoin(ClauseMask.simplify(
+          ClauseMask.of(reduced, Event.and(
+              reduction.getQuery(), reduction.getEvidence()))));
+      this.reducedEvidenceClauses = ClauseMask.disjoin(ClauseMask.simplify(
+          ClauseMask.of(reduced, reduction.getEvidence())));
+    }
+
+    /**
+     * Whether the reduced evidence rules anything out.
+     */
+    private boolean hasEvidence() {
+      return reducedEvidenceClauses.size() != 1
+          || !reducedEvidenceClauses.get(0).getConstrainedVariables()
+              .isEmpty();
+    }
+
+    double getEnumerationCost() {
+      List<ClauseMask> enumerated = Lists.newArrayList(reducedClauses);
+      if (hasEvidence()) {
+        enumerated.addAll(reducedEvidenceClauses);
+      }
+      Topology topology = reduction.getNetwork().getTopology();
+      double result = 0;
+      for (ClauseMask clause : enumerated) {
+        double configurations = 1;
+        for (int variable = 0; variable < topology.size(); variable++) {
+          configurations *= clause.getConstrainedVariables().contains(variable)
+              ? clause.getAllowedValues(variable).cardinality()
+              : topology.getCardinality(variable);
+        }
+        result += configurations * topology.size();
+      }
+      return result;
+    }
+  }
+
+  private static Event toEvent(List<ClauseMask> masks) {
+    List<Event.AndClause> andClauses = Lists.newArrayList();
+    for (ClauseMask mask : masks) {
+      andClauses.add(mask.toAndClause());
+    }
+    return Event.fromAndClauses(andClauses);
+  }
+
+  /**
+   * The posterior marginals of every variable given some evidence.
+   */
+  private static final class Calibrated {
+    private final Event evidence;
+    private final ImmutableMap<String, ImmutableMap<String, Double>> marginals;
+
+    Calibrated(Event evidence,
+        ImmutableMap<String, ImmutableMap<String, Double>> marginals) {
+      this.evidence = evidence;
+      this.marginals = marginals;
+    }
+  }
+
+  /**
+   * A simulation of eliminating a set of variables of a network, which
+   * should include the parents of each of them, from their moral graph in
+   * {@link EliminationOrder#MIN_FILL} order.
+   */
+  private static final class Elimination {
+    /** The total number of entries of the factors built. */
+    private final double cost;
+    /** The most variables in one factor. */
+    private final int width;
+
+    Elimination(BayesNetwork network, Collection<String> variables) {
+      Map<String, Set<String>> graph = Maps.newHashMap();
+      Map<String, Integer> cardinalities = Maps.newHashMap();
+      for (String variable : variables) {
+        graph.put(variable, Sets.<String>newHashSet());
+        cardinalities.put(variable, network.getValues(variable).size());
+      }
+      for (String variable : variables) {
+        List<String> family = Lists.newArrayList(
+            network.getDistribution(variable).getParentVariableNames());
+        family.add(variable);
+        for (String first : family) {
+          for (String second : family) {
+            if (!first.equals(second) && graph.containsKey(first)
+                && graph.containsKey(second)) {
+              graph.get(first).add(second);
+            }
+          }
+        }
+      }
+
+      double total = 0;
+      int maxWidth = 0;
+      while (!graph.isEmpty()) {
+        String next =
+            EliminationOrder.MIN_FILL.chooseNext(graph, cardinalities);
+        Set<String> neighbours = graph.remove(next);
+        double size = cardinalities.get(next);
+        for (String neighbour : neighbours) {
+          size *= cardinalities.get(neighbour);
+          graph.get(neighbour).remove(next);
+          graph.get(neighbour).addAll(neighbours);
+          graph.get(neighbour).remove(neighbour);
+        }
+        total += size;
+        maxWidth = Math.max(maxWidth, neighbours.size() + 1);
+      }
+      this.cost = total;
+      this.width = maxWidth;
+    }
+  }
+}
@@ -0,0 +1,137 @@
+package com.example.ai.bayes;
+
+import com.google.common.math.LongMath;
+
+/**
+ * Collects the {@link QueryMetrics} of the query running on the current
+ * thread, for the installed {@link Instrumentation}.
+ *
+ * <p> Queries call {@link #start} and {@link #finish} around their work, and
+ * engines add their counts to {@link #current}.  Both return null while no
+ * instrumentation is installed, after a single volatile read, so that
+ * uninstrumented queries pay nothing else.  Queries started while another is
+ * running on the same thread add to the outer query's recorder.  Engines
+ * that work in a pool must add their counts from the calling thread.
+ */
+final class QueryRecorder {
+  private static volatile Instrumentation instrumentation;
+
+  private static final ThreadLocal<QueryRecorder> CURRENT =
+      new ThreadLocal<QueryRecorder>();
+
+  private final Instrumentation target;
+  private final String operation;
+  private final long startNanos = System.nanoTime();
+  private String engine;
+  private int depth = 1;
+  private long clauseCount;
+  private long configurationCount;
+  private long tableLookupCount;
+  private long largestFactorSize;
+  private long cacheHitCount;
+  private boolean cacheMissed;
+
+  private QueryRecorder(
+      Instrumentation target, String operation, String engine) {
+    this.target = target;
+    this.operation = operation;
+    this.engine = engine;
+  }
+
+  static void install(Instrumentation newInstrumentation) {
+    instrumentation = newInstrumentation;
+  }
+
+  /**
+   * Starts recording a query, or joins the query already being recorded on
+   * this thread.
+   *
+   * @param engine the engine answering the query, or null if not known yet
+   * @return the recorder, or null if no instrumentation is installed
+   */
+  static QueryRecorder start(String operation, InferenceEngine engine) {
+    Instrumentation target = instrumentation;
+    if (target == null) {
+      return null;
+    }
+    String engineName =
+        engine == null ? null : engine.getClass().getSimpleName();
+    QueryRecorder current = CURRENT.get();
+    if (current != null) {
+      current.depth++;
+      if (current.engine == null) {
+        current.engine = engineName;
+      }
+      return current;
+    }
+    current = new QueryRecorder(target, operation, engineName);
+    CURRENT.set(current);
+    return current;
+  }
+
+  /**
+   * Gets the recorder of the query running on this thread, or null if there
+   * is none or no instrumentation is installed.
+   */
+  static QueryRecorder current() {
+    return instrumentation == null ? null : CURRENT.get();
+  }
+
+  /**
+   * Finishes one call to {@link #start}, reporting the metrics once the
+   * outermost query finishes.
+   */
+  void finish() {
+    if (--depth > 0) {
+      return;
+    }
+    CURRENT.remove();
+    target.queryCompleted(QueryMetrics.of(operation,
+        engine == null ? "none" : engine, clauseCount, configurationCount,
+        tableLookupCount, largestFactorSize, cacheHitCount,
+        System.nanoTime() - startNanos));
+  }
+
+  /**
+   * Names the engine answering the query, unless one is named already.
+   */
+  void setEngine(String name) {
+    if (engine == null) {
+      engine = name;
+    }
+  }
+
+  void addClauses(long count) {
+    clauseCount += count;
+  }
+
+  void addConfigurations(long count) {
+    configurationCount = LongMath.saturatedAdd(configurationCount, count);
+  }
+
+  void addTableLookups(long count) {
+    tableLookupCount = LongMath.saturatedAdd(tableLookupCount, count);
+  }
+
+  void addFactor(long size) {
+    largestFactorSize = Math.max(largestFactorSize, size);
+  }
+
+  /**
+   * Notes that a cache had to compute a result.
+   */
+  void markCacheMiss() {
+    cacheMissed = true;
+  }
+
+  /**
+   * Counts a cache lookup as a hit unless {@link #markCacheMiss} was called
+   * since the last lookup.
+   */
+  void endCacheLookup() {
+    if (!cacheMissed) {
+      cacheHitCount++;
+    }
+    cacheMissed = false;
+  }
+}
@@ -0,0 +1,338 @@
+package com.example.ai.bayes;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiConsumer;
+
+/**
+ * Answers queries against a {@link BayesNetwork} asynchronously, for callers
+ * that submit many queries from many threads at once.
+ *
+ * <p> Three things keep concurrent callers from repeating each other's work:
+ *
+ * <ul>
+ * <li> A query that is submitted while an equal query with equal evidence is
+ *      still in flight shares its computation, and its result.
+ * <li> Queries with equal evidence are collected into a batch until a thread
+ *      of the executor picks the batch up, and each batch is answered in one
+ *      pass by {@link QueryPlanner#queryPosteriors}, so that queries on one
+ *      variable can share a calibration of the junction tree.
+ * <li> At most a fixed number of distinct queries may be waiting or running.
+ *      Beyond that, {@link #submit} fails fast with a
+ *      {@link RejectedExecutionException} instead of letting the backlog
+ *      grow, so callers can shed load.
+ * </ul>
+ *
+ * <p> Batches run on the configured {@link Executor}, which may be an
+ * executor of virtual threads.  A service is thread-safe.
+ */
+public final class QueryService {
+  private final QueryPlanner planner;
+  private final Executor executor;
+  private final int maxBatchSize;
+  /** The permits for distinct queries that are waiting or running. */
+  private final Semaphore permits;
+  private final int maxPending;
+  /** The result of each distinct query that is waiting or running. */
+  private final ConcurrentMap<Request, CompletableFuture<Double>> inFlight =
+      new ConcurrentHashMap<Request, CompletableFuture<Double>>();
+  /** The batch that is still collecting queries, for each evidence. */
+  private final ConcurrentMap<Event, Batch> openBatches =
+      new ConcurrentHashMap<Event, Batch>();
+
+  private QueryService(Builder builder) {
+    this.planner = builder.planner;
+    this.executor = builder.executor;
+    this.maxBatchSize = builder.maxBatchSize;
+    this.maxPending = builder.maxPending;
+    this.permits = new Semaphore(builder.maxPending);
+  }
+
+  /**
+   * Submits a query, returning a future of the probability of the query
+   * given the evidence.  The future fails with a
+   * {@link RejectedExecutionException} if too many distinct queries are
+   * already waiting or running, and otherwise with the exception the query
+   * threw, such as an {@link IllegalArgumentException} for an unknown
+   * variable.  Cancelling the future does not affect other callers.
+   */
+  public CompletableFuture<Double> submit(Event queryEvent, Event evidence) {
+    Request request = Request.of(queryEvent, evidence);
+    CompletableFuture<Double> existing = inFlight.get(request);
+    if (existing != null) {
+      return copy(existing);
+    }
+    if (!permits.tryAcquire()) {
+      CompletableFuture<Double> rejected = new CompletableFuture<Double>();
+      rejected.completeExceptionally(new RejectedExecutionException(
+          "More than " + maxPending + " queries are pending"));
+      return rejected;
+    }
+    CompletableFuture<Double> result = new CompletableFuture<Double>();
+    existing = inFlight.putIfAbsent(request, result);
+    if (existing != null) {
+      permits.release();
+      return copy(existing);
+    }
+    enqueue(request, result);
+    return copy(result);
+  }
+
+  /**
+   * Gets the number of distinct queries that are waiting or running.
+   */
+  public int getPendingCount() {
+    return maxPending - permits.availablePermits();
+  }
+
+  /**
+   * Adds a distinct query to the open batch for its evidence, opening and
+   * scheduling a new batch if there is none or the open one is closed.
+   */
+  private void enqueue(Request request, CompletableFuture<Double> result) {
+    while (true) {
+      Batch batch = openBatches.get(request.getEvidence());
+      if (batch != null) {
+        if (batch.add(request, result)) {
+          return;
+        }
+        // The batch has started or is full, so it can no longer take queries.
+        openBatches.remove(request.getEvidence(), batch);
+        continue;
+      }
+      batch = new Batch(request.getEvidence());
+      batch.add(request, result);
+      if (openBatches.putIfAbsent(request.getEvidence(), batch) == null) {
+        try {
+          executor.execute(batch);
+        } catch (RejectedExecutionException e) {
+          batch.fail(e);
+        }
+        return;
+      }
+    }
+  }
+
+  /**
+   * Forgets a query that is about to be answered, and releases its permit,
+   * so that callers who see the answer also see the room it made.
+   */
+  private void finish(Request request, CompletableFuture<Double> result) {
+    inFlight.remove(request, result);
+    permits.release();
+  }
+
+  /**
+   * Returns a future that completes with the given one, so that a caller
+   * cancelling or completing it does not affect the computation shared with
+   * other callers.
+   */
+  private static CompletableFuture<Double> copy(
+      CompletableFuture<Double> future) {
+    final CompletableFuture<Double> result = new CompletableFuture<Double>();
+    future.whenComplete(new BiConsumer<Double, Throwable>() {
+      @Override
+      public void accept(Double value, Throwable error) {
+        if (error != null) {
+          result.completeExceptionally(error);
+        } else {
+          result.complete(value);
+        }
+      }
+    });
+    return result;
+  }
+
+  /**
+   * The distinct queries with the same evidence that are answered together.
+   */
+  private final class Batch implements Runnable {
+    private final Event evidence;
+    private final List<Request> requests = Lists.newArrayList();
+    private final List<CompletableFuture<Double>> results =
+        Lists.newArrayList();
+    /** Whether the batch has stopped taking queries. */
+    private boolean closed;
+
+    Batch(Event evidence) {
+      this.evidence = evidence;
+    }
+
+    /**
+     * Adds a query, unless the batch has started or is full.
+     */
+    synchronized boolean add(
+        Request request, CompletableFuture<Double> result) {
+      if (closed || requests.size() >= maxBatchSize) {
+        closed = true;
+        return false;
+      }
+      requests.add(request);
+      results.add(result);
+      return true;
+    }
+
+    /**
+     * Stops taking queries, and returns the number of queries taken.
+     */
+    private synchronized int close() {
+      closed = true;
+      openBatches.remove(evidence, this);
+      return requests.size();
+    }
+
+    @Override
+    public void run() {
+      int size = close();
+      try {
+        answerAll(size);
+      } catch (Throwable e) {
+        // Even an error must not leave callers waiting or permits taken.
+        fail(size, e);
+        throw e;
+      }
+    }
+
+    private void answerAll(int size) {
+      List<Event> queryEvents = Lists.newArrayList();
+      for (int i = 0; i < size; i++) {
+        queryEvents.add(requests.get(i).getQuery());
+      }
+      ImmutableList<Double> probabilities;
+      try {
+        probabilities = planner.queryPosteriors(queryEvents, evidence);
+      } catch (RuntimeException e) {
+        // Answer the queries one by one, so that only the invalid ones fail.
+        for (int i = 0; i < size; i++) {
+          try {
+            answer(i, planner.queryProbabilityWithEvidence(
+                queryEvents.get(i), evidence), null);
+          } catch (RuntimeException queryException) {
+            answer(i, null, queryException);
+          }
+        }
+        return;
+      }
+      for (int i = 0; i < size; i++) {
+        answer(i, probabilities.get(i), null);
+      }
+    }
+
+    /**
+     * Fails every query of the batch with the given exception.
+     */
+    void fail(Throwable error) {
+      fail(close(), error);
+    }
+
+    /**
+     * Fails every query among the first given number that has not been
+     * answered yet.
+     */
+    private void fail(int size, Throwable error) {
+      for (int i = 0; i < size; i++) {
+        answer(i, null, error);
+      }
+    }
+
+    /**
+     * Completes the result of the query at the given index with the given
+     * probability, or with the given error if it is not null, unless the
+     * result is already complete.  Only the thread running the batch
+     * completes its results, so each permit is released exactly once.
+     */
+    private void answer(int index, Double probability, Throwable error) {
+      CompletableFuture<Double> result = results.get(index);
+      if (result.isDone()) {
+        return;
+      }
+      finish(requests.get(index), result);
+      if (error != null) {
+        result.completeExceptionally(error);
+      } else {
+        result.complete(probability);
+      }
+    }
+  }
+
+  /**
+   * A query and its evidence, as submitted.
+   */
+  @AutoValue
+  abstract static class Request {
+    abstract Event getQuery();
+
+    abstract Event getEvidence();
+
+    static Request of(Event query, Event evidence) {
+      return new AutoValue_QueryService_Request(query, evidence);
+    }
+  }
+
+  /**
+   * Creates a builder for a service answering queries with the given
+   * planner.
+   */
+  public static Builder builder(QueryPlanner planner) {
+    return new Builder(Preconditions.checkNotNull(planner));
+  }
+
+  /**
+   * A mutable builder for constructing instances of {@link QueryService}.
+   */
+  public static final class Builder {
+    private final QueryPlanner planner;
+    private Executor executor = ForkJoinPool.commonPool();
+    private int maxBatchSize = 64;
+    private int maxPending = 1024;
+
+    private Builder(QueryPlanner planner) {
+      this.planner = planner;
+    }
+
+    /**
+     * Sets the executor that batches run on.  Defaults to the common
+     * {@link ForkJoinPool}.
+     */
+    public Builder setExecutor(Executor executor) {
+      this.executor = Preconditions.checkNotNull(executor);
+      return this;
+    }
+
+    /**
+     * Sets the most queries answered in one batch.  Defaults to 64.
+     */
+    public Builder setMaxBatchSize(int maxBatchSize) {
+      Preconditions.checkArgument(maxBatchSize > 0,
+          "The maximum batch size must be positive");
+      this.maxBatchSize = maxBatchSize;
+      return this;
+    }
+
+    /**
+     * Sets the most distinct queries that may be waiting or running at once.
+     * Defaults to 1024.
+     */
+    public Builder setMaxPending(int maxPending) {
+      Preconditions.checkArgument(maxPending > 0,
+          "The maximum number of pending queries must be positive");
+      this.maxPending = maxPending;
+      return this;
+    }
+
+    public QueryService build() {
+      return new QueryService(this);
+    }
+  }
+}
@@ -0,0 +1,294 @@
+package com.example.ai.bayes;
+
+import com.example.ai.bayes.Event.AndClause;
+import com.google.auto.value.AutoValue;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicates;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimaps;
+import com.google.common.collect.Sets;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reduces a {@link BayesNetwork} to the part that a query actually depends
+ * on, given its evidence, so that inference only runs on that part.
+ *
+ * <p> A variable is observed if the evidence is a single clause that fixes
+ * it to one value and the query does not constrain it.  Starting from the
+ * variables of the query and the other evidence, the Bayes-Ball algorithm
+ * (Shachter, 1998) finds the distributions that the answer depends on and
+ * the observations that matter:
+ *
+ * <ul>
+ * <li> Barren variables, which have no observed or queried descendants, are
+ *      dropped, as are variables that the observations d-separate from the
+ *      query.
+ * <li> Observations that are d-separated from the query are dropped from the
+ *      evidence.
+ * <li> Each observation is absorbed into the tables of its children, which
+ *      no longer depend on it.  An observed variable whose own distribution
+ *      does not matter is then dropped along with its evidence.
+ * </ul>
+ *
+ * <p> The reduced network gives the same probability of the query given the
+ * evidence, under any {@link InferenceEngine}.  Reductions depend only on
+ * which variables are constrained and on the observed values, so they are
+ * cached per such pattern, and queries that share one are reduced once.
+ *
+ * <p> A reducer may be shared between threads.
+ */
+public final class RelevanceReducer {
+  /** The default number of reductions to keep. */
+  private static final long DEFAULT_CACHE_SIZE = 1000;
+
+  private final BayesNetwork network;
+  private final LoadingCache<Pattern, Reduced> reductions;
+
+  private RelevanceReducer(BayesNetwork network, long cacheSize) {
+    this.network = network;
+    this.reductions = CacheBuilder.newBuilder()
+        .maximumSize(cacheSize)
+        .build(new CacheLoader<Pattern, Reduced>() {
+          @Override
+          public Reduced load(Pattern pattern) {
+            return reduce(pattern);
+          }
+        });
+  }
+
+  /**
+   * Creates a reducer for the given network that keeps up to a thousand
+   * reductions.
+   */
+  public static RelevanceReducer create(BayesNetwork network) {
+    return new RelevanceReducer(network, DEFAULT_CACHE_SIZE);
+  }
+
+  /**
+   * Creates a reducer for the given network that keeps up to the given number
+   * of reductions.
+   */
+  public static RelevanceReducer create(BayesNetwork network, long cacheSize) {
+    Preconditions.checkArgument(cacheSize >= 0,
+        "The cache size must not be negative");
+    return new RelevanceReducer(network, cacheSize);
+  }
+
+  public BayesNetwork getNetwork() {
+    return network;
+  }
+
+  /**
+   * Computes the probability of an {@link Event}, conditioned on evidence
+   * from another event, on the reduced network.
+   */
+  public double queryProbabilityWithEvidence(Event queryEvent, Event evidence) {
+    Reduction reduction = reduce(queryEvent, evidence);
+    return reduction.getNetwork().queryProbabilityWithEvidence(
+        reduction.getQuery(), reduction.getEvidence());
+  }
+
+  /**
+   * Computes the probability of an {@link Event}, conditioned on evidence
+   * from another event, on the reduced network using the given
+   * {@link InferenceEngine}.
+   */
+  public double queryProbabilityWithEvidence(
+      Event queryEvent, Event evidence, InferenceEngine engine) {
+    Reduction reduction = reduce(queryEvent, evidence);
+    return reduction.getNetwork().queryProbabilityWithEvidence(
+        reduction.getQuery(), reduction.getEvidence(), engine);
+  }
+
+  /**
+   * Reduces the network to the part needed to compute the probability of the
+   * query given the evidence, and rewrites both events for it.
+   */
+  public Reduction reduce(Event queryEvent, Event evidence) {
+    Event query = network.simplify(queryEvent).getEvent();
+    Event simplifiedEvidence = network.simplify(evidence).getEvent();
+    Set<String> constrained = Sets.newHashSet();
+    for (AndClause andClause : query.getAndClauses()) {
+      constrained.addAll(andClause.getConditions().keySet());
+    }
+
+    // Only a single clause observes anything; the variables of any other
+    // evidence are treated like those of the query.
+    Map<String, String> observations = Maps.newHashMap();
+    if (simplifiedEvidence.getAndClauses().size() == 1) {
+      AndClause andClause = simplifiedEvidence.getAndClauses().get(0);
+      for (String variable : andClause.getConditions().keySet()) {
+        ImmutableSet<String> allowed = network.getAllowedValues(
+            variable, andClause.getConditions().get(variable));
+        if (allowed.size() == 1 && !constrained.contains(variable)) {
+          observations.put(variable, allowed.iterator().next());
+        }
+      }
+    }
+    for (AndClause andClause : simplifiedEvidence.getAndClauses()) {
+      for (String variable : andClause.getConditions().keySet()) {
+        if (!observations.containsKey(variable)) {
+          constrained.add(variable);
+        }
+      }
+    }
+
+    Reduced reduced = reductions.getUnchecked(Pattern.of(
+        ImmutableSet.copyOf(constrained), ImmutableMap.copyOf(observations)));
+    List<AndClause> evidenceClauses = Lists.newArrayList();
+    for (AndClause andClause : simplifiedEvidence.getAndClauses()) {
+      evidenceClauses.add(AndClause.of(Multimaps.filterKeys(
+          andClause.getConditions(),
+          Predicates.not(Predicates.in(reduced.droppedEvidence)))));
+    }
+    return Reduction.of(reduced.network, query,
+        Event.fromAndClauses(evidenceClauses));
+  }
+
+  /**
+   * Runs Bayes-Ball from the constrained variables of a pattern, and builds
+   * the network of the distributions it marks as needed.
+   */
+  private Reduced reduce(Pattern pattern) {
+    Topology topology = network.getTopology();
+    int size = topology.size();
+    boolean[] observed = new boolean[size];
+    for (String variable : pattern.getObservations().keySet()) {
+      observed[topology.indexOf(variable)] = true;
+    }
+
+    // The top mark means a variable's distribution is needed, and the bottom
+    // mark means that its children have been visited.
+    boolean[] top = new boolean[size];
+    boolean[] bottom = new boolean[size];
+    Deque<Integer> fromChild = new ArrayDeque<Integer>();
+    Deque<Integer> fromParent = new ArrayDeque<Integer>();
+    for (String variable : pattern.getConstrainedVariables()) {
+      fromChild.add(topology.indexOf(variable));
+    }
+    while (!fromChild.isEmpty() || !fromParent.isEmpty()) {
+      boolean isFromChild = !fromChild.isEmpty();
+      int variable = isFromChild ? fromChild.remove() : fromParent.remove();
+      boolean passesUp = isFromChild ? !observed[variable] : observed[variable];
+      boolean passesDown = !observed[variable];
+      if (passesUp && !top[variable]) {
+        top[variable] = true;
+        for (int parent : topology.getParents(variable)) {
+          fromChild.add(parent);
+        }
+      }
+      if (passesDown && !bottom[variable]) {
+        bottom[variable] = true;
+        for (int child : topology.getChildren(variable)) {
+          fromParent.add(child);
+        }
+      }
+    }
+
+    BayesNetwork.Builder builder = BayesNetwork.builder();
+    ImmutableSet.Builder<String> droppedEvidence = ImmutableSet.builder();
+    for (int variable = 0; variable < size; variable++) {
+      String name = topology.getVariable(variable);
+      if (top[variable]) {
+        builder.add(absorb(network.getDistribution(name), pattern));
+      } else if (observed[variable]) {
+        droppedEvidence.add(name);
+      }
+    }
+    return new Reduced(builder.build(), droppedEvidence.build());
+  }
+
+  /**
+   * Fixes the observed parents of a distribution to their observed values,
+   * removing them from its parents.
+   */
+  private ConditionalDistribution absorb(
+      ConditionalDistribution distribution, Pattern pattern) {
+    ProbabilityTable table = distribution.getTable();
+    ImmutableList.Builder<String> parents = ImmutableList.builder();
+    ImmutableList<String> parentNames =
+        distribution.getParentVariableNames();
+    boolean changed = false;
+    // Restrict from the last parent, so that earlier positions stay valid.
+    for (int i = parentNames.size() - 1; i >= 0; i--) {
+      String value = pattern.getObservations().get(parentNames.get(i));
+      if (value != null) {
+        int ordinal = table.getDomains().get(i + 1).asList().indexOf(value);
+        table = table.restrict(i + 1, ordinal);
+        changed = true;
+      }
+    }
+    if (!changed) {
+      return distribution;
+    }
+    for (String parent : parentNames) {
+      if (!pattern.getObservations().containsKey(parent)) {
+        parents.add(parent);
+      }
+    }
+    return ConditionalDistribution.of(
+        distribution.getVariableName(), parents.build(), table);
+  }
+
+  /**
+   * A network reduced for a query, with the query and evidence to ask it.
+   * The query is simplified, and the evidence is simplified and stripped of
+   * the observations that were dropped.
+   */
+  @AutoValue
+  public abstract static class Reduction {
+    public abstract BayesNetwork getNetwork();
+
+    public abstract Event getQuery();
+
+    public abstract Event getEvidence();
+
+    static Reduction of(BayesNetwork network, Event query, Event evidence) {
+      return new AutoValue_RelevanceReducer_Reduction(
+          network, query, evidence);
+    }
+  }
+
+  /**
+   * What a reduction depends on: the variables that are constrained without
+   * being observed, and the observed value of each observed variable.
+   */
+  @AutoValue
+  abstract static class Pattern {
+    abstract ImmutableSet<String> getConstrainedVariables();
+
+    abstract ImmutableMap<String, String> getObservations();
+
+    static Pattern of(ImmutableSet<String> constrainedVariables,
+        ImmutableMap<String, String> observations) {
+      return new AutoValue_RelevanceReducer_Pattern(
+          constrainedVariables, observations);
+    }
+  }
+
+  /**
+   * A cached reduction: the reduced network and the observed variables whose
+   * evidence it no longer needs.
+   */
+  private static final class Reduced {
+    private final BayesNetwork network;
+    private final ImmutableSet<String> droppedEvidence;
+
+    Reduced(BayesNetwork network, ImmutableSet<String> droppedEvidence) {
+      this.network = network;
+      this.droppedEvidence = droppedEvidence;
+    }
+  }
+}
@@ -0,0 +1,645 @@
+package com.example.ai.bayes;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Ints;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Learns the structure of a {@link BayesNetwork} from data, by a local
+ * search over directed acyclic graphs that maximizes a
+ * {@link NetworkScore}.
+ *
+ * <p> The search starts from a network without edges and repeatedly makes
+ * the single change (adding, removing or reversing an edge) that most
+ * improves the score.  Plain hill climbing stops when no change improves
+ * the score.  With a tabu list, the search may also make changes that lower
+ * the score, but may not touch the most recently changed edges, and stops
+ * after as many changes in a row fail to beat the best structure seen; the
+ * best structure is returned.
+ *
+ * <p> The data is given as columns of value ordinals, one column per
+ * variable in the order the variables were added, as produced by
+ * {@link ForwardSampler#sampleColumns}.  Since the scores are decomposable,
+ * a change only alters the local scores of the variables whose parents it
+ * changes.  Local scores are cached for the whole search, so each step only
+ * computes the scores of new parent sets.  Those need a pass over the data
+ * to count the joint values of a set of variables, and the counts are cached
+ * by the set, so that families over the same variables (such as X given Y
+ * and Y given X) share one pass.  With a pool, the new local scores of each
+ * step are computed in parallel; the search itself is deterministic, so the
+ * result does not depend on the pool.
+ *
+ * <p> Once the structure is found, its probabilities are estimated by a
+ * {@link ParameterLearner}.  A learner is immutable and may be shared.
+ */
+public final class StructureLearner {
+  /** The number of records whose positions are computed at once. */
+  private static final int CHUNK_SIZE = 4096;
+
+  /** The most count entries kept in the cache of contingency tables. */
+  private static final long MAX_CACHED_COUNTS = 1 << 24;
+
+  private final ImmutableList<String> variables;
+  private final ImmutableList<ImmutableSet<String>> domains;
+  private final NetworkScore score;
+  private final double equivalentSampleSize;
+  private final int maxParents;
+  private final int maxIterations;
+  private final int tabuSize;
+  private final double pseudocount;
+  /** The pool to compute local scores in, or null to compute them inline. */
+  private final ForkJoinPool pool;
+
+  private StructureLearner(Builder builder) {
+    this.variables = ImmutableList.copyOf(builder.domains.keySet());
+    this.domains = ImmutableList.copyOf(builder.domains.values());
+    this.score = builder.score;
+    this.equivalentSampleSize = builder.equivalentSampleSize;
+    this.maxParents = builder.maxParents;
+    this.maxIterations = builder.maxIterations;
+    this.tabuSize = builder.tabuSize;
+    this.pseudocount = builder.pseudocount;
+    this.pool = builder.pool;
+  }
+
+  /**
+   * Gets the variables, in the order of the columns of the data.
+   */
+  public ImmutableList<String> getVariables() {
+    return variables;
+  }
+
+  /**
+   * Learns a network from the given columns of value ordinals.  The data
+   * must be complete.
+   *
+   * @throws IllegalArgumentException if there is not one column per
+   *         variable, if the columns differ in length or are empty, or if an
+   *         ordinal is out of range
+   */
+  public BayesNetwork learn(int[][] columns) {
+    Preconditions.checkArgument(columns.length == variables.size(),
+        "Expected %s columns but got %s", variables.size(), columns.length);
+    for (int i = 0; i < columns.length; i++) {
+      Preconditions.checkArgument(columns[i].length == columns[0].length,
+          "Columns differ in length");
+      int cardinality = domains.get(i).size();
+      for (int value : columns[i]) {
+        Preconditions.checkArgument(value >= 0 && value < cardinality,
+            "Value %s is out of range for %s", value, variables.get(i));
+      }
+    }
+    Preconditions.checkArgument(columns.length > 0 && columns[0].length > 0,
+        "There is no data");
+
+    int[][] parents = new Search(columns).run();
+
+    ParameterLearner.Builder builder =
+        ParameterLearner.builder().setPseudocount(pseudocount);
+    for (int i = 0; i < variables.size(); i++) {
+      String[] parentNames = new String[parents[i].length];
+      for (int j = 0; j < parentNames.length; j++) {
+        parentNames[j] = variables.get(parents[i][j]);
+      }
+      builder.addVariable(variables.get(i), domains.get(i), parentNames);
+    }
+    return builder.build().learn(rows(columns));
+  }
+
+  /**
+   * Views columns as rows, reusing one array for every row.
+   */
+  private static Iterable<int[]> rows(final int[][] columns) {
+    return new Iterable<int[]>() {
+      @Override
+      public Iterator<int[]> iterator() {
+        return new Iterator<int[]>() {
+          private final int[] row = new int[columns.length];
+          private int next = 0;
+
+          @Override
+          public boolean hasNext() {
+            return next < columns[0].length;
+          }
+
+          @Override
+          public int[] next() {
+            if (!hasNext()) {
+              throw new NoSuchElementException();
+            }
+            for (int i = 0; i < row.length; i++) {
+              row[i] = columns[i][next];
+            }
+            next++;
+            return row;
+          }
+
+          @Override
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+    };
+  }
+
+  private enum MoveType {
+    ADD, DELETE, REVERSE
+  }
+
+  /**
+   * A change to the edge from one variable to another, and the change in
+   * score that it makes.
+   */
+  private static final class Move {
+    final MoveType type;
+    final int from;
+    final int to;
+    double delta;
+
+    Move(MoveType type, int from, int to) {
+      this.type = type;
+      this.from = from;
+      this.to = to;
+    }
+  }
+
+  /**
+   * The state of one search over one data set.
+   */
+  private final class Search {
+    private final int[][] columns;
+    private final int[] cardinalities;
+    /** The sorted parents of each variable. */
+    private final int[][] parents;
+    private final double[] localScores;
+    /** Contingency tables, keyed by sorted sets of variables. */
+    private final LoadingCache<List<Integer>, long[]> counts;
+    /** Local scores, keyed by a variable followed by its sorted parents. */
+    private final Map<List<Integer>, Double> scores =
+        new ConcurrentHashMap<List<Integer>, Double>();
+    /** The edges changed most recently, as unordered pairs. */
+    private final Deque<Set<Integer>> tabu = new ArrayDeque<Set<Integer>>();
+
+    Search(int[][] columns) {
+      this.columns = columns;
+      this.cardinalities = new int[columns.length];
+      for (int i = 0; i < columns.length; i++) {
+        cardinalities[i] = domains.get(i).size();
+      }
+      this.parents = new int[columns.length][0];
+      this.localScores = new double[columns.length];
+      this.counts = CacheBuilder.newBuilder()
+          .maximumWeight(MAX_CACHED_COUNTS)
+          .weigher(new Weigher<List<Integer>, long[]>() {
+            @Override
+            public int weigh(List<Integer> key, long[] value) {
+              return value.length;
+            }
+          })
+          .build(new CacheLoader<List<Integer>, long[]>() {
+            @Override
+            public long[] load(List<Integer> key) {
+              return count(Ints.toArray(key));
+            }
+          });
+    }
+
+    /**
+     * Runs the search, returning the sorted parents of each variable.
+     */
+    int[][] run() {
+      double total = 0;
+      for (int i = 0; i < parents.length; i++) {
+        localScores[i] = getLocalScore(i, parents[i]);
+        total += localScores[i];
+      }
+      double bestTotal = total;
+      int[][] best = parents.clone();
+      int sinceBest = 0;
+
+      for (int iteration = 0; iteration < maxIterations; iteration++) {
+        List<Move> moves = getMoves();
+        prefetch(moves);
+        Move bestMove = null;
+        for (Move move : moves) {
+          move.delta = getDelta(move);
+          if (bestMove == null || move.delta > bestMove.delta) {
+            bestMove = move;
+          }
+        }
+        if (bestMove == null || (tabuSize == 0 && bestMove.delta <= 0)) {
+          break;
+        }
+
+        apply(bestMove);
+        total += bestMove.delta;
+        if (tabuSize > 0) {
+          tabu.addLast(ImmutableSet.of(bestMove.from, bestMove.to));
+          if (tabu.size() > tabuSize) {
+            tabu.removeFirst();
+          }
+        }
+        if (total > bestTotal) {
+          bestTotal = total;
+          best = parents.clone();
+          sinceBest = 0;
+        } else if (++sinceBest >= tabuSize) {
+          break;
+        }
+      }
+      return best;
+    }
+
+    /**
+     * Lists every change that keeps the graph acyclic, respects the limit on
+     * parents, and does not touch a tabu edge.
+     */
+    private List<Move> getMoves() {
+      int size = parents.length;
+      boolean[][] edges = new boolean[size][size];
+      List<List<Integer>> children = Lists.newArrayList();
+      for (int i = 0; i < size; i++) {
+        children.add(Lists.<Integer>newArrayList());
+      }
+      for (int child = 0; child < size; child++) {
+        for (int parent : parents[child]) {
+          edges[parent][child] = true;
+          children.get(parent).add(child);
+        }
+      }
+      boolean[][] reaches = getReachability(children);
+
+      List<Move> result = Lists.newArrayList();
+      for (int from = 0; from < size; from++) {
+        for (int to = 0; to < size; to++) {
+          if (from == to || tabu.contains(ImmutableSet.of(from, to))) {
+            continue;
+          }
+          if (edges[from][to]) {
+            result.add(new Move(MoveType.DELETE, from, to));
+            if (parents[from].length < maxParents
+                && !reachesOtherwise(children, reaches, from, to)) {
+              result.add(new Move(MoveType.REVERSE, from, to));
+            }
+          } else if (!edges[to][from] && parents[to].length < maxParents
+              && !reaches[to][from]) {
+            result.add(new Move(MoveType.ADD, from, to));
+          }
+        }
+      }
+      return result;
+    }
+
+    /**
+     * Checks whether there is a path from one variable to another other
+     * than the edge between them.
+     */
+    private boolean reachesOtherwise(List<List<Integer>> children,
+        boolean[][] reaches, int from, int to) {
+      for (int child : children.get(from)) {
+        if (child != to && reaches[child][to]) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * Computes which variables can reach which others along the edges,
+     * counting each variable as reaching itself.
+     */
+    private boolean[][] getReachability(List<List<Integer>> children) {
+      int size = children.size();
+      boolean[][] result = new boolean[size][size];
+      Deque<Integer> stack = new ArrayDeque<Integer>();
+      for (int start = 0; start < size; start++) {
+        result[start][start] = true;
+        stack.push(start);
+        while (!stack.isEmpty()) {
+          for (int child : children.get(stack.pop())) {
+            if (!result[start][child]) {
+              result[start][child] = true;
+              stack.push(child);
+            }
+          }
+        }
+      }
+      return result;
+    }
+
+    private double getDelta(Move move) {
+      switch (move.type) {
+        case ADD:
+          return getLocalScore(move.to, with(parents[move.to], move.from))
+              - localScores[move.to];
+        case DELETE:
+          return getLocalScore(move.to, without(parents[move.to], move.from))
+              - localScores[move.to];
+        case REVERSE:
+          return getLocalScore(move.to, without(parents[move.to], move.from))
+              - localScores[move.to]
+              + getLocalScore(move.from, with(parents[move.from], move.to))
+              - localScores[move.from];
+        default:
+          throw new AssertionError("Unhandled move type " + move.type);
+      }
+    }
+
+    private void apply(Move move) {
+      switch (move.type) {
+        case ADD:
+          parents[move.to] = with(parents[move.to], move.from);
+          break;
+        case DELETE:
+          parents[move.to] = without(parents[move.to], move.from);
+          break;
+        case REVERSE:
+          parents[move.to] = without(parents[move.to], move.from);
+          parents[move.from] = with(parents[move.from], move.to);
+          localScores[move.from] =
+              getLocalScore(move.from, parents[move.from]);
+          break;
+        default:
+          throw new AssertionError("Unhandled move type " + move.type);
+      }
+      localScores[move.to] = getLocalScore(move.to, parents[move.to]);
+    }
+
+    /**
+     * Computes the local scores that the given moves need and are not yet
+     * cached, in parallel if there is a pool.
+     */
+    private void prefetch(List<Move> moves) {
+      if (pool == null) {
+        return;
+      }
+      Map<List<Integer>, int[]> missing = Maps.newLinkedHashMap();
+      for (Move move : moves) {
+        int[] toParents = move.type == MoveType.ADD
+            ? with(parents[move.to], move.from)
+            : without(parents[move.to], move.from);
+        addIfMissing(missing, move.to, toParents);
+        if (move.type == MoveType.REVERSE) {
+          addIfMissing(missing, move.from, with(parents[move.from], move.to));
+        }
+      }
+      List<ForkJoinTask<?>> tasks = Lists.newArrayList();
+      for (final Map.Entry<List<Integer>, int[]> entry : missing.entrySet()) {
+        tasks.add(pool.submit(new Runnable() {
+          @Override
+          public void run() {
+            getLocalScore(entry.getKey().get(0), entry.getValue());
+          }
+        }));
+      }
+      for (ForkJoinTask<?> task : tasks) {
+        task.join();
+      }
+    }
+
+    private void addIfMissing(
+        Map<List<Integer>, int[]> missing, int variable, int[] parentSet) {
+      List<Integer> key = getKey(variable, parentSet);
+      if (!scores.containsKey(key)) {
+        missing.put(key, parentSet);
+      }
+    }
+
+    private List<Integer> getKey(int variable, int[] parentSet) {
+      int[] key = new int[parentSet.length + 1];
+      key[0] = variable;
+      System.arraycopy(parentSet, 0, key, 1, parentSet.length);
+      return Ints.asList(key);
+    }
+
+    /**
+     * Gets the local score of a variable with the given sorted parents,
+     * from the cache if possible.
+     */
+    private double getLocalScore(int variable, int[] parentSet) {
+      List<Integer> key = getKey(variable, parentSet);
+      Double cached = scores.get(key);
+      if (cached != null) {
+        return cached;
+      }
+      int[] family = with(parentSet, variable);
+      long[] familyCounts = counts.getUnchecked(Ints.asList(family));
+      double result = score.getLocalScore(
+          toTableLayout(family, familyCounts, variable),
+          cardinalities[variable], columns[0].length, equivalentSampleSize);
+      scores.put(key, result);
+      return result;
+    }
+
+    /**
+     * Rearranges the counts of a sorted set of variables so that the values
+     * of one of them change fastest, as in a {@link ProbabilityTable} for
+     * that variable.
+     */
+    private long[] toTableLayout(int[] set, long[] setCounts, int variable) {
+      int stride = 1;
+      for (int i = 0; set[i] != variable; i++) {
+        stride *= cardinalities[set[i]];
+      }
+      int cardinality = cardinalities[variable];
+      long[] result = new long[setCounts.length];
+      for (int index = 0; index < setCounts.length; index++) {
+        int value = (index / stride) % cardinality;
+        int row = index % stride + (index / (stride * cardinality)) * stride;
+        result[row * cardinality + value] = setCounts[index];
+      }
+      return result;
+    }
+
+    /**
+     * Counts the joint values of a sorted set of variables over all records,
+     * with the first variable changing fastest.
+     */
+    private long[] count(int[] set) {
+      int[] strides = new int[set.length];
+      int size = 1;
+      for (int i = 0; i < set.length; i++) {
+        strides[i] = size;
+        size = Math.multiplyExact(size, cardinalities[set[i]]);
+      }
+      long[] result = new long[size];
+      int records = columns[0].length;
+      int[] positions = new int[CHUNK_SIZE];
+      for (int start = 0; start < records; start += CHUNK_SIZE) {
+        int length = Math.min(CHUNK_SIZE, records - start);
+        Arrays.fill(positions, 0, length, 0);
+        for (int i = 0; i < set.length; i++) {
+          int[] column = columns[set[i]];
+          int stride = strides[i];
+          for (int j = 0; j < length; j++) {
+            positions[j] += column[start + j] * stride;
+          }
+        }
+        for (int j = 0; j < length; j++) {
+          result[positions[j]]++;
+        }
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Returns the sorted union of a sorted set and one more element.
+   */
+  private static int[] with(int[] set, int element) {
+    int[] result = Arrays.copyOf(set, set.length + 1);
+    result[set.length] = element;
+    Arrays.sort(result);
+    return result;
+  }
+
+  /**
+   * Returns a sorted set without the given element, which it must contain.
+   */
+  private static int[] without(int[] set, int element) {
+    int[] result = new int[set.length - 1];
+    int j = 0;
+    for (int value : set) {
+      if (value != element) {
+        result[j++] = value;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Creates a builder for a learner.
+   */
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * A mutable builder for constructing instances of
+   * {@link StructureLearner}.
+   */
+  public static final class Builder {
+    private final Map<String, ImmutableSet<String>> domains =
+        Maps.newLinkedHashMap();
+    private NetworkScore score = NetworkScore.BIC;
+    private double equivalentSampleSize = 1;
+    private int maxParents = 3;
+    private int maxIterations = Integer.MAX_VALUE;
+    private int tabuSize = 0;
+    private double pseudocount = 1;
+    private ForkJoinPool pool;
+
+    private Builder() {}
+
+    /**
+     * Adds a variable with the given values.
+     */
+    public Builder addVariable(String name, Iterable<String> values) {
+      ImmutableSet<String> domain = ImmutableSet.copyOf(values);
+      Preconditions.checkArgument(!domain.isEmpty(),
+          "%s must have at least one value", name);
+      Preconditions.checkArgument(!domains.containsKey(name),
+          "%s was already added", name);
+      domains.put(name, domain);
+      return this;
+    }
+
+    /**
+     * Sets the score to maximize.  The default is {@link NetworkScore#BIC}.
+     */
+    public Builder setScore(NetworkScore score) {
+      this.score = Preconditions.checkNotNull(score);
+      return this;
+    }
+
+    /**
+     * Sets the equivalent sample size of the prior of
+     * {@link NetworkScore#BDEU}.  The default is 1.
+     */
+    public Builder setEquivalentSampleSize(double equivalentSampleSize) {
+      Preconditions.checkArgument(equivalentSampleSize > 0,
+          "The equivalent sample size must be positive");
+      this.equivalentSampleSize = equivalentSampleSize;
+      return this;
+    }
+
+    /**
+     * Sets the most parents any variable may have.  The default is 3.
+     */
+    public Builder setMaxParents(int maxParents) {
+      Preconditions.checkArgument(maxParents >= 0,
+          "The maximum number of parents must not be negative");
+      this.maxParents = maxParents;
+      return this;
+    }
+
+    /**
+     * Sets the most changes the search may make.  There is no limit by
+     * default.
+     */
+    public Builder setMaxIterations(int maxIterations) {
+      Preconditions.checkArgument(maxIterations >= 0,
+          "The maximum number of iterations must not be negative");
+      this.maxIterations = maxIterations;
+      return this;
+    }
+
+    /**
+     * Sets the number of recently changed edges that may not be changed
+     * again, which is also the number of changes in a row that may fail to
+     * improve on the best structure before the search stops.  The default
+     * is zero, for plain hill climbing.
+     */
+    public Builder setTabuSize(int tabuSize) {
+      Preconditions.checkArgument(tabuSize >= 0,
+          "The tabu list size must not be negative");
+      this.tabuSize = tabuSize;
+      return this;
+    }
+
+    /**
+     * Sets the pseudocount used to estimate the probabilities of the learned
+     * structure (see {@link ParameterLearner.Builder#setPseudocount}).  The
+     * default is 1, so that parent configurations missing from the data
+     * still get probabilities.
+     */
+    public Builder setPseudocount(double pseudocount) {
+      Preconditions.checkArgument(pseudocount >= 0,
+          "The pseudocount must not be negative");
+      this.pseudocount = pseudocount;
+      return this;
+    }
+
+    /**
+     * Sets the pool in which local scores are computed.
+     */
+    public Builder setPool(ForkJoinPool pool) {
+      this.pool = Preconditions.checkNotNull(pool);
+      return this;
+    }
+
+    public StructureLearner build() {
+      return new StructureLearner(this);
+    }
+  }
+}
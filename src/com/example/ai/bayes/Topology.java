@@ -0,0 +1,207 @@
+package com.example.ai.bayes;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The structure of a {@link BayesNetwork}, precomputed when the network is
+ * built so that inference only needs array reads to navigate it.
+ *
+ * <p> Variables are identified by their index in
+ * {@link BayesNetwork#getConditionalDistributions}.  The arrays returned by
+ * this class are shared, and must not be modified.
+ */
+final class Topology {
+  private final ImmutableList<String> variables;
+  private final ImmutableMap<String, Integer> indices;
+  private final ImmutableList<ImmutableSet<String>> domains;
+  private final int[][] parents;
+  private final int[][] children;
+  private final int[] topologicalOrder;
+
+  private Topology(ImmutableList<String> variables,
+      ImmutableMap<String, Integer> indices,
+      ImmutableList<ImmutableSet<String>> domains, int[][] parents,
+      int[][] children, int[] topologicalOrder) {
+    this.variables = variables;
+    this.indices = indices;
+    this.domains = domains;
+    this.parents = parents;
+    this.children = children;
+    this.topologicalOrder = topologicalOrder;
+  }
+
+  /**
+   * Computes the topology of the given distributions.
+   *
+   * @throws IllegalArgumentException if a variable has more than one
+   *         distribution, if a parent has no distribution, or if the
+   *         distributions form a cycle
+   */
+  static Topology of(List<ConditionalDistribution> distributions) {
+    ImmutableList.Builder<String> variables = ImmutableList.builder();
+    Map<String, Integer> indices = Maps.newLinkedHashMap();
+    ImmutableList.Builder<ImmutableSet<String>> domains =
+        ImmutableList.builder();
+    for (int i = 0; i < distributions.size(); i++) {
+      String variable = distributions.get(i).getVariableName();
+      Preconditions.checkArgument(indices.put(variable, i) == null,
+          "Found more than one distribution for variable named %s", variable);
+      variables.add(variable);
+      domains.add(distributions.get(i).getValues());
+    }
+    ImmutableMap<String, Integer> indexMap = ImmutableMap.copyOf(indices);
+
+    int[][] parents = new int[distributions.size()][];
+    List<List<Integer>> childLists = Lists.newArrayList();
+    for (int i = 0; i < distributions.size(); i++) {
+      childLists.add(Lists.<Integer>newArrayList());
+    }
+    for (int i = 0; i < distributions.size(); i++) {
+      ImmutableList<String> parentNames =
+          distributions.get(i).getParentVariableNames();
+      parents[i] = new int[parentNames.size()];
+      for (int j = 0; j < parentNames.size(); j++) {
+        Integer parent = indexMap.get(parentNames.get(j));
+        Preconditions.checkArgument(parent != null,
+            "Could not find distribution for variable named %s",
+            parentNames.get(j));
+        parents[i][j] = parent;
+        childLists.get(parent).add(i);
+      }
+    }
+    int[][] children = new int[distributions.size()][];
+    for (int i = 0; i < distributions.size(); i++) {
+      children[i] = new int[childLists.get(i).size()];
+      for (int j = 0; j < children[i].length; j++) {
+        children[i][j] = childLists.get(i).get(j);
+      }
+    }
+
+    // Order the variables with Kahn's algorithm; any variable left over lies
+    // on a cycle.
+    int[] remainingParents = new int[distributions.size()];
+    Deque<Integer> ready = new ArrayDeque<Integer>();
+    for (int i = 0; i < distributions.size(); i++) {
+      remainingParents[i] = parents[i].length;
+      if (remainingParents[i] == 0) {
+        ready.add(i);
+      }
+    }
+    int[] topologicalOrder = new int[distributions.size()];
+    int count = 0;
+    while (!ready.isEmpty()) {
+      int variable = ready.remove();
+      topologicalOrder[count++] = variable;
+      for (int child : children[variable]) {
+        remainingParents[child]--;
+        if (remainingParents[child] == 0) {
+          ready.add(child);
+        }
+      }
+    }
+    if (count < distributions.size()) {
+      List<String> cyclic = Lists.newArrayList();
+      for (int i = 0; i < distributions.size(); i++) {
+        if (remainingParents[i] > 0) {
+          cyclic.add(distributions.get(i).getVariableName());
+        }
+      }
+      throw new IllegalArgumentException(
+          "The network contains a cycle through " + cyclic);
+    }
+
+    return new Topology(variables.build(), indexMap, domains.build(), parents,
+        children, topologicalOrder);
+  }
+
+  int size() {
+    return variables.size();
+  }
+
+  ImmutableList<String> getVariables() {
+    return variables;
+  }
+
+  String getVariable(int index) {
+    return variables.get(index);
+  }
+
+  /**
+   * Looks up the index of a variable by name.
+   */
+  int indexOf(String variable) {
+    Integer index = indices.get(variable);
+    if (index == null) {
+      throw new IllegalArgumentException(
+          "Could not find distribution for variable named " + variable);
+    }
+    return index;
+  }
+
+  boolean contains(String variable) {
+    return indices.containsKey(variable);
+  }
+
+  ImmutableSet<String> getDomain(int index) {
+    return domains.get(index);
+  }
+
+  int getCardinality(int index) {
+    return domains.get(index).size();
+  }
+
+  /**
+   * Gets the parents of a variable, in the order of
+   * {@link ConditionalDistribution#getParentVariableNames}.
+   */
+  int[] getParents(int index) {
+    return parents[index];
+  }
+
+  int[] getChildren(int index) {
+    return children[index];
+  }
+
+  /**
+   * Gets all variables, ordered so that every variable comes after its
+   * parents.
+   */
+  int[] getTopologicalOrder() {
+    return topologicalOrder;
+  }
+
+  // The topology is derived from the distributions, so two topologies are
+  // equal exactly when they describe the same variables, domains and edges.
+
+  @Override
+  public boolean equals(Object object) {
+    if (!(object instanceof Topology)) {
+      return false;
+    }
+    Topology other = (Topology) object;
+    return variables.equals(other.variables)
+        && domains.equals(other.domains)
+        && Arrays.deepEquals(parents, other.parents);
+  }
+
+  @Override
+  public int hashCode() {
+    return variables.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return "Topology" + variables;
+  }
+}
@@ -0,0 +1,224 @@
+package com.example.ai.bayes;
+
+import com.example.ai.bayes.Event.AndClause;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * An {@link InferenceEngine} that computes probabilities by variable
+ * elimination.
+ *
+ * <p> Each query starts from one {@link Factor} per relevant
+ * {@link ConditionalDistribution}.  Variables that are not ancestors of a
+ * variable mentioned in the query are barren (their distributions sum to one)
+ * and are pruned before any factor is built.  The remaining variables are
+ * summed out one at a time, in an order chosen by an
+ * {@link EliminationOrder}, so the cost of a query grows with the treewidth of
+ * the relevant part of the network rather than with its total size.
+ *
+ * <p> With {@link Numerics#LOG_SPACE}, every factor is rescaled as it is
+ * produced, so {@link #getLogProbability} stays accurate for clauses whose
+ * probability is far below the smallest double.
+ */
+public class VariableEliminationEngine implements InferenceEngine {
+  private final EliminationOrder eliminationOrder;
+  /** The pool to run factor operations in, or null to run sequentially. */
+  private final ForkJoinPool pool;
+  private final Numerics numerics;
+
+  private VariableEliminationEngine(EliminationOrder eliminationOrder,
+      ForkJoinPool pool, Numerics numerics) {
+    this.eliminationOrder = Preconditions.checkNotNull(eliminationOrder);
+    this.pool = pool;
+    this.numerics = Preconditions.checkNotNull(numerics);
+  }
+
+  /**
+   * Creates an engine that eliminates variables in the order chosen by the
+   * given heuristic.
+   */
+  public static VariableEliminationEngine withOrder(
+      EliminationOrder eliminationOrder) {
+    return new VariableEliminationEngine(
+        eliminationOrder, null, Numerics.PLAIN);
+  }
+
+  /**
+   * Creates an engine that eliminates variables in the order chosen by the
+   * given heuristic, splitting products and sums over large factors into
+   * tasks run in the given pool.
+   */
+  public static VariableEliminationEngine withOrder(
+      EliminationOrder eliminationOrder, ForkJoinPool pool) {
+    return new VariableEliminationEngine(
+        eliminationOrder, Preconditions.checkNotNull(pool), Numerics.PLAIN);
+  }
+
+  /**
+   * Creates a copy of this engine that represents intermediate results as
+   * given.  Engines use {@link Numerics#PLAIN} by default.
+   */
+  public VariableEliminationEngine withNumerics(Numerics numerics) {
+    return new VariableEliminationEngine(eliminationOrder, pool, numerics);
+  }
+
+  public EliminationOrder getEliminationOrder() {
+    return eliminationOrder;
+  }
+
+  public Numerics getNumerics() {
+    return numerics;
+  }
+
+  @Override
+  public double getProbability(BayesNetwork network, AndClause andClause) {
+    return computeProbability(network, andClause).getScalarValue();
+  }
+
+  @Override
+  public double getLogProbability(BayesNetwork network, AndClause andClause) {
+    return computeProbability(network, andClause).getLogScalarValue();
+  }
+
+  /**
+   * Computes the probability of the given clause, as a factor with no
+   * variables.
+   */
+  private Factor computeProbability(
+      BayesNetwork network, AndClause andClause) {
+    Map<String, boolean[]> allowedValues = Maps.newHashMap();
+    for (String variable : andClause.getConditions().keySet()) {
+      ImmutableList<String> domain = network.getValues(variable).asList();
+      ImmutableSet<String> allowed = network.getAllowedValues(
+          variable, andClause.getConditions().get(variable));
+      if (allowed.isEmpty()) {
+        // There's no way to satisfy the given conditions, so the probability
+        // is zero.
+        return Factor.scalar(0d);
+      }
+      boolean[] mask = new boolean[domain.size()];
+      for (int i = 0; i < mask.length; i++) {
+        mask[i] = allowed.contains(domain.get(i));
+      }
+      allowedValues.put(variable, mask);
+    }
+
+    QueryRecorder recorder = QueryRecorder.current();
+    List<Factor> factors = Lists.newArrayList();
+    for (String variable
+        : getAncestors(network, andClause.getConditions().keySet())) {
+      Factor factor =
+          Factor.fromDistribution(network.getDistribution(variable));
+      if (recorder != null) {
+        recorder.addTableLookups(factor.size());
+        recorder.addFactor(factor.size());
+      }
+      for (String factorVariable : factor.getVariables()) {
+        if (allowedValues.containsKey(factorVariable)) {
+          factor = factor.restrict(
+              factorVariable, allowedValues.get(factorVariable));
+        }
+      }
+      factors.add(factor);
+    }
+
+    return eliminateAll(factors, recorder);
+  }
+
+  /**
+   * Sums out every variable from the given factors, returning the resulting
+   * factor with no variables.
+   *
+   * @param recorder the recorder to add the size of each product to, or null
+   */
+  private Factor eliminateAll(List<Factor> factors, QueryRecorder recorder) {
+    Map<String, Set<String>> graph = Maps.newHashMap();
+    Map<String, Integer> cardinalities = Maps.newHashMap();
+    for (Factor factor : factors) {
+      for (String variable : factor.getVariables()) {
+        cardinalities.put(variable, factor.getCardinality(variable));
+        if (!graph.containsKey(variable)) {
+          graph.put(variable, Sets.<String>newHashSet());
+        }
+        for (String neighbour : factor.getVariables()) {
+          if (!neighbour.equals(variable)) {
+            graph.get(variable).add(neighbour);
+          }
+        }
+      }
+    }
+
+    while (!graph.isEmpty()) {
+      String next = eliminationOrder.chooseNext(graph, cardinalities);
+
+      Factor product = Factor.scalar(1d);
+      for (Iterator<Factor> it = factors.iterator(); it.hasNext();) {
+        Factor factor = it.next();
+        if (factor.getVariables().contains(next)) {
+          product = rescale(product.product(factor, pool));
+          it.remove();
+        }
+      }
+      if (recorder != null) {
+        recorder.addConfigurations(product.size());
+        recorder.addFactor(product.size());
+      }
+      factors.add(rescale(product.sumOut(next, pool)));
+
+      // Connect the neighbours of the eliminated variable to each other, as
+      // they now share the new factor.
+      Set<String> neighbours = graph.remove(next);
+      for (String neighbour : neighbours) {
+        graph.get(neighbour).remove(next);
+        graph.get(neighbour).addAll(neighbours);
+        graph.get(neighbour).remove(neighbour);
+      }
+    }
+
+    Factor result = Factor.scalar(1d);
+    for (Factor factor : factors) {
+      result = rescale(result.product(factor));
+    }
+    return result;
+  }
+
+  private Factor rescale(Factor factor) {
+    return numerics == Numerics.LOG_SPACE ? factor.rescale() : factor;
+  }
+
+  /**
+   * Gets the given variables together with all of their ancestors.  Any other
+   * variable is barren with respect to a query on the given variables.
+   */
+  private static Set<String> getAncestors(
+      BayesNetwork network, Set<String> variables) {
+    Topology topology = network.getTopology();
+    Set<String> result = Sets.newLinkedHashSet();
+    Deque<Integer> queue = new ArrayDeque<Integer>();
+    for (String variable : variables) {
+      queue.add(topology.indexOf(variable));
+    }
+    while (!queue.isEmpty()) {
+      int variable = queue.remove();
+      if (result.add(topology.getVariable(variable))) {
+        for (int parent : topology.getParents(variable)) {
+          queue.add(parent);
+        }
+      }
+    }
+    return result;
+  }
+
+}
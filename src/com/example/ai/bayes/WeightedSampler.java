@@ -0,0 +1,128 @@
+package com.example.ai.bayes;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.BitSet;
+import java.util.SplittableRandom;
+
+/**
+ * Draws assignments to the variables of a {@link BayesNetwork} in
+ * topological order, with the variables constrained by a clause of evidence
+ * restricted to their allowed values.  Each assignment is weighted by the
+ * likelihood of the evidence given the values drawn before it.
+ *
+ * <p> Without evidence, this is plain forward sampling and every weight is
+ * one.  Once created, a sampler allocates nothing.
+ */
+final class WeightedSampler {
+  private final int[] order;
+  private final int[][] parents;
+  private final ProbabilityTable[] tables;
+  /** The stride of each variable, then of each parent, in each table. */
+  private final int[][] strides;
+  private final int[] cardinalities;
+  /** The allowed values of each variable, or null if unconstrained. */
+  private final boolean[][] allowedValues;
+
+  private WeightedSampler(int[] order, int[][] parents,
+      ProbabilityTable[] tables, int[][] strides, int[] cardinalities,
+      boolean[][] allowedValues) {
+    this.order = order;
+    this.parents = parents;
+    this.tables = tables;
+    this.strides = strides;
+    this.cardinalities = cardinalities;
+    this.allowedValues = allowedValues;
+  }
+
+  /**
+   * Creates a sampler over the given network.
+   *
+   * @param evidence the clause to weight assignments by, or null for none
+   */
+  static WeightedSampler create(BayesNetwork network, ClauseMask evidence) {
+    Topology topology = network.getTopology();
+    ImmutableList<ConditionalDistribution> distributions =
+        network.getConditionalDistributions();
+    int size = topology.size();
+    int[][] parents = new int[size][];
+    ProbabilityTable[] tables = new ProbabilityTable[size];
+    int[][] strides = new int[size][];
+    int[] cardinalities = new int[size];
+    boolean[][] allowedValues = new boolean[size][];
+    for (int i = 0; i < size; i++) {
+      ProbabilityTable table = distributions.get(i).getTable();
+      parents[i] = topology.getParents(i);
+      tables[i] = table;
+      strides[i] = new int[parents[i].length + 1];
+      for (int j = 0; j < strides[i].length; j++) {
+        strides[i][j] = table.getStride(j);
+      }
+      cardinalities[i] = topology.getCardinality(i);
+      BitSet allowed = evidence == null ? null : evidence.getAllowedValues(i);
+      if (allowed != null) {
+        allowedValues[i] = new boolean[cardinalities[i]];
+        for (int value = allowed.nextSetBit(0); value >= 0;
+            value = allowed.nextSetBit(value + 1)) {
+          allowedValues[i][value] = true;
+        }
+      }
+    }
+    return new WeightedSampler(topology.getTopologicalOrder(), parents,
+        tables, strides, cardinalities, allowedValues);
+  }
+
+  /**
+   * Draws an assignment of value ordinals into the given array, indexed by
+   * variable.
+   *
+   * @return the weight of the assignment; if it is zero, the assignment may
+   *         be incomplete
+   */
+  double sample(SplittableRandom random, int[] assignment) {
+    double weight = 1d;
+    for (int variable : order) {
+      ProbabilityTable table = tables[variable];
+      int[] tableStrides = strides[variable];
+      int[] variableParents = parents[variable];
+      int offset = 0;
+      for (int j = 0; j < variableParents.length; j++) {
+        offset += assignment[variableParents[j]] * tableStrides[j + 1];
+      }
+      int stride = tableStrides[0];
+      int last = cardinalities[variable] - 1;
+      boolean[] allowed = allowedValues[variable];
+
+      double total = 1d;
+      if (allowed != null) {
+        total = 0d;
+        for (int value = 0; value <= last; value++) {
+          if (allowed[value]) {
+            total += table.get(offset + value * stride);
+          }
+        }
+        weight *= total;
+        if (total == 0d) {
+          return 0d;
+        }
+      }
+
+      // Walk the row until the draw is used up, skipping values ruled out by
+      // the evidence.  Rounding can leave a little of the draw at the end, so
+      // the last allowed value takes whatever remains.
+      double remaining = random.nextDouble() * total;
+      int chosen = -1;
+      for (int value = 0; value <= last; value++) {
+        if (allowed == null || allowed[value]) {
+          chosen = value;
+          remaining -= table.get(offset + value * stride);
+          if (remaining < 0d) {
+            break;
+          }
+        }
+      }
+      assignment[variable] = chosen;
+    }
+    return weight;
+  }
+}
@@ -0,0 +1,353 @@
+package com.example.ai.bayes;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Doubles;
+import com.google.common.primitives.ImmutableDoubleArray;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Reads and writes {@link BayesNetwork}s in XMLBIF, the XML version of the
+ * Bayesian Interchange Format.
+ *
+ * <p> Each {@code TABLE} lists the entries row by row, with the variable's
+ * values changing fastest and the {@code GIVEN} variables following with the
+ * last one changing fastest.  Properties are ignored.
+ *
+ * <p> The reader pulls events from a streaming XML parser, so the document is
+ * never held in memory, and variable and value names are interned so each
+ * distinct name is held once.  Text is read straight from the parser's
+ * character buffer into one reused {@link StringBuilder}, so a table is
+ * parsed number by number without first being copied into a string.
+ * Document type declarations are not processed.
+ */
+public final class XmlBifFormat {
+  private XmlBifFormat() {}
+
+  /**
+   * Reads a network.  Every variable must be declared before the
+   * definitions that mention it.
+   *
+   * @throws IOException if the input cannot be read or is not valid XMLBIF
+   * @throws IllegalArgumentException if the input describes an invalid
+   *         network, such as one with a cycle
+   */
+  public static BayesNetwork read(InputStream input) throws IOException {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(
+        XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    try {
+      XMLStreamReader reader = factory.createXMLStreamReader(input);
+      try {
+        return read(reader);
+      } finally {
+        reader.close();
+      }
+    } catch (XMLStreamException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private static BayesNetwork read(XMLStreamReader reader)
+      throws IOException, XMLStreamException {
+    Interner<String> names = Interners.newStrongInterner();
+    StringBuilder text = new StringBuilder();
+    Map<String, ImmutableSet<String>> domains = Maps.newLinkedHashMap();
+    Map<String, ConditionalDistribution> distributions = Maps.newHashMap();
+    while (reader.hasNext()) {
+      if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+        continue;
+      }
+      String tag = reader.getLocalName();
+      if (tag.equalsIgnoreCase("VARIABLE")) {
+        readVariable(reader, names, text, domains);
+      } else if (tag.equalsIgnoreCase("DEFINITION")
+          || tag.equalsIgnoreCase("PROBABILITY")) {
+        ConditionalDistribution distribution =
+            readDefinition(reader, names, text, domains);
+        if (distributions.put(distribution.getVariableName(), distribution)
+            != null) {
+          throw error(reader, "Duplicate definitions for "
+              + distribution.getVariableName());
+        }
+      }
+    }
+
+    BayesNetwork.Builder builder = BayesNetwork.builder();
+    for (String variable : domains.keySet()) {
+      ConditionalDistribution distribution = distributions.get(variable);
+      if (distribution == null) {
+        throw new IOException("No definition for variable " + variable);
+      }
+      builder.add(distribution);
+    }
+    return builder.build();
+  }
+
+  private static void readVariable(XMLStreamReader reader,
+      Interner<String> names, StringBuilder text,
+      Map<String, ImmutableSet<String>> domains)
+      throws IOException, XMLStreamException {
+    String name = null;
+    ImmutableSet.Builder<String> values = ImmutableSet.builder();
+    int count = 0;
+    for (String tag = nextChild(reader); tag != null;
+        tag = nextChild(reader)) {
+      if (tag.equalsIgnoreCase("NAME")) {
+        name = readName(reader, names, text);
+      } else if (tag.equalsIgnoreCase("OUTCOME")
+          || tag.equalsIgnoreCase("VALUE")) {
+        values.add(readName(reader, names, text));
+        count++;
+      } else {
+        skipElement(reader);
+      }
+    }
+    ImmutableSet<String> domain = values.build();
+    if (name == null || domain.isEmpty()) {
+      throw error(reader, "Expected a name and outcomes");
+    } else if (domain.size() != count) {
+      throw error(reader, "Duplicate outcomes for " + name);
+    } else if (domains.put(name, domain) != null) {
+      throw error(reader, "Duplicate variable " + name);
+    }
+  }
+
+  private static ConditionalDistribution readDefinition(
+      XMLStreamReader reader, Interner<String> names, StringBuilder text,
+      Map<String, ImmutableSet<String>> domains)
+      throws IOException, XMLStreamException {
+    String name = null;
+    List<String> parents = Lists.newArrayList();
+    double[] rows = null;
+    for (String tag = nextChild(reader); tag != null;
+        tag = nextChild(reader)) {
+      if (tag.equalsIgnoreCase("FOR")) {
+        name = readName(reader, names, text);
+      } else if (tag.equalsIgnoreCase("GIVEN")) {
+        parents.add(readName(reader, names, text));
+      } else if (tag.equalsIgnoreCase("TABLE")) {
+        rows = readNumbers(reader, text);
+      } else {
+        skipElement(reader);
+      }
+    }
+    if (name == null || rows == null) {
+      throw error(reader, "Expected a variable and a table");
+    }
+
+    ImmutableList.Builder<ImmutableSet<String>> tableDomains =
+        ImmutableList.builder();
+    tableDomains.add(getDomain(reader, domains, name));
+    int size = domains.get(name).size();
+    for (String parent : parents) {
+      tableDomains.add(getDomain(reader, domains, parent));
+      size = Math.multiplyExact(size, domains.get(parent).size());
+    }
+
+    if (rows.length != size) {
+      throw error(reader,
+          "Expected " + size + " numbers in the table for " + name);
+    }
+    return ConditionalDistribution.of(name, ImmutableList.copyOf(parents),
+        ProbabilityTable.fromRows(tableDomains.build(), rows));
+  }
+
+  /**
+   * Reads the text of the current element, which must not contain other
+   * elements, and returns it trimmed and interned.
+   */
+  private static String readName(XMLStreamReader reader,
+      Interner<String> names, StringBuilder text)
+      throws IOException, XMLStreamException {
+    text.setLength(0);
+    while (true) {
+      int event = reader.next();
+      if (isText(event)) {
+        text.append(reader.getTextCharacters(), reader.getTextStart(),
+            reader.getTextLength());
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        return names.intern(text.toString().trim());
+      } else if (event == XMLStreamConstants.START_ELEMENT) {
+        throw error(reader, "Unexpected element " + reader.getLocalName());
+      }
+    }
+  }
+
+  /**
+   * Reads the whitespace-separated numbers of the current element, which
+   * must not contain other elements.  The characters of each number are
+   * collected in the given builder, since a number may be split between
+   * text events.
+   */
+  private static double[] readNumbers(XMLStreamReader reader,
+      StringBuilder number) throws IOException, XMLStreamException {
+    ImmutableDoubleArray.Builder values = ImmutableDoubleArray.builder();
+    number.setLength(0);
+    while (true) {
+      int event = reader.next();
+      if (isText(event)) {
+        char[] characters = reader.getTextCharacters();
+        int end = reader.getTextStart() + reader.getTextLength();
+        for (int i = reader.getTextStart(); i < end; i++) {
+          if (Character.isWhitespace(characters[i])) {
+            addNumber(reader, number, values);
+          } else {
+            number.append(characters[i]);
+          }
+        }
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        addNumber(reader, number, values);
+        return values.build().toArray();
+      } else if (event == XMLStreamConstants.START_ELEMENT) {
+        throw error(reader, "Unexpected element " + reader.getLocalName());
+      }
+    }
+  }
+
+  /**
+   * Parses the number collected in the given builder, if any, and clears the
+   * builder.
+   */
+  private static void addNumber(XMLStreamReader reader, StringBuilder number,
+      ImmutableDoubleArray.Builder values) throws IOException {
+    if (number.length() == 0) {
+      return;
+    }
+    Double value = Doubles.tryParse(number.toString());
+    if (value == null) {
+      throw error(reader, "Invalid number " + number);
+    }
+    values.add(value);
+    number.setLength(0);
+  }
+
+  private static boolean isText(int event) {
+    return event == XMLStreamConstants.CHARACTERS
+        || event == XMLStreamConstants.CDATA
+        || event == XMLStreamConstants.SPACE;
+  }
+
+  private static ImmutableSet<String> getDomain(XMLStreamReader reader,
+      Map<String, ImmutableSet<String>> domains, String variable)
+      throws IOException {
+    ImmutableSet<String> domain = domains.get(variable);
+    if (domain == null) {
+      throw error(reader, "Undeclared variable " + variable);
+    }
+    return domain;
+  }
+
+  /**
+   * Advances to the next child of the current element, returning its name,
+   * or returns null after reaching the end of the current element.
+   */
+  private static String nextChild(XMLStreamReader reader)
+      throws XMLStreamException {
+    int event = reader.nextTag();
+    return event == XMLStreamConstants.START_ELEMENT
+        ? reader.getLocalName() : null;
+  }
+
+  private static void skipElement(XMLStreamReader reader)
+      throws XMLStreamException {
+    int depth = 1;
+    while (depth > 0) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        depth++;
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        depth--;
+      }
+    }
+  }
+
+  private static IOException error(XMLStreamReader reader, String message) {
+    return new IOException(
+        "Line " + reader.getLocation().getLineNumber() + ": " + message);
+  }
+
+  /**
+   * Writes a network.
+   */
+  public static void write(BayesNetwork network, OutputStream output)
+      throws IOException {
+    try {
+      XMLStreamWriter writer =
+          XMLOutputFactory.newInstance().createXMLStreamWriter(output, "UTF-8");
+      writer.writeStartDocument("UTF-8", "1.0");
+      writer.writeCharacters("\n");
+      writer.writeStartElement("BIF");
+      writer.writeAttribute("VERSION", "0.3");
+      writer.writeCharacters("\n");
+      writer.writeStartElement("NETWORK");
+      writer.writeCharacters("\n");
+      writeElement(writer, "NAME", "unknown");
+      for (String variable : network.getVariables()) {
+        writer.writeStartElement("VARIABLE");
+        writer.writeAttribute("TYPE", "nature");
+        writer.writeCharacters("\n");
+        writeElement(writer, "NAME", variable);
+        for (String value : network.getValues(variable)) {
+          writeElement(writer, "OUTCOME", value);
+        }
+        writer.writeEndElement();
+        writer.writeCharacters("\n");
+      }
+      for (ConditionalDistribution distribution
+          : network.getConditionalDistributions()) {
+        writer.writeStartElement("DEFINITION");
+        writer.writeCharacters("\n");
+        writeElement(writer, "FOR", distribution.getVariableName());
+        for (String parent : distribution.getParentVariableNames()) {
+          writeElement(writer, "GIVEN", parent);
+        }
+        StringBuilder table = new StringBuilder();
+        for (double value : distribution.getTable().toRows()) {
+          if (table.length() > 0) {
+            table.append(' ');
+          }
+          table.append(value);
+        }
+        writeElement(writer, "TABLE", table.toString());
+        writer.writeEndElement();
+        writer.writeCharacters("\n");
+      }
+      writer.writeEndElement();
+      writer.writeCharacters("\n");
+      writer.writeEndElement();
+      writer.writeCharacters("\n");
+      writer.writeEndDocument();
+      writer.close();
+      output.flush();
+    } catch (XMLStreamException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private static void writeElement(XMLStreamWriter writer, String tag,
+      String text) throws XMLStreamException {
+    writer.writeCharacters("  ");
+    writer.writeStartElement(tag);
+    writer.writeCharacters(text);
+    writer.writeEndElement();
+    writer.writeCharacters("\n");
+  }
+}
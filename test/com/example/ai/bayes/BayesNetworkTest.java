@@ -4,6 +4,14 @@ import static com.example.ai.bayes.Event.and;
 import static com.example.ai.bayes.Event.not;
 import static com.example.ai.bayes.Event.or;
 import static com.example.ai.bayes.Event.varEquals;
+
+import com.example.ai.bayes.QueryPlan.Strategy;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import java.util.Arrays;
+import java.util.List;
+
 import junit.framework.TestCase;
 
 public class BayesNetworkTest extends TestCase {
@@ -206,4 +214,180 @@ public class BayesNetworkTest extends TestCase {
         or(varEquals("Z", "Z1"), varEquals("W", "W1")));
     assertEquals(3794/12989d, probability, DELTA);
   }
+
+  public void testDefaultQueriesFollowExplain() {
+    final List<QueryMetrics> reported = Lists.newArrayList();
+    BayesNetwork.setInstrumentation(new Instrumentation() {
+      @Override
+      public void queryCompleted(QueryMetrics metrics) {
+        reported.add(metrics);
+      }
+    });
+    try {
+      BayesNetwork small = getConditionalNetwork();
+      BayesNetwork chain = NetworkGenerator.build(
+          NetworkGenerator.CHAIN.generate(40, 3, 1, 5));
+      assertFollowsExplain(small, reported,
+          varEquals("Y", "Y1"), varEquals("X", "X2"));
+      assertFollowsExplain(chain, reported,
+          varEquals("X39", "v0"), Event.alwaysTrue());
+      assertFollowsExplain(chain, reported,
+          or(varEquals("X10", "v1"), varEquals("X30", "v2")),
+          varEquals("X0", "v0"));
+    } finally {
+      BayesNetwork.setInstrumentation(null);
+    }
+  }
+
+  private static void assertFollowsExplain(BayesNetwork network,
+      List<QueryMetrics> reported, Event query, Event evidence) {
+    QueryPlan plan = network.explain(query, evidence);
+    reported.clear();
+    double probability = network.queryProbabilityWithEvidence(query, evidence);
+    assertEquals(1, reported.size());
+    assertEquals(QueryPlanner.getEngineName(plan.getStrategy()),
+        reported.get(0).getEngine());
+    assertEquals(network.queryProbabilityWithEvidence(
+            query, evidence, BayesNetwork.ELIMINATION_ENGINE),
+        probability, DELTA);
+  }
+
+  public void testBatchesShareOneCompilation() {
+    BayesNetwork network = NetworkGenerator.build(
+        NetworkGenerator.GRID.generate(16, 2, 2, 1));
+    List<Event> queries = Lists.newArrayList();
+    for (int i = 0; i < 16; i++) {
+      queries.add(varEquals("X" + i, "v0"));
+    }
+    Event query = varEquals("X5", "v0");
+    Event first = varEquals("X15", "v1");
+    Event second = varEquals("X0", "v1");
+    double uncompiledCost = network.explain(query, second)
+        .getEstimatedCosts().get(Strategy.JUNCTION_TREE);
+
+    network.queryPosteriors(queries, first);
+    // The tree compiled for the first batch is kept, so only calibration is
+    // left to pay for other evidence.
+    assertTrue(network.explain(query, second).getEstimatedCosts()
+        .get(Strategy.JUNCTION_TREE) < uncompiledCost);
+    CompiledNetwork compiled = network.getPlanner().getCompiled();
+
+    ImmutableList<Double> posteriors = network.queryPosteriors(queries, second);
+    assertSame(compiled, network.getPlanner().getCompiled());
+    for (int i = 0; i < 16; i++) {
+      assertEquals(network.queryProbabilityWithEvidence(
+              queries.get(i), second, BayesNetwork.ELIMINATION_ENGINE),
+          posteriors.get(i), DELTA);
+    }
+    QueryPlan later = network.explain(query, second);
+    assertEquals(Strategy.JUNCTION_TREE, later.getStrategy());
+    assertEquals(1d, later.getEstimatedCost());
+
+    assertEquals(compiled.posteriorMarginals(first),
+        network.posteriorMarginals(first));
+    assertSame(compiled, network.getPlanner().getCompiled());
+  }
+
+  public void testDefaultQueriesReduceFirst() {
+    final List<QueryMetrics> reported = Lists.newArrayList();
+    BayesNetwork.setInstrumentation(new Instrumentation() {
+      @Override
+      public void queryCompleted(QueryMetrics metrics) {
+        reported.add(metrics);
+      }
+    });
+    try {
+      BayesNetwork chain = NetworkGenerator.build(
+          NetworkGenerator.CHAIN.generate(40, 3, 1, 5));
+      assertSame(chain.getReducer(), chain.getReducer());
+      assertSame(chain.getReducer(), chain.getPlanner().getReducer());
+      Event query = varEquals("X0", "v0");
+      double logProbability = chain.queryLogProbability(query);
+      assertEquals(1, reported.size());
+      QueryMetrics metrics = reported.get(0);
+
+      // Only the root is relevant, and the default query was answered on
+      // the reduction that the network's reducer now caches.
+      BayesNetwork reduced =
+          chain.getReducer().reduce(query, Event.alwaysTrue()).getNetwork();
+      assertEquals(ImmutableList.of("X0"), reduced.getVariables());
+      reported.clear();
+      assertEquals(logProbability,
+          reduced.queryLogProbability(query, BayesNetwork.ELIMINATION_ENGINE),
+          DELTA);
+      assertEquals(metrics.getTableLookupCount(),
+          reported.get(0).getTableLookupCount());
+      assertEquals(chain.queryLogProbability(
+              query, BayesNetwork.ELIMINATION_ENGINE),
+          logProbability, DELTA);
+    } finally {
+      BayesNetwork.setInstrumentation(null);
+    }
+  }
+
+  public void testBuildRejectsMissingParent() {
+    BayesNetwork.Builder builder = BayesNetwork.builder()
+        .add(ConditionalDistribution.forVariable("Y")
+            .setParents("X")
+            .setProbability(1d, "Y1", "X1")
+            .build());
+    try {
+      builder.build();
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testBuildRejectsCycle() {
+    BayesNetwork.Builder builder = BayesNetwork.builder()
+        .add(ConditionalDistribution.forVariable("X")
+            .setParents("Y")
+            .setProbability(1d, "X1", "Y1")
+            .build())
+        .add(ConditionalDistribution.forVariable("Y")
+            .setParents("X")
+            .setProbability(1d, "Y1", "X1")
+            .build());
+    try {
+      builder.build();
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testBuildRejectsDuplicateVariable() {
+    BayesNetwork.Builder builder = BayesNetwork.builder()
+        .add(ConditionalDistribution.forVariable("X")
+            .setProbability(1d, "X1")
+            .build())
+        .add(ConditionalDistribution.forVariable("X")
+            .setProbability(1d, "X2")
+            .build());
+    try {
+      builder.build();
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testTopologicalOrder() {
+    BayesNetwork network = BayesNetwork.builder()
+        .add(ConditionalDistribution.forVariable("W")
+            .setParents("Z")
+            .setProbability(1d, "W1", "Z1")
+            .build())
+        .add(ConditionalDistribution.forVariable("Z")
+            .setParents("X")
+            .setProbability(1d, "Z1", "X1")
+            .build())
+        .add(ConditionalDistribution.forVariable("X")
+            .setProbability(1d, "X1")
+            .build())
+        .build();
+    Topology topology = network.getTopology();
+    assertEquals(2, topology.indexOf("X"));
+    assertTrue(Arrays.equals(
+        new int[] { 2, 1, 0 }, topology.getTopologicalOrder()));
+    assertTrue(Arrays.equals(new int[] { 1 }, topology.getChildren(2)));
+  }
 }
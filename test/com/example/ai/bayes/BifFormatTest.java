@@ -0,0 +1,109 @@
+package com.example.ai.bayes;
+
+import static com.example.ai.bayes.Event.varEquals;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import junit.framework.TestCase;
+
+public class BifFormatTest extends TestCase {
+  private static final double DELTA = 0.000001;
+
+  private static final String SPRINKLER =
+      "// The sprinkler network.\n"
+      + "network sprinkler {\n"
+      + "  property author = \"unknown\" ;\n"
+      + "}\n"
+      + "variable Rain {\n"
+      + "  type discrete [ 2 ] { yes, no };\n"
+      + "}\n"
+      + "variable Sprinkler {\n"
+      + "  type discrete [ 2 ] { on, off };\n"
+      + "  property position = (10, 20) ;\n"
+      + "}\n"
+      + "variable \"Wet grass\" {\n"
+      + "  type discrete [ 2 ] { wet, dry };\n"
+      + "}\n"
+      + "probability ( Rain ) {\n"
+      + "  table 0.2, 0.8;\n"
+      + "}\n"
+      + "/* Rows may be given\n"
+      + "   one at a time. */\n"
+      + "probability ( Sprinkler | Rain ) {\n"
+      + "  (yes) 0.01, 0.99;\n"
+      + "  (no) 0.4, 0.6;\n"
+      + "}\n"
+      + "probability ( \"Wet grass\" | Sprinkler, Rain ) {\n"
+      + "  table 0.99 0.01 0.9 0.1 0.8 0.2 0.0 1.0;\n"
+      + "}\n";
+
+  public void testRead() throws IOException {
+    BayesNetwork network = BifFormat.read(new StringReader(SPRINKLER));
+    assertEquals(ImmutableList.of("Rain", "Sprinkler", "Wet grass"),
+        network.getVariables());
+    assertEquals(0.4, network.queryProbabilityWithEvidence(
+        varEquals("Sprinkler", "on"), varEquals("Rain", "no")), DELTA);
+    assertEquals(0.8, network.queryProbabilityWithEvidence(
+        varEquals("Wet grass", "wet"),
+        Event.and(varEquals("Sprinkler", "off"), varEquals("Rain", "yes"))),
+        DELTA);
+    assertEquals(0.9, network.queryProbabilityWithEvidence(
+        varEquals("Wet grass", "wet"),
+        Event.and(varEquals("Sprinkler", "on"), varEquals("Rain", "no"))),
+        DELTA);
+  }
+
+  public void testInternsNames() throws IOException {
+    BayesNetwork network = BifFormat.read(new StringReader(SPRINKLER));
+    assertSame(network.getVariables().get(0),
+        network.getDistribution("Sprinkler").getParentVariableNames().get(0));
+  }
+
+  public void testDefaultRow() throws IOException {
+    BayesNetwork network = BifFormat.read(new StringReader(
+        "variable A { type discrete [ 3 ] { a1, a2, a3 }; }\n"
+        + "variable B { type discrete [ 2 ] { b1, b2 }; }\n"
+        + "probability ( A ) { table 0.2, 0.3, 0.5; }\n"
+        + "probability ( B | A ) {\n"
+        + "  (a2) 0.7, 0.3;\n"
+        + "  default 0.1, 0.9;\n"
+        + "}\n"));
+    ImmutableMap<ImmutableList<String>, Double> b =
+        network.getDistribution("B").getProbabilities();
+    assertEquals(0.1, b.get(ImmutableList.of("b1", "a1")), DELTA);
+    assertEquals(0.7, b.get(ImmutableList.of("b1", "a2")), DELTA);
+    assertEquals(0.9, b.get(ImmutableList.of("b2", "a3")), DELTA);
+  }
+
+  public void testRoundTrip() throws IOException {
+    BayesNetwork network = BifFormat.read(new StringReader(SPRINKLER));
+    StringWriter writer = new StringWriter();
+    BifFormat.write(network, writer);
+    BayesNetwork read = BifFormat.read(new StringReader(writer.toString()));
+    assertEquals(network, read);
+  }
+
+  public void testRejectsMalformedInput() {
+    assertMalformed("variable A { type discrete [ 3 ] { a1, a2 }; }");
+    assertMalformed("variable A { type discrete [ 2 ] { a1, a2 }; }\n"
+        + "probability ( B ) { table 0.5, 0.5; }");
+    assertMalformed("variable A { type discrete [ 2 ] { a1, a2 }; }\n"
+        + "probability ( A ) { table 0.5; }");
+    assertMalformed("variable A { type discrete [ 2 ] { a1, a2 }; }");
+    assertMalformed("variable A { type discrete [ 2 ] { a1, a2 }; }\n"
+        + "/* unterminated");
+  }
+
+  private void assertMalformed(String text) {
+    try {
+      BifFormat.read(new StringReader(text));
+      fail(text);
+    } catch (IOException expected) {
+    }
+  }
+}
@@ -0,0 +1,152 @@
+package com.example.ai.bayes;
+
+import static com.example.ai.bayes.Event.and;
+import static com.example.ai.bayes.Event.varEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class BinaryNetworkFormatTest extends TestCase {
+  private static final double DELTA = 0.000001;
+
+  private Path file;
+
+  @Override
+  protected void setUp() throws IOException {
+    file = Files.createTempFile("network", ".bin");
+  }
+
+  @Override
+  protected void tearDown() throws IOException {
+    Files.deleteIfExists(file);
+  }
+
+  private BayesNetwork getNetwork() {
+    return BayesNetwork.builder()
+        .add(ConditionalDistribution.forVariable("Grass")
+            .setParents("Sprinkler", "Rain")
+            .setProbability(0.99, "wet", "on", "yes")
+            .setProbability(0.01, "dry", "on", "yes")
+            .setProbability(0.9, "wet", "on", "no")
+            .setProbability(0.1, "dry", "on", "no")
+            .setProbability(0.8, "wet", "off", "yes")
+            .setProbability(0.2, "dry", "off", "yes")
+            .setProbability(0, "wet", "off", "no")
+            .setProbability(1, "dry", "off", "no")
+            .build())
+        .add(ConditionalDistribution.forVariable("Rain")
+            .setProbability(0.2, "yes")
+            .setProbability(0.8, "no")
+            .build())
+        .add(ConditionalDistribution.forVariable("Sprinkler")
+            .setParents("Rain")
+            .setProbability(0.01, "on", "yes")
+            .setProbability(0.99, "off", "yes")
+            .setProbability(0.4, "on", "no")
+            .setProbability(0.6, "off", "no")
+            .build())
+        .add(ConditionalDistribution.forVariable("Caf\u00e9")
+            .setProbability(1, "\u00fcber")
+            .build())
+        .build();
+  }
+
+  public void testRoundTrip() throws IOException {
+    BayesNetwork network = getNetwork();
+    BinaryNetworkFormat.write(network, file);
+    BayesNetwork loaded = BinaryNetworkFormat.load(file);
+
+    assertEquals(network.getVariables(), loaded.getVariables());
+    for (int i = 0; i < network.getConditionalDistributions().size(); i++) {
+      ConditionalDistribution expected =
+          network.getConditionalDistributions().get(i);
+      ConditionalDistribution actual =
+          loaded.getConditionalDistributions().get(i);
+      assertTrue(actual.getTable().isBuffered());
+      assertEquals(expected.getParentVariableNames(),
+          actual.getParentVariableNames());
+      assertEquals(expected.getValues().asList(),
+          actual.getValues().asList());
+      assertEquals(expected.getProbabilities(), actual.getProbabilities());
+      assertEquals(expected, actual);
+    }
+
+    Event query = varEquals("Rain", "yes");
+    Event evidence = and(varEquals("Grass", "wet"),
+        varEquals("Caf\u00e9", "\u00fcber"));
+    assertEquals(network.queryProbabilityWithEvidence(query, evidence),
+        loaded.queryProbabilityWithEvidence(query, evidence));
+  }
+
+  public void testQueriesLeaveTablesMapped() throws IOException {
+    BayesNetwork network = getNetwork();
+    BinaryNetworkFormat.write(network, file);
+    BayesNetwork loaded = BinaryNetworkFormat.load(file);
+
+    Event query = varEquals("Rain", "yes");
+    Event evidence = varEquals("Grass", "wet");
+    double expected = network.queryProbabilityWithEvidence(query, evidence);
+    assertEquals(expected,
+        loaded.queryProbabilityWithEvidence(query, evidence), DELTA);
+    assertEquals(expected, loaded.queryProbabilityWithEvidence(
+        query, evidence, BayesNetwork.ELIMINATION_ENGINE), DELTA);
+    assertEquals(expected, loaded.queryProbabilityWithEvidence(
+        query, evidence, EnumerationEngine.create()), DELTA);
+    LikelihoodWeightingEngine.builder().setMaxSamples(1000).setSeed(1).build()
+        .estimate(loaded, query, evidence);
+    GibbsSampler.Run run = GibbsSampler.builder().setSeed(1).build()
+        .start(loaded, evidence);
+    run.run(100);
+    run.estimate(query);
+    ForwardSampler.create(loaded).sample(1, new int[10][4]);
+    assertEquals(network.hashCode(), loaded.hashCode());
+    assertEquals(network, loaded);
+
+    for (ConditionalDistribution distribution
+        : loaded.getConditionalDistributions()) {
+      assertTrue(distribution.getTable().isBuffered());
+    }
+  }
+
+  public void testMissingEntriesRoundTrip() throws IOException {
+    BayesNetwork network = BayesNetwork.builder()
+        .add(ConditionalDistribution.forVariable("X")
+            .setProbability(1/2d, "X1")
+            .setProbability(1/2d, "X2")
+            .build())
+        .add(ConditionalDistribution.forVariable("Y")
+            .setParents("X")
+            .setProbability(1, "Y1", "X1")
+            .setProbability(1, "Y2", "X2")
+            .build())
+        .build();
+    BinaryNetworkFormat.write(network, file);
+    assertEquals(network.getDistribution("Y").getProbabilities(),
+        BinaryNetworkFormat.load(file).getDistribution("Y")
+            .getProbabilities());
+  }
+
+  public void testRejectsOtherFiles() throws IOException {
+    Files.write(file, new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12 });
+    try {
+      BinaryNetworkFormat.load(file);
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  public void testRejectsTruncatedFiles() throws IOException {
+    BinaryNetworkFormat.write(getNetwork(), file);
+    byte[] bytes = Files.readAllBytes(file);
+    Files.write(file, Arrays.copyOf(bytes, bytes.length - 8));
+    try {
+      BinaryNetworkFormat.load(file);
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+}
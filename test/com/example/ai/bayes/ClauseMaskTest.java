@@ -0,0 +1,136 @@
+package com.example.ai.bayes;
+
+import static com.example.ai.bayes.Event.and;
+import static com.example.ai.bayes.Event.not;
+import static com.example.ai.bayes.Event.or;
+import static com.example.ai.bayes.Event.varEquals;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class ClauseMaskTest extends TestCase {
+  private static final double DELTA = 0.000001;
+
+  private BayesNetwork getIndependentNetwork(int size) {
+    BayesNetwork.Builder builder = BayesNetwork.builder();
+    for (int i = 0; i < size; i++) {
+      builder.add(ConditionalDistribution.forVariable("X" + i)
+          .setProbability(1/10d, "A")
+          .setProbability(3/10d, "B")
+          .setProbability(6/10d, "C")
+          .build());
+    }
+    return builder.build();
+  }
+
+  public void testDisjoinSeparateVariables() {
+    BayesNetwork network = getIndependentNetwork(20);
+    List<Event> clauses = Lists.newArrayList();
+    for (int i = 0; i < 20; i++) {
+      clauses.add(varEquals("X" + i, "A"));
+    }
+    Event event = or(clauses);
+
+    // Each clause only overlaps the earlier ones in a single variable, so it
+    // becomes a single disjoint clause.
+    assertEquals(20,
+        ClauseMask.disjoin(ClauseMask.of(network, event)).size());
+    assertEquals(1 - Math.pow(9/10d, 20), network.queryProbability(event),
+        DELTA);
+  }
+
+  public void testDisjoinOverlappingClauses() {
+    BayesNetwork network = getIndependentNetwork(3);
+    Event event = or(ImmutableList.of(
+        and(varEquals("X0", "A"), varEquals("X1", "B")),
+        and(varEquals("X1", "B"), not(varEquals("X2", "C"))),
+        varEquals("X0", "A"),
+        not(varEquals("X2", "A"))));
+    InferenceEngine engine = EnumerationEngine.create();
+
+    // Compare with the probability of the complement, which is a single
+    // clause: X0 != A and X1 != B and X2 = A.
+    double complement = network.queryProbability(
+        and(ImmutableList.of(
+            not(varEquals("X0", "A")),
+            not(varEquals("X1", "B")),
+            varEquals("X2", "A"))),
+        engine);
+    assertEquals(1 - complement, network.queryProbability(event, engine),
+        DELTA);
+  }
+
+  public void testDisjoinDropsUnsatisfiableClauses() {
+    BayesNetwork network = getIndependentNetwork(2);
+    Event event = or(
+        and(varEquals("X0", "A"), varEquals("X0", "B")),
+        varEquals("X1", "Unknown"));
+    assertTrue(ClauseMask.disjoin(ClauseMask.of(network, event)).isEmpty());
+    assertEquals(0d, network.queryProbability(event), DELTA);
+  }
+
+  public void testDisjointClausesDoNotIntersect() {
+    BayesNetwork network = getIndependentNetwork(3);
+    Event event = or(ImmutableList.of(
+        not(varEquals("X0", "C")),
+        and(varEquals("X1", "B"), varEquals("X2", "B")),
+        varEquals("X1", "A"),
+        and(varEquals("X0", "B"), not(varEquals("X2", "A")))));
+    ImmutableList<ClauseMask> clauses =
+        ClauseMask.disjoin(ClauseMask.of(network, event));
+    for (int i = 0; i < clauses.size(); i++) {
+      for (int j = i + 1; j < clauses.size(); j++) {
+        assertFalse(clauses.get(i).intersects(clauses.get(j)));
+      }
+    }
+  }
+
+  public void testSimplifyDropsContradictionsAndDuplicates() {
+    BayesNetwork network = getIndependentNetwork(2);
+    Event event = or(ImmutableList.of(
+        and(varEquals("X0", "A"), varEquals("X0", "B")),
+        varEquals("X1", "A"),
+        varEquals("X1", "A")));
+    EventSimplification simplification = network.simplify(event);
+    assertEquals(varEquals("X1", "A"), simplification.getEvent());
+    assertEquals(3, simplification.getOriginalClauseCount());
+    assertEquals(2, simplification.getRemovedClauseCount());
+  }
+
+  public void testSimplifyDropsSubsumedClauses() {
+    BayesNetwork network = getIndependentNetwork(2);
+    Event event = or(
+        and(varEquals("X0", "A"), varEquals("X1", "B")),
+        varEquals("X0", "A"));
+    assertEquals(varEquals("X0", "A"), network.simplify(event).getEvent());
+  }
+
+  public void testSimplifyMergesClauses() {
+    BayesNetwork network = getIndependentNetwork(2);
+    // Merging X0 = A and X0 = B leaves X0 != C, and merging that with X0 = C
+    // leaves no constraint on X0.
+    Event event = or(ImmutableList.of(
+        and(varEquals("X0", "A"), varEquals("X1", "B")),
+        and(varEquals("X0", "B"), varEquals("X1", "B")),
+        and(varEquals("X0", "C"), varEquals("X1", "B"))));
+    assertEquals(varEquals("X1", "B"), network.simplify(event).getEvent());
+  }
+
+  public void testSimplifyNegation() {
+    BayesNetwork network = getIndependentNetwork(3);
+    // The negation expands to 3 * 3 * 3 clauses, most of which contradict
+    // themselves or each other.
+    Event event = not(or(ImmutableList.of(
+        varEquals("X0", "A"), varEquals("X0", "B"), varEquals("X0", "C"))));
+    assertEquals(Event.alwaysFalse(), network.simplify(event).getEvent());
+
+    event = not(and(varEquals("X0", "A"), varEquals("X1", "A")));
+    EventSimplification simplification = network.simplify(event);
+    assertEquals(0, simplification.getRemovedClauseCount());
+    assertEquals(1 - 1/100d, network.queryProbability(event), DELTA);
+  }
+}
@@ -0,0 +1,259 @@
+package com.example.ai.bayes;
+
+import static com.example.ai.bayes.Event.and;
+import static com.example.ai.bayes.Event.not;
+import static com.example.ai.bayes.Event.or;
+import static com.example.ai.bayes.Event.varEquals;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import junit.framework.TestCase;
+
+public class CompiledNetworkTest extends TestCase {
+  private static final double DELTA = 0.000001;
+
+  /**
+   * A network with an undirected cycle (X - Y - W - Z - X) and two disconnected
+   * parts, so that triangulation and empty separators are both exercised.
+   */
+  private BayesNetwork getNetwork() {
+    return BayesNetwork.builder()
+        .add(ConditionalDistribution.forVariable("X")
+            .setProbability(1/5d, "X1")
+            .setProbability(3/10d, "X2")
+            .setProbability(1/2d, "X3")
+            .build())
+        .add(ConditionalDistribution.forVariable("Y")
+            .setParents("X")
+            .setProbability(1/20d, "Y1", "X1")
+            .setProbability(1/4d, "Y2", "X1")
+            .setProbability(7/10d, "Y3", "X1")
+            .setProbability(3/10d, "Y1", "X2")
+            .setProbability(3/10d, "Y2", "X2")
+            .setProbability(4/10d, "Y3", "X2")
+            .setProbability(1/10d, "Y1", "X3")
+            .setProbability(8/10d, "Y2", "X3")
+            .setProbability(1/10d, "Y3", "X3")
+            .build())
+        .add(ConditionalDistribution.forVariable("Z")
+            .setParents("X")
+            .setProbability(1/5d, "Z1", "X1")
+            .setProbability(4/5d, "Z2", "X1")
+            .setProbability(1/4d, "Z1", "X2")
+            .setProbability(3/4d, "Z2", "X2")
+            .setProbability(1/10d, "Z1", "X3")
+            .setProbability(9/10d, "Z2", "X3")
+            .build())
+        .add(ConditionalDistribution.forVariable("W")
+            .setParents("Y", "Z")
+            .setProbability(1/10d, "W1", "Y1", "Z1")
+            .setProbability(9/10d, "W2", "Y1", "Z1")
+            .setProbability(1/5d,  "W1", "Y2", "Z1")
+            .setProbability(4/5d,  "W2", "Y2", "Z1")
+            .setProbability(3/10d, "W1", "Y3", "Z1")
+            .setProbability(7/10d, "W2", "Y3", "Z1")
+            .setProbability(2/5d,  "W1", "Y1", "Z2")
+            .setProbability(3/5d,  "W2", "Y1", "Z2")
+            .setProbability(1/2d,  "W1", "Y2", "Z2")
+            .setProbability(1/2d,  "W2", "Y2", "Z2")
+            .setProbability(3/5d,  "W1", "Y3", "Z2")
+            .setProbability(2/5d,  "W2", "Y3", "Z2")
+            .build())
+        .add(ConditionalDistribution.forVariable("V")
+            .setProbability(1/4d, "V1")
+            .setProbability(3/4d, "V2")
+            .build())
+        .build();
+  }
+
+  public void testPosteriorsMatchEnumeration() {
+    BayesNetwork network = getNetwork();
+    InferenceEngine enumeration = EnumerationEngine.create();
+    ImmutableList<Event> evidences = ImmutableList.of(
+        Event.alwaysTrue(),
+        varEquals("W", "W1"),
+        and(varEquals("W", "W2"), varEquals("Z", "Z1")),
+        not(varEquals("Y", "Y2")));
+
+    for (EliminationOrder order : EliminationOrder.values()) {
+      CompiledNetwork compiled = network.compile(order);
+      for (Event evidence : evidences) {
+        CompiledNetwork.Calibration calibration = compiled.calibrate(evidence);
+        assertEquals(network.queryProbability(evidence, enumeration),
+            calibration.getEvidenceProbability(), DELTA);
+        for (String variable : network.getVariables()) {
+          for (String value : network.getValues(variable)) {
+            assertEquals(order + " " + variable + "=" + value,
+                network.queryProbabilityWithEvidence(
+                    varEquals(variable, value), evidence, enumeration),
+                calibration.getPosterior(variable, value),
+                DELTA);
+          }
+        }
+      }
+    }
+  }
+
+  public void testPosteriorMap() {
+    CompiledNetwork compiled = getNetwork().compile();
+    ImmutableMap<String, Double> posterior =
+        compiled.calibrate(varEquals("W", "W1")).getPosterior("V");
+    assertEquals(ImmutableList.of("V1", "V2"),
+        posterior.keySet().asList());
+    assertEquals(1/4d, posterior.get("V1"), DELTA);
+    assertEquals(3/4d, posterior.get("V2"), DELTA);
+  }
+
+  public void testQueryProbabilityWithEvidence() {
+    BayesNetwork network = getNetwork();
+    CompiledNetwork compiled = network.compile();
+
+    // Read off the junction tree.
+    Event query = or(varEquals("X", "X1"), varEquals("X", "X2"));
+    Event evidence = varEquals("W", "W1");
+    assertEquals(network.queryProbabilityWithEvidence(query, evidence),
+        compiled.queryProbabilityWithEvidence(query, evidence), DELTA);
+
+    // Delegated to the network.
+    query = and(varEquals("X", "X1"), varEquals("Y", "Y1"));
+    evidence = or(varEquals("Z", "Z1"), varEquals("W", "W1"));
+    assertEquals(network.queryProbabilityWithEvidence(query, evidence),
+        compiled.queryProbabilityWithEvidence(query, evidence), DELTA);
+  }
+
+  public void testCalibrateRejectsDisjunctiveEvidence() {
+    CompiledNetwork compiled = getNetwork().compile();
+    try {
+      compiled.calibrate(or(varEquals("X", "X1"), varEquals("Y", "Y1")));
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testPosteriorMarginals() {
+    BayesNetwork network = getNetwork();
+    Event evidence = or(varEquals("W", "W1"), varEquals("Z", "Z1"));
+    ImmutableMap<String, ImmutableMap<String, Double>> marginals =
+        network.posteriorMarginals(evidence);
+    assertEquals(network.getVariables(), marginals.keySet().asList());
+    for (String variable : network.getVariables()) {
+      for (String value : network.getValues(variable)) {
+        assertEquals(variable + "=" + value,
+            network.queryProbabilityWithEvidence(
+                varEquals(variable, value), evidence),
+            marginals.get(variable).get(value),
+            DELTA);
+      }
+    }
+  }
+
+  public void testQueryPosteriors() {
+    BayesNetwork network = getNetwork();
+    Event evidence = not(and(varEquals("W", "W1"), varEquals("Z", "Z1")));
+    ImmutableList<Event> queries = ImmutableList.of(
+        varEquals("X", "X1"),
+        or(varEquals("Y", "Y1"), varEquals("Y", "Y3")),
+        and(varEquals("X", "X2"), varEquals("Y", "Y2")),
+        or(varEquals("V", "V1"), varEquals("Z", "Z2")),
+        Event.alwaysTrue(),
+        Event.alwaysFalse());
+    ImmutableList<Double> posteriors =
+        network.queryPosteriors(queries, evidence);
+    assertEquals(queries.size(), posteriors.size());
+    for (int i = 0; i < queries.size(); i++) {
+      assertEquals(queries.get(i).toString(),
+          network.queryProbabilityWithEvidence(queries.get(i), evidence),
+          posteriors.get(i),
+          DELTA);
+    }
+  }
+
+  public void testEvidenceSession() {
+    BayesNetwork network = getNetwork();
+    CompiledNetwork.EvidenceSession session = network.compile().newSession();
+    assertPosteriors(network, session, Event.alwaysTrue());
+
+    session.observe("W", "W1");
+    assertPosteriors(network, session, varEquals("W", "W1"));
+
+    session.observe("X", "X2").observe("V", "V1");
+    assertPosteriors(network, session, and(varEquals("W", "W1"),
+        and(varEquals("X", "X2"), varEquals("V", "V1"))));
+
+    session.observe("W", "W2").retract("X");
+    assertPosteriors(network, session,
+        and(varEquals("W", "W2"), varEquals("V", "V1")));
+    assertEquals(ImmutableMap.of("W", "W2", "V", "V1"),
+        session.getEvidence());
+
+    session.retract("W").retract("V").retract("Y");
+    assertPosteriors(network, session, Event.alwaysTrue());
+  }
+
+  private void assertPosteriors(BayesNetwork network,
+      CompiledNetwork.EvidenceSession session, Event evidence) {
+    assertEquals(network.queryProbability(evidence),
+        session.getEvidenceProbability(), DELTA);
+    for (String variable : network.getVariables()) {
+      for (String value : network.getValues(variable)) {
+        assertEquals(evidence + ": " + variable + "=" + value,
+            network.queryProbabilityWithEvidence(
+                varEquals(variable, value), evidence),
+            session.posterior(variable, value),
+            DELTA);
+      }
+    }
+  }
+
+  /**
+   * Changing an observation on a long chain should only recompute the
+   * messages between it and the queried variable.
+   */
+  public void testEvidenceSessionUpdatesLocally() {
+    BayesNetwork.Builder builder = BayesNetwork.builder()
+        .add(ConditionalDistribution.forVariable("X0")
+            .setProbability(1/2d, "T")
+            .setProbability(1/2d, "F")
+            .build());
+    for (int i = 1; i < 200; i++) {
+      builder.add(ConditionalDistribution.forVariable("X" + i)
+          .setParents("X" + (i - 1))
+          .setProbability(9/10d, "T", "T")
+          .setProbability(1/10d, "F", "T")
+          .setProbability(1/10d, "T", "F")
+          .setProbability(9/10d, "F", "F")
+          .build());
+    }
+    CompiledNetwork.EvidenceSession session =
+        builder.build().compile().newSession();
+    session.observe("X150", "T");
+    session.posterior("X0");
+    session.posterior("X199");
+
+    long before = session.getComputedMessageCount();
+    session.observe("X196", "F");
+    assertEquals(0.9 * 0.9 + 0.1 * 0.1, session.posterior("X198", "F"), DELTA);
+    assertTrue(session.getComputedMessageCount() - before < 10);
+
+    before = session.getComputedMessageCount();
+    session.retract("X196");
+    assertEquals(0.9 * 0.9 + 0.1 * 0.1, session.posterior("X152", "T"), DELTA);
+    assertTrue(session.getComputedMessageCount() - before < 50);
+  }
+
+  public void testEvidenceSessionRejectsUnknownValues() {
+    CompiledNetwork.EvidenceSession session =
+        getNetwork().compile().newSession();
+    try {
+      session.observe("X", "X9");
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      session.retract("Q");
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+}
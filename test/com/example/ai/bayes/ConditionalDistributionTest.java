@@ -1,5 +1,7 @@
 package com.example.ai.bayes;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 
 import junit.framework.TestCase;
@@ -19,4 +21,78 @@ public class ConditionalDistributionTest extends TestCase {
         .build();
     assertEquals(ImmutableSet.of("X1", "X2"), dist.getValues());
   }
+
+  public void testGetProbabilities() {
+    ConditionalDistribution dist = ConditionalDistribution.forVariable("X")
+        .setParents("Y")
+        .setProbability(0.1d, "X1", "Y1")
+        .setProbability(0.9d, "X2", "Y1")
+        .setProbability(0.4d, "X1", "Y2")
+        .setProbability(0.6d, "X2", "Y2")
+        .build();
+    assertEquals(
+        ImmutableMap.of(
+            ImmutableList.of("X1", "Y1"), 0.1d,
+            ImmutableList.of("X2", "Y1"), 0.9d,
+            ImmutableList.of("X1", "Y2"), 0.4d,
+            ImmutableList.of("X2", "Y2"), 0.6d),
+        dist.getProbabilities());
+  }
+
+  public void testTableLayout() {
+    ConditionalDistribution dist = ConditionalDistribution.forVariable("X")
+        .setParents("Y")
+        .setProbability(0.1d, "X1", "Y1")
+        .setProbability(0.9d, "X2", "Y1")
+        .setProbability(0.4d, "X1", "Y2")
+        .setProbability(0.6d, "X2", "Y2")
+        .build();
+    ProbabilityTable table = dist.getTable();
+    assertEquals(1, table.getStride(0));
+    assertEquals(2, table.getStride(1));
+    assertEquals(0.4d, table.get(2));
+    assertEquals(0.6d, table.get(3));
+  }
+
+  public void testWithParentDomains() {
+    ConditionalDistribution dist = ConditionalDistribution.forVariable("X")
+        .setParents("Y")
+        .setProbability(0.1d, "X1", "Y1")
+        .setProbability(0.9d, "X2", "Y1")
+        .setProbability(0.4d, "X1", "Y2")
+        .setProbability(0.6d, "X2", "Y2")
+        .build();
+    ConditionalDistribution reordered = dist.withParentDomains(
+        ImmutableList.of(ImmutableSet.of("Y2", "Y1")));
+    assertEquals(0.4d, reordered.getTable().get(0));
+    assertEquals(0.1d, reordered.getTable().get(2));
+    assertEquals(dist.getProbabilities(), reordered.getProbabilities());
+    assertSame(dist, dist.withParentDomains(
+        ImmutableList.of(ImmutableSet.of("Y1", "Y2"))));
+  }
+
+  public void testMissingProbabilities() {
+    ConditionalDistribution dist = ConditionalDistribution.forVariable("X")
+        .setParents("Y")
+        .setProbability(1d, "X1", "Y1")
+        .setProbability(1d, "X2", "Y2")
+        .build();
+    assertEquals(2, dist.getProbabilities().size());
+    assertTrue(Double.isNaN(dist.getTable().get(1)));
+    assertFalse(dist.getTable().isComplete());
+    try {
+      dist.checkComplete();
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testCompleteProbabilities() {
+    ConditionalDistribution dist = ConditionalDistribution.forVariable("X")
+        .setProbability(0.4, "X1")
+        .setProbability(0.6, "X2")
+        .build();
+    assertTrue(dist.getTable().isComplete());
+    dist.checkComplete();
+  }
 }
@@ -0,0 +1,116 @@
+package com.example.ai.bayes;
+
+import static com.example.ai.bayes.Event.and;
+import static com.example.ai.bayes.Event.varEquals;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import junit.framework.TestCase;
+
+public class ForwardSamplerTest extends TestCase {
+  /** Lists a child before its parents, so sampling order is exercised. */
+  private BayesNetwork getNetwork() {
+    return BayesNetwork.builder()
+        .add(ConditionalDistribution.forVariable("Grass")
+            .setParents("Sprinkler")
+            .setProbability(0.9, "wet", "on")
+            .setProbability(0.1, "dry", "on")
+            .setProbability(0, "wet", "off")
+            .setProbability(1, "dry", "off")
+            .build())
+        .add(ConditionalDistribution.forVariable("Rain")
+            .setProbability(0.2, "yes")
+            .setProbability(0.7, "no")
+            .setProbability(0.1, "maybe")
+            .build())
+        .add(ConditionalDistribution.forVariable("Sprinkler")
+            .setParents("Rain")
+            .setProbability(0.01, "on", "yes")
+            .setProbability(0.99, "off", "yes")
+            .setProbability(0.4, "on", "no")
+            .setProbability(0.6, "off", "no")
+            .setProbability(0.5, "on", "maybe")
+            .setProbability(0.5, "off", "maybe")
+            .build())
+        .build();
+  }
+
+  public void testFrequenciesMatchDistribution() {
+    BayesNetwork network = getNetwork();
+    ImmutableList<String> variables = network.getVariables();
+    int[][] samples = new int[200000][variables.size()];
+    ForwardSampler.create(network).sample(11, samples);
+
+    for (String rain : network.getValues("Rain")) {
+      for (String sprinkler : network.getValues("Sprinkler")) {
+        for (String grass : network.getValues("Grass")) {
+          int[] expected = {
+              network.getValues("Grass").asList().indexOf(grass),
+              network.getValues("Rain").asList().indexOf(rain),
+              network.getValues("Sprinkler").asList().indexOf(sprinkler) };
+          int count = 0;
+          for (int[] sample : samples) {
+            if (Arrays.equals(expected, sample)) {
+              count++;
+            }
+          }
+          double probability = network.queryProbability(and(
+              and(varEquals("Rain", rain), varEquals("Sprinkler", sprinkler)),
+              varEquals("Grass", grass)));
+          if (probability == 0) {
+            assertEquals(0, count);
+          } else {
+            assertEquals(probability, count / (double) samples.length, 0.005);
+          }
+        }
+      }
+    }
+  }
+
+  public void testReproducibleAcrossThreadCounts() {
+    ForwardSampler sampler = ForwardSampler.create(getNetwork());
+    int count = 5 * ForwardSampler.BLOCK_SIZE + 17;
+    int[][] sequential = new int[count][3];
+    sampler.sample(5, sequential);
+
+    for (int threads : new int[] { 1, 3, 8 }) {
+      ForkJoinPool pool = new ForkJoinPool(threads);
+      try {
+        int[][] parallel = new int[count][3];
+        sampler.sample(5, parallel, pool);
+        assertTrue(Arrays.deepEquals(sequential, parallel));
+
+        int[][] columns = new int[3][count];
+        sampler.sampleColumns(5, columns, pool);
+        for (int i = 0; i < count; i++) {
+          for (int j = 0; j < 3; j++) {
+            assertEquals(sequential[i][j], columns[j][i]);
+          }
+        }
+      } finally {
+        pool.shutdown();
+      }
+    }
+
+    int[][] reseeded = new int[count][3];
+    sampler.sample(6, reseeded);
+    assertFalse(Arrays.deepEquals(sequential, reseeded));
+  }
+
+  public void testRejectsMismatchedBuffers() {
+    ForwardSampler sampler = ForwardSampler.create(getNetwork());
+    try {
+      sampler.sample(0, new int[10][2]);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      sampler.sampleColumns(0, new int[][] { new int[5], new int[5] });
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+}
@@ -0,0 +1,197 @@
+package com.example.ai.bayes;
+
+import static com.example.ai.bayes.Event.and;
+import static com.example.ai.bayes.Event.not;
+import static com.example.ai.bayes.Event.or;
+import static com.example.ai.bayes.Event.varEquals;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.concurrent.ForkJoinPool;
+
+import junit.framework.TestCase;
+
+public class GibbsSamplerTest extends TestCase {
+  /**
+   * An alarm that is rarely triggered, so that evidence on the calls is
+   * unlikely.
+   */
+  private BayesNetwork getNetwork() {
+    return BayesNetwork.builder()
+        .add(ConditionalDistribution.forVariable("Burglary")
+            .setProbability(0.001, "yes")
+            .setProbability(0.999, "no")
+            .build())
+        .add(ConditionalDistribution.forVariable("Earthquake")
+            .setProbability(0.002, "yes")
+            .setProbability(0.998, "no")
+            .build())
+        .add(ConditionalDistribution.forVariable("Alarm")
+            .setParents("Burglary", "Earthquake")
+            .setProbability(0.95, "on", "yes", "yes")
+            .setProbability(0.05, "off", "yes", "yes")
+            .setProbability(0.94, "on", "yes", "no")
+            .setProbability(0.06, "off", "yes", "no")
+            .setProbability(0.29, "on", "no", "yes")
+            .setProbability(0.71, "off", "no", "yes")
+            .setProbability(0.001, "on", "no", "no")
+            .setProbability(0.999, "off", "no", "no")
+            .build())
+        .add(ConditionalDistribution.forVariable("JohnCalls")
+            .setParents("Alarm")
+            .setProbability(0.9, "yes", "on")
+            .setProbability(0.1, "no", "on")
+            .setProbability(0.05, "yes", "off")
+            .setProbability(0.95, "no", "off")
+            .build())
+        .add(ConditionalDistribution.forVariable("MaryCalls")
+            .setParents("Alarm")
+            .setProbability(0.7, "yes", "on")
+            .setProbability(0.3, "no", "on")
+            .setProbability(0.01, "yes", "off")
+            .setProbability(0.99, "no", "off")
+            .build())
+        .build();
+  }
+
+  public void testEstimatesMatchExactValues() {
+    BayesNetwork network = getNetwork();
+    Event evidence = and(varEquals("JohnCalls", "yes"),
+        varEquals("MaryCalls", "yes"));
+    GibbsSampler.Run run = GibbsSampler.builder()
+        .setBurnIn(500)
+        .setSeed(17)
+        .build()
+        .start(network, evidence);
+    run.run(50000);
+    assertEquals(4 * 49500, run.getSampleCount());
+
+    ImmutableList<Event> queries = ImmutableList.of(
+        varEquals("Burglary", "yes"),
+        varEquals("Alarm", "on"),
+        or(varEquals("Burglary", "yes"), varEquals("Earthquake", "yes")));
+    for (Event query : queries) {
+      double exact = network.queryProbabilityWithEvidence(query, evidence);
+      Estimate estimate = run.estimate(query);
+      assertEquals(query.toString(), exact, estimate.getValue(), 0.02);
+      assertTrue(estimate.getEffectiveSampleSize() > 100);
+      assertTrue(estimate.getEffectiveSampleSize()
+          <= estimate.getSampleCount());
+      assertTrue(run.getPotentialScaleReduction(query) < 1.05);
+    }
+  }
+
+  public void testThinningAndIncrementalReadout() {
+    GibbsSampler.Run run = GibbsSampler.builder()
+        .setChains(2)
+        .setBurnIn(10)
+        .setThinning(5)
+        .setSeed(3)
+        .build()
+        .start(getNetwork(), varEquals("Alarm", "on"));
+    assertTrue(Double.isNaN(run.estimate(varEquals("Burglary", "yes"))
+        .getValue()));
+    assertTrue(Double.isNaN(
+        run.getPotentialScaleReduction(varEquals("Burglary", "yes"))));
+
+    run.run(60);
+    assertEquals(2 * 10, run.getSampleCount());
+    run.run(50);
+    assertEquals(2 * 20, run.getSampleCount());
+    assertEquals(40, run.estimate(varEquals("Burglary", "yes"))
+        .getSampleCount());
+  }
+
+  public void testWindowBoundsRetainedSamples() {
+    GibbsSampler.Run run = GibbsSampler.builder()
+        .setChains(2)
+        .setBurnIn(0)
+        .setWindowSize(100)
+        .setSeed(11)
+        .build()
+        .start(getNetwork(), varEquals("JohnCalls", "yes"));
+    run.run(1000);
+    assertEquals(2 * 1000, run.getSampleCount());
+    // Events on one variable are counted over every sample, and others over
+    // the window only.
+    assertEquals(2 * 1000,
+        run.estimate(varEquals("Alarm", "on")).getSampleCount());
+    assertEquals(2 * 1000, run.estimate(or(varEquals("Alarm", "on"),
+        varEquals("Alarm", "off"))).getSampleCount());
+    Estimate windowed = run.estimate(
+        and(varEquals("Alarm", "on"), varEquals("MaryCalls", "yes")));
+    assertEquals(2 * 100, windowed.getSampleCount());
+    assertTrue(windowed.getValue() >= 0 && windowed.getValue() <= 1);
+  }
+
+  public void testSingleChainHasNoScaleReduction() {
+    GibbsSampler.Run run = GibbsSampler.builder()
+        .setChains(1)
+        .setBurnIn(0)
+        .setSeed(13)
+        .build()
+        .start(getNetwork(), varEquals("JohnCalls", "yes"));
+    run.run(500);
+    assertTrue(Double.isNaN(
+        run.getPotentialScaleReduction(varEquals("Alarm", "on"))));
+    assertTrue(run.estimate(varEquals("Alarm", "on")).getHalfWidth() > 0);
+  }
+
+  public void testEvidenceIsRespected() {
+    GibbsSampler.Run run = GibbsSampler.builder()
+        .setBurnIn(0)
+        .setSeed(5)
+        .build()
+        .start(getNetwork(), not(varEquals("Alarm", "off")));
+    run.run(200);
+    assertEquals(1d, run.estimate(varEquals("Alarm", "on")).getValue());
+    assertEquals(1d,
+        run.getPotentialScaleReduction(varEquals("Alarm", "on")));
+  }
+
+  public void testParallelChainsAreReproducible() throws Exception {
+    BayesNetwork network = getNetwork();
+    Event evidence = varEquals("JohnCalls", "yes");
+    Event query = varEquals("Alarm", "on");
+    GibbsSampler.Run sequential = GibbsSampler.builder()
+        .setSeed(9)
+        .build()
+        .start(network, evidence);
+    sequential.run(2000);
+
+    ForkJoinPool pool = new ForkJoinPool(3);
+    try {
+      final GibbsSampler.Run parallel = GibbsSampler.builder()
+          .setSeed(9)
+          .setPool(pool)
+          .build()
+          .start(network, evidence);
+      // Read estimates while the chains are running.
+      Thread runner = new Thread() {
+        @Override
+        public void run() {
+          parallel.run(2000);
+        }
+      };
+      runner.start();
+      while (runner.isAlive()) {
+        Estimate partial = parallel.estimate(query);
+        assertTrue(Double.isNaN(partial.getValue())
+            || (partial.getValue() >= 0 && partial.getValue() <= 1));
+      }
+      runner.join();
+      assertEquals(sequential.estimate(query), parallel.estimate(query));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  public void testRejectsImpossibleEvidence() {
+    try {
+      GibbsSampler.builder().build().start(getNetwork(),
+          and(varEquals("Alarm", "on"), varEquals("Alarm", "off")));
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+}
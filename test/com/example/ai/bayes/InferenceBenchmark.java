@@ -0,0 +1,153 @@
+package com.example.ai.bayes;
+
+import static com.example.ai.bayes.Event.and;
+import static com.example.ai.bayes.Event.not;
+import static com.example.ai.bayes.Event.or;
+import static com.example.ai.bayes.Event.varEquals;
+
+import com.google.common.collect.ImmutableList;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+ * Measures the throughput, latency percentiles and allocation rate of
+ * building networks, constructing events and answering queries, on
+ * generated networks of a chosen shape and size.  Run it directly; it is
+ * not part of the unit tests.
+ *
+ * <p> Arguments, all optional: the shape (one of {@link NetworkGenerator}),
+ * the number of variables, the number of values per variable, the largest
+ * number of parents, and the seconds to measure each operation for.
+ */
+public class InferenceBenchmark {
+  /** The most latencies recorded per operation. */
+  private static final int MAX_SAMPLES = 1 << 20;
+
+  /** Keeps results alive, so that the work is not optimized away. */
+  private static volatile Object sink;
+
+  /**
+   * An operation whose cost is measured.
+   */
+  private interface Operation {
+    Object run();
+  }
+
+  public static void main(String[] args) {
+    NetworkGenerator shape = args.length > 0
+        ? NetworkGenerator.valueOf(args[0]) : NetworkGenerator.RANDOM_DAG;
+    int nodes = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+    int arity = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+    int inDegree = args.length > 3 ? Integer.parseInt(args[3]) : 2;
+    double seconds = args.length > 4 ? Double.parseDouble(args[4]) : 2;
+
+    final ImmutableList<ConditionalDistribution> distributions =
+        shape.generate(nodes, arity, inDegree, 1);
+    final BayesNetwork network = NetworkGenerator.build(distributions);
+    final Event query = varEquals("X" + (nodes - 1), "v0");
+    final Event evidence = varEquals("X0", "v1");
+    final Event disjunction = or(query, varEquals("X" + (nodes / 2), "v0"));
+
+    System.out.printf("%s, %d variables, %d values, in-degree %d%n",
+        shape, nodes, arity, inDegree);
+    System.out.println("operation\tops/s\tp50 us\tp90 us\tp99 us\t"
+        + "p99.9 us\tmax us\tbytes/op");
+    measure("build", seconds, new Operation() {
+      @Override
+      public Object run() {
+        return NetworkGenerator.build(distributions);
+      }
+    });
+    measure("events", seconds, new Operation() {
+      @Override
+      public Object run() {
+        Event result = Event.alwaysFalse();
+        for (int i = 0; i < 16; i++) {
+          result = or(result, and(varEquals("X" + i, "v0"),
+              not(varEquals("X" + (i + 1), "v1"))));
+        }
+        return result;
+      }
+    });
+    measure("queryProbability", seconds, new Operation() {
+      @Override
+      public Object run() {
+        return network.queryProbability(query);
+      }
+    });
+    measure("queryProbability (or)", seconds, new Operation() {
+      @Override
+      public Object run() {
+        return network.queryProbability(disjunction);
+      }
+    });
+    measure("queryProbabilityWithEvidence", seconds, new Operation() {
+      @Override
+      public Object run() {
+        return network.queryProbabilityWithEvidence(query, evidence);
+      }
+    });
+  }
+
+  /**
+   * Runs an operation for half the given time to warm up, and then for the
+   * given time while recording the latency of each call and the bytes
+   * allocated by this thread.
+   */
+  private static void measure(
+      String name, double seconds, Operation operation) {
+    long budget = (long) (seconds * 1e9);
+    long warmUpEnd = System.nanoTime() + budget / 2;
+    while (System.nanoTime() < warmUpEnd) {
+      sink = operation.run();
+    }
+
+    long[] latencies = new long[MAX_SAMPLES];
+    int samples = 0;
+    long operations = 0;
+    long allocatedBefore = getAllocatedBytes();
+    long start = System.nanoTime();
+    long end = start + budget;
+    long now = start;
+    while (now < end) {
+      sink = operation.run();
+      long finished = System.nanoTime();
+      if (samples < MAX_SAMPLES) {
+        latencies[samples++] = finished - now;
+      }
+      operations++;
+      now = finished;
+    }
+    long allocated = getAllocatedBytes() - allocatedBefore;
+
+    Arrays.sort(latencies, 0, samples);
+    System.out.printf("%s\t%.0f\t%.1f\t%.1f\t%.1f\t%.1f\t%.1f\t%s%n",
+        name,
+        operations / ((now - start) / 1e9),
+        percentile(latencies, samples, 0.5),
+        percentile(latencies, samples, 0.9),
+        percentile(latencies, samples, 0.99),
+        percentile(latencies, samples, 0.999),
+        latencies[samples - 1] / 1e3,
+        allocated < 0 ? "n/a" : String.valueOf(allocated / operations));
+  }
+
+  private static double percentile(long[] sorted, int count, double p) {
+    return sorted[Math.min(count - 1, (int) (p * count))] / 1e3;
+  }
+
+  /**
+   * Gets the bytes allocated so far by this thread, or -1 if the JVM does
+   * not report them.
+   */
+  private static long getAllocatedBytes() {
+    java.lang.management.ThreadMXBean bean =
+        ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) bean)
+          .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,97 @@
+package com.example.ai.bayes;
+
+import static com.example.ai.bayes.Event.varEquals;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.lang.management.ManagementFactory;
+
+import junit.framework.TestCase;
+
+public class JointEnumeratorTest extends TestCase {
+  private static final double DELTA = 0.000001;
+
+  private BayesNetwork getChainNetwork(int length) {
+    BayesNetwork.Builder builder = BayesNetwork.builder()
+        .add(ConditionalDistribution.forVariable("X0")
+            .setProbability(1/4d, "T")
+            .setProbability(3/4d, "F")
+            .build());
+    for (int i = 1; i < length; i++) {
+      builder.add(ConditionalDistribution.forVariable("X" + i)
+          .setParents("X" + (i - 1))
+          .setProbability(9/10d, "T", "T")
+          .setProbability(1/10d, "F", "T")
+          .setProbability(1/10d, "T", "F")
+          .setProbability(9/10d, "F", "F")
+          .build());
+    }
+    return builder.build();
+  }
+
+  public void testSum() {
+    BayesNetwork network = getChainNetwork(3);
+    // X0 = T, X1 = F; X2 is summed out.
+    JointEnumerator enumerator = JointEnumerator.create(network,
+        ImmutableMap.of("X0", new int[] { 0 }, "X1", new int[] { 1 }));
+    assertEquals(1/4d * 1/10d, enumerator.sum(), DELTA);
+
+    enumerator = JointEnumerator.create(
+        network, ImmutableMap.<String, int[]>of());
+    assertEquals(1d, enumerator.sum(), DELTA);
+  }
+
+  public void testIncrementVisitsEveryConfiguration() {
+    JointEnumerator enumerator = JointEnumerator.create(
+        getChainNetwork(5), ImmutableMap.<String, int[]>of());
+    int count = 1;
+    while (enumerator.increment()) {
+      count++;
+    }
+    assertEquals(32, count);
+  }
+
+  public void testMatchesVariableElimination() {
+    BayesNetwork network = getChainNetwork(6);
+    Event evidence = varEquals("X5", "T");
+    assertEquals(
+        network.queryProbabilityWithEvidence(varEquals("X0", "T"), evidence),
+        network.queryProbabilityWithEvidence(
+            varEquals("X0", "T"), evidence, EnumerationEngine.create()),
+        DELTA);
+  }
+
+  /**
+   * Checks with the JVM's per-thread allocation counter that summing over
+   * 2^16 configurations allocates (almost) nothing.
+   */
+  public void testSumDoesNotAllocate() {
+    java.lang.management.ThreadMXBean bean =
+        ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+      return;
+    }
+    com.sun.management.ThreadMXBean threadBean =
+        (com.sun.management.ThreadMXBean) bean;
+    if (!threadBean.isThreadAllocatedMemorySupported()) {
+      return;
+    }
+    threadBean.setThreadAllocatedMemoryEnabled(true);
+    long threadId = Thread.currentThread().getId();
+
+    JointEnumerator enumerator = JointEnumerator.create(
+        getChainNetwork(16), ImmutableMap.<String, int[]>of());
+    // Warm up, so that class loading and compilation are not counted.
+    for (int i = 0; i < 5; i++) {
+      enumerator.sum();
+    }
+    threadBean.getThreadAllocatedBytes(threadId);
+
+    long before = threadBean.getThreadAllocatedBytes(threadId);
+    double sum = enumerator.sum();
+    long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+    assertEquals(1d, sum, DELTA);
+    assertTrue("Allocated " + allocated + " bytes", allocated < 1024);
+  }
+}
@@ -0,0 +1,146 @@
+package com.example.ai.bayes;
+
+import static com.example.ai.bayes.Event.and;
+import static com.example.ai.bayes.Event.not;
+import static com.example.ai.bayes.Event.or;
+import static com.example.ai.bayes.Event.varEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class LikelihoodWeightingEngineTest extends TestCase {
+  private static final double DELTA = 0.000001;
+
+  private BayesNetwork getNetwork() {
+    return BayesNetwork.builder()
+        .add(ConditionalDistribution.forVariable("Rain")
+            .setProbability(0.2, "yes")
+            .setProbability(0.8, "no")
+            .build())
+        .add(ConditionalDistribution.forVariable("Sprinkler")
+            .setParents("Rain")
+            .setProbability(0.01, "on", "yes")
+            .setProbability(0.99, "off", "yes")
+            .setProbability(0.4, "on", "no")
+            .setProbability(0.6, "off", "no")
+            .build())
+        .add(ConditionalDistribution.forVariable("Grass")
+            .setParents("Sprinkler", "Rain")
+            .setProbability(0.99, "wet", "on", "yes")
+            .setProbability(0.01, "dry", "on", "yes")
+            .setProbability(0.9, "wet", "on", "no")
+            .setProbability(0.1, "dry", "on", "no")
+            .setProbability(0.8, "wet", "off", "yes")
+            .setProbability(0.2, "dry", "off", "yes")
+            .setProbability(0, "wet", "off", "no")
+            .setProbability(1, "dry", "off", "no")
+            .build())
+        .build();
+  }
+
+  public void testEstimateCoversExactValue() {
+    BayesNetwork network = getNetwork();
+    LikelihoodWeightingEngine engine = LikelihoodWeightingEngine.builder()
+        .setMaxSamples(200000)
+        .setSeed(42)
+        .build();
+    Event query = varEquals("Rain", "yes");
+    Event evidence = varEquals("Grass", "wet");
+    double exact = network.queryProbabilityWithEvidence(query, evidence);
+
+    Estimate estimate = engine.estimate(network, query, evidence);
+    assertEquals(200000, estimate.getSampleCount());
+    assertEquals(0.95, estimate.getConfidenceLevel());
+    assertTrue(estimate.toString(), estimate.getLowerBound() <= exact);
+    assertTrue(estimate.toString(), estimate.getUpperBound() >= exact);
+    assertEquals(exact, estimate.getValue(), 0.01);
+    assertTrue(estimate.getHalfWidth() < 0.01);
+    // Rain is drawn unweighted, so the weights vary and some samples are
+    // lost.
+    assertTrue(estimate.getEffectiveSampleSize() < 200000);
+    assertTrue(estimate.getEffectiveSampleSize() > 10000);
+  }
+
+  public void testHalfWidthIsNotClamped() {
+    Estimate estimate = Estimate.of(0.01, 0.05, 0.95, 100, 100);
+    assertEquals(0d, estimate.getLowerBound(), DELTA);
+    assertEquals(0.06, estimate.getUpperBound(), DELTA);
+    assertEquals(0.05, estimate.getHalfWidth(), DELTA);
+  }
+
+  public void testSeedReproducesEstimate() {
+    BayesNetwork network = getNetwork();
+    LikelihoodWeightingEngine engine = LikelihoodWeightingEngine.builder()
+        .setMaxSamples(1000)
+        .setSeed(7)
+        .build();
+    Event query = or(varEquals("Rain", "yes"), varEquals("Sprinkler", "on"));
+    Event evidence = not(varEquals("Grass", "dry"));
+    assertEquals(engine.estimate(network, query, evidence),
+        engine.estimate(network, query, evidence));
+  }
+
+  public void testStopsAtTargetPrecision() {
+    LikelihoodWeightingEngine engine = LikelihoodWeightingEngine.builder()
+        .setTargetHalfWidth(0.02)
+        .setSeed(1)
+        .build();
+    Estimate estimate = engine.estimate(getNetwork(),
+        varEquals("Sprinkler", "on"), varEquals("Grass", "wet"));
+    assertTrue(estimate.getHalfWidth() <= 0.02);
+    assertTrue(estimate.getSampleCount() < 100000);
+  }
+
+  public void testStopsAtTimeBudget() {
+    LikelihoodWeightingEngine engine = LikelihoodWeightingEngine.builder()
+        .setMaxSamples(Long.MAX_VALUE)
+        .setTimeBudget(20, TimeUnit.MILLISECONDS)
+        .build();
+    Estimate estimate = engine.estimate(getNetwork(),
+        varEquals("Rain", "yes"), varEquals("Grass", "wet"));
+    assertTrue(estimate.getSampleCount() > 0);
+    assertTrue(estimate.getSampleCount() < Long.MAX_VALUE);
+  }
+
+  public void testQueryProbability() {
+    BayesNetwork network = getNetwork();
+    LikelihoodWeightingEngine engine = LikelihoodWeightingEngine.builder()
+        .setMaxSamples(100000)
+        .setSeed(3)
+        .build();
+    Event event = or(
+        and(varEquals("Rain", "no"), varEquals("Grass", "wet")),
+        varEquals("Sprinkler", "off"));
+    assertEquals(network.queryProbability(event),
+        network.queryProbability(event, engine), 0.01);
+  }
+
+  public void testImpossibleEvidence() {
+    LikelihoodWeightingEngine engine = LikelihoodWeightingEngine.builder()
+        .setSeed(3)
+        .build();
+    Estimate estimate = engine.estimate(getNetwork(), varEquals("Rain", "yes"),
+        and(varEquals("Rain", "yes"), varEquals("Rain", "no")));
+    assertTrue(Double.isNaN(estimate.getValue()));
+    assertEquals(0, estimate.getSampleCount());
+  }
+
+  public void testRejectsDisjunctiveEvidence() {
+    LikelihoodWeightingEngine engine = LikelihoodWeightingEngine.builder()
+        .build();
+    try {
+      engine.estimate(getNetwork(), varEquals("Rain", "yes"),
+          or(varEquals("Sprinkler", "on"), varEquals("Grass", "wet")));
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testCriticalValue() {
+    assertEquals(1.96, Estimate.getCriticalValue(0.95),
+        0.001);
+    assertEquals(2.576, Estimate.getCriticalValue(0.99),
+        0.001);
+  }
+}
@@ -0,0 +1,144 @@
+package com.example.ai.bayes;
+
+import static com.example.ai.bayes.Event.or;
+import static com.example.ai.bayes.Event.varEquals;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class MetricsInstrumentationTest extends TestCase {
+  private final List<QueryMetrics> reported = Lists.newArrayList();
+
+  @Override
+  protected void setUp() {
+    BayesNetwork.setInstrumentation(new Instrumentation() {
+      @Override
+      public void queryCompleted(QueryMetrics metrics) {
+        reported.add(metrics);
+      }
+    });
+  }
+
+  @Override
+  protected void tearDown() {
+    BayesNetwork.setInstrumentation(null);
+  }
+
+  private BayesNetwork getNetwork() {
+    return BayesNetwork.builder()
+        .add(ConditionalDistribution.forVariable("X")
+            .setProbability(1/4d, "X1")
+            .setProbability(3/4d, "X2")
+            .build())
+        .add(ConditionalDistribution.forVariable("Y")
+            .setParents("X")
+            .setProbability(1/2d, "Y1", "X1")
+            .setProbability(1/4d, "Y2", "X1")
+            .setProbability(1/4d, "Y3", "X1")
+            .setProbability(1/10d, "Y1", "X2")
+            .setProbability(2/10d, "Y2", "X2")
+            .setProbability(7/10d, "Y3", "X2")
+            .build())
+        .build();
+  }
+
+  public void testEnumerationMetrics() {
+    getNetwork().queryProbability(
+        or(varEquals("X", "X1"), varEquals("Y", "Y1")),
+        EnumerationEngine.create());
+    assertEquals(1, reported.size());
+    QueryMetrics metrics = reported.get(0);
+    assertEquals("queryProbability", metrics.getOperation());
+    assertEquals("EnumerationEngine", metrics.getEngine());
+    // Disjoined into X = X1, and X = X2 with Y = Y1.
+    assertEquals(2, metrics.getClauseCount());
+    assertEquals(3 + 1, metrics.getConfigurationCount());
+    assertEquals(2 * (3 + 1), metrics.getTableLookupCount());
+    assertEquals(0, metrics.getLargestFactorSize());
+    assertTrue(metrics.getElapsedNanos() >= 0);
+  }
+
+  public void testEliminationMetrics() {
+    getNetwork().queryProbabilityWithEvidence(
+        varEquals("X", "X1"), varEquals("Y", "Y2"),
+        BayesNetwork.ELIMINATION_ENGINE);
+    assertEquals(1, reported.size());
+    QueryMetrics metrics = reported.get(0);
+    assertEquals("queryProbabilityWithEvidence", metrics.getOperation());
+    assertEquals("VariableEliminationEngine", metrics.getEngine());
+    assertEquals(2, metrics.getClauseCount());
+    assertEquals(6, metrics.getLargestFactorSize());
+    assertEquals(2 * (2 + 6), metrics.getTableLookupCount());
+  }
+
+  public void testCacheHits() {
+    QueryCache cache = QueryCache.withMaximumSize(getNetwork(), 10);
+    cache.queryProbability(varEquals("Y", "Y1"));
+    cache.queryProbability(varEquals("Y", "Y1"));
+    assertEquals(2, reported.size());
+    assertEquals(0, reported.get(0).getCacheHitCount());
+    // The planner enumerates a network this small.
+    assertEquals("EnumerationEngine", reported.get(0).getEngine());
+    assertEquals(1, reported.get(1).getCacheHitCount());
+    assertEquals("none", reported.get(1).getEngine());
+    assertEquals(0, reported.get(1).getClauseCount());
+  }
+
+  public void testDisabled() {
+    BayesNetwork.setInstrumentation(null);
+    getNetwork().queryProbability(varEquals("Y", "Y1"));
+    assertTrue(reported.isEmpty());
+    assertNull(QueryRecorder.start("queryProbability", null));
+  }
+
+  public void testAggregation() {
+    MetricsInstrumentation metrics = new MetricsInstrumentation();
+    BayesNetwork.setInstrumentation(metrics);
+    BayesNetwork network = getNetwork();
+    for (int i = 0; i < 10; i++) {
+      network.queryProbability(varEquals("Y", "Y1"));
+    }
+    network.queryProbability(
+        varEquals("Y", "Y1"), BayesNetwork.ELIMINATION_ENGINE);
+    assertEquals(11, metrics.getQueryCount());
+    assertEquals(11, metrics.getClauseCount());
+    assertEquals(ImmutableMap.of(
+            "EnumerationEngine", 10L, "VariableEliminationEngine", 1L),
+        metrics.getQueryCountsByEngine());
+    assertEquals(6, metrics.getLargestFactorSize());
+    ImmutableMap<String, Long> counters = metrics.getCounters();
+    assertEquals(Long.valueOf(11), counters.get("queries"));
+    assertEquals(Long.valueOf(1),
+        counters.get("engine.VariableEliminationEngine"));
+    assertTrue(counters.get("latency.p50") > 0);
+    assertTrue(counters.get("latency.p50") <= counters.get("latency.max"));
+  }
+
+  public void testLatencyBuckets() {
+    for (long value : new long[] {
+        0, 1, 15, 16, 17, 31, 32, 1000, 123456789, Long.MAX_VALUE }) {
+      long upperBound =
+          MetricsInstrumentation.getUpperBound(
+              MetricsInstrumentation.getBucket(value));
+      assertTrue(value + " " + upperBound, upperBound >= value);
+      assertTrue(value + " " + upperBound,
+          upperBound - value <= value / 16);
+    }
+  }
+
+  public void testLatencyPercentiles() {
+    MetricsInstrumentation metrics = new MetricsInstrumentation();
+    assertEquals(0, metrics.getLatencyPercentile(0.5));
+    for (int i = 1; i <= 100; i++) {
+      metrics.queryCompleted(
+          QueryMetrics.of("test", "none", 0, 0, 0, 0, 0, i * 1000L));
+    }
+    assertEquals(50000, metrics.getLatencyPercentile(0.5), 50000 / 16);
+    assertEquals(99000, metrics.getLatencyPercentile(0.99), 99000 / 16);
+    assertEquals(100000, metrics.getLatencyPercentile(1), 100000 / 16);
+  }
+}
@@ -0,0 +1,184 @@
+package com.example.ai.bayes;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Generates networks of a given shape and size with random probabilities,
+ * for benchmarks.  Variables are named {@code X0}, {@code X1} and so on, in
+ * topological order, and take the values {@code v0}, {@code v1} and so on.
+ */
+enum NetworkGenerator {
+  /** Each variable has the previous one as its only parent. */
+  CHAIN {
+    @Override
+    int[] getParents(int variable, int nodes, int inDegree, Random random,
+        int[] components) {
+      return variable == 0 ? new int[0] : new int[] { variable - 1 };
+    }
+  },
+
+  /**
+   * Each variable has up to the in-degree parents, drawn from different
+   * connected parts of the network so far, so that there are no undirected
+   * cycles.
+   */
+  POLYTREE {
+    @Override
+    int[] getParents(int variable, int nodes, int inDegree, Random random,
+        int[] components) {
+      int[] parents = new int[Math.min(variable, inDegree)];
+      int count = 0;
+      for (int attempt = 0; attempt < 4 * inDegree && count < parents.length;
+          attempt++) {
+        int candidate = random.nextInt(variable);
+        boolean connected = false;
+        for (int i = 0; i < count; i++) {
+          connected |= find(components, parents[i])
+              == find(components, candidate);
+        }
+        if (!connected) {
+          parents[count++] = candidate;
+        }
+      }
+      for (int i = 0; i < count; i++) {
+        components[find(components, parents[i])] = variable;
+      }
+      return sorted(parents, count);
+    }
+  },
+
+  /**
+   * The variables form a square grid, filled row by row, and each has the
+   * variables above and to the left of it as parents.
+   */
+  GRID {
+    @Override
+    int[] getParents(int variable, int nodes, int inDegree, Random random,
+        int[] components) {
+      int side = (int) Math.ceil(Math.sqrt(nodes));
+      int[] parents = new int[2];
+      int count = 0;
+      if (variable >= side) {
+        parents[count++] = variable - side;
+      }
+      if (variable % side != 0) {
+        parents[count++] = variable - 1;
+      }
+      return sorted(parents, count);
+    }
+  },
+
+  /**
+   * Each variable has as many parents as the in-degree allows, drawn at
+   * random from the variables before it.
+   */
+  RANDOM_DAG {
+    @Override
+    int[] getParents(int variable, int nodes, int inDegree, Random random,
+        int[] components) {
+      int[] parents = new int[Math.min(variable, inDegree)];
+      int count = 0;
+      while (count < parents.length) {
+        int candidate = random.nextInt(variable);
+        boolean duplicate = false;
+        for (int i = 0; i < count; i++) {
+          duplicate |= parents[i] == candidate;
+        }
+        if (!duplicate) {
+          parents[count++] = candidate;
+        }
+      }
+      return sorted(parents, count);
+    }
+  };
+
+  /**
+   * Chooses the parents of a variable among the variables before it.
+   *
+   * @param components a union-find forest over the variables, for shapes
+   *        that need to track connectivity
+   */
+  abstract int[] getParents(int variable, int nodes, int inDegree,
+      Random random, int[] components);
+
+  /**
+   * Generates the distributions of a network.
+   */
+  ImmutableList<ConditionalDistribution> generate(
+      int nodes, int arity, int inDegree, long seed) {
+    Random random = new Random(seed);
+    int[] components = new int[nodes];
+    for (int i = 0; i < nodes; i++) {
+      components[i] = i;
+    }
+    ImmutableList.Builder<ConditionalDistribution> result =
+        ImmutableList.builder();
+    for (int i = 0; i < nodes; i++) {
+      int[] parents = getParents(i, nodes, inDegree, random, components);
+      String[] parentNames = new String[parents.length];
+      for (int j = 0; j < parents.length; j++) {
+        parentNames[j] = "X" + parents[j];
+      }
+      ConditionalDistribution.Builder distribution =
+          ConditionalDistribution.forVariable("X" + i)
+              .setParents(parentNames);
+      int[] parentValues = new int[parents.length];
+      String[] key = new String[parents.length];
+      do {
+        for (int j = 0; j < parents.length; j++) {
+          key[j] = "v" + parentValues[j];
+        }
+        double[] weights = new double[arity];
+        double total = 0d;
+        for (int value = 0; value < arity; value++) {
+          weights[value] = 0.1d + random.nextDouble();
+          total += weights[value];
+        }
+        for (int value = 0; value < arity; value++) {
+          distribution.setProbability(
+              weights[value] / total, "v" + value, key);
+        }
+      } while (increment(parentValues, arity));
+      result.add(distribution.build());
+    }
+    return result.build();
+  }
+
+  /**
+   * Builds a network from generated distributions.
+   */
+  static BayesNetwork build(ImmutableList<ConditionalDistribution> list) {
+    BayesNetwork.Builder builder = BayesNetwork.builder();
+    for (ConditionalDistribution distribution : list) {
+      builder.add(distribution);
+    }
+    return builder.build();
+  }
+
+  private static int find(int[] components, int variable) {
+    while (components[variable] != variable) {
+      variable = components[variable];
+    }
+    return variable;
+  }
+
+  private static int[] sorted(int[] values, int count) {
+    int[] result = Arrays.copyOf(values, count);
+    Arrays.sort(result);
+    return result;
+  }
+
+  private static boolean increment(int[] values, int arity) {
+    for (int i = 0; i < values.length; i++) {
+      values[i]++;
+      if (values[i] < arity) {
+        return true;
+      }
+      values[i] = 0;
+    }
+    return false;
+  }
+}
@@ -0,0 +1,161 @@
+package com.example.ai.bayes;
+
+import static com.example.ai.bayes.Event.varEquals;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+public class OnlineNetworkTest extends TestCase {
+  private static final double DELTA = 0.000001;
+
+  private ParameterLearner.Builder getBuilder() {
+    return ParameterLearner.builder()
+        .addVariable("Rain", ImmutableList.of("yes", "no"))
+        .addVariable("Sprinkler", ImmutableList.of("on", "off"), "Rain");
+  }
+
+  private static List<int[]> repeat(int[] record, int times) {
+    int[][] result = new int[times][];
+    Arrays.fill(result, record);
+    return Arrays.asList(result);
+  }
+
+  public void testWithoutDecayMatchesBatchLearning() {
+    ParameterLearner learner = getBuilder().setPseudocount(1/2d).build();
+    OnlineNetwork online = OnlineNetwork.create(learner, 1);
+    ImmutableList<int[]> first = ImmutableList.of(
+        new int[] { 0, 1 }, new int[] { 1, 0 }, new int[] { 1, 1 });
+    ImmutableList<int[]> second = ImmutableList.of(
+        new int[] { 0, 0 }, new int[] { -1, 0 }, new int[] { 1, 0 });
+    online.update(first);
+    OnlineNetwork.Snapshot snapshot = online.update(second);
+
+    assertEquals(2, snapshot.getVersion());
+    assertEquals(6d, snapshot.getEffectiveRecordCount(), DELTA);
+    BayesNetwork expected = learner.learn(ImmutableList.<int[]>builder()
+        .addAll(first).addAll(second).build());
+    assertSameProbabilities(expected, snapshot.getNetwork());
+  }
+
+  public void testDecay() {
+    OnlineNetwork online = OnlineNetwork.create(getBuilder().build(), 1/2d);
+    assertEquals(0, online.getSnapshot().getVersion());
+    online.update(repeat(new int[] { 0, 0 }, 10));
+    online.update(repeat(new int[] { 1, 1 }, 10));
+    OnlineNetwork.Snapshot snapshot = online.getSnapshot();
+    assertEquals(15d, snapshot.getEffectiveRecordCount(), DELTA);
+    assertEquals(1/3d, snapshot.getNetwork().queryProbability(
+        varEquals("Rain", "yes")), DELTA);
+  }
+
+  public void testRenormalizesLongStreams() {
+    OnlineNetwork online = OnlineNetwork.create(
+        getBuilder().setPseudocount(1).build(), 1/10d);
+    for (int i = 0; i < 500; i++) {
+      online.update(ImmutableList.of(new int[] { i % 2, 0 }));
+    }
+    online.update(ImmutableList.of(new int[] { 0, 0 }));
+    OnlineNetwork.Snapshot snapshot = online.getSnapshot();
+    assertEquals(1 / 0.9, snapshot.getEffectiveRecordCount(), DELTA);
+    // Relative to the last record, the records for "yes" weigh 1, 0.01,
+    // 0.0001 and so on, and there is a pseudocount of 1 per value.
+    assertEquals((1 / 0.99 + 1) / (1 / 0.9 + 2), snapshot.getNetwork()
+        .queryProbability(varEquals("Rain", "yes")), DELTA);
+  }
+
+  public void testUntouchedDistributionsAreShared() {
+    OnlineNetwork online = OnlineNetwork.create(getBuilder().build(), 1/2d);
+    BayesNetwork first =
+        online.update(ImmutableList.of(new int[] { 0, 0 })).getNetwork();
+    BayesNetwork second =
+        online.update(ImmutableList.of(new int[] { 0, -1 })).getNetwork();
+    assertNotSame(first.getConditionalDistributions().get(0),
+        second.getConditionalDistributions().get(0));
+    assertSame(first.getConditionalDistributions().get(1),
+        second.getConditionalDistributions().get(1));
+    assertSame(first.getTopology(), second.getTopology());
+  }
+
+  public void testReadersSeeConsistentSnapshots() throws Exception {
+    final OnlineNetwork online =
+        OnlineNetwork.create(getBuilder().setPseudocount(1).build(), 0.9);
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    Thread reader = new Thread() {
+      @Override
+      public void run() {
+        long version = -1;
+        try {
+          while (version < 200) {
+            OnlineNetwork.Snapshot snapshot = online.getSnapshot();
+            assertTrue(snapshot.getVersion() >= version);
+            version = snapshot.getVersion();
+            BayesNetwork network = snapshot.getNetwork();
+            assertEquals(1d, network.queryProbability(
+                varEquals("Sprinkler", "on"))
+                + network.queryProbability(varEquals("Sprinkler", "off")),
+                DELTA);
+          }
+        } catch (Throwable t) {
+          failure.set(t);
+        }
+      }
+    };
+    reader.start();
+    for (int i = 0; i < 200; i++) {
+      online.update(ImmutableList.of(new int[] { i % 2, i % 3 == 0 ? 0 : 1 },
+          new int[] { (i / 2) % 2, 1 }));
+    }
+    reader.join();
+    assertNull(failure.get());
+  }
+
+  public void testBadBatchIsNotCounted() {
+    OnlineNetwork online = OnlineNetwork.create(getBuilder().build(), 1/2d);
+    OnlineNetwork.Snapshot before =
+        online.update(repeat(new int[] { 0, 0 }, 3));
+    try {
+      online.update(ImmutableList.of(new int[] { 1, 1 }, new int[] { 2, 0 }));
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    assertSame(before, online.getSnapshot());
+
+    // Neither the valid record nor the decay of the failed batch counts.
+    OnlineNetwork.Snapshot after =
+        online.update(ImmutableList.of(new int[] { 1, 1 }));
+    assertEquals(2, after.getVersion());
+    assertEquals(2.5, after.getEffectiveRecordCount(), DELTA);
+    assertEquals(0.6, after.getNetwork().queryProbability(
+        varEquals("Rain", "yes")), DELTA);
+  }
+
+  public void testRejectsBadDecay() {
+    try {
+      OnlineNetwork.create(getBuilder().build(), 0);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  private static void assertSameProbabilities(
+      BayesNetwork expected, BayesNetwork actual) {
+    for (int i = 0; i < expected.getConditionalDistributions().size(); i++) {
+      ImmutableMap<ImmutableList<String>, Double> expectedProbabilities =
+          expected.getConditionalDistributions().get(i).getProbabilities();
+      ImmutableMap<ImmutableList<String>, Double> actualProbabilities =
+          actual.getConditionalDistributions().get(i).getProbabilities();
+      assertEquals(expectedProbabilities.keySet(),
+          actualProbabilities.keySet());
+      for (ImmutableList<String> key : expectedProbabilities.keySet()) {
+        assertEquals(key.toString(), expectedProbabilities.get(key),
+            actualProbabilities.get(key), DELTA);
+      }
+    }
+  }
+}
@@ -0,0 +1,127 @@
+package com.example.ai.bayes;
+
+import static com.example.ai.bayes.Event.and;
+import static com.example.ai.bayes.Event.not;
+import static com.example.ai.bayes.Event.or;
+import static com.example.ai.bayes.Event.varEquals;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import junit.framework.TestCase;
+
+public class ParallelInferenceTest extends TestCase {
+  private static final double DELTA = 0.000001;
+
+  private ForkJoinPool pool;
+
+  @Override
+  protected void setUp() {
+    pool = new ForkJoinPool(4);
+  }
+
+  @Override
+  protected void tearDown() {
+    pool.shutdown();
+  }
+
+  /**
+   * Builds a network in which each variable depends on up to the given
+   * number of preceding variables, with random probabilities.
+   */
+  static BayesNetwork getRandomNetwork(
+      int size, int arity, int inDegree, long seed) {
+    Random random = new Random(seed);
+    BayesNetwork.Builder builder = BayesNetwork.builder();
+    for (int i = 0; i < size; i++) {
+      int parentCount = Math.min(i, inDegree);
+      String[] parents = new String[parentCount];
+      for (int j = 0; j < parentCount; j++) {
+        parents[j] = "X" + (i - parentCount + j);
+      }
+      ConditionalDistribution.Builder distribution =
+          ConditionalDistribution.forVariable("X" + i).setParents(parents);
+
+      int[] parentValues = new int[parentCount];
+      do {
+        String[] key = new String[parentCount];
+        for (int j = 0; j < parentCount; j++) {
+          key[j] = "v" + parentValues[j];
+        }
+        double[] weights = new double[arity];
+        double total = 0d;
+        for (int value = 0; value < arity; value++) {
+          weights[value] = 0.1d + random.nextDouble();
+          total += weights[value];
+        }
+        for (int value = 0; value < arity; value++) {
+          distribution.setProbability(weights[value] / total, "v" + value, key);
+        }
+      } while (increment(parentValues, arity));
+      builder.add(distribution.build());
+    }
+    return builder.build();
+  }
+
+  private static boolean increment(int[] values, int arity) {
+    for (int i = 0; i < values.length; i++) {
+      values[i]++;
+      if (values[i] < arity) {
+        return true;
+      }
+      values[i] = 0;
+    }
+    return false;
+  }
+
+  private ImmutableList<Event> getQueries(int size) {
+    return ImmutableList.of(
+        varEquals("X0", "v1"),
+        varEquals("X" + (size - 1), "v0"),
+        and(varEquals("X1", "v2"), not(varEquals("X" + (size - 2), "v0"))),
+        or(varEquals("X2", "v0"), varEquals("X" + (size - 1), "v1")));
+  }
+
+  public void testSumOutIsCompensated() {
+    // Added one at a time to 1, each of the small terms would be lost.
+    ConditionalDistribution.Builder distribution =
+        ConditionalDistribution.forVariable("X").setProbability(1d, "big");
+    for (int i = 0; i < 10; i++) {
+      distribution.setProbability(1e-16, "small" + i);
+    }
+    Factor factor = Factor.fromDistribution(distribution.build());
+    assertTrue(factor.sumOut("X").getScalarValue() > 1d + 5e-16);
+    assertTrue(factor.sumOut("X", pool).getScalarValue() > 1d + 5e-16);
+    assertTrue(factor.sum() > 1d + 5e-16);
+  }
+
+  public void testParallelEnumerationMatchesSequential() {
+    BayesNetwork network = getRandomNetwork(10, 3, 2, 42);
+    InferenceEngine sequential = EnumerationEngine.create();
+    InferenceEngine parallel = EnumerationEngine.create(pool);
+    for (Event query : getQueries(10)) {
+      assertEquals(query.toString(),
+          network.queryProbability(query, sequential),
+          network.queryProbability(query, parallel),
+          DELTA);
+    }
+  }
+
+  public void testParallelEliminationMatchesSequential() {
+    // With 8 values and 4 parents, the largest table has 8^5 entries, which
+    // is enough for the factor operations to be split into tasks.
+    BayesNetwork network = getRandomNetwork(7, 8, 4, 7);
+    InferenceEngine sequential =
+        VariableEliminationEngine.withOrder(EliminationOrder.MIN_FILL);
+    InferenceEngine parallel =
+        VariableEliminationEngine.withOrder(EliminationOrder.MIN_FILL, pool);
+    for (Event query : getQueries(7)) {
+      assertEquals(query.toString(),
+          network.queryProbability(query, sequential),
+          network.queryProbability(query, parallel),
+          DELTA);
+    }
+  }
+}
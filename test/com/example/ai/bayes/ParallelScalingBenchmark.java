@@ -0,0 +1,54 @@
+package com.example.ai.bayes;
+
+import static com.example.ai.bayes.Event.varEquals;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Measures how exact inference scales with the number of threads, from 1 up
+ * to 64.  Run it directly; it is not part of the unit tests.
+ */
+public class ParallelScalingBenchmark {
+  private static final int REPETITIONS = 5;
+
+  public static void main(String[] args) {
+    BayesNetwork enumerationNetwork =
+        ParallelInferenceTest.getRandomNetwork(14, 3, 2, 1);
+    BayesNetwork eliminationNetwork =
+        ParallelInferenceTest.getRandomNetwork(9, 10, 5, 1);
+    // Query the last variable, so that no variable can be pruned.
+    Event enumerationQuery = varEquals("X13", "v1");
+    Event eliminationQuery = varEquals("X8", "v1");
+
+    System.out.println("threads\tenumeration ms\telimination ms");
+    for (int threads = 1; threads <= 64; threads *= 2) {
+      ForkJoinPool pool = new ForkJoinPool(threads);
+      try {
+        double enumerationMillis = time(enumerationNetwork, enumerationQuery,
+            EnumerationEngine.create(pool));
+        double eliminationMillis = time(eliminationNetwork, eliminationQuery,
+            VariableEliminationEngine.withOrder(
+                EliminationOrder.MIN_FILL, pool));
+        System.out.printf("%d\t%.1f\t%.1f%n",
+            threads, enumerationMillis, eliminationMillis);
+      } finally {
+        pool.shutdown();
+      }
+    }
+  }
+
+  /**
+   * Returns the best time of several runs, after one warm-up run.
+   */
+  private static double time(
+      BayesNetwork network, Event query, InferenceEngine engine) {
+    network.queryProbability(query, engine);
+    long best = Long.MAX_VALUE;
+    for (int i = 0; i < REPETITIONS; i++) {
+      long start = System.nanoTime();
+      network.queryProbability(query, engine);
+      best = Math.min(best, System.nanoTime() - start);
+    }
+    return best / 1e6;
+  }
+}
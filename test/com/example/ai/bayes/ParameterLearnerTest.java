@@ -0,0 +1,165 @@
+package com.example.ai.bayes;
+
+import static com.example.ai.bayes.Event.varEquals;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import junit.framework.TestCase;
+
+public class ParameterLearnerTest extends TestCase {
+  private static final double DELTA = 0.000001;
+
+  private ParameterLearner.Builder getBuilder() {
+    // Children are added before their parents, so the record order differs
+    // from the topological order.
+    return ParameterLearner.builder()
+        .addVariable("Grass", ImmutableList.of("wet", "dry"),
+            "Sprinkler", "Rain")
+        .addVariable("Rain", ImmutableList.of("yes", "no"))
+        .addVariable("Sprinkler", ImmutableList.of("on", "off"), "Rain");
+  }
+
+  private BayesNetwork getNetwork() {
+    return BayesNetwork.builder()
+        .add(ConditionalDistribution.forVariable("Grass")
+            .setParents("Sprinkler", "Rain")
+            .setProbability(0.99, "wet", "on", "yes")
+            .setProbability(0.01, "dry", "on", "yes")
+            .setProbability(0.9, "wet", "on", "no")
+            .setProbability(0.1, "dry", "on", "no")
+            .setProbability(0.8, "wet", "off", "yes")
+            .setProbability(0.2, "dry", "off", "yes")
+            .setProbability(0.05, "wet", "off", "no")
+            .setProbability(0.95, "dry", "off", "no")
+            .build())
+        .add(ConditionalDistribution.forVariable("Rain")
+            .setProbability(0.2, "yes")
+            .setProbability(0.8, "no")
+            .build())
+        .add(ConditionalDistribution.forVariable("Sprinkler")
+            .setParents("Rain")
+            .setProbability(0.01, "on", "yes")
+            .setProbability(0.99, "off", "yes")
+            .setProbability(0.4, "on", "no")
+            .setProbability(0.6, "off", "no")
+            .build())
+        .build();
+  }
+
+  public void testMaximumLikelihood() {
+    ParameterLearner learner = getBuilder().build();
+    BayesNetwork learned = learner.learn(ImmutableList.of(
+        learner.toRecord(ImmutableMap.of(
+            "Grass", "wet", "Rain", "yes", "Sprinkler", "off")),
+        learner.toRecord(ImmutableMap.of(
+            "Grass", "dry", "Rain", "yes", "Sprinkler", "off")),
+        learner.toRecord(ImmutableMap.of(
+            "Grass", "wet", "Rain", "yes", "Sprinkler", "off")),
+        learner.toRecord(ImmutableMap.of("Rain", "no", "Sprinkler", "on"))));
+
+    assertEquals(3/4d, probability(learned, "Rain", "yes"), DELTA);
+    assertEquals(1d, probability(learned, "Sprinkler", "off", "yes"), DELTA);
+    assertEquals(1d, probability(learned, "Sprinkler", "on", "no"), DELTA);
+    assertEquals(2/3d,
+        probability(learned, "Grass", "wet", "off", "yes"), DELTA);
+    // The last record does not observe Grass, and no other record has the
+    // sprinkler on, so that row is uniform.
+    assertEquals(1/2d, probability(learned, "Grass", "wet", "on", "no"), DELTA);
+  }
+
+  public void testSparseDataCanBeQueried() {
+    ParameterLearner learner = getBuilder().build();
+    BayesNetwork learned = learner.learn(ImmutableList.of(
+        learner.toRecord(ImmutableMap.of(
+            "Grass", "wet", "Rain", "yes", "Sprinkler", "off")),
+        learner.toRecord(ImmutableMap.of("Rain", "no"))));
+    // Only one row of Grass and one row of Sprinkler have data.
+    assertEquals(3/4d, learned.queryProbability(varEquals("Grass", "wet")),
+        DELTA);
+    assertEquals(1/2d, learned.queryProbabilityWithEvidence(
+        varEquals("Grass", "wet"), varEquals("Rain", "no")), DELTA);
+  }
+
+  public void testPseudocount() {
+    ParameterLearner learner = getBuilder().setPseudocount(1).build();
+    BayesNetwork learned = learner.learn(ImmutableList.of(
+        learner.toRecord(ImmutableMap.of(
+            "Grass", "wet", "Rain", "yes", "Sprinkler", "off"))));
+    assertEquals(2/3d, probability(learned, "Rain", "yes"), DELTA);
+    assertEquals(1/2d,
+        probability(learned, "Grass", "wet", "on", "no"), DELTA);
+    assertEquals(2/3d,
+        probability(learned, "Grass", "wet", "off", "yes"), DELTA);
+  }
+
+  public void testRecoversSampledNetwork() {
+    BayesNetwork network = getNetwork();
+    int[][] samples = new int[200000][network.getVariables().size()];
+    ForwardSampler.create(network).sample(42, samples);
+
+    // The sampler lists values in the network's variable order, which here
+    // matches the learner's.
+    ParameterLearner learner = getBuilder().build();
+    assertEquals(network.getVariables(), learner.getVariables());
+    BayesNetwork learned = learner.learn(Arrays.asList(samples));
+    for (String variable : network.getVariables()) {
+      for (String value : network.getValues(variable)) {
+        assertEquals(network.queryProbability(varEquals(variable, value)),
+            learned.queryProbability(varEquals(variable, value)), 0.01);
+      }
+    }
+  }
+
+  public void testPartitionsMatchSinglePass() {
+    BayesNetwork network = getNetwork();
+    int[][] samples = new int[10000][network.getVariables().size()];
+    ForwardSampler.create(network).sample(7, samples);
+    List<int[]> records = Arrays.asList(samples);
+    ImmutableList<List<int[]>> partitions = ImmutableList.of(
+        records.subList(0, 1234), records.subList(1234, 5000),
+        records.subList(5000, 10000));
+
+    BayesNetwork expected = getBuilder().build().learn(records);
+    assertEquals(expected,
+        getBuilder().build().learnPartitions(partitions));
+    ForkJoinPool pool = new ForkJoinPool(3);
+    try {
+      assertEquals(expected,
+          getBuilder().setPool(pool).build().learnPartitions(partitions));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  public void testRejectsBadRecords() {
+    ParameterLearner learner = getBuilder().build();
+    ParameterLearner.Counts counts = learner.newCounts();
+    try {
+      counts.add(new int[] { 0, 0 });
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      counts.add(new int[] { 0, 2, 0 });
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      getBuilder().build().estimate(counts);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    assertEquals(0, counts.getRecordCount());
+  }
+
+  private static double probability(
+      BayesNetwork network, String variable, String... values) {
+    return network.getDistribution(variable).getProbabilities().get(
+        ImmutableList.copyOf(values));
+  }
+}
@@ -0,0 +1,88 @@
+package com.example.ai.bayes;
+
+import static com.example.ai.bayes.Event.and;
+import static com.example.ai.bayes.Event.not;
+import static com.example.ai.bayes.Event.or;
+import static com.example.ai.bayes.Event.varEquals;
+
+import com.google.common.cache.CacheStats;
+
+import junit.framework.TestCase;
+
+public class QueryCacheTest extends TestCase {
+  private static final double DELTA = 0.000001;
+
+  private BayesNetwork getNetwork() {
+    return BayesNetwork.builder()
+        .add(ConditionalDistribution.forVariable("X")
+            .setProbability(1/5d, "X1")
+            .setProbability(3/10d, "X2")
+            .setProbability(1/2d, "X3")
+            .build())
+        .add(ConditionalDistribution.forVariable("Y")
+            .setParents("X")
+            .setProbability(1/4d, "Y1", "X1")
+            .setProbability(3/4d, "Y2", "X1")
+            .setProbability(1/2d, "Y1", "X2")
+            .setProbability(1/2d, "Y2", "X2")
+            .setProbability(9/10d, "Y1", "X3")
+            .setProbability(1/10d, "Y2", "X3")
+            .build())
+        .build();
+  }
+
+  public void testMatchesNetwork() {
+    BayesNetwork network = getNetwork();
+    QueryCache cache = QueryCache.withMaximumSize(network, 10);
+    Event query = or(varEquals("X", "X1"), varEquals("X", "X2"));
+    Event evidence = varEquals("Y", "Y1");
+    assertEquals(network.queryProbabilityWithEvidence(query, evidence),
+        cache.queryProbabilityWithEvidence(query, evidence), DELTA);
+    assertEquals(network.queryProbability(query),
+        cache.queryProbability(query), DELTA);
+  }
+
+  public void testEquivalentQueriesShareEntry() {
+    QueryCache cache = QueryCache.withMaximumSize(getNetwork(), 10);
+    Event evidence = varEquals("Y", "Y1");
+    cache.queryProbabilityWithEvidence(
+        or(varEquals("X", "X1"), varEquals("X", "X2")), evidence);
+    cache.queryProbabilityWithEvidence(
+        or(varEquals("X", "X2"), varEquals("X", "X1")), evidence);
+    cache.queryProbabilityWithEvidence(
+        not(varEquals("X", "X3")), and(evidence, evidence));
+
+    CacheStats stats = cache.getStats();
+    assertEquals(1, stats.missCount());
+    assertEquals(2, stats.hitCount());
+    assertEquals(1, cache.size());
+  }
+
+  public void testEviction() {
+    QueryCache cache = QueryCache.withMaximumSize(getNetwork(), 2);
+    for (String value : new String[] { "X1", "X2", "X3" }) {
+      cache.queryProbability(varEquals("X", value));
+    }
+    assertEquals(3, cache.getStats().missCount());
+    assertEquals(1, cache.getStats().evictionCount());
+    assertEquals(2, cache.size());
+
+    // The least recently used entry was evicted.
+    cache.queryProbability(varEquals("X", "X3"));
+    assertEquals(1, cache.getStats().hitCount());
+    cache.queryProbability(varEquals("X", "X1"));
+    assertEquals(4, cache.getStats().missCount());
+  }
+
+  public void testMaximumWeight() {
+    QueryCache cache = QueryCache.withMaximumWeight(getNetwork(), 3);
+    // Two query clauses plus one evidence clause.
+    cache.queryProbabilityWithEvidence(
+        or(varEquals("X", "X1"), varEquals("Y", "Y1")),
+        varEquals("Y", "Y2"));
+    assertEquals(1, cache.size());
+    cache.queryProbability(varEquals("X", "X1"));
+    assertEquals(1, cache.size());
+    assertEquals(1, cache.getStats().evictionCount());
+  }
+}
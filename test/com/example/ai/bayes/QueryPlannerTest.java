@@ -0,0 +1,142 @@
+package com.example.ai.bayes;
+
+import static com.example.ai.bayes.Event.and;
+import static com.example.ai.bayes.Event.not;
+import static com.example.ai.bayes.Event.or;
+import static com.example.ai.bayes.Event.varEquals;
+
+import com.example.ai.bayes.QueryPlan.Strategy;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class QueryPlannerTest extends TestCase {
+  private static final double DELTA = 0.000001;
+
+  private BayesNetwork getNetwork() {
+    return BayesNetwork.builder()
+        .add(ConditionalDistribution.forVariable("A")
+            .setProbability(0.3, "a1")
+            .setProbability(0.7, "a2")
+            .build())
+        .add(ConditionalDistribution.forVariable("B")
+            .setParents("A")
+            .setProbability(0.9, "b1", "a1")
+            .setProbability(0.1, "b2", "a1")
+            .setProbability(0.2, "b1", "a2")
+            .setProbability(0.8, "b2", "a2")
+            .build())
+        .build();
+  }
+
+  public void testSmallNetworkIsEnumerated() {
+    BayesNetwork network = getNetwork();
+    QueryPlanner planner = QueryPlanner.create(network);
+    QueryPlan plan =
+        planner.explain(varEquals("B", "b1"), varEquals("A", "a1"));
+    assertEquals(Strategy.ENUMERATION, plan.getStrategy());
+    assertEquals(plan.getEstimatedCosts().get(Strategy.ENUMERATION),
+        plan.getEstimatedCost());
+    assertEquals(1, plan.getClauseCount());
+    assertEquals(1, plan.getEvidenceClauseCount());
+    assertFalse(plan.getEstimatedCosts().containsKey(Strategy.SAMPLING));
+
+    assertEquals(0.9, planner.queryProbabilityWithEvidence(
+        varEquals("B", "b1"), varEquals("A", "a1")), DELTA);
+    assertEquals(0.3 * 0.9 + 0.7 * 0.2,
+        planner.queryProbability(varEquals("B", "b1")), DELTA);
+  }
+
+  public void testLongChainIsNotEnumerated() {
+    BayesNetwork network = NetworkGenerator.build(
+        NetworkGenerator.CHAIN.generate(40, 2, 1, 1));
+    QueryPlanner planner = QueryPlanner.create(network);
+    Event query = varEquals("X39", "v0");
+    Event evidence = varEquals("X0", "v1");
+    QueryPlan plan = planner.explain(query, evidence);
+    assertFalse(plan.getStrategy() == Strategy.ENUMERATION);
+    assertEquals(1, plan.getTreewidthBound());
+    assertTrue(plan.getEstimatedCost()
+        < plan.getEstimatedCosts().get(Strategy.ENUMERATION));
+    assertEquals(network.queryProbabilityWithEvidence(query, evidence),
+        planner.queryProbabilityWithEvidence(query, evidence), DELTA);
+  }
+
+  public void testRepeatedEvidenceUsesJunctionTree() {
+    BayesNetwork network = NetworkGenerator.build(
+        NetworkGenerator.GRID.generate(16, 2, 2, 1));
+    QueryPlanner planner = QueryPlanner.create(network);
+    Event evidence = varEquals("X15", "v1");
+    QueryPlan first = planner.explain(varEquals("X5", "v0"), evidence);
+    assertTrue(first.getTreewidthBound() >= 2);
+    assertFalse(first.getStrategy() == Strategy.JUNCTION_TREE);
+
+    // A batch of marginals shares one calibration, after which marginals
+    // given the same evidence are read off the tree.
+    List<Event> queries = Lists.newArrayList();
+    for (int i = 0; i < 16; i++) {
+      queries.add(varEquals("X" + i, "v0"));
+    }
+    ImmutableList<Double> posteriors =
+        planner.queryPosteriors(queries, evidence);
+    for (int i = 0; i < 16; i++) {
+      assertEquals(
+          network.queryProbabilityWithEvidence(queries.get(i), evidence),
+          posteriors.get(i), DELTA);
+      assertEquals(posteriors.get(i),
+          planner.queryProbabilityWithEvidence(queries.get(i), evidence),
+          DELTA);
+    }
+    QueryPlan later = planner.explain(varEquals("X5", "v0"), evidence);
+    assertEquals(Strategy.JUNCTION_TREE, later.getStrategy());
+    assertEquals(1d, later.getEstimatedCost());
+  }
+
+  public void testAnswersMatchDefaultEngine() {
+    BayesNetwork network = NetworkGenerator.build(
+        NetworkGenerator.RANDOM_DAG.generate(12, 3, 3, 7));
+    QueryPlanner planner = QueryPlanner.create(network);
+    ImmutableList<Event> queries = ImmutableList.of(
+        varEquals("X11", "v2"),
+        or(varEquals("X3", "v0"), varEquals("X9", "v1")),
+        and(varEquals("X4", "v1"), not(varEquals("X10", "v0"))),
+        Event.alwaysTrue());
+    ImmutableList<Event> evidences = ImmutableList.of(
+        Event.alwaysTrue(),
+        varEquals("X0", "v1"),
+        or(varEquals("X2", "v0"), varEquals("X7", "v2")));
+    for (Event query : queries) {
+      for (Event evidence : evidences) {
+        assertEquals(network.queryProbabilityWithEvidence(query, evidence),
+            planner.queryProbabilityWithEvidence(query, evidence), DELTA);
+      }
+      assertEquals(network.queryProbability(query),
+          planner.queryProbability(query), DELTA);
+    }
+  }
+
+  public void testDenseNetworkIsSampled() {
+    BayesNetwork network = NetworkGenerator.build(
+        NetworkGenerator.RANDOM_DAG.generate(60, 3, 8, 3));
+    LikelihoodWeightingEngine sampler = LikelihoodWeightingEngine.builder()
+        .setMaxSamples(2000)
+        .setSeed(5)
+        .build();
+    QueryPlanner planner = QueryPlanner.create(network, sampler);
+    Event query = varEquals("X59", "v0");
+    Event evidence = varEquals("X1", "v1");
+    QueryPlan plan = planner.explain(query, evidence);
+    assertEquals(Strategy.SAMPLING, plan.getStrategy());
+    double probability = planner.queryProbabilityWithEvidence(query, evidence);
+    assertTrue(probability >= 0 && probability <= 1);
+
+    // Sampling cannot condition on a disjunction.
+    QueryPlan disjunctive = planner.explain(
+        query, or(varEquals("X1", "v1"), varEquals("X2", "v0")));
+    assertFalse(
+        disjunctive.getEstimatedCosts().containsKey(Strategy.SAMPLING));
+  }
+}
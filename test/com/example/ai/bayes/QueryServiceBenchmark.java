@@ -0,0 +1,176 @@
+package com.example.ai.bayes;
+
+import static com.example.ai.bayes.Event.varEquals;
+
+import com.google.common.collect.Lists;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load-tests a {@link QueryService}: many client threads submit queries
+ * drawn from a small set of hot queries and evidence, and wait for each
+ * answer, while the latency of every request is recorded.  For comparison,
+ * the same load is first run with each client calling a
+ * {@link QueryPlanner} directly.  Run it directly; it is not part of the
+ * unit tests.
+ *
+ * <p> Arguments, all optional: the number of client threads, the number of
+ * worker threads of the service, the seconds to measure each mode for, the
+ * number of variables of the generated network, and the number of distinct
+ * pieces of evidence.
+ */
+public class QueryServiceBenchmark {
+  /** The most latencies recorded per client. */
+  private static final int MAX_SAMPLES = 1 << 18;
+
+  /**
+   * A way of answering one query.
+   */
+  private interface Client {
+    double query(Event queryEvent, Event evidence);
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    int clients = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+    int workers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+    double seconds = args.length > 2 ? Double.parseDouble(args[2]) : 5;
+    int nodes = args.length > 3 ? Integer.parseInt(args[3]) : 40;
+    int evidenceCount = args.length > 4 ? Integer.parseInt(args[4]) : 4;
+
+    BayesNetwork network = NetworkGenerator.build(
+        NetworkGenerator.RANDOM_DAG.generate(nodes, 3, 3, 1));
+    final List<Event> queries = Lists.newArrayList();
+    for (int i = 0; i < nodes; i++) {
+      queries.add(varEquals("X" + i, "v0"));
+    }
+    final List<Event> evidences = Lists.newArrayList();
+    for (int i = 0; i < evidenceCount; i++) {
+      evidences.add(varEquals("X" + (nodes - 1 - i), "v" + (i % 3)));
+    }
+
+    System.out.printf("%d clients, %d workers, %d variables, %d evidence%n",
+        clients, workers, nodes, evidenceCount);
+    System.out.println("mode\tops/s\tp50 us\tp90 us\tp99 us\tp99.9 us\t"
+        + "max us\trejected");
+
+    final QueryPlanner planner = QueryPlanner.create(network);
+    run("direct", clients, seconds, queries, evidences, new Client() {
+      @Override
+      public double query(Event queryEvent, Event evidence) {
+        return planner.queryProbabilityWithEvidence(queryEvent, evidence);
+      }
+    });
+
+    ExecutorService pool = Executors.newFixedThreadPool(workers);
+    try {
+      final QueryService service =
+          QueryService.builder(QueryPlanner.create(network))
+              .setExecutor(pool)
+              .build();
+      run("service", clients, seconds, queries, evidences, new Client() {
+        @Override
+        public double query(Event queryEvent, Event evidence) {
+          return service.submit(queryEvent, evidence).join();
+        }
+      });
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * Warms up for half the given time, and then runs the clients for the
+   * given time and prints the latency percentiles over all requests.
+   */
+  private static void run(String name, int clients, double seconds,
+      final List<Event> queries, final List<Event> evidences,
+      final Client client) throws InterruptedException {
+    runClients(clients, (long) (seconds * 1e9 / 2), queries, evidences,
+        client, new long[clients][MAX_SAMPLES], new int[clients],
+        new AtomicLong());
+
+    long[][] latencies = new long[clients][MAX_SAMPLES];
+    int[] counts = new int[clients];
+    AtomicLong rejected = new AtomicLong();
+    long start = System.nanoTime();
+    long operations = runClients(clients, (long) (seconds * 1e9), queries,
+        evidences, client, latencies, counts, rejected);
+    long elapsed = System.nanoTime() - start;
+
+    int total = 0;
+    for (int count : counts) {
+      total += count;
+    }
+    long[] merged = new long[total];
+    int offset = 0;
+    for (int i = 0; i < clients; i++) {
+      System.arraycopy(latencies[i], 0, merged, offset, counts[i]);
+      offset += counts[i];
+    }
+    Arrays.sort(merged);
+    System.out.printf("%s\t%.0f\t%.1f\t%.1f\t%.1f\t%.1f\t%.1f\t%d%n",
+        name,
+        operations / (elapsed / 1e9),
+        percentile(merged, 0.5),
+        percentile(merged, 0.9),
+        percentile(merged, 0.99),
+        percentile(merged, 0.999),
+        merged[merged.length - 1] / 1e3,
+        rejected.get());
+  }
+
+  /**
+   * Runs every client on its own thread for the given time.
+   *
+   * @return the number of answered requests
+   */
+  private static long runClients(int clients, final long nanos,
+      final List<Event> queries, final List<Event> evidences,
+      final Client client, final long[][] latencies, final int[] counts,
+      final AtomicLong rejected) throws InterruptedException {
+    final AtomicLong operations = new AtomicLong();
+    final CountDownLatch done = new CountDownLatch(clients);
+    final long end = System.nanoTime() + nanos;
+    for (int i = 0; i < clients; i++) {
+      final int index = i;
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          Random random = new Random(index);
+          long now = System.nanoTime();
+          while (now < end) {
+            Event queryEvent = queries.get(random.nextInt(queries.size()));
+            Event evidence = evidences.get(random.nextInt(evidences.size()));
+            try {
+              client.query(queryEvent, evidence);
+              operations.incrementAndGet();
+            } catch (CompletionException e) {
+              rejected.incrementAndGet();
+            }
+            long finished = System.nanoTime();
+            if (counts[index] < MAX_SAMPLES) {
+              latencies[index][counts[index]++] = finished - now;
+            }
+            now = finished;
+          }
+          done.countDown();
+        }
+      });
+      thread.start();
+    }
+    done.await();
+    return operations.get();
+  }
+
+  private static double percentile(long[] sorted, double p) {
+    return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))]
+        / 1e3;
+  }
+}
@@ -0,0 +1,195 @@
+package com.example.ai.bayes;
+
+import static com.example.ai.bayes.Event.varEquals;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import junit.framework.TestCase;
+
+public class QueryServiceTest extends TestCase {
+  private static final double DELTA = 0.000001;
+
+  /** The tasks handed to the executor, run only when the test says so. */
+  private final List<Runnable> tasks = Lists.newArrayList();
+
+  private final Executor manualExecutor = new Executor() {
+    @Override
+    public void execute(Runnable task) {
+      tasks.add(task);
+    }
+  };
+
+  private BayesNetwork network;
+
+  @Override
+  protected void setUp() {
+    network = NetworkGenerator.build(
+        NetworkGenerator.RANDOM_DAG.generate(10, 2, 2, 3));
+  }
+
+  private QueryService.Builder builder() {
+    return QueryService.builder(QueryPlanner.create(network))
+        .setExecutor(manualExecutor);
+  }
+
+  private void runTasks() {
+    List<Runnable> pending = Lists.newArrayList(tasks);
+    tasks.clear();
+    for (Runnable task : pending) {
+      task.run();
+    }
+  }
+
+  public void testDuplicatesShareOneComputation() throws Exception {
+    QueryService service = builder().build();
+    Event query = varEquals("X9", "v0");
+    Event evidence = varEquals("X0", "v1");
+    List<CompletableFuture<Double>> results = Lists.newArrayList();
+    for (int i = 0; i < 3; i++) {
+      results.add(service.submit(query, evidence));
+    }
+    assertEquals(1, tasks.size());
+    assertEquals(1, service.getPendingCount());
+
+    runTasks();
+    double expected = network.queryProbabilityWithEvidence(query, evidence);
+    for (CompletableFuture<Double> result : results) {
+      assertEquals(expected, result.get(), DELTA);
+    }
+    assertEquals(0, service.getPendingCount());
+  }
+
+  public void testSharedEvidenceIsBatched() throws Exception {
+    QueryService service = builder().build();
+    Event evidence = varEquals("X0", "v1");
+    List<CompletableFuture<Double>> results = Lists.newArrayList();
+    for (int i = 1; i < 10; i++) {
+      results.add(service.submit(varEquals("X" + i, "v0"), evidence));
+    }
+    CompletableFuture<Double> other =
+        service.submit(varEquals("X5", "v0"), varEquals("X1", "v0"));
+    assertEquals(2, tasks.size());
+
+    runTasks();
+    for (int i = 1; i < 10; i++) {
+      assertEquals(network.queryProbabilityWithEvidence(
+              varEquals("X" + i, "v0"), evidence),
+          results.get(i - 1).get(), DELTA);
+    }
+    assertEquals(network.queryProbabilityWithEvidence(
+            varEquals("X5", "v0"), varEquals("X1", "v0")),
+        other.get(), DELTA);
+  }
+
+  public void testFullBatchesAreSplit() {
+    QueryService service = builder().setMaxBatchSize(2).build();
+    Event evidence = varEquals("X0", "v1");
+    for (int i = 1; i <= 5; i++) {
+      service.submit(varEquals("X" + i, "v0"), evidence);
+    }
+    assertEquals(3, tasks.size());
+  }
+
+  public void testFullQueueRejects() throws Exception {
+    QueryService service = builder().setMaxPending(2).build();
+    Event evidence = Event.alwaysTrue();
+    CompletableFuture<Double> first =
+        service.submit(varEquals("X1", "v0"), evidence);
+    service.submit(varEquals("X2", "v0"), evidence);
+    CompletableFuture<Double> rejected =
+        service.submit(varEquals("X3", "v0"), evidence);
+    try {
+      rejected.get();
+      fail();
+    } catch (ExecutionException expected) {
+      assertTrue(expected.getCause() instanceof RejectedExecutionException);
+    }
+
+    // Duplicates of pending queries take no room.
+    CompletableFuture<Double> duplicate =
+        service.submit(varEquals("X1", "v0"), evidence);
+    runTasks();
+    assertEquals(first.get(), duplicate.get());
+
+    CompletableFuture<Double> later =
+        service.submit(varEquals("X3", "v0"), evidence);
+    runTasks();
+    assertEquals(network.queryProbability(varEquals("X3", "v0")),
+        later.get(), DELTA);
+  }
+
+  public void testInvalidQueryFailsAlone() throws Exception {
+    QueryService service = builder().build();
+    Event evidence = varEquals("X0", "v1");
+    CompletableFuture<Double> valid =
+        service.submit(varEquals("X4", "v1"), evidence);
+    CompletableFuture<Double> invalid =
+        service.submit(varEquals("Unknown", "v1"), evidence);
+    runTasks();
+    assertEquals(network.queryProbabilityWithEvidence(
+            varEquals("X4", "v1"), evidence),
+        valid.get(), DELTA);
+    try {
+      invalid.get();
+      fail();
+    } catch (ExecutionException expected) {
+      assertTrue(expected.getCause() instanceof IllegalArgumentException);
+    }
+    assertEquals(0, service.getPendingCount());
+  }
+
+  public void testErrorFailsWholeBatch() throws Exception {
+    QueryService service = builder().build();
+    Event evidence = varEquals("X0", "v1");
+    CompletableFuture<Double> valid =
+        service.submit(varEquals("X4", "v1"), evidence);
+    CompletableFuture<Double> broken = service.submit(new Event() {
+      @Override
+      public ImmutableList<? extends AndClause> getAndClauses() {
+        throw new StackOverflowError();
+      }
+    }, evidence);
+    try {
+      runTasks();
+      fail();
+    } catch (StackOverflowError expected) {
+      // The error still reaches the executor.
+    }
+    assertTrue(valid.isCompletedExceptionally());
+    assertTrue(broken.isCompletedExceptionally());
+    assertEquals(0, service.getPendingCount());
+  }
+
+  public void testConcurrentSubmissions() throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    try {
+      final QueryService service =
+          QueryService.builder(QueryPlanner.create(network))
+              .setExecutor(pool)
+              .build();
+      List<CompletableFuture<Double>> results = Lists.newArrayList();
+      for (int i = 0; i < 400; i++) {
+        results.add(service.submit(varEquals("X" + (i % 10), "v0"),
+            varEquals("X" + (i % 3), "v1")));
+      }
+      for (int i = 0; i < 400; i++) {
+        assertEquals(network.queryProbabilityWithEvidence(
+                varEquals("X" + (i % 10), "v0"),
+                varEquals("X" + (i % 3), "v1")),
+            results.get(i).get(), DELTA);
+      }
+      assertEquals(0, service.getPendingCount());
+    } finally {
+      pool.shutdown();
+    }
+  }
+}
@@ -0,0 +1,141 @@
+package com.example.ai.bayes;
+
+import static com.example.ai.bayes.Event.and;
+import static com.example.ai.bayes.Event.not;
+import static com.example.ai.bayes.Event.or;
+import static com.example.ai.bayes.Event.varEquals;
+
+import com.example.ai.bayes.RelevanceReducer.Reduction;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import junit.framework.TestCase;
+
+public class RelevanceReducerTest extends TestCase {
+  private static final double DELTA = 0.000001;
+
+  /**
+   * A chain A -> B -> C, with D a second child of A and E a common child of
+   * C and D.
+   */
+  private BayesNetwork getNetwork() {
+    return BayesNetwork.builder()
+        .add(ConditionalDistribution.forVariable("A")
+            .setProbability(0.3, "a1")
+            .setProbability(0.7, "a2")
+            .build())
+        .add(ConditionalDistribution.forVariable("B")
+            .setParents("A")
+            .setProbability(0.9, "b1", "a1")
+            .setProbability(0.1, "b2", "a1")
+            .setProbability(0.2, "b1", "a2")
+            .setProbability(0.8, "b2", "a2")
+            .build())
+        .add(ConditionalDistribution.forVariable("C")
+            .setParents("B")
+            .setProbability(0.6, "c1", "b1")
+            .setProbability(0.4, "c2", "b1")
+            .setProbability(0.1, "c1", "b2")
+            .setProbability(0.9, "c2", "b2")
+            .build())
+        .add(ConditionalDistribution.forVariable("D")
+            .setParents("A")
+            .setProbability(0.5, "d1", "a1")
+            .setProbability(0.5, "d2", "a1")
+            .setProbability(0.25, "d1", "a2")
+            .setProbability(0.75, "d2", "a2")
+            .build())
+        .add(ConditionalDistribution.forVariable("E")
+            .setParents("C", "D")
+            .setProbability(0.1, "e1", "c1", "d1")
+            .setProbability(0.9, "e2", "c1", "d1")
+            .setProbability(0.4, "e1", "c2", "d1")
+            .setProbability(0.6, "e2", "c2", "d1")
+            .setProbability(0.7, "e1", "c1", "d2")
+            .setProbability(0.3, "e2", "c1", "d2")
+            .setProbability(0.8, "e1", "c2", "d2")
+            .setProbability(0.2, "e2", "c2", "d2")
+            .build())
+        .build();
+  }
+
+  public void testBarrenVariablesAreDropped() {
+    RelevanceReducer reducer = RelevanceReducer.create(getNetwork());
+    Reduction reduction = reducer.reduce(varEquals("B", "b1"),
+        Event.alwaysTrue());
+    assertEquals(ImmutableList.of("A", "B"),
+        reduction.getNetwork().getVariables());
+  }
+
+  public void testSeparatedVariablesAreDropped() {
+    BayesNetwork network = getNetwork();
+    RelevanceReducer reducer = RelevanceReducer.create(network);
+    Event query = varEquals("C", "c1");
+    Event evidence = varEquals("B", "b2");
+    Reduction reduction = reducer.reduce(query, evidence);
+
+    // B is absorbed into the table of C, and nothing else matters.
+    assertEquals(ImmutableList.of("C"), reduction.getNetwork().getVariables());
+    assertEquals(Event.alwaysTrue(), reduction.getEvidence());
+    assertEquals(0.1, reducer.queryProbabilityWithEvidence(query, evidence),
+        DELTA);
+  }
+
+  public void testCommonChildKeepsParentsConnected() {
+    BayesNetwork network = getNetwork();
+    RelevanceReducer reducer = RelevanceReducer.create(network);
+    Event query = varEquals("C", "c1");
+    Event evidence = and(varEquals("E", "e1"), varEquals("A", "a2"));
+    Reduction reduction = reducer.reduce(query, evidence);
+
+    // Observing E connects C to D, but observing A cuts both off from it.
+    assertEquals(ImmutableSet.of("B", "C", "D", "E"),
+        ImmutableSet.copyOf(reduction.getNetwork().getVariables()));
+    assertEquals(varEquals("E", "e1"), reduction.getEvidence());
+    assertEquals(network.queryProbabilityWithEvidence(query, evidence),
+        reducer.queryProbabilityWithEvidence(query, evidence), DELTA);
+  }
+
+  public void testAnswersMatchFullNetwork() {
+    BayesNetwork network = NetworkGenerator.build(
+        NetworkGenerator.RANDOM_DAG.generate(14, 3, 3, 11));
+    RelevanceReducer reducer = RelevanceReducer.create(network);
+    ImmutableList<Event> queries = ImmutableList.of(
+        varEquals("X13", "v1"),
+        varEquals("X2", "v0"),
+        or(varEquals("X5", "v0"), varEquals("X9", "v2")),
+        and(varEquals("X7", "v1"), not(varEquals("X3", "v0"))),
+        varEquals("X4", "v2"));
+    ImmutableList<Event> evidences = ImmutableList.of(
+        Event.alwaysTrue(),
+        varEquals("X6", "v0"),
+        and(varEquals("X1", "v2"), varEquals("X10", "v1")),
+        and(varEquals("X4", "v2"), not(varEquals("X8", "v1"))),
+        or(varEquals("X0", "v0"), varEquals("X12", "v2")));
+    InferenceEngine enumeration = EnumerationEngine.create();
+    for (Event query : queries) {
+      for (Event evidence : evidences) {
+        assertEquals(
+            network.queryProbabilityWithEvidence(query, evidence),
+            reducer.queryProbabilityWithEvidence(query, evidence), DELTA);
+        assertEquals(
+            network.queryProbabilityWithEvidence(query, evidence),
+            reducer.queryProbabilityWithEvidence(
+                query, evidence, enumeration),
+            DELTA);
+      }
+    }
+  }
+
+  public void testReductionsAreCachedPerPattern() {
+    RelevanceReducer reducer = RelevanceReducer.create(getNetwork());
+    Reduction first = reducer.reduce(
+        varEquals("C", "c1"), and(varEquals("E", "e1"), varEquals("A", "a1")));
+    Reduction second = reducer.reduce(
+        varEquals("C", "c2"), and(varEquals("A", "a1"), varEquals("E", "e1")));
+    Reduction other = reducer.reduce(
+        varEquals("C", "c1"), and(varEquals("E", "e1"), varEquals("A", "a2")));
+    assertSame(first.getNetwork(), second.getNetwork());
+    assertNotSame(first.getNetwork(), other.getNetwork());
+  }
+}
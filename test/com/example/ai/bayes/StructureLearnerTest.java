@@ -0,0 +1,136 @@
+package com.example.ai.bayes;
+
+import static com.example.ai.bayes.Event.varEquals;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import junit.framework.TestCase;
+
+public class StructureLearnerTest extends TestCase {
+  private static final ImmutableList<String> VALUES =
+      ImmutableList.of("T", "F");
+
+  /**
+   * A chain A -> B -> C, with D independent of the others.
+   */
+  private BayesNetwork getNetwork() {
+    return BayesNetwork.builder()
+        .add(ConditionalDistribution.forVariable("A")
+            .setProbability(0.3, "T")
+            .setProbability(0.7, "F")
+            .build())
+        .add(ConditionalDistribution.forVariable("B")
+            .setParents("A")
+            .setProbability(0.9, "T", "T")
+            .setProbability(0.1, "F", "T")
+            .setProbability(0.2, "T", "F")
+            .setProbability(0.8, "F", "F")
+            .build())
+        .add(ConditionalDistribution.forVariable("C")
+            .setParents("B")
+            .setProbability(0.75, "T", "T")
+            .setProbability(0.25, "F", "T")
+            .setProbability(0.1, "T", "F")
+            .setProbability(0.9, "F", "F")
+            .build())
+        .add(ConditionalDistribution.forVariable("D")
+            .setProbability(0.5, "T")
+            .setProbability(0.5, "F")
+            .build())
+        .build();
+  }
+
+  private StructureLearner.Builder getBuilder() {
+    StructureLearner.Builder builder = StructureLearner.builder();
+    for (String variable : ImmutableList.of("A", "B", "C", "D")) {
+      builder.addVariable(variable, VALUES);
+    }
+    return builder;
+  }
+
+  private int[][] sample(int records) {
+    int[][] columns = new int[4][records];
+    ForwardSampler.create(getNetwork()).sampleColumns(3, columns);
+    return columns;
+  }
+
+  /**
+   * Gets the edges of a network, ignoring their direction.
+   */
+  private static Set<ImmutableSet<String>> getSkeleton(BayesNetwork network) {
+    Set<ImmutableSet<String>> result = Sets.newHashSet();
+    for (ConditionalDistribution distribution
+        : network.getConditionalDistributions()) {
+      for (String parent : distribution.getParentVariableNames()) {
+        result.add(ImmutableSet.of(parent, distribution.getVariableName()));
+      }
+    }
+    return result;
+  }
+
+  public void testRecoversSkeleton() {
+    int[][] columns = sample(20000);
+    for (NetworkScore score : NetworkScore.values()) {
+      BayesNetwork learned =
+          getBuilder().setScore(score).build().learn(columns);
+      assertEquals(score.toString(),
+          ImmutableSet.of(ImmutableSet.of("A", "B"), ImmutableSet.of("B", "C")),
+          getSkeleton(learned));
+      assertEquals(getNetwork().queryProbability(varEquals("C", "T")),
+          learned.queryProbability(varEquals("C", "T")), 0.02);
+    }
+  }
+
+  public void testParallelMatchesSequential() {
+    int[][] columns = sample(5000);
+    BayesNetwork expected = getBuilder().build().learn(columns);
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      assertEquals(expected,
+          getBuilder().setPool(pool).build().learn(columns));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  public void testTabuSearch() {
+    BayesNetwork learned =
+        getBuilder().setTabuSize(3).build().learn(sample(20000));
+    assertEquals(
+        ImmutableSet.of(ImmutableSet.of("A", "B"), ImmutableSet.of("B", "C")),
+        getSkeleton(learned));
+  }
+
+  public void testLimits() {
+    int[][] columns = sample(2000);
+    assertTrue(getSkeleton(
+        getBuilder().setMaxParents(0).build().learn(columns)).isEmpty());
+    assertEquals(1, getSkeleton(
+        getBuilder().setMaxIterations(1).build().learn(columns)).size());
+  }
+
+  public void testRejectsBadData() {
+    try {
+      getBuilder().build().learn(new int[][] { { 0 }, { 1 }, { 2 }, { 0 } });
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      getBuilder().build().learn(new int[4][0]);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testLogGamma() {
+    assertEquals(Math.log(24), NetworkScore.logGamma(5), 1e-12);
+    assertEquals(0.5 * Math.log(Math.PI), NetworkScore.logGamma(0.5), 1e-12);
+    assertEquals(2.252712651734206, NetworkScore.logGamma(0.1), 1e-12);
+    assertEquals(359.13420536957540, NetworkScore.logGamma(100), 1e-9);
+  }
+}
@@ -0,0 +1,149 @@
+package com.example.ai.bayes;
+
+import static com.example.ai.bayes.Event.and;
+import static com.example.ai.bayes.Event.not;
+import static com.example.ai.bayes.Event.or;
+import static com.example.ai.bayes.Event.varEquals;
+
+import com.google.common.collect.ImmutableList;
+
+import junit.framework.TestCase;
+
+public class VariableEliminationEngineTest extends TestCase {
+  private static final double DELTA = 0.000001;
+
+  private BayesNetwork getGrassNetwork() {
+    return BayesNetwork.builder()
+        .add(ConditionalDistribution
+            .forVariable("Rain")
+            .setProbability(1/5d, "True")
+            .setProbability(4/5d, "False")
+            .build())
+        .add(ConditionalDistribution
+            .forVariable("Sprinkler")
+            .setParents("Rain")
+            .setProbability(2/5d, "True", "False")
+            .setProbability(3/5d, "False", "False")
+            .setProbability(1/100d, "True", "True")
+            .setProbability(99/100d, "False", "True")
+            .build())
+        .add(ConditionalDistribution
+            .forVariable("GrassWet")
+            .setParents("Sprinkler", "Rain")
+            .setProbability(0d, "True", "False", "False")
+            .setProbability(1d, "False", "False", "False")
+            .setProbability(4/5d, "True", "False", "True")
+            .setProbability(1/5d, "False", "False", "True")
+            .setProbability(9/10d, "True", "True", "False")
+            .setProbability(1/10d, "False", "True", "False")
+            .setProbability(99/100d, "True", "True", "True")
+            .setProbability(1/100d, "False", "True", "True")
+            .build())
+        .build();
+  }
+
+  public void testMatchesEnumeration() {
+    BayesNetwork network = getGrassNetwork();
+    ImmutableList<Event> events = ImmutableList.of(
+        varEquals("Rain", "True"),
+        varEquals("GrassWet", "True"),
+        not(varEquals("Sprinkler", "True")),
+        and(varEquals("Rain", "True"), varEquals("GrassWet", "False")),
+        or(varEquals("Sprinkler", "True"), varEquals("GrassWet", "False")));
+    InferenceEngine enumeration = EnumerationEngine.create();
+
+    for (EliminationOrder order : EliminationOrder.values()) {
+      InferenceEngine engine = VariableEliminationEngine.withOrder(order);
+      for (Event event : events) {
+        assertEquals(order + " " + event,
+            network.queryProbability(event, enumeration),
+            network.queryProbability(event, engine),
+            DELTA);
+      }
+    }
+  }
+
+  public void testWithEvidence() {
+    BayesNetwork network = getGrassNetwork();
+    for (EliminationOrder order : EliminationOrder.values()) {
+      double probability = network.queryProbabilityWithEvidence(
+          varEquals("Rain", "True"),
+          varEquals("GrassWet", "True"),
+          VariableEliminationEngine.withOrder(order));
+      assertEquals(891/2491d, probability, DELTA);
+    }
+  }
+
+  /**
+   * A long chain is cheap for variable elimination but far too large to
+   * enumerate, so this only finishes if barren nodes are pruned and the
+   * elimination order keeps factors small.
+   */
+  public void testLongChain() {
+    BayesNetwork.Builder builder = BayesNetwork.builder()
+        .add(ConditionalDistribution.forVariable("X0")
+            .setProbability(1/2d, "T")
+            .setProbability(1/2d, "F")
+            .build());
+    for (int i = 1; i < 200; i++) {
+      builder.add(ConditionalDistribution.forVariable("X" + i)
+          .setParents("X" + (i - 1))
+          .setProbability(9/10d, "T", "T")
+          .setProbability(1/10d, "F", "T")
+          .setProbability(1/10d, "T", "F")
+          .setProbability(9/10d, "F", "F")
+          .build());
+    }
+    BayesNetwork network = builder.build();
+
+    double probability = network.queryProbabilityWithEvidence(
+        varEquals("X199", "T"), varEquals("X0", "T"));
+    assertEquals(1/2d, probability, DELTA);
+
+    probability = network.queryProbabilityWithEvidence(
+        varEquals("X1", "T"), varEquals("X0", "T"));
+    assertEquals(9/10d, probability, DELTA);
+  }
+
+  /**
+   * Evidence on every variable of a long chain of unlikely transitions has a
+   * probability of around 1e-340, which underflows in plain doubles.
+   */
+  public void testUnlikelyEvidence() {
+    BayesNetwork.Builder builder = BayesNetwork.builder()
+        .add(ConditionalDistribution.forVariable("X0")
+            .setProbability(1/2d, "T")
+            .setProbability(1/2d, "F")
+            .build());
+    Event evidence = Event.alwaysTrue();
+    for (int i = 1; i < 200; i++) {
+      builder.add(ConditionalDistribution.forVariable("X" + i)
+          .setParents("X" + (i - 1))
+          .setProbability(1/50d, "T", "T")
+          .setProbability(49/50d, "F", "T")
+          .setProbability(1/100d, "T", "F")
+          .setProbability(99/100d, "F", "F")
+          .build());
+      evidence = and(evidence, varEquals("X" + i, "T"));
+    }
+    BayesNetwork network = builder.build();
+
+    VariableEliminationEngine plain =
+        VariableEliminationEngine.withOrder(EliminationOrder.MIN_FILL);
+    assertEquals(0d, network.queryProbability(evidence, plain));
+    assertTrue(Double.isNaN(network.queryProbabilityWithEvidence(
+        varEquals("X0", "T"), evidence, plain)));
+
+    VariableEliminationEngine logSpace = plain.withNumerics(Numerics.LOG_SPACE);
+    double expectedLog = Math.log(1/2d * 1/50d + 1/2d * 1/100d)
+        + 198 * Math.log(1/50d);
+    assertEquals(expectedLog,
+        network.queryLogProbability(evidence, logSpace), 1e-9);
+    assertEquals(2/3d, network.queryProbabilityWithEvidence(
+        varEquals("X0", "T"), evidence, logSpace), DELTA);
+    assertEquals(2/3d, network.queryProbabilityWithEvidence(
+        varEquals("X0", "T"), evidence), DELTA);
+    assertEquals(1/3d, network.queryProbabilityWithEvidence(
+        or(varEquals("X0", "F"), varEquals("X1", "F")), evidence), DELTA);
+  }
+}
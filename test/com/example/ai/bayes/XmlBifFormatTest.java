@@ -0,0 +1,124 @@
+package com.example.ai.bayes;
+
+import static com.example.ai.bayes.Event.and;
+import static com.example.ai.bayes.Event.varEquals;
+
+import com.google.common.collect.ImmutableList;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import junit.framework.TestCase;
+
+public class XmlBifFormatTest extends TestCase {
+  private static final double DELTA = 0.000001;
+
+  private static final String SPRINKLER =
+      "<?xml version=\"1.0\"?>\n"
+      + "<BIF VERSION=\"0.3\">\n"
+      + "<NETWORK>\n"
+      + "<NAME>sprinkler</NAME>\n"
+      + "<VARIABLE TYPE=\"nature\">\n"
+      + "  <NAME>Rain</NAME>\n"
+      + "  <OUTCOME>yes</OUTCOME>\n"
+      + "  <OUTCOME>no</OUTCOME>\n"
+      + "  <PROPERTY>position = (10, 20)</PROPERTY>\n"
+      + "</VARIABLE>\n"
+      + "<VARIABLE TYPE=\"nature\">\n"
+      + "  <NAME>Sprinkler</NAME>\n"
+      + "  <OUTCOME>on</OUTCOME>\n"
+      + "  <OUTCOME>off</OUTCOME>\n"
+      + "</VARIABLE>\n"
+      + "<VARIABLE TYPE=\"nature\">\n"
+      + "  <NAME>Grass</NAME>\n"
+      + "  <OUTCOME>wet</OUTCOME>\n"
+      + "  <OUTCOME>dry</OUTCOME>\n"
+      + "</VARIABLE>\n"
+      + "<DEFINITION>\n"
+      + "  <FOR>Rain</FOR>\n"
+      + "  <TABLE>0.2 0.8</TABLE>\n"
+      + "</DEFINITION>\n"
+      + "<DEFINITION>\n"
+      + "  <FOR>Sprinkler</FOR>\n"
+      + "  <GIVEN>Rain</GIVEN>\n"
+      + "  <TABLE>0.01 0.99\n 0.4 0.6</TABLE>\n"
+      + "</DEFINITION>\n"
+      + "<DEFINITION>\n"
+      + "  <FOR>Grass</FOR>\n"
+      + "  <GIVEN>Sprinkler</GIVEN>\n"
+      + "  <GIVEN>Rain</GIVEN>\n"
+      + "  <TABLE>0.99 0.01 0.9 0.1 0.8 0.2 0.0 1.0</TABLE>\n"
+      + "</DEFINITION>\n"
+      + "</NETWORK>\n"
+      + "</BIF>\n";
+
+  public void testRead() throws IOException {
+    BayesNetwork network = read(SPRINKLER);
+    assertEquals(ImmutableList.of("Rain", "Sprinkler", "Grass"),
+        network.getVariables());
+    assertEquals(0.4, network.queryProbabilityWithEvidence(
+        varEquals("Sprinkler", "on"), varEquals("Rain", "no")), DELTA);
+    assertEquals(0.8, network.queryProbabilityWithEvidence(
+        varEquals("Grass", "wet"),
+        and(varEquals("Sprinkler", "off"), varEquals("Rain", "yes"))),
+        DELTA);
+    assertEquals(0.9, network.queryProbabilityWithEvidence(
+        varEquals("Grass", "wet"),
+        and(varEquals("Sprinkler", "on"), varEquals("Rain", "no"))),
+        DELTA);
+  }
+
+  public void testTableSplitBetweenTextEvents() throws IOException {
+    BayesNetwork network = read("<BIF><NETWORK><VARIABLE><NAME>A</NAME>"
+        + "<OUTCOME>a1</OUTCOME><OUTCOME>a2</OUTCOME></VARIABLE>"
+        + "<DEFINITION><FOR>A</FOR>"
+        + "<TABLE>0.2<!-- between -->5 <![CDATA[0.]]>75</TABLE>"
+        + "</DEFINITION></NETWORK></BIF>");
+    assertEquals(0.25, network.queryProbability(varEquals("A", "a1")), DELTA);
+    assertEquals(0.75, network.queryProbability(varEquals("A", "a2")), DELTA);
+  }
+
+  public void testRoundTrip() throws IOException {
+    BayesNetwork network = read(SPRINKLER);
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    XmlBifFormat.write(network, output);
+    assertEquals(network,
+        XmlBifFormat.read(new ByteArrayInputStream(output.toByteArray())));
+  }
+
+  public void testRejectsMalformedInput() {
+    assertMalformed("<BIF><NETWORK>");
+    assertMalformed("<BIF><NETWORK><VARIABLE><NAME>A</NAME>"
+        + "<OUTCOME>a</OUTCOME></VARIABLE>"
+        + "<DEFINITION><FOR>A</FOR><TABLE>0.5 0.5</TABLE></DEFINITION>"
+        + "</NETWORK></BIF>");
+    assertMalformed("<BIF><NETWORK><VARIABLE><NAME>A</NAME>"
+        + "<OUTCOME>a</OUTCOME></VARIABLE>"
+        + "<DEFINITION><FOR>B</FOR><TABLE>1</TABLE></DEFINITION>"
+        + "</NETWORK></BIF>");
+    assertMalformed("<BIF><NETWORK><VARIABLE><NAME>A</NAME>"
+        + "<OUTCOME>a</OUTCOME></VARIABLE>"
+        + "<DEFINITION><FOR>A</FOR><TABLE>one</TABLE></DEFINITION>"
+        + "</NETWORK></BIF>");
+    assertMalformed(
+        "<!DOCTYPE BIF [<!ENTITY x SYSTEM \"file:///etc/passwd\">]>"
+        + "<BIF><NETWORK><VARIABLE><NAME>&x;</NAME>"
+        + "<OUTCOME>a</OUTCOME></VARIABLE>"
+        + "</NETWORK></BIF>");
+  }
+
+  private void assertMalformed(String text) {
+    try {
+      read(text);
+      fail(text);
+    } catch (IOException expected) {
+    }
+  }
+
+  private static BayesNetwork read(String text) throws IOException {
+    return XmlBifFormat.read(
+        new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)));
+  }
+}